@@ -55,6 +55,14 @@ public class ConnectionModel extends ChildObjectModel {
      */
     private Integer maxConnectionsPerUser;
 
+    /**
+     * The maximum rate, in kilobytes per second, at which data may be sent
+     * from guacd to the client over any one tunnel to this connection, zero
+     * if no restriction applies, or null if the default restrictions should
+     * be applied.
+     */
+    private Integer maxBandwidth;
+
     /**
      * The identifiers of all readable sharing profiles associated with this
      * connection.
@@ -160,6 +168,32 @@ public class ConnectionModel extends ChildObjectModel {
         this.maxConnectionsPerUser = maxConnectionsPerUser;
     }
 
+    /**
+     * Returns the maximum rate at which data may be sent from guacd to the
+     * client over any one tunnel to this connection.
+     *
+     * @return
+     *     The maximum rate, in kilobytes per second, at which data may be sent
+     *     over any one tunnel to this connection, zero if no restriction
+     *     applies, or null if the default restrictions should be applied.
+     */
+    public Integer getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+    /**
+     * Sets the maximum rate at which data may be sent from guacd to the
+     * client over any one tunnel to this connection.
+     *
+     * @param maxBandwidth
+     *     The maximum rate, in kilobytes per second, at which data may be sent
+     *     over any one tunnel to this connection, zero if no restriction
+     *     applies, or null if the default restrictions should be applied.
+     */
+    public void setMaxBandwidth(Integer maxBandwidth) {
+        this.maxBandwidth = maxBandwidth;
+    }
+
     /**
      * Returns the identifiers of all readable sharing profiles associated with
      * this connection. This is set only when the connection is queried, and has
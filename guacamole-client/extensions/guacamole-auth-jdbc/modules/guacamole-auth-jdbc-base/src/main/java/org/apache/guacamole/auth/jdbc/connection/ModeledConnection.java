@@ -70,6 +70,12 @@ public class ModeledConnection extends ModeledChildDirectoryObject<ConnectionMod
      */
     public static final String MAX_CONNECTIONS_PER_USER_NAME = "max-connections-per-user";
 
+    /**
+     * The name of the attribute which controls the maximum rate, in kilobytes
+     * per second, at which data may be sent to the client over any one tunnel.
+     */
+    public static final String MAX_BANDWIDTH_NAME = "max-bandwidth";
+
     /**
      * All attributes related to restricting user accounts, within a logical
      * form.
@@ -79,12 +85,21 @@ public class ModeledConnection extends ModeledChildDirectoryObject<ConnectionMod
         new NumericField(MAX_CONNECTIONS_PER_USER_NAME)
     ));
 
+    /**
+     * All attributes related to restricting the bandwidth of tunnels, within
+     * a logical form.
+     */
+    public static final Form BANDWIDTH_LIMITS = new Form("bandwidth", Arrays.<Field>asList(
+        new NumericField(MAX_BANDWIDTH_NAME)
+    ));
+
     /**
      * All possible attributes of connection objects organized as individual,
      * logical forms.
      */
     public static final Collection<Form> ATTRIBUTES = Collections.unmodifiableCollection(Arrays.asList(
-        CONCURRENCY_LIMITS
+        CONCURRENCY_LIMITS,
+        BANDWIDTH_LIMITS
     ));
 
     /**
@@ -189,6 +204,9 @@ public class ModeledConnection extends ModeledChildDirectoryObject<ConnectionMod
         // Set per-user connection limit attribute
         attributes.put(MAX_CONNECTIONS_PER_USER_NAME, NumericField.format(getModel().getMaxConnectionsPerUser()));
 
+        // Set bandwidth limit attribute
+        attributes.put(MAX_BANDWIDTH_NAME, NumericField.format(getModel().getMaxBandwidth()));
+
         return attributes;
     }
 
@@ -209,6 +227,13 @@ public class ModeledConnection extends ModeledChildDirectoryObject<ConnectionMod
             logger.debug("Unable to parse numeric attribute.", e);
         }
 
+        // Translate bandwidth limit attribute
+        try { getModel().setMaxBandwidth(NumericField.parse(attributes.get(MAX_BANDWIDTH_NAME))); }
+        catch (NumberFormatException e) {
+            logger.warn("Not setting maximum bandwidth: {}", e.getMessage());
+            logger.debug("Unable to parse numeric attribute.", e);
+        }
+
     }
 
     /**
@@ -56,6 +56,14 @@ public class ConnectionGroupModel extends ChildObjectModel {
      */
     private Integer maxConnectionsPerUser;
 
+    /**
+     * The maximum rate, in kilobytes per second, at which data may be sent
+     * from guacd to the client over any one tunnel to this connection group,
+     * zero if no restriction applies, or null if the default restrictions
+     * should be applied.
+     */
+    private Integer maxBandwidth;
+
     /**
      * Whether individual users should be consistently assigned the same
      * connection within a balancing group until they log out.
@@ -176,6 +184,34 @@ public class ConnectionGroupModel extends ChildObjectModel {
         this.maxConnectionsPerUser = maxConnectionsPerUser;
     }
 
+    /**
+     * Returns the maximum rate at which data may be sent from guacd to the
+     * client over any one tunnel to this connection group.
+     *
+     * @return
+     *     The maximum rate, in kilobytes per second, at which data may be sent
+     *     over any one tunnel to this connection group, zero if no
+     *     restriction applies, or null if the default restrictions should be
+     *     applied.
+     */
+    public Integer getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+    /**
+     * Sets the maximum rate at which data may be sent from guacd to the
+     * client over any one tunnel to this connection group.
+     *
+     * @param maxBandwidth
+     *     The maximum rate, in kilobytes per second, at which data may be sent
+     *     over any one tunnel to this connection group, zero if no
+     *     restriction applies, or null if the default restrictions should be
+     *     applied.
+     */
+    public void setMaxBandwidth(Integer maxBandwidth) {
+        this.maxBandwidth = maxBandwidth;
+    }
+
     /**
      * Returns whether individual users should be consistently assigned the same
      * connection within a balancing group until they log out.
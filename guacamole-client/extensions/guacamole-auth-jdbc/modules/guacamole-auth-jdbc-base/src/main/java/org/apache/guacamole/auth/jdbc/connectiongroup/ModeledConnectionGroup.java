@@ -74,6 +74,12 @@ public class ModeledConnectionGroup extends ModeledChildDirectoryObject<Connecti
      */
     public static final String ENABLE_SESSION_AFFINITY = "enable-session-affinity";
 
+    /**
+     * The name of the attribute which controls the maximum rate, in kilobytes
+     * per second, at which data may be sent to the client over any one tunnel.
+     */
+    public static final String MAX_BANDWIDTH_NAME = "max-bandwidth";
+
     /**
      * All attributes related to restricting user accounts, within a logical
      * form.
@@ -84,12 +90,21 @@ public class ModeledConnectionGroup extends ModeledChildDirectoryObject<Connecti
         new BooleanField(ENABLE_SESSION_AFFINITY, "true")
     ));
 
+    /**
+     * All attributes related to restricting the bandwidth of tunnels, within
+     * a logical form.
+     */
+    public static final Form BANDWIDTH_LIMITS = new Form("bandwidth", Arrays.<Field>asList(
+        new NumericField(MAX_BANDWIDTH_NAME)
+    ));
+
     /**
      * All possible attributes of connection group objects organized as
      * individual, logical forms.
      */
     public static final Collection<Form> ATTRIBUTES = Collections.unmodifiableCollection(Arrays.asList(
-        CONCURRENCY_LIMITS
+        CONCURRENCY_LIMITS,
+        BANDWIDTH_LIMITS
     ));
 
     /**
@@ -174,6 +189,9 @@ public class ModeledConnectionGroup extends ModeledChildDirectoryObject<Connecti
         attributes.put(ENABLE_SESSION_AFFINITY,
                 getModel().isSessionAffinityEnabled() ? "true" : "");
 
+        // Set bandwidth limit attribute
+        attributes.put(MAX_BANDWIDTH_NAME, NumericField.format(getModel().getMaxBandwidth()));
+
         return attributes;
     }
 
@@ -198,6 +216,13 @@ public class ModeledConnectionGroup extends ModeledChildDirectoryObject<Connecti
         getModel().setSessionAffinityEnabled(
                 "true".equals(attributes.get(ENABLE_SESSION_AFFINITY)));
 
+        // Translate bandwidth limit attribute
+        try { getModel().setMaxBandwidth(NumericField.parse(attributes.get(MAX_BANDWIDTH_NAME))); }
+        catch (NumberFormatException e) {
+            logger.warn("Not setting maximum bandwidth: {}", e.getMessage());
+            logger.debug("Unable to parse numeric attribute.", e);
+        }
+
     }
 
     /**
@@ -43,11 +43,10 @@ import org.apache.guacamole.GuacamoleResourceNotFoundException;
 import org.apache.guacamole.GuacamoleSecurityException;
 import org.apache.guacamole.auth.jdbc.JDBCEnvironment;
 import org.apache.guacamole.auth.jdbc.connection.ConnectionMapper;
-import org.apache.guacamole.environment.Environment;
-import org.apache.guacamole.net.GuacamoleSocket;
 import org.apache.guacamole.net.GuacamoleTunnel;
 import org.apache.guacamole.net.auth.Connection;
 import org.apache.guacamole.net.auth.ConnectionGroup;
+import org.apache.guacamole.net.guacd.GuacdBackendRegistry;
 import org.apache.guacamole.protocol.ConfiguredGuacamoleSocket;
 import org.apache.guacamole.protocol.GuacamoleClientInformation;
 import org.apache.guacamole.protocol.GuacamoleConfiguration;
@@ -113,18 +112,6 @@ public abstract class AbstractGuacamoleTunnelService implements GuacamoleTunnelS
     @Inject
     private Provider<ActiveConnectionRecord> activeConnectionRecordProvider;
 
-    /**
-     * The hostname to use when connecting to guacd if no hostname is provided
-     * within guacamole.properties.
-     */
-    private static final String DEFAULT_GUACD_HOSTNAME = "localhost";
-
-    /**
-     * The port to use when connecting to guacd if no port is provided within
-     * guacamole.properties.
-     */
-    private static final int DEFAULT_GUACD_PORT = 4822;
-
     /**
      * All active connections through the tunnel having a given UUID.
      */
@@ -321,37 +308,6 @@ public abstract class AbstractGuacamoleTunnelService implements GuacamoleTunnelS
 
     }
 
-    /**
-     * Returns an unconfigured GuacamoleSocket that is already connected to
-     * guacd as specified in guacamole.properties, using SSL if necessary.
-     *
-     * @return
-     *     An unconfigured GuacamoleSocket, already connected to guacd.
-     *
-     * @throws GuacamoleException 
-     *     If an error occurs while connecting to guacd, or while parsing
-     *     guacd-related properties.
-     */
-    private GuacamoleSocket getUnconfiguredGuacamoleSocket(Runnable socketClosedCallback)
-        throws GuacamoleException {
-
-        // Use SSL if requested
-        if (environment.getProperty(Environment.GUACD_SSL, false))
-            return new ManagedSSLGuacamoleSocket(
-                environment.getProperty(Environment.GUACD_HOSTNAME, DEFAULT_GUACD_HOSTNAME),
-                environment.getProperty(Environment.GUACD_PORT,     DEFAULT_GUACD_PORT),
-                socketClosedCallback
-            );
-
-        // Otherwise, just use straight TCP
-        return new ManagedInetGuacamoleSocket(
-            environment.getProperty(Environment.GUACD_HOSTNAME, DEFAULT_GUACD_HOSTNAME),
-            environment.getProperty(Environment.GUACD_PORT,     DEFAULT_GUACD_PORT),
-            socketClosedCallback
-        );
-
-    }
-
     /**
      * Task which handles cleanup of a connection associated with some given
      * ActiveConnectionRecord.
@@ -485,9 +441,10 @@ public abstract class AbstractGuacamoleTunnelService implements GuacamoleTunnelS
 
             }
 
-            // Obtain socket which will automatically run the cleanup task
-            ConfiguredGuacamoleSocket socket = new ConfiguredGuacamoleSocket(
-                getUnconfiguredGuacamoleSocket(cleanupTask), config, info);
+            // Obtain socket from the selected guacd which will automatically
+            // run the cleanup task
+            ConfiguredGuacamoleSocket socket = GuacdBackendRegistry
+                    .getInstance(environment).connect(config, info, cleanupTask);
 
             // Assign and return new tunnel 
             return activeConnection.assignGuacamoleTunnel(socket);
@@ -45,6 +45,7 @@ import org.apache.guacamole.form.BooleanField;
 import org.apache.guacamole.form.DateField;
 import org.apache.guacamole.form.Field;
 import org.apache.guacamole.form.Form;
+import org.apache.guacamole.form.NumericField;
 import org.apache.guacamole.form.TimeField;
 import org.apache.guacamole.form.TimeZoneField;
 import org.apache.guacamole.net.auth.User;
@@ -109,6 +110,13 @@ public class ModeledUser extends ModeledDirectoryObject<UserModel> implements Us
      */
     public static final String TIMEZONE_ATTRIBUTE_NAME = "timezone";
 
+    /**
+     * The name of the attribute which controls the maximum rate, in kilobytes
+     * per second, at which data may be sent to a user across all of their
+     * tunnels combined.
+     */
+    public static final String MAX_BANDWIDTH_ATTRIBUTE_NAME = "max-bandwidth";
+
     /**
      * All attributes related to restricting user accounts, within a logical
      * form.
@@ -123,12 +131,21 @@ public class ModeledUser extends ModeledDirectoryObject<UserModel> implements Us
         new TimeZoneField(TIMEZONE_ATTRIBUTE_NAME)
     ));
 
+    /**
+     * All attributes related to restricting the bandwidth available to user
+     * accounts, within a logical form.
+     */
+    public static final Form BANDWIDTH_LIMITS = new Form("bandwidth", Arrays.<Field>asList(
+        new NumericField(MAX_BANDWIDTH_ATTRIBUTE_NAME)
+    ));
+
     /**
      * All possible attributes of user objects organized as individual,
      * logical forms.
      */
     public static final Collection<Form> ATTRIBUTES = Collections.unmodifiableCollection(Arrays.asList(
-        ACCOUNT_RESTRICTIONS
+        ACCOUNT_RESTRICTIONS,
+        BANDWIDTH_LIMITS
     ));
 
     /**
@@ -338,6 +355,9 @@ public class ModeledUser extends ModeledDirectoryObject<UserModel> implements Us
         // Set timezone attribute
         attributes.put(TIMEZONE_ATTRIBUTE_NAME, getModel().getTimeZone());
 
+        // Set bandwidth limit attribute
+        attributes.put(MAX_BANDWIDTH_ATTRIBUTE_NAME, NumericField.format(getModel().getMaxBandwidth()));
+
         return attributes;
     }
 
@@ -439,6 +459,13 @@ public class ModeledUser extends ModeledDirectoryObject<UserModel> implements Us
         // Translate timezone attribute
         getModel().setTimeZone(TimeZoneField.parse(attributes.get(TIMEZONE_ATTRIBUTE_NAME)));
 
+        // Translate bandwidth limit attribute
+        try { getModel().setMaxBandwidth(NumericField.parse(attributes.get(MAX_BANDWIDTH_ATTRIBUTE_NAME))); }
+        catch (NumberFormatException e) {
+            logger.warn("Not setting maximum bandwidth of user: {}", e.getMessage());
+            logger.debug("Unable to parse numeric attribute.", e);
+        }
+
     }
 
     /**
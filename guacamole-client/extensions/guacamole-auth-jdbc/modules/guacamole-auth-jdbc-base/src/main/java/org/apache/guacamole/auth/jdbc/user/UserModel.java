@@ -94,6 +94,14 @@ public class UserModel extends ObjectModel {
      */
     private String timeZone;
 
+    /**
+     * The maximum rate, in kilobytes per second, at which data may be sent
+     * from guacd to this user across all of their tunnels combined, zero if
+     * no restriction applies, or null if the default restrictions should be
+     * applied.
+     */
+    private Integer maxBandwidth;
+
     /**
      * Creates a new, empty user.
      */
@@ -353,4 +361,30 @@ public class UserModel extends ObjectModel {
         this.timeZone = timeZone;
     }
 
+    /**
+     * Returns the maximum rate at which data may be sent from guacd to this
+     * user across all of their tunnels combined.
+     *
+     * @return
+     *     The maximum rate, in kilobytes per second, at which data may be sent
+     *     to this user, zero if no restriction applies, or null if the default
+     *     restrictions should be applied.
+     */
+    public Integer getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+    /**
+     * Sets the maximum rate at which data may be sent from guacd to this user
+     * across all of their tunnels combined.
+     *
+     * @param maxBandwidth
+     *     The maximum rate, in kilobytes per second, at which data may be sent
+     *     to this user, zero if no restriction applies, or null if the default
+     *     restrictions should be applied.
+     */
+    public void setMaxBandwidth(Integer maxBandwidth) {
+        this.maxBandwidth = maxBandwidth;
+    }
+
 }
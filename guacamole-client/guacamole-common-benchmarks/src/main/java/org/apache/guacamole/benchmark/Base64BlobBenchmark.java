@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.DatatypeConverter;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the base64 handling of blob data, measuring the time taken
+ * to decode every blob of a corpus (as done when intercepting downloads) and
+ * to encode the same data back into blobs (as done when intercepting
+ * uploads).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class Base64BlobBenchmark {
+
+    /**
+     * The name of the corpus whose blobs should be decoded and encoded.
+     */
+    @Param({
+        InstructionCorpus.DESKTOP_IDLE,
+        InstructionCorpus.VIDEO_PLAYBACK,
+        InstructionCorpus.FILE_TRANSFER
+    })
+    public String corpus;
+
+    /**
+     * The base64-encoded data of every blob within the corpus.
+     */
+    private List<String> encoded;
+
+    /**
+     * The decoded data of every blob within the corpus.
+     */
+    private List<byte[]> decoded;
+
+    /**
+     * Loads the corpus, extracting the data of each blob.
+     *
+     * @throws IOException
+     *     If a recorded corpus exists but cannot be read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be parsed.
+     */
+    @Setup
+    public void setup() throws IOException, GuacamoleException {
+
+        encoded = new ArrayList<String>();
+        decoded = new ArrayList<byte[]>();
+
+        for (GuacamoleInstruction instruction : InstructionCorpus.load(corpus).getInstructions()) {
+            if (instruction.getOpcode().equals("blob") && instruction.getArgs().size() == 2) {
+                String data = instruction.getArgs().get(1);
+                encoded.add(data);
+                decoded.add(DatatypeConverter.parseBase64Binary(data));
+            }
+        }
+
+    }
+
+    /**
+     * Decodes the data of every blob.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each decoded blob.
+     */
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        for (String data : encoded)
+            blackhole.consume(DatatypeConverter.parseBase64Binary(data));
+    }
+
+    /**
+     * Encodes the data of every blob.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each encoded blob.
+     */
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        for (byte[] data : decoded)
+            blackhole.consume(DatatypeConverter.printBase64Binary(data));
+    }
+
+}
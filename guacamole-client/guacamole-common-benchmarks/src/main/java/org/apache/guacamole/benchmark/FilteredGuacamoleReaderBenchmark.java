@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.ChannelGuacamoleReader;
+import org.apache.guacamole.io.ReaderGuacamoleReader;
+import org.apache.guacamole.protocol.FilteredGuacamoleReader;
+import org.apache.guacamole.protocol.GuacamoleFilter;
+import org.apache.guacamole.protocol.GuacamoleFilterChain;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for FilteredGuacamoleReader, measuring the time taken to read an
+ * entire corpus through a filter. A plain filter sees every instruction,
+ * while a filter chain sees only the instructions it was registered for
+ * (here, "blob" and "end", as with stream interception in the web
+ * application). Each is measured both through read() over a Reader and
+ * through readBytes() over a channel, the latter being how tunnels to guacd
+ * are actually read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FilteredGuacamoleReaderBenchmark {
+
+    /**
+     * A filter which allows every instruction through unchanged.
+     */
+    private static final GuacamoleFilter PASS_THROUGH = new GuacamoleFilter() {
+
+        @Override
+        public GuacamoleInstruction filter(GuacamoleInstruction instruction)
+                throws GuacamoleException {
+            return instruction;
+        }
+
+    };
+
+    /**
+     * The name of the corpus to read.
+     */
+    @Param({
+        InstructionCorpus.DESKTOP_IDLE,
+        InstructionCorpus.VIDEO_PLAYBACK,
+        InstructionCorpus.FILE_TRANSFER
+    })
+    public String corpus;
+
+    /**
+     * The raw protocol data of the corpus being read.
+     */
+    private char[] data;
+
+    /**
+     * The raw protocol data of the corpus being read, encoded as UTF-8.
+     */
+    private byte[] bytes;
+
+    /**
+     * Filter chain applying the pass-through filter to stream instructions
+     * only.
+     */
+    private GuacamoleFilterChain chain;
+
+    /**
+     * Loads the corpus being read and prepares the filter chain.
+     *
+     * @throws IOException
+     *     If a recorded corpus exists but cannot be read.
+     */
+    @Setup
+    public void setup() throws IOException {
+        data = InstructionCorpus.load(corpus).getData();
+        bytes = new String(data).getBytes("UTF-8");
+        chain = new GuacamoleFilterChain();
+        chain.addFilter(PASS_THROUGH, "blob", "end");
+    }
+
+    /**
+     * Reads the entire corpus through the given filter using read().
+     *
+     * @param filter
+     *     The filter to read through.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each instruction read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be read.
+     */
+    private void read(GuacamoleFilter filter, Blackhole blackhole)
+            throws GuacamoleException {
+
+        FilteredGuacamoleReader reader = new FilteredGuacamoleReader(
+                new ReaderGuacamoleReader(new CharArrayReader(data)), filter);
+
+        char[] instruction;
+        while ((instruction = reader.read()) != null)
+            blackhole.consume(instruction);
+
+    }
+
+    /**
+     * Reads the entire corpus through the given filter using readBytes(),
+     * reading the UTF-8 corpus from a channel as tunnels to guacd do.
+     *
+     * @param filter
+     *     The filter to read through.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each instruction read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be read.
+     */
+    private void readBytes(GuacamoleFilter filter, Blackhole blackhole)
+            throws GuacamoleException {
+
+        FilteredGuacamoleReader reader = new FilteredGuacamoleReader(
+                new ChannelGuacamoleReader(Channels.newChannel(
+                        new ByteArrayInputStream(bytes)), 0), filter);
+
+        ByteBuffer instruction;
+        while ((instruction = reader.readBytes()) != null)
+            blackhole.consume(instruction);
+
+    }
+
+    /**
+     * Reads the entire corpus through a filter which sees every instruction.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each instruction read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be read.
+     */
+    @Benchmark
+    public void readFiltered(Blackhole blackhole) throws GuacamoleException {
+        read(PASS_THROUGH, blackhole);
+    }
+
+    /**
+     * Reads the entire corpus through a filter chain which sees only stream
+     * instructions.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each instruction read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be read.
+     */
+    @Benchmark
+    public void readFilterChain(Blackhole blackhole) throws GuacamoleException {
+        read(chain, blackhole);
+    }
+
+    /**
+     * Reads the entire corpus as bytes through a filter which sees every
+     * instruction.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each instruction read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be read.
+     */
+    @Benchmark
+    public void readBytesFiltered(Blackhole blackhole) throws GuacamoleException {
+        readBytes(PASS_THROUGH, blackhole);
+    }
+
+    /**
+     * Reads the entire corpus as bytes through a filter chain which sees only
+     * stream instructions, such that all other instructions pass through
+     * without being decoded.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each instruction read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be read.
+     */
+    @Benchmark
+    public void readBytesFilterChain(Blackhole blackhole) throws GuacamoleException {
+        readBytes(chain, blackhole);
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.benchmark;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for GuacamoleInstruction serialization, measuring the time taken
+ * to serialize every instruction of a corpus. Both instructions constructed
+ * from an opcode and arguments (as generated by the web application) and
+ * instructions produced by parsing (which retain their wire form) are
+ * measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GuacamoleInstructionBenchmark {
+
+    /**
+     * The name of the corpus whose instructions should be serialized.
+     */
+    @Param({
+        InstructionCorpus.DESKTOP_IDLE,
+        InstructionCorpus.VIDEO_PLAYBACK,
+        InstructionCorpus.FILE_TRANSFER
+    })
+    public String corpus;
+
+    /**
+     * Every instruction within the corpus, as produced by the parser.
+     */
+    private List<GuacamoleInstruction> parsed;
+
+    /**
+     * Every instruction within the corpus, constructed from an opcode and
+     * list of arguments.
+     */
+    private List<GuacamoleInstruction> constructed;
+
+    /**
+     * Writer receiving the output of writeTo(), reset for each invocation.
+     */
+    private CharArrayWriter output;
+
+    /**
+     * Loads and parses the corpus, and constructs equivalent instructions.
+     *
+     * @throws IOException
+     *     If a recorded corpus exists but cannot be read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be parsed.
+     */
+    @Setup
+    public void setup() throws IOException, GuacamoleException {
+
+        parsed = InstructionCorpus.load(corpus).getInstructions();
+
+        constructed = new ArrayList<GuacamoleInstruction>(parsed.size());
+        for (GuacamoleInstruction instruction : parsed)
+            constructed.add(new GuacamoleInstruction(instruction.getOpcode(),
+                    new ArrayList<String>(instruction.getArgs())));
+
+        output = new CharArrayWriter(1024 * 1024);
+
+    }
+
+    /**
+     * Serializes each constructed instruction using toString().
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each serialized instruction.
+     */
+    @Benchmark
+    public void toStringConstructed(Blackhole blackhole) {
+        for (GuacamoleInstruction instruction : constructed)
+            blackhole.consume(instruction.toString());
+    }
+
+    /**
+     * Serializes each parsed instruction using toString().
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each serialized instruction.
+     */
+    @Benchmark
+    public void toStringParsed(Blackhole blackhole) {
+        for (GuacamoleInstruction instruction : parsed)
+            blackhole.consume(instruction.toString());
+    }
+
+    /**
+     * Serializes each constructed instruction using writeTo(), as done by
+     * the GuacamoleWriter implementations.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume the serialized corpus.
+     *
+     * @throws IOException
+     *     If serialization fails.
+     */
+    @Benchmark
+    public void writeToConstructed(Blackhole blackhole) throws IOException {
+
+        output.reset();
+        for (GuacamoleInstruction instruction : constructed)
+            instruction.writeTo(output);
+
+        blackhole.consume(output.size());
+
+    }
+
+}
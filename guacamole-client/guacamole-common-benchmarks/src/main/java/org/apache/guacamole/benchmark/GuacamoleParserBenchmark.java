@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.protocol.GuacamoleParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for GuacamoleParser, measuring the time taken to parse an entire
+ * corpus which arrives in chunks of a given size, as it would when received
+ * over a WebSocket or HTTP tunnel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GuacamoleParserBenchmark {
+
+    /**
+     * The name of the corpus to parse.
+     */
+    @Param({
+        InstructionCorpus.DESKTOP_IDLE,
+        InstructionCorpus.VIDEO_PLAYBACK,
+        InstructionCorpus.FILE_TRANSFER
+    })
+    public String corpus;
+
+    /**
+     * The number of characters passed to each call to append().
+     */
+    @Param({ "512", "8192" })
+    public int chunkSize;
+
+    /**
+     * Whether the parser should reuse a single GuacamoleInstruction for
+     * every instruction parsed.
+     */
+    @Param({ "false", "true" })
+    public boolean reuseInstruction;
+
+    /**
+     * The raw protocol data of the corpus being parsed.
+     */
+    private char[] data;
+
+    /**
+     * Loads the corpus being parsed.
+     *
+     * @throws IOException
+     *     If a recorded corpus exists but cannot be read.
+     */
+    @Setup
+    public void setup() throws IOException {
+        data = InstructionCorpus.load(corpus).getData();
+    }
+
+    /**
+     * Parses the entire corpus, one chunk at a time.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each instruction parsed.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be parsed.
+     */
+    @Benchmark
+    public void append(Blackhole blackhole) throws GuacamoleException {
+
+        GuacamoleParser parser = new GuacamoleParser(reuseInstruction);
+
+        int offset = 0;
+        while (offset < data.length) {
+
+            // Parse as much of the current chunk as possible
+            int end = Math.min(data.length, offset + chunkSize);
+            while (offset < end) {
+                offset += parser.append(data, offset, end - offset);
+                if (parser.hasNext())
+                    blackhole.consume(parser.next());
+            }
+
+        }
+
+    }
+
+}
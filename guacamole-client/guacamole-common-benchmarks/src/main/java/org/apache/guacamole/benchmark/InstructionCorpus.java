@@ -0,0 +1,427 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.xml.bind.DatatypeConverter;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.apache.guacamole.protocol.GuacamoleParser;
+
+/**
+ * A body of Guacamole protocol data, as sent by guacd to the client, against
+ * which the benchmarks are run. Each corpus is identified by name. If the
+ * "guacamole.benchmark.corpus.dir" system property points to a directory
+ * containing a file named "&lt;name&gt;.guac", that file is used verbatim.
+ * Session recordings produced by guacd (the "recording-path" connection
+ * parameter) are in exactly this format, and are the preferred source of
+ * corpus data. Otherwise, an equivalent corpus is synthesized
+ * deterministically, mirroring the instruction mix, element sizes and
+ * stream behavior guacd exhibits for that kind of session.
+ */
+public class InstructionCorpus {
+
+    /**
+     * The name of the corpus representing an idle RDP desktop: frequent sync
+     * and mouse instructions, small image updates (a clock, a blinking
+     * cursor) and occasional keep-alives.
+     */
+    public static final String DESKTOP_IDLE = "desktop-idle";
+
+    /**
+     * The name of the corpus representing video playback within an RDP
+     * session: large, incompressible image updates streamed as many maximally
+     * sized blobs, one frame per sync.
+     */
+    public static final String VIDEO_PLAYBACK = "video-playback";
+
+    /**
+     * The name of the corpus representing a file download from an RDP
+     * session: a single file stream consisting almost entirely of maximally
+     * sized blobs.
+     */
+    public static final String FILE_TRANSFER = "file-transfer";
+
+    /**
+     * The name of the system property which may point to a directory of
+     * recorded corpora.
+     */
+    public static final String CORPUS_DIR_PROPERTY = "guacamole.benchmark.corpus.dir";
+
+    /**
+     * The approximate number of characters within each synthesized corpus.
+     */
+    private static final int SYNTHETIC_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * The maximum number of bytes guacd will send within a single blob.
+     */
+    private static final int BLOB_MAX_LENGTH = 6048;
+
+    /**
+     * The seed used for all synthesized corpora, such that every run
+     * benchmarks identical data.
+     */
+    private static final long SEED = 0x6775616361L;
+
+    /**
+     * The name of this corpus.
+     */
+    private final String name;
+
+    /**
+     * The raw protocol data of this corpus.
+     */
+    private final char[] data;
+
+    /**
+     * Creates a new InstructionCorpus containing the given protocol data.
+     *
+     * @param name
+     *     The name of the corpus.
+     *
+     * @param data
+     *     The raw protocol data of the corpus.
+     */
+    private InstructionCorpus(String name, char[] data) {
+        this.name = name;
+        this.data = data;
+    }
+
+    /**
+     * Loads the corpus having the given name, reading a recorded corpus if
+     * one is available and synthesizing the corpus otherwise.
+     *
+     * @param name
+     *     The name of the corpus to load.
+     *
+     * @return
+     *     The loaded corpus.
+     *
+     * @throws IOException
+     *     If a recorded corpus exists but cannot be read.
+     *
+     * @throws IllegalArgumentException
+     *     If no recorded corpus exists and the name is not that of a corpus
+     *     that can be synthesized.
+     */
+    public static InstructionCorpus load(String name) throws IOException {
+
+        // Prefer recorded data, if provided
+        String dir = System.getProperty(CORPUS_DIR_PROPERTY);
+        if (dir != null) {
+            File file = new File(dir, name + ".guac");
+            if (file.isFile())
+                return new InstructionCorpus(name, read(file));
+        }
+
+        // Otherwise, synthesize
+        Random random = new Random(SEED);
+        StringBuilder corpus = new StringBuilder(SYNTHETIC_LENGTH + 65536);
+
+        if (DESKTOP_IDLE.equals(name))
+            synthesizeDesktopIdle(corpus, random);
+        else if (VIDEO_PLAYBACK.equals(name))
+            synthesizeVideoPlayback(corpus, random);
+        else if (FILE_TRANSFER.equals(name))
+            synthesizeFileTransfer(corpus, random);
+        else
+            throw new IllegalArgumentException("No such corpus: \"" + name + "\"");
+
+        char[] data = new char[corpus.length()];
+        corpus.getChars(0, data.length, data, 0);
+        return new InstructionCorpus(name, data);
+
+    }
+
+    /**
+     * Reads the entire contents of the given UTF-8 file.
+     *
+     * @param file
+     *     The file to read.
+     *
+     * @return
+     *     The contents of the file.
+     *
+     * @throws IOException
+     *     If the file cannot be read.
+     */
+    private static char[] read(File file) throws IOException {
+
+        Reader input = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+
+            StringBuilder contents = new StringBuilder((int) file.length());
+            char[] buffer = new char[8192];
+
+            int length;
+            while ((length = input.read(buffer)) != -1)
+                contents.append(buffer, 0, length);
+
+            char[] data = new char[contents.length()];
+            contents.getChars(0, data.length, data, 0);
+            return data;
+
+        }
+        finally {
+            input.close();
+        }
+
+    }
+
+    /**
+     * Appends the given instruction to the corpus being synthesized.
+     *
+     * @param corpus
+     *     The corpus being synthesized.
+     *
+     * @param opcode
+     *     The opcode of the instruction.
+     *
+     * @param args
+     *     The arguments of the instruction.
+     */
+    private static void append(StringBuilder corpus, String opcode,
+            String... args) {
+        corpus.append(new GuacamoleInstruction(opcode, args).toString());
+    }
+
+    /**
+     * Appends an image stream containing the given number of bytes of random
+     * image data, split into blobs exactly as guacd would split them.
+     *
+     * @param corpus
+     *     The corpus being synthesized.
+     *
+     * @param random
+     *     The source of image data and coordinates.
+     *
+     * @param stream
+     *     The index of the stream to use.
+     *
+     * @param mimetype
+     *     The mimetype of the image.
+     *
+     * @param length
+     *     The number of bytes of image data.
+     */
+    private static void appendImage(StringBuilder corpus, Random random,
+            int stream, String mimetype, int length) {
+
+        String index = Integer.toString(stream);
+        append(corpus, "img", index, "14", "0", mimetype,
+                Integer.toString(random.nextInt(1024)),
+                Integer.toString(random.nextInt(768)));
+
+        appendBlobs(corpus, random, index, length);
+        append(corpus, "end", index);
+
+    }
+
+    /**
+     * Appends blobs containing the given number of bytes of random data,
+     * split exactly as guacd would split them.
+     *
+     * @param corpus
+     *     The corpus being synthesized.
+     *
+     * @param random
+     *     The source of data.
+     *
+     * @param stream
+     *     The index of the stream receiving the blobs.
+     *
+     * @param length
+     *     The total number of bytes of data.
+     */
+    private static void appendBlobs(StringBuilder corpus, Random random,
+            String stream, int length) {
+
+        byte[] blob = new byte[BLOB_MAX_LENGTH];
+        while (length > 0) {
+
+            int size = Math.min(length, BLOB_MAX_LENGTH);
+            if (size != blob.length)
+                blob = new byte[size];
+
+            random.nextBytes(blob);
+            append(corpus, "blob", stream, DatatypeConverter.printBase64Binary(blob));
+            length -= size;
+
+        }
+
+    }
+
+    /**
+     * Synthesizes the protocol data of an idle RDP desktop.
+     *
+     * @param corpus
+     *     The StringBuilder to append synthesized data to.
+     *
+     * @param random
+     *     The source of all random data.
+     */
+    private static void synthesizeDesktopIdle(StringBuilder corpus, Random random) {
+
+        long timestamp = 1480000000000L;
+        while (corpus.length() < SYNTHETIC_LENGTH) {
+
+            // Occasional small update (clock, text cursor, tooltip)
+            int update = random.nextInt(10);
+            if (update < 3)
+                appendImage(corpus, random, random.nextInt(4), "image/png",
+                        64 + random.nextInt(1024));
+
+            // Solid fills and copies from window movement
+            else if (update == 3) {
+                append(corpus, "rect", "0", Integer.toString(random.nextInt(1024)),
+                        Integer.toString(random.nextInt(768)), "64", "16");
+                append(corpus, "cfill", "14", "0", "255", "255", "255", "255");
+            }
+            else if (update == 4)
+                append(corpus, "copy", "-1", "0", "0", "64", "64", "14", "0",
+                        Integer.toString(random.nextInt(1024)),
+                        Integer.toString(random.nextInt(768)));
+
+            // Keep-alive
+            else if (update == 5)
+                append(corpus, "nop");
+
+            // Mouse movement echoed back
+            if (random.nextBoolean())
+                append(corpus, "mouse", Integer.toString(random.nextInt(1024)),
+                        Integer.toString(random.nextInt(768)));
+
+            timestamp += 50 + random.nextInt(150);
+            append(corpus, "sync", Long.toString(timestamp));
+
+        }
+
+    }
+
+    /**
+     * Synthesizes the protocol data of video playback within an RDP session.
+     *
+     * @param corpus
+     *     The StringBuilder to append synthesized data to.
+     *
+     * @param random
+     *     The source of all random data.
+     */
+    private static void synthesizeVideoPlayback(StringBuilder corpus, Random random) {
+
+        long timestamp = 1480000000000L;
+        while (corpus.length() < SYNTHETIC_LENGTH) {
+
+            // Each frame is a handful of JPEG-compressed regions
+            int regions = 1 + random.nextInt(4);
+            for (int i = 0; i < regions; i++)
+                appendImage(corpus, random, i, "image/jpeg",
+                        4096 + random.nextInt(32768));
+
+            timestamp += 33 + random.nextInt(8);
+            append(corpus, "sync", Long.toString(timestamp));
+
+        }
+
+    }
+
+    /**
+     * Synthesizes the protocol data of a file download from an RDP session.
+     *
+     * @param corpus
+     *     The StringBuilder to append synthesized data to.
+     *
+     * @param random
+     *     The source of all random data.
+     */
+    private static void synthesizeFileTransfer(StringBuilder corpus, Random random) {
+
+        append(corpus, "file", "1", "application/octet-stream", "download.bin");
+
+        long timestamp = 1480000000000L;
+        while (corpus.length() < SYNTHETIC_LENGTH) {
+
+            // guacd awaits an ack for each blob; syncs continue meanwhile
+            appendBlobs(corpus, random, "1", BLOB_MAX_LENGTH * 8);
+
+            timestamp += 20 + random.nextInt(20);
+            append(corpus, "sync", Long.toString(timestamp));
+
+        }
+
+        append(corpus, "end", "1");
+
+    }
+
+    /**
+     * Returns the name of this corpus.
+     *
+     * @return
+     *     The name of this corpus.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the raw protocol data of this corpus. The returned array is
+     * shared and must not be modified.
+     *
+     * @return
+     *     The raw protocol data of this corpus.
+     */
+    public char[] getData() {
+        return data;
+    }
+
+    /**
+     * Parses this corpus into its individual instructions.
+     *
+     * @return
+     *     A list of every instruction within this corpus, in order.
+     *
+     * @throws GuacamoleException
+     *     If the corpus is not valid Guacamole protocol data.
+     */
+    public List<GuacamoleInstruction> getInstructions()
+            throws GuacamoleException {
+
+        List<GuacamoleInstruction> instructions = new ArrayList<GuacamoleInstruction>();
+        GuacamoleParser parser = new GuacamoleParser();
+
+        int offset = 0;
+        while (offset < data.length || parser.hasNext()) {
+            offset += parser.append(data, offset, data.length - offset);
+            if (parser.hasNext())
+                instructions.add(parser.next());
+        }
+
+        return instructions;
+
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.benchmark;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.ReaderGuacamoleReader;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for ReaderGuacamoleReader, measuring the time taken to read an
+ * entire corpus either as raw instructions or as parsed instructions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReaderGuacamoleReaderBenchmark {
+
+    /**
+     * The name of the corpus to read.
+     */
+    @Param({
+        InstructionCorpus.DESKTOP_IDLE,
+        InstructionCorpus.VIDEO_PLAYBACK,
+        InstructionCorpus.FILE_TRANSFER
+    })
+    public String corpus;
+
+    /**
+     * The raw protocol data of the corpus being read.
+     */
+    private char[] data;
+
+    /**
+     * Loads the corpus being read.
+     *
+     * @throws IOException
+     *     If a recorded corpus exists but cannot be read.
+     */
+    @Setup
+    public void setup() throws IOException {
+        data = InstructionCorpus.load(corpus).getData();
+    }
+
+    /**
+     * Reads the entire corpus using read().
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each instruction read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be read.
+     */
+    @Benchmark
+    public void read(Blackhole blackhole) throws GuacamoleException {
+
+        GuacamoleReader reader = new ReaderGuacamoleReader(new CharArrayReader(data));
+
+        char[] instruction;
+        while ((instruction = reader.read()) != null)
+            blackhole.consume(instruction);
+
+    }
+
+    /**
+     * Reads the entire corpus using readInstruction().
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each instruction read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be read.
+     */
+    @Benchmark
+    public void readInstruction(Blackhole blackhole) throws GuacamoleException {
+
+        GuacamoleReader reader = new ReaderGuacamoleReader(new CharArrayReader(data));
+
+        GuacamoleInstruction instruction;
+        while ((instruction = reader.readInstruction()) != null)
+            blackhole.consume(instruction);
+
+    }
+
+    /**
+     * Reads the entire corpus using readInstructionView(), which avoids
+     * copying each instruction out of the internal buffer of the reader.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume each instruction read.
+     *
+     * @throws GuacamoleException
+     *     If the corpus cannot be read.
+     */
+    @Benchmark
+    public void readInstructionView(Blackhole blackhole) throws GuacamoleException {
+
+        ReaderGuacamoleReader reader = new ReaderGuacamoleReader(new CharArrayReader(data));
+
+        GuacamoleInstruction instruction;
+        while ((instruction = reader.readInstructionView()) != null)
+            blackhole.consume(instruction);
+
+    }
+
+}
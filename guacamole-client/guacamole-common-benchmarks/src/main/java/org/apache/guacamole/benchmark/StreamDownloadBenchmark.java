@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.benchmark;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.DatatypeConverter;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.ReaderGuacamoleReader;
+import org.apache.guacamole.protocol.Base64Codec;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the download path of intercepted streams, as used by
+ * StreamResource.getStreamContents(), measuring the rate at which received
+ * "blob" instructions can be parsed and their data written to the
+ * intercepted OutputStream. Each operation downloads exactly one MiB, thus
+ * the reported operations per second are MiB per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StreamDownloadBenchmark {
+
+    /**
+     * The number of bytes downloaded by each operation.
+     */
+    private static final int DOWNLOAD_LENGTH = 1024 * 1024;
+
+    /**
+     * The maximum number of bytes within each "blob", matching the largest
+     * blobs sent by guacd.
+     */
+    private static final int BLOB_SIZE = 6048;
+
+    /**
+     * Arbitrary seed for the downloaded data, such that each run downloads
+     * identical data.
+     */
+    private static final long SEED = 0x626C6F62L;
+
+    /**
+     * The raw protocol data of the "blob" instructions of the download.
+     */
+    private char[] data;
+
+    /**
+     * The buffer into which the streaming codec decodes each blob.
+     */
+    private final byte[] decodeBuffer = new byte[8192];
+
+    /**
+     * OutputStream standing in for the intercepted stream, passing all
+     * written data to a Blackhole.
+     */
+    private static class BlackholeOutputStream extends OutputStream {
+
+        /**
+         * The Blackhole which should consume all written data.
+         */
+        private final Blackhole blackhole;
+
+        /**
+         * Creates a new BlackholeOutputStream which passes all written data
+         * to the given Blackhole.
+         *
+         * @param blackhole
+         *     The Blackhole which should consume all written data.
+         */
+        public BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+
+    }
+
+    /**
+     * Generates the "blob" instructions of a download of DOWNLOAD_LENGTH
+     * random bytes.
+     */
+    @Setup
+    public void setup() {
+
+        Random random = new Random(SEED);
+        StringBuilder download = new StringBuilder();
+
+        for (int remaining = DOWNLOAD_LENGTH; remaining > 0; remaining -= BLOB_SIZE) {
+            byte[] blob = new byte[Math.min(remaining, BLOB_SIZE)];
+            random.nextBytes(blob);
+            download.append(new GuacamoleInstruction("blob", "1",
+                    DatatypeConverter.printBase64Binary(blob)));
+        }
+
+        data = download.toString().toCharArray();
+
+    }
+
+    /**
+     * Downloads the data by decoding each blob argument as a String with
+     * DatatypeConverter, as previously done by OutputStreamInterceptingFilter.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume the downloaded data.
+     *
+     * @throws GuacamoleException
+     *     If the download cannot be parsed.
+     *
+     * @throws IOException
+     *     If the downloaded data cannot be written.
+     */
+    @Benchmark
+    public void datatypeConverter(Blackhole blackhole)
+            throws GuacamoleException, IOException {
+
+        GuacamoleReader reader = new ReaderGuacamoleReader(new CharArrayReader(data));
+        OutputStream output = new BlackholeOutputStream(blackhole);
+
+        GuacamoleInstruction instruction;
+        while ((instruction = reader.readInstruction()) != null)
+            output.write(DatatypeConverter.parseBase64Binary(instruction.getArgs().get(1)));
+
+    }
+
+    /**
+     * Downloads the data by decoding each blob directly from the received
+     * characters with Base64Codec.
+     *
+     * @param blackhole
+     *     The Blackhole which should consume the downloaded data.
+     *
+     * @throws GuacamoleException
+     *     If the download cannot be parsed.
+     *
+     * @throws IOException
+     *     If the downloaded data cannot be written.
+     */
+    @Benchmark
+    public void streamingCodec(Blackhole blackhole)
+            throws GuacamoleException, IOException {
+
+        GuacamoleReader reader = new ReaderGuacamoleReader(new CharArrayReader(data));
+        OutputStream output = new BlackholeOutputStream(blackhole);
+
+        GuacamoleInstruction instruction;
+        while ((instruction = reader.readInstruction()) != null)
+            Base64Codec.decode(instruction, 1, output, decodeBuffer);
+
+    }
+
+}
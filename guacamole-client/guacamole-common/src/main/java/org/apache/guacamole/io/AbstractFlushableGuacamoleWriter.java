@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.io;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * Base FlushableGuacamoleWriter implementation which may coalesce written
+ * data, sending buffered data once a size threshold is reached, when data is
+ * written after a short delay has elapsed since buffering began, or when
+ * explicitly flushed. Implementations need only provide the means of
+ * buffering and sending data.
+ *
+ * The flush delay is not a timer. It is checked only as data is written, and
+ * no other thread ever sends on behalf of the writer, thus data written last
+ * remains buffered until explicitly flushed. Coalescing should therefore only
+ * be enabled by callers which are certain to flush once they have finished
+ * writing. AbstractGuacamoleTunnel enables coalescing only while write access
+ * is held, and flushes when that access is released. A flush threshold of
+ * zero disables coalescing entirely, sending all data as soon as it is
+ * written. All writes and flushes are synchronized on the writer itself.
+ */
+public abstract class AbstractFlushableGuacamoleWriter
+        implements FlushableGuacamoleWriter {
+
+    /**
+     * The default number of characters which may be buffered before they
+     * are sent automatically, for callers which enable coalescing.
+     */
+    public static final int DEFAULT_FLUSH_THRESHOLD = 8192;
+
+    /**
+     * The default number of milliseconds after which buffered data is sent
+     * automatically by the next write.
+     */
+    public static final int DEFAULT_FLUSH_DELAY = 5;
+
+    /**
+     * The number of characters which may be buffered before they are sent
+     * automatically, or zero if data should never be buffered.
+     */
+    private int flushThreshold;
+
+    /**
+     * The number of milliseconds after which buffered data is sent
+     * automatically by the next write.
+     */
+    private int flushDelay;
+
+    /**
+     * The time by which data currently buffered should be sent, in
+     * milliseconds since the epoch. This is only meaningful while data is
+     * buffered.
+     */
+    private long flushDeadline;
+
+    /**
+     * The number of characters written but not yet flushed.
+     */
+    private int pending = 0;
+
+    /**
+     * The total number of writes performed.
+     */
+    private volatile long writeCount = 0;
+
+    /**
+     * The total number of flushes which actually sent data.
+     */
+    private volatile long flushCount = 0;
+
+    /**
+     * Creates a new AbstractFlushableGuacamoleWriter which coalesces written
+     * data according to the given parameters.
+     *
+     * @param flushThreshold
+     *     The number of characters which may be buffered before they are
+     *     sent automatically, or zero if data should never be buffered.
+     *
+     * @param flushDelay
+     *     The number of milliseconds after which buffered data is sent
+     *     automatically by the next write.
+     */
+    protected AbstractFlushableGuacamoleWriter(int flushThreshold,
+            int flushDelay) {
+        this.flushThreshold = flushThreshold;
+        this.flushDelay = flushDelay;
+    }
+
+    /**
+     * Changes how written data is coalesced. The new flush threshold and
+     * delay apply from the next write onward; any data already buffered
+     * remains buffered until then, or until explicitly flushed.
+     *
+     * @param flushThreshold
+     *     The number of characters which may be buffered before they are
+     *     sent automatically, or zero if data should never be buffered.
+     *
+     * @param flushDelay
+     *     The number of milliseconds after which buffered data is sent
+     *     automatically by the next write.
+     */
+    public synchronized void setCoalescing(int flushThreshold, int flushDelay) {
+        this.flushThreshold = flushThreshold;
+        this.flushDelay = flushDelay;
+    }
+
+    /**
+     * Returns whether written data may currently be buffered rather than
+     * sent immediately.
+     *
+     * @return
+     *     true if written data may be buffered, false if all data is sent as
+     *     soon as it is written.
+     */
+    public synchronized boolean isCoalescing() {
+        return flushThreshold > 0;
+    }
+
+    /**
+     * Buffers the given data for later sending. Implementations may send
+     * some or all of the data immediately if their buffer is full.
+     *
+     * @param chunk
+     *     An array of characters containing Guacamole instructions.
+     *
+     * @param off
+     *     The start offset of the portion of the array to buffer.
+     *
+     * @param len
+     *     The length of the portion of the array to buffer.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while buffering or sending the data.
+     */
+    protected abstract void buffer(char[] chunk, int off, int len)
+            throws GuacamoleException;
+
+    /**
+     * Sends all buffered data. If sending fails, any data not yet sent must
+     * remain buffered, such that a later flush may retry.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while sending the data.
+     */
+    protected abstract void send() throws GuacamoleException;
+
+    /**
+     * Buffers the given instruction for later sending. By default, the
+     * instruction is buffered as an array of characters. Implementations may
+     * override this to serialize instructions directly into their buffer,
+     * and may send some or all of the data immediately if their buffer is
+     * full.
+     *
+     * @param instruction
+     *     The instruction to buffer.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while buffering or sending the instruction.
+     */
+    protected void buffer(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+        char[] data = instruction.toCharArray();
+        buffer(data, 0, data.length);
+    }
+
+    /**
+     * Records that the given number of characters have been buffered,
+     * flushing as dictated by the flush threshold and flush delay.
+     *
+     * @param len
+     *     The number of characters just buffered.
+     *
+     * @throws GuacamoleException
+     *     If the flush threshold or flush delay has been reached and buffered
+     *     data cannot be sent.
+     */
+    private void buffered(int len) throws GuacamoleException {
+
+        long now = System.currentTimeMillis();
+
+        // The flush delay begins with the first data buffered
+        if (pending == 0)
+            flushDeadline = now + flushDelay;
+
+        pending += len;
+        writeCount++;
+
+        // Send once threshold is reached or data has been buffered too long
+        if (pending >= flushThreshold || now >= flushDeadline)
+            flush();
+
+    }
+
+    @Override
+    public synchronized void write(char[] chunk, int off, int len)
+            throws GuacamoleException {
+        buffer(chunk, off, len);
+        buffered(len);
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public synchronized void writeInstruction(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+        buffer(instruction);
+        buffered(instruction.getLength());
+    }
+
+    @Override
+    public synchronized void flush() throws GuacamoleException {
+
+        // Nothing to send
+        if (pending == 0)
+            return;
+
+        // Data remains pending, to be retried, unless fully sent
+        send();
+        pending = 0;
+        flushCount++;
+
+    }
+
+    /**
+     * Returns the total number of writes performed through this writer.
+     *
+     * @return
+     *     The total number of writes performed.
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Returns the total number of flushes which actually sent data. Without
+     * coalescing, this is identical to the number of writes, thus the
+     * difference between the two is the number of flushes saved.
+     *
+     * @return
+     *     The total number of flushes which actually sent data.
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.io;
+
+/**
+ * The sizing policy shared by the buffers which hold received, unparsed
+ * data within ReaderGuacamoleReader and ChannelGuacamoleReader. Sizes are
+ * expressed in the units of the buffer concerned, whether characters or
+ * bytes.
+ */
+final class BufferPolicy {
+
+    /**
+     * The initial size of a buffer holding received data. The buffer will
+     * grow beyond this size only if necessary to contain a single large
+     * instruction, and is shrunk back to this size once that instruction has
+     * been read.
+     */
+    static final int INITIAL_BUFFER_SIZE = 20480;
+
+    /**
+     * This class is a utility class and cannot be instantiated.
+     */
+    private BufferPolicy() {
+    }
+
+    /**
+     * Returns the size of the buffer which should hold unparsed data before
+     * more data is read. Unparsed data should be moved to the beginning of
+     * the buffer only when the space remaining at the end of the buffer runs
+     * low, and the buffer should only be grown if the instruction currently
+     * being parsed occupies more than three quarters of the buffer, such that
+     * typical blobs fit within a buffer of the initial size and do not cause
+     * the buffer to be repeatedly grown and shrunk.
+     *
+     * @param size
+     *     The current size of the buffer.
+     *
+     * @param length
+     *     The amount of unparsed data within the buffer.
+     *
+     * @param end
+     *     The location within the buffer just after the last data received.
+     *
+     * @return
+     *     The size of the buffer into which unparsed data should be moved
+     *     before more data is read, which will be the current size if data
+     *     should be moved to the beginning of the same buffer, or -1 if no
+     *     data needs to be moved.
+     */
+    static int getPreparedSize(int size, int length, int end) {
+
+        // If past threshold, resize buffer before reading
+        if (length > size - size / 4)
+            return size * 2;
+
+        // Otherwise, reclaim space used by previous instructions only if
+        // little space remains at the end of the buffer
+        if (size - end < size / 4)
+            return size;
+
+        // No need to move anything
+        return -1;
+
+    }
+
+    /**
+     * Returns whether an enlarged buffer should be shrunk back to its
+     * initial size now that the instruction which required the larger buffer
+     * has been read, such that a tunnel which goes idle after a large
+     * instruction does not retain the larger buffer. The buffer is only
+     * shrunk if all data remaining after that instruction fits within half
+     * of the initial size.
+     *
+     * @param size
+     *     The current size of the buffer.
+     *
+     * @param length
+     *     The amount of data remaining within the buffer after the
+     *     instruction just read.
+     *
+     * @return
+     *     true if the remaining data should be moved into a new buffer of
+     *     the initial size, false otherwise.
+     */
+    static boolean isShrinkable(int size, int length) {
+        return size > INITIAL_BUFFER_SIZE && length <= INITIAL_BUFFER_SIZE / 2;
+    }
+
+}
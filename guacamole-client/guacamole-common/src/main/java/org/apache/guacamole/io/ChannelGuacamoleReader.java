@@ -0,0 +1,742 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.io;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import org.apache.guacamole.GuacamoleConnectionClosedException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.GuacamoleUnsupportedException;
+import org.apache.guacamole.GuacamoleUpstreamTimeoutException;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * A GuacamoleByteReader which reads directly from a ReadableByteChannel,
+ * typically the SocketChannel of a connection to guacd. Instructions are
+ * framed on the raw UTF-8 bytes received, with code points counted only as
+ * necessary to locate the end of each element. Received data is decoded into
+ * characters only if requested via read() or readInstruction().
+ *
+ * If the channel is a non-blocking SelectableChannel, reads will wait for
+ * data for at most the given timeout before failing, and the reader may
+ * instead be serviced without blocking through pollBytes().
+ */
+public class ChannelGuacamoleReader implements SelectableGuacamoleReader {
+
+    /**
+     * The charset of the Guacamole protocol.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The initial size of the buffer holding received data, in bytes.
+     */
+    static final int INITIAL_BUFFER_SIZE = BufferPolicy.INITIAL_BUFFER_SIZE;
+
+    /**
+     * The channel from which all data should be read.
+     */
+    private final ReadableByteChannel channel;
+
+    /**
+     * The number of milliseconds to wait for data on a non-blocking channel
+     * before timing out, or zero to wait indefinitely.
+     */
+    private final int timeout;
+
+    /**
+     * The maximum number of bytes allowed within any single instruction.
+     */
+    private final int maxInstructionLength;
+
+    /**
+     * Decoder used to translate received instructions into characters, if
+     * requested.
+     */
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * The ChannelSelector used to wait for data on a non-blocking channel,
+     * possibly shared with the writer of the same channel, or null if the
+     * channel is not selectable.
+     */
+    private final ChannelSelector selector;
+
+    /**
+     * The buffer holding all received, unparsed data.
+     */
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /**
+     * ByteBuffer wrapping the current buffer, used for reads from the
+     * channel.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.wrap(buffer);
+
+    /**
+     * The location within the buffer of the first byte of the instruction
+     * currently being parsed.
+     */
+    private int start = 0;
+
+    /**
+     * The location within the buffer just after the last byte received.
+     */
+    private int end = 0;
+
+    /**
+     * The location within the buffer of the next byte to be parsed.
+     */
+    private int parsePosition = 0;
+
+    /**
+     * The number of UTF-16 characters which would be produced by decoding all
+     * bytes of the current instruction that precede parsePosition.
+     */
+    private int charPosition = 0;
+
+    /**
+     * Whether the content of an element (rather than its length prefix) is
+     * currently being parsed.
+     */
+    private boolean parsingContent = false;
+
+    /**
+     * The length of the current element, in code points, if known. While
+     * parsing element content, this is the number of code points remaining.
+     */
+    private int elementLength = 0;
+
+    /**
+     * The offset of the content of each element of the instruction currently
+     * being parsed, in characters relative to the start of that instruction.
+     */
+    private int[] elementOffsets = new int[16];
+
+    /**
+     * The length of the content of each element of the instruction currently
+     * being parsed, in characters.
+     */
+    private int[] elementLengths = new int[16];
+
+    /**
+     * The number of elements of the instruction currently being parsed which
+     * have been completely received.
+     */
+    private int elementCount = 0;
+
+    /**
+     * The number of elements in the instruction most recently returned.
+     */
+    private int lastElementCount = 0;
+
+    /**
+     * The number of characters in the instruction most recently returned,
+     * once decoded.
+     */
+    private int lastCharLength = 0;
+
+    /**
+     * The bytes of the instruction most recently returned by readBytes(), or
+     * null if there is no such instruction.
+     */
+    private ByteBuffer lastInstruction;
+
+    /**
+     * Creates a new ChannelGuacamoleReader which reads the Guacamole
+     * instruction stream from the given channel. Instructions will be limited
+     * to ReaderGuacamoleReader.DEFAULT_MAX_INSTRUCTION_LENGTH bytes.
+     *
+     * @param channel
+     *     The channel to read the Guacamole instruction stream from.
+     *
+     * @param timeout
+     *     The number of milliseconds to wait for data on a non-blocking
+     *     channel before timing out, or zero to wait indefinitely.
+     */
+    public ChannelGuacamoleReader(ReadableByteChannel channel, int timeout) {
+        this(channel, timeout, ReaderGuacamoleReader.DEFAULT_MAX_INSTRUCTION_LENGTH);
+    }
+
+    /**
+     * Creates a new ChannelGuacamoleReader which reads the Guacamole
+     * instruction stream from the given channel, refusing to read any
+     * instruction longer than the given number of bytes.
+     *
+     * @param channel
+     *     The channel to read the Guacamole instruction stream from.
+     *
+     * @param timeout
+     *     The number of milliseconds to wait for data on a non-blocking
+     *     channel before timing out, or zero to wait indefinitely.
+     *
+     * @param maxInstructionLength
+     *     The maximum number of bytes allowed within any single instruction.
+     *     Reading an instruction longer than this will fail with a
+     *     GuacamoleServerException.
+     */
+    public ChannelGuacamoleReader(ReadableByteChannel channel, int timeout,
+            int maxInstructionLength) {
+        this(channel, ChannelSelector.forChannel(channel), timeout,
+                maxInstructionLength);
+    }
+
+    /**
+     * Creates a new ChannelGuacamoleReader which reads the Guacamole
+     * instruction stream from the given channel, waiting for data using the
+     * given ChannelSelector. Instructions will be limited to
+     * ReaderGuacamoleReader.DEFAULT_MAX_INSTRUCTION_LENGTH bytes.
+     *
+     * @param channel
+     *     The channel to read the Guacamole instruction stream from.
+     *
+     * @param selector
+     *     The ChannelSelector to use when waiting for data on a non-blocking
+     *     channel, typically shared with the ChannelGuacamoleWriter of the
+     *     same channel, or null if the channel is not selectable.
+     *
+     * @param timeout
+     *     The number of milliseconds to wait for data on a non-blocking
+     *     channel before timing out, or zero to wait indefinitely.
+     */
+    public ChannelGuacamoleReader(ReadableByteChannel channel,
+            ChannelSelector selector, int timeout) {
+        this(channel, selector, timeout,
+                ReaderGuacamoleReader.DEFAULT_MAX_INSTRUCTION_LENGTH);
+    }
+
+    /**
+     * Creates a new ChannelGuacamoleReader which reads the Guacamole
+     * instruction stream from the given channel, waiting for data using the
+     * given ChannelSelector and refusing to read any instruction longer than
+     * the given number of bytes.
+     *
+     * @param channel
+     *     The channel to read the Guacamole instruction stream from.
+     *
+     * @param selector
+     *     The ChannelSelector to use when waiting for data on a non-blocking
+     *     channel, typically shared with the ChannelGuacamoleWriter of the
+     *     same channel, or null if the channel is not selectable.
+     *
+     * @param timeout
+     *     The number of milliseconds to wait for data on a non-blocking
+     *     channel before timing out, or zero to wait indefinitely.
+     *
+     * @param maxInstructionLength
+     *     The maximum number of bytes allowed within any single instruction.
+     *     Reading an instruction longer than this will fail with a
+     *     GuacamoleServerException.
+     */
+    public ChannelGuacamoleReader(ReadableByteChannel channel,
+            ChannelSelector selector, int timeout, int maxInstructionLength) {
+        this.channel = channel;
+        this.selector = selector;
+        this.timeout = timeout;
+        this.maxInstructionLength = maxInstructionLength;
+    }
+
+    /**
+     * Returns whether the underlying channel is a non-blocking
+     * SelectableChannel, and thus must be waited upon via a Selector.
+     *
+     * @return
+     *     true if the underlying channel is non-blocking, false otherwise.
+     */
+    private boolean isNonBlocking() {
+        return channel instanceof SelectableChannel
+            && !((SelectableChannel) channel).isBlocking();
+    }
+
+    /**
+     * Ensures the buffer has space available after the end of all received
+     * data for the next read, moving unparsed data or growing the buffer as
+     * dictated by BufferPolicy.
+     */
+    private void prepareBuffer() {
+
+        int length = end - start;
+
+        // If nothing is buffered, simply rewind
+        if (length == 0) {
+            start = end = parsePosition = 0;
+            return;
+        }
+
+        int size = BufferPolicy.getPreparedSize(buffer.length, length, end);
+
+        // No need to move anything
+        if (size == -1)
+            return;
+
+        // Move unparsed data to the beginning of the buffer, resizing the
+        // buffer if required
+        if (size != buffer.length) {
+            byte[] biggerBuffer = new byte[size];
+            System.arraycopy(buffer, start, biggerBuffer, 0, length);
+            buffer = biggerBuffer;
+            readBuffer = ByteBuffer.wrap(buffer);
+        }
+        else
+            System.arraycopy(buffer, start, buffer, 0, length);
+
+        // Parsing continues relative to the new location of the data
+        parsePosition -= start;
+        start = 0;
+        end = length;
+
+    }
+
+    /**
+     * Shrinks an enlarged buffer back to its initial size once the
+     * instruction which required the larger buffer has been read, if allowed
+     * by BufferPolicy. The previous buffer is replaced rather than modified,
+     * and thus still contains the instruction most recently read.
+     */
+    private void shrinkBuffer() {
+
+        int length = end - start;
+        if (!BufferPolicy.isShrinkable(buffer.length, length))
+            return;
+
+        // Move any remaining data into a buffer of the initial size
+        byte[] smallerBuffer = new byte[INITIAL_BUFFER_SIZE];
+        System.arraycopy(buffer, start, smallerBuffer, 0, length);
+        buffer = smallerBuffer;
+        readBuffer = ByteBuffer.wrap(buffer);
+
+        // Parsing continues relative to the new location of the data
+        parsePosition -= start;
+        start = 0;
+        end = length;
+
+    }
+
+    /**
+     * Returns the current size of the buffer holding received data, in
+     * bytes.
+     *
+     * @return
+     *     The current size of the buffer holding received data.
+     */
+    int getBufferSize() {
+        return buffer.length;
+    }
+
+    /**
+     * Reads as much data as is immediately available from the channel into
+     * the buffer, optionally waiting until at least some data is available.
+     *
+     * @param block
+     *     true if this function should wait until data is available, false
+     *     if this function should return immediately if no data is
+     *     available.
+     *
+     * @return
+     *     The number of bytes read, which may be zero if block is false, or
+     *     -1 if the end of the stream has been reached.
+     *
+     * @throws IOException
+     *     If an error occurs while reading from or waiting on the channel.
+     */
+    private int fill(boolean block) throws IOException {
+
+        // Ensure there is space for more data
+        prepareBuffer();
+
+        readBuffer.limit(buffer.length);
+        readBuffer.position(end);
+
+        for (;;) {
+
+            // Read whatever is available
+            int numRead = channel.read(readBuffer);
+            if (numRead > 0)
+                end += numRead;
+
+            // Return unless we must wait for data
+            if (numRead != 0 || !block || !isNonBlocking())
+                return numRead;
+
+            selector.await(SelectionKey.OP_READ, timeout);
+
+        }
+
+    }
+
+    /**
+     * Records the location of the element whose content has just been
+     * parsed.
+     *
+     * @param offset
+     *     The offset of the element content in characters, relative to the
+     *     start of the instruction.
+     *
+     * @param length
+     *     The length of the element content, in characters.
+     */
+    private void recordElement(int offset, int length) {
+
+        if (elementCount == elementOffsets.length) {
+            elementOffsets = Arrays.copyOf(elementOffsets, elementCount * 2);
+            elementLengths = Arrays.copyOf(elementLengths, elementCount * 2);
+        }
+
+        elementOffsets[elementCount] = offset;
+        elementLengths[elementCount] = length;
+        elementCount++;
+
+    }
+
+    /**
+     * Parses as much buffered data as possible, stopping once a complete
+     * instruction has been parsed. Parsing state is retained between calls,
+     * such that no byte is examined more than once.
+     *
+     * @return
+     *     The location within the buffer just after the end of the
+     *     instruction parsed, or -1 if no complete instruction is yet
+     *     available.
+     *
+     * @throws GuacamoleException
+     *     If the received data is not valid Guacamole protocol data.
+     */
+    private int parse() throws GuacamoleException {
+
+        byte[] buffer = this.buffer;
+
+        while (parsePosition < end) {
+
+            // Parse element length
+            if (!parsingContent) {
+
+                byte readByte = buffer[parsePosition++];
+                charPosition++;
+
+                // If digit, update length
+                if (readByte >= '0' && readByte <= '9') {
+
+                    elementLength = elementLength * 10 + readByte - '0';
+
+                    // Refuse to buffer elements which are too long
+                    if (elementLength > maxInstructionLength)
+                        throw new GuacamoleServerException("Instruction exceeds maximum length.");
+
+                }
+
+                // If period, switch to parsing content
+                else if (readByte == '.') {
+                    parsingContent = true;
+                    recordElement(charPosition, 0);
+                }
+
+                // Otherwise, parse error
+                else
+                    throw new GuacamoleServerException("Non-numeric character in element length.");
+
+            }
+
+            // Skip past each code point of element content
+            else if (elementLength > 0) {
+
+                // Determine length of UTF-8 sequence from its first byte
+                int lead = buffer[parsePosition] & 0xFF;
+                int sequenceLength;
+                if      (lead < 0xC0) sequenceLength = 1;
+                else if (lead < 0xE0) sequenceLength = 2;
+                else if (lead < 0xF0) sequenceLength = 3;
+                else                  sequenceLength = 4;
+
+                // Wait for remainder of code point if incomplete
+                if (parsePosition + sequenceLength > end)
+                    break;
+
+                // Code points beyond the BMP decode to surrogate pairs
+                parsePosition += sequenceLength;
+                charPosition += (sequenceLength == 4) ? 2 : 1;
+                elementLength--;
+
+            }
+
+            // Handle terminator following element content
+            else {
+
+                byte terminator = buffer[parsePosition++];
+
+                // Finalize length of recorded element
+                int element = elementCount - 1;
+                elementLengths[element] = charPosition - elementOffsets[element];
+                charPosition++;
+
+                parsingContent = false;
+
+                // If semicolon, we have a full instruction
+                if (terminator == ';') {
+                    lastElementCount = elementCount;
+                    lastCharLength = charPosition;
+                    elementCount = 0;
+                    charPosition = 0;
+                    return parsePosition;
+                }
+
+                // Handle invalid terminator characters
+                else if (terminator != ',')
+                    throw new GuacamoleServerException("Element terminator of instruction was not ';' nor ','");
+
+            }
+
+        }
+
+        // Refuse to buffer instructions which are too long
+        if (end - start > maxInstructionLength)
+            throw new GuacamoleServerException("Instruction exceeds maximum length.");
+
+        return -1;
+
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+
+        // Data is available if already buffered
+        if (end != start)
+            return true;
+
+        // Otherwise, check whether more data can be read without blocking
+        if (!isNonBlocking())
+            return false;
+
+        try {
+            return fill(false) != 0;
+        }
+        catch (ClosedChannelException e) {
+            throw new GuacamoleConnectionClosedException("Connection to guacd is closed.", e);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+    }
+
+    /**
+     * Reads exactly one complete Guacamole instruction, returning a buffer
+     * containing its raw bytes, optionally returning immediately if no
+     * complete instruction can be read without blocking.
+     *
+     * @param block
+     *     true if this function should wait until a complete instruction is
+     *     available, false if this function should return null as soon as
+     *     no further data can be read without blocking.
+     *
+     * @return
+     *     A buffer containing the bytes of exactly one complete instruction,
+     *     or null if no complete instruction can be read without blocking
+     *     (if block is false) or the end of the stream has been reached (if
+     *     block is true).
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while reading, or if the end of the stream has
+     *     been reached and block is false.
+     */
+    private ByteBuffer readBytes(boolean block) throws GuacamoleException {
+
+        try {
+
+            lastInstruction = null;
+
+            // Parse until a full instruction is available, reading as needed
+            int instructionEnd;
+            while ((instructionEnd = parse()) == -1) {
+
+                int numRead = fill(block);
+
+                // Without a caller to receive null, the end of the stream
+                // can only be signalled by failure
+                if (numRead == -1) {
+                    if (block)
+                        return null;
+                    throw new GuacamoleConnectionClosedException("Connection to guacd is closed.");
+                }
+
+                // Stop if nothing more can be read without blocking
+                if (numRead == 0 && !block)
+                    return null;
+
+            }
+
+            // Return instruction in place, advancing past it without moving
+            // any data
+            ByteBuffer instruction = ByteBuffer.wrap(buffer, start, instructionEnd - start);
+            lastInstruction = instruction.duplicate();
+            start = instructionEnd;
+
+            // Release any space needed only by that instruction
+            shrinkBuffer();
+
+            return instruction;
+
+        }
+        catch (SocketTimeoutException e) {
+            throw new GuacamoleUpstreamTimeoutException("Connection to guacd timed out.", e);
+        }
+        catch (ClosedChannelException e) {
+            throw new GuacamoleConnectionClosedException("Connection to guacd is closed.", e);
+        }
+        catch (SocketException e) {
+            throw new GuacamoleConnectionClosedException("Connection to guacd is closed.", e);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+    }
+
+    @Override
+    public ByteBuffer readBytes() throws GuacamoleException {
+        return readBytes(true);
+    }
+
+    @Override
+    public SelectableChannel getChannel() {
+
+        // Only non-blocking channels can be serviced without blocking
+        if (!isNonBlocking())
+            return null;
+
+        return (SelectableChannel) channel;
+
+    }
+
+    @Override
+    public ByteBuffer pollBytes() throws GuacamoleException {
+
+        if (!isNonBlocking())
+            throw new GuacamoleUnsupportedException("Underlying channel is blocking.");
+
+        return readBytes(false);
+
+    }
+
+    /**
+     * Decodes the instruction most recently returned by readBytes() into an
+     * array of characters.
+     *
+     * @return
+     *     The characters of the instruction most recently returned by
+     *     readBytes(). If the instruction contains malformed UTF-8, the
+     *     length of this array will differ from lastCharLength.
+     */
+    private char[] decodeLastInstruction() {
+
+        // Decode directly into an array of the expected size
+        char[] chars = new char[lastCharLength];
+        CharBuffer output = CharBuffer.wrap(chars);
+        decoder.reset();
+        decoder.decode(lastInstruction.duplicate(), output, true);
+        decoder.flush(output);
+
+        // Malformed data may decode to fewer characters than expected
+        if (output.position() != chars.length)
+            return Arrays.copyOf(chars, output.position());
+
+        return chars;
+
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        // Read and decode raw instruction
+        if (readBytes() == null)
+            return null;
+
+        return decodeLastInstruction();
+
+    }
+
+    @Override
+    public GuacamoleInstruction decodeInstruction() throws GuacamoleException {
+
+        // Nothing to decode if nothing was read
+        if (lastInstruction == null)
+            return null;
+
+        // Malformed data cannot be reliably split into elements
+        char[] instructionBuffer = decodeLastInstruction();
+        if (instructionBuffer.length != lastCharLength)
+            throw new GuacamoleServerException("Instruction contains invalid UTF-8.");
+
+        // Create instruction as a view over the decoded buffer
+        int count = lastElementCount;
+        return new GuacamoleInstruction(
+                instructionBuffer,
+                Arrays.copyOf(elementOffsets, count),
+                Arrays.copyOf(elementLengths, count),
+                count
+        );
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        // If EOF, return EOF
+        if (readBytes() == null)
+            return null;
+
+        return decodeInstruction();
+
+    }
+
+    /**
+     * Releases any resources used by this ChannelGuacamoleReader to wait for
+     * data, including its ChannelSelector, which may be shared with the
+     * writer of the same channel. The underlying channel is not closed.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while releasing resources.
+     */
+    public void close() throws GuacamoleException {
+
+        try {
+            if (selector != null)
+                selector.close();
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+    }
+
+}
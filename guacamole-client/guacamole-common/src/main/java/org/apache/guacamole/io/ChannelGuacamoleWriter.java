@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.io;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import org.apache.guacamole.GuacamoleConnectionClosedException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.GuacamoleUpstreamTimeoutException;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * A GuacamoleWriter which writes directly to a WritableByteChannel, typically
+ * the SocketChannel of a connection to guacd. Written data is encoded as UTF-8
+ * through a single reusable buffer.
+ *
+ * If the channel is a non-blocking SelectableChannel, writes will wait for
+ * the channel to accept data for at most the given timeout before failing.
+ * If a flush threshold is given, writes are coalesced within that buffer, and
+ * are only written to the channel as dictated by
+ * AbstractFlushableGuacamoleWriter.
+ */
+public class ChannelGuacamoleWriter extends AbstractFlushableGuacamoleWriter {
+
+    /**
+     * The size of the buffer used to encode data prior to writing, in bytes.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The channel to which all data should be written.
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     * The number of milliseconds to wait for a non-blocking channel to accept
+     * data before timing out, or zero to wait indefinitely.
+     */
+    private final int timeout;
+
+    /**
+     * Encoder used to translate written characters into UTF-8.
+     */
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Buffer receiving encoded data prior to writing.
+     */
+    private final ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * The high surrogate which ended the data most recently written, and
+     * which must be encoded together with the low surrogate beginning the
+     * next write, or zero if there is no such surrogate.
+     */
+    private char pendingSurrogate = 0;
+
+    /**
+     * The ChannelSelector used to wait for a non-blocking channel to accept
+     * data, possibly shared with the reader of the same channel, or null if
+     * the channel is not selectable.
+     */
+    private final ChannelSelector selector;
+
+    /**
+     * Creates a new ChannelGuacamoleWriter which writes the Guacamole
+     * instruction stream to the given channel, writing all data to the
+     * channel immediately.
+     *
+     * @param channel
+     *     The channel to write the Guacamole instruction stream to.
+     *
+     * @param timeout
+     *     The number of milliseconds to wait for a non-blocking channel to
+     *     accept data before timing out, or zero to wait indefinitely.
+     */
+    public ChannelGuacamoleWriter(WritableByteChannel channel, int timeout) {
+        this(channel, timeout, 0, 0);
+    }
+
+    /**
+     * Creates a new ChannelGuacamoleWriter which writes the Guacamole
+     * instruction stream to the given channel, coalescing writes such that
+     * data is written to the channel only once the given number of
+     * characters have been written, when data is written after the given
+     * delay has elapsed, or once explicitly flushed. The caller must flush
+     * once it has finished writing.
+     *
+     * @param channel
+     *     The channel to write the Guacamole instruction stream to.
+     *
+     * @param timeout
+     *     The number of milliseconds to wait for a non-blocking channel to
+     *     accept data before timing out, or zero to wait indefinitely.
+     *
+     * @param flushThreshold
+     *     The number of characters which may be buffered before they are
+     *     written to the channel automatically, or zero to write all data
+     *     immediately.
+     *
+     * @param flushDelay
+     *     The number of milliseconds after which buffered data is written to
+     *     the channel automatically by the next write.
+     */
+    public ChannelGuacamoleWriter(WritableByteChannel channel, int timeout,
+            int flushThreshold, int flushDelay) {
+        this(channel, ChannelSelector.forChannel(channel), timeout,
+                flushThreshold, flushDelay);
+    }
+
+    /**
+     * Creates a new ChannelGuacamoleWriter which writes the Guacamole
+     * instruction stream to the given channel, waiting for the channel to
+     * accept data using the given ChannelSelector, and writing all data to
+     * the channel immediately.
+     *
+     * @param channel
+     *     The channel to write the Guacamole instruction stream to.
+     *
+     * @param selector
+     *     The ChannelSelector to use when waiting for a non-blocking channel
+     *     to accept data, typically shared with the ChannelGuacamoleReader of
+     *     the same channel, or null if the channel is not selectable.
+     *
+     * @param timeout
+     *     The number of milliseconds to wait for a non-blocking channel to
+     *     accept data before timing out, or zero to wait indefinitely.
+     */
+    public ChannelGuacamoleWriter(WritableByteChannel channel,
+            ChannelSelector selector, int timeout) {
+        this(channel, selector, timeout, 0, 0);
+    }
+
+    /**
+     * Creates a new ChannelGuacamoleWriter which writes the Guacamole
+     * instruction stream to the given channel, waiting for the channel to
+     * accept data using the given ChannelSelector. Writes are coalesced as
+     * described by the flushThreshold and flushDelay parameters.
+     *
+     * @param channel
+     *     The channel to write the Guacamole instruction stream to.
+     *
+     * @param selector
+     *     The ChannelSelector to use when waiting for a non-blocking channel
+     *     to accept data, typically shared with the ChannelGuacamoleReader of
+     *     the same channel, or null if the channel is not selectable.
+     *
+     * @param timeout
+     *     The number of milliseconds to wait for a non-blocking channel to
+     *     accept data before timing out, or zero to wait indefinitely.
+     *
+     * @param flushThreshold
+     *     The number of characters which may be buffered before they are
+     *     written to the channel automatically, or zero to write all data
+     *     immediately.
+     *
+     * @param flushDelay
+     *     The number of milliseconds after which buffered data is written to
+     *     the channel automatically by the next write.
+     */
+    public ChannelGuacamoleWriter(WritableByteChannel channel,
+            ChannelSelector selector, int timeout, int flushThreshold,
+            int flushDelay) {
+        super(flushThreshold, flushDelay);
+        this.channel = channel;
+        this.selector = selector;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Writes the entire contents of the given buffer to the channel, waiting
+     * for the channel to accept data as necessary.
+     *
+     * @param data
+     *     The buffer whose remaining contents should be written.
+     *
+     * @throws IOException
+     *     If an error occurs while writing, or if the channel does not accept
+     *     data within the timeout.
+     */
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (channel.write(data) == 0 && selector != null)
+                selector.await(SelectionKey.OP_WRITE, timeout);
+        }
+    }
+
+    /**
+     * Converts the given IOException, thrown while the output buffer was
+     * being written to the channel, into the corresponding
+     * GuacamoleException. Any data which was not written remains buffered,
+     * ahead of any data buffered later.
+     *
+     * @param e
+     *     The IOException to convert.
+     *
+     * @return
+     *     A GuacamoleException describing the given IOException.
+     */
+    private GuacamoleException translate(IOException e) {
+
+        output.compact();
+
+        if (e instanceof SocketTimeoutException)
+            return new GuacamoleUpstreamTimeoutException("Connection to guacd timed out.", e);
+
+        if (e instanceof ClosedChannelException || e instanceof SocketException)
+            return new GuacamoleConnectionClosedException("Connection to guacd is closed.", e);
+
+        return new GuacamoleServerException(e);
+
+    }
+
+    /**
+     * Encodes the given characters into the output buffer, writing out the
+     * buffer only as it fills. A high surrogate at the end of the given
+     * characters is left unconsumed, as its low surrogate may only arrive
+     * with the next write.
+     *
+     * @param input
+     *     The characters to encode.
+     *
+     * @throws IOException
+     *     If an error occurs while writing out the buffer.
+     */
+    private void encode(CharBuffer input) throws IOException {
+        while (encoder.encode(input, output, false).isOverflow()) {
+            output.flip();
+            writeFully(output);
+            output.clear();
+        }
+    }
+
+    @Override
+    protected void buffer(char[] chunk, int off, int len) throws GuacamoleException {
+
+        try {
+
+            // Complete any surrogate pair split across writes
+            if (pendingSurrogate != 0 && len > 0) {
+                CharBuffer pair = CharBuffer.wrap(new char[] { pendingSurrogate, chunk[off] });
+                pendingSurrogate = 0;
+                encode(pair);
+
+                // The first character of the chunk is left unconsumed only
+                // if it is itself a high surrogate, to be encoded below
+                if (!pair.hasRemaining()) {
+                    off++;
+                    len--;
+                }
+            }
+
+            CharBuffer input = CharBuffer.wrap(chunk, off, len);
+            encode(input);
+
+            // Retain any trailing high surrogate until the next write
+            if (input.hasRemaining())
+                pendingSurrogate = input.get();
+
+        }
+        catch (IOException e) {
+            throw translate(e);
+        }
+
+    }
+
+    @Override
+    protected void buffer(GuacamoleInstruction instruction) throws GuacamoleException {
+
+        // Encode in order with any surrogate still awaiting its pair
+        if (pendingSurrogate != 0) {
+            super.buffer(instruction);
+            return;
+        }
+
+        // Encode directly into the buffer if the instruction fits
+        try {
+            instruction.writeTo(output);
+        }
+
+        // Otherwise, encode in pieces, writing out the buffer as it fills
+        catch (BufferOverflowException e) {
+            super.buffer(instruction);
+        }
+
+    }
+
+    @Override
+    protected void send() throws GuacamoleException {
+
+        try {
+            output.flip();
+            writeFully(output);
+            output.clear();
+        }
+        catch (IOException e) {
+            throw translate(e);
+        }
+
+    }
+
+    /**
+     * Releases any resources used by this ChannelGuacamoleWriter to wait for
+     * the channel, including its ChannelSelector, which may be shared with
+     * the reader of the same channel. The underlying channel is not closed.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while releasing resources.
+     */
+    public void close() throws GuacamoleException {
+
+        try {
+            if (selector != null)
+                selector.close();
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+    }
+
+}
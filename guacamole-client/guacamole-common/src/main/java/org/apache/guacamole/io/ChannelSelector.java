@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A single Selector shared by the reader and writer of one non-blocking
+ * channel, through which each may wait for the channel to become readable or
+ * writable. Only one thread selects at any time, on behalf of all waiting
+ * threads, such that a reader and writer waiting concurrently share the same
+ * Selector rather than each requiring their own. The Selector is only opened
+ * once waiting is actually necessary.
+ */
+public class ChannelSelector {
+
+    /**
+     * The channel being waited upon.
+     */
+    private final SelectableChannel channel;
+
+    /**
+     * The Selector used to wait for the channel, or null if not yet opened.
+     */
+    private Selector selector;
+
+    /**
+     * The key of the channel within the Selector, or null if the Selector
+     * has not yet been opened.
+     */
+    private SelectionKey key;
+
+    /**
+     * Whether a thread is currently blocked within select().
+     */
+    private boolean selecting = false;
+
+    /**
+     * The operations that the thread currently blocked within select() is
+     * waiting for.
+     */
+    private int selectingOps = 0;
+
+    /**
+     * The number of threads waiting for the channel to become readable.
+     */
+    private int readWaiters = 0;
+
+    /**
+     * The number of threads waiting for the channel to become writable.
+     */
+    private int writeWaiters = 0;
+
+    /**
+     * The operations for which the channel has been found ready, but which
+     * no waiting thread has yet consumed.
+     */
+    private int readyOps = 0;
+
+    /**
+     * Whether this ChannelSelector has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Creates a new ChannelSelector which waits upon the given non-blocking
+     * channel.
+     *
+     * @param channel
+     *     The channel to wait upon.
+     */
+    public ChannelSelector(SelectableChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Creates a new ChannelSelector for the given channel if that channel is
+     * selectable.
+     *
+     * @param channel
+     *     The channel to wait upon.
+     *
+     * @return
+     *     A new ChannelSelector for the given channel, or null if the channel
+     *     is not a SelectableChannel.
+     */
+    public static ChannelSelector forChannel(Channel channel) {
+
+        if (channel instanceof SelectableChannel)
+            return new ChannelSelector((SelectableChannel) channel);
+
+        return null;
+
+    }
+
+    /**
+     * Returns the operations that any thread is currently waiting for.
+     *
+     * @return
+     *     The union of the operations that waiting threads are waiting for.
+     */
+    private int getWaitingOps() {
+        return (readWaiters > 0 ? SelectionKey.OP_READ : 0)
+             | (writeWaiters > 0 ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * Records whether the current thread is waiting for the given operation.
+     *
+     * @param op
+     *     The operation being waited for, either SelectionKey.OP_READ or
+     *     SelectionKey.OP_WRITE.
+     *
+     * @param delta
+     *     1 if the current thread begins waiting, -1 if it stops waiting.
+     */
+    private void updateWaiters(int op, int delta) {
+        if (op == SelectionKey.OP_READ)
+            readWaiters += delta;
+        else
+            writeWaiters += delta;
+    }
+
+    /**
+     * Waits until the channel is ready for the given operation, or until the
+     * given timeout elapses. Spurious returns are possible; callers should
+     * simply retry the operation and wait again if it could not proceed.
+     *
+     * @param op
+     *     The operation to wait for, either SelectionKey.OP_READ or
+     *     SelectionKey.OP_WRITE.
+     *
+     * @param timeout
+     *     The number of milliseconds to wait, or zero to wait indefinitely.
+     *
+     * @throws SocketTimeoutException
+     *     If the timeout elapses before the channel is ready.
+     *
+     * @throws ClosedChannelException
+     *     If the channel or this ChannelSelector is closed while waiting.
+     *
+     * @throws IOException
+     *     If an error occurs while waiting.
+     */
+    public void await(int op, int timeout) throws IOException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (this) {
+            updateWaiters(op, 1);
+        }
+
+        try {
+
+            for (;;) {
+
+                long remaining = timeout;
+                if (timeout > 0) {
+                    remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        throw new SocketTimeoutException(op == SelectionKey.OP_READ
+                                ? "Read timed out" : "Write timed out");
+                }
+
+                int interestOps;
+                synchronized (this) {
+
+                    if (closed || !channel.isOpen())
+                        throw new ClosedChannelException();
+
+                    // Consume readiness found by another thread
+                    if ((readyOps & op) != 0) {
+                        readyOps &= ~op;
+                        return;
+                    }
+
+                    // Let the selecting thread wait on our behalf, waking it
+                    // if it is not yet waiting for our operation
+                    if (selecting) {
+                        if ((selectingOps & op) == 0)
+                            selector.wakeup();
+                        try {
+                            wait(remaining);
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                        continue;
+                    }
+
+                    // Otherwise, select on behalf of all waiting threads
+                    if (selector == null) {
+                        selector = Selector.open();
+                        key = channel.register(selector, 0);
+                    }
+
+                    interestOps = getWaitingOps();
+                    key.interestOps(interestOps);
+                    selectingOps = interestOps;
+                    selecting = true;
+
+                }
+
+                try {
+                    if (selector.select(remaining) > 0) {
+                        synchronized (this) {
+                            readyOps |= key.readyOps() & interestOps;
+                        }
+                        selector.selectedKeys().clear();
+                    }
+                }
+
+                // The selector is closed only when the channel is closed
+                catch (ClosedSelectorException e) {
+                    throw new ClosedChannelException();
+                }
+
+                finally {
+                    synchronized (this) {
+                        selecting = false;
+                        notifyAll();
+                    }
+                }
+
+            }
+
+        }
+
+        finally {
+            synchronized (this) {
+                updateWaiters(op, -1);
+            }
+        }
+
+    }
+
+    /**
+     * Closes the Selector used by this ChannelSelector, if any, waking any
+     * waiting threads. The channel itself is not closed.
+     *
+     * @throws IOException
+     *     If an error occurs while closing the Selector.
+     */
+    public void close() throws IOException {
+
+        Selector toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = selector;
+            notifyAll();
+        }
+
+        if (toClose != null)
+            toClose.close();
+
+    }
+
+}
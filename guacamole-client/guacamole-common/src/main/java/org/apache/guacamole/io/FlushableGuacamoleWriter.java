@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.io;
+
+import org.apache.guacamole.GuacamoleException;
+
+/**
+ * A GuacamoleWriter which may buffer written instructions rather than sending
+ * them immediately. Buffered instructions are sent when explicitly flushed,
+ * and may also be sent automatically at the discretion of the
+ * implementation.
+ */
+public interface FlushableGuacamoleWriter extends GuacamoleWriter {
+
+    /**
+     * Sends any instructions which have been written but are still buffered.
+     * If nothing is buffered, this function has no effect.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while sending buffered instructions.
+     */
+    public void flush() throws GuacamoleException;
+
+}
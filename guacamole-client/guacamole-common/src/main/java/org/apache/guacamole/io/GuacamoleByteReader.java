@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.io;
+
+import java.nio.ByteBuffer;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * A GuacamoleReader which additionally provides access to the raw, UTF-8
+ * encoded bytes of the Guacamole instruction stream, allowing received
+ * instructions to be forwarded elsewhere without first being decoded into
+ * characters.
+ */
+public interface GuacamoleByteReader extends GuacamoleReader {
+
+    /**
+     * Reads exactly one complete Guacamole instruction, returning a buffer
+     * containing the raw UTF-8 bytes of that instruction between its
+     * position and limit. This function will block until a complete
+     * instruction is available. The contents of the returned buffer are only
+     * guaranteed to remain valid until the next call to any read function of
+     * this GuacamoleByteReader, and must not be modified.
+     *
+     * @return
+     *     A buffer containing the bytes of exactly one complete Guacamole
+     *     instruction, or null if no more instructions are available for
+     *     reading.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while reading from the stream.
+     */
+    public ByteBuffer readBytes() throws GuacamoleException;
+
+    /**
+     * Decodes the instruction whose bytes were most recently returned by
+     * readBytes(), reusing the parsing already performed by that read. This
+     * function must be invoked before the next call to any read function of
+     * this GuacamoleByteReader, and has no effect on the buffer returned by
+     * readBytes().
+     *
+     * @return
+     *     The instruction most recently returned by readBytes(), or null if
+     *     readBytes() has not yet returned an instruction or has reached the
+     *     end of the stream.
+     *
+     * @throws GuacamoleException
+     *     If the instruction cannot be decoded.
+     */
+    public GuacamoleInstruction decodeInstruction() throws GuacamoleException;
+
+}
@@ -59,7 +59,8 @@ public interface GuacamoleReader {
 
     /**
      * Reads exactly one complete Guacamole instruction and returns the fully
-     * parsed instruction.
+     * parsed instruction. The returned instruction is independent of this
+     * GuacamoleReader, and remains valid after subsequent reads.
      *
      * @return The next complete instruction from the stream, fully parsed, or
      *         null if no more instructions are available for reading.
@@ -0,0 +1,638 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.guacamole.GuacamoleConnectionClosedException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.GuacamoleUpstreamTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small, fixed pool of threads which together service any number of
+ * SelectableGuacamoleReaders, each thread multiplexing its share of readers
+ * with a single Selector. Instructions are read only when they can be read
+ * without blocking, and are passed to the GuacamoleReaderListener registered
+ * for each reader. The number of threads is thus independent of the number of
+ * readers, unlike a thread which blocks within read() for each reader.
+ */
+public class GuacamoleReaderEventLoop {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacamoleReaderEventLoop.class);
+
+    /**
+     * The maximum number of milliseconds that each thread will wait within
+     * select() before checking its readers for closure and timeouts.
+     */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    /**
+     * The number of event loops created thus far, used to name the threads
+     * of each event loop.
+     */
+    private static final AtomicInteger loopCount = new AtomicInteger();
+
+    /**
+     * The threads servicing registered readers.
+     */
+    private final LoopThread[] threads;
+
+    /**
+     * The index of the thread which should receive the next registration,
+     * modulo the number of threads.
+     */
+    private final AtomicInteger nextThread = new AtomicInteger();
+
+    /**
+     * The number of milliseconds that a reader may go without receiving data
+     * before it is considered timed out, or zero to wait indefinitely.
+     */
+    private final int timeout;
+
+    /**
+     * A reader registered with this event loop, along with the listener which
+     * receives the instructions read. Registrations may be suspended and
+     * resumed at any time from any thread, allowing the listener to stop
+     * reading while it cannot accept further instructions.
+     */
+    public class Registration {
+
+        /**
+         * The thread servicing this registration.
+         */
+        private final LoopThread thread;
+
+        /**
+         * The registered reader.
+         */
+        private final SelectableGuacamoleReader reader;
+
+        /**
+         * The listener receiving all instructions read.
+         */
+        private final GuacamoleReaderListener listener;
+
+        /**
+         * The key of the reader's channel within the selector of the
+         * servicing thread, or null if not yet registered. This is accessed
+         * only by the servicing thread.
+         */
+        private SelectionKey key;
+
+        /**
+         * The time that data was last received, in milliseconds since
+         * midnight January 1, 1970 GMT. This is accessed only by the
+         * servicing thread.
+         */
+        private long lastActivity;
+
+        /**
+         * Whether reading is currently suspended.
+         */
+        private volatile boolean suspended = false;
+
+        /**
+         * Whether this registration has been cancelled or has failed.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Creates a new Registration for the given reader and listener,
+         * serviced by the given thread.
+         *
+         * @param thread
+         *     The thread which will service the reader.
+         *
+         * @param reader
+         *     The reader being registered.
+         *
+         * @param listener
+         *     The listener which should receive all instructions read.
+         */
+        private Registration(LoopThread thread,
+                SelectableGuacamoleReader reader,
+                GuacamoleReaderListener listener) {
+            this.thread = thread;
+            this.reader = reader;
+            this.listener = listener;
+        }
+
+        /**
+         * Updates the interest set of the reader's channel to reflect whether
+         * reading is suspended. This must only be invoked by the servicing
+         * thread.
+         */
+        private void updateInterest() {
+            if (key != null && key.isValid())
+                key.interestOps(suspended ? 0 : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Stops reading from the registered reader until resume() is invoked.
+         * If called from within the listener, no further instructions will be
+         * passed to instructionReceived() after the current call returns,
+         * though instructionsDrained() will still be invoked. While
+         * suspended, the reader cannot time out.
+         */
+        public void suspend() {
+
+            if (suspended)
+                return;
+
+            suspended = true;
+            thread.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    updateInterest();
+                }
+
+            });
+
+        }
+
+        /**
+         * Resumes reading from the registered reader after a call to
+         * suspend(), including any instructions already buffered by the
+         * reader.
+         */
+        public void resume() {
+
+            if (!suspended)
+                return;
+
+            suspended = false;
+            thread.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    lastActivity = System.currentTimeMillis();
+                    updateInterest();
+                    thread.service(Registration.this);
+                }
+
+            });
+
+        }
+
+        /**
+         * Returns whether reading is currently suspended.
+         *
+         * @return
+         *     true if reading is suspended, false otherwise.
+         */
+        public boolean isSuspended() {
+            return suspended;
+        }
+
+        /**
+         * Permanently stops reading from the registered reader. The listener
+         * is not notified. The reader itself is not closed, and may
+         * continue to be used outside the event loop once this registration
+         * has been cancelled.
+         */
+        public void cancel() {
+            cancel(null);
+        }
+
+        /**
+         * Permanently stops reading from the registered reader, running the
+         * given task within the servicing thread once that thread has
+         * stopped reading. The listener is not notified. The reader itself is
+         * not closed, and may be used outside the event loop by the given
+         * task or once that task has run.
+         *
+         * @param stopped
+         *     The task to run once the servicing thread has stopped reading,
+         *     or null if no task should be run. This task is not run if this
+         *     registration has already been cancelled or has failed.
+         */
+        public void cancel(final Runnable stopped) {
+
+            if (cancelled)
+                return;
+
+            cancelled = true;
+            thread.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    thread.remove(Registration.this);
+
+                    if (stopped != null)
+                        stopped.run();
+
+                }
+
+            });
+
+        }
+
+    }
+
+    /**
+     * A single thread of this event loop, servicing all readers registered
+     * with its Selector.
+     */
+    private class LoopThread extends Thread {
+
+        /**
+         * The Selector used to await data for all readers serviced by this
+         * thread.
+         */
+        private final Selector selector;
+
+        /**
+         * Tasks which must be run by this thread, such as changes to
+         * registrations requested by other threads.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        /**
+         * All registrations currently serviced by this thread. This is
+         * accessed only by this thread.
+         */
+        private final Set<Registration> registrations = new HashSet<Registration>();
+
+        /**
+         * Whether this thread should continue running.
+         */
+        private volatile boolean running = true;
+
+        /**
+         * Creates a new LoopThread with the given name and its own Selector.
+         * The thread is not started.
+         *
+         * @param name
+         *     The name to assign to the thread.
+         *
+         * @throws IOException
+         *     If the Selector cannot be opened.
+         */
+        public LoopThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Schedules the given task to be run by this thread as soon as
+         * possible, waking the thread if it is waiting for data.
+         *
+         * @param task
+         *     The task to run.
+         */
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Registers the channel of the given registration with this thread's
+         * Selector, immediately reading any instructions which are already
+         * available.
+         *
+         * @param registration
+         *     The registration to begin servicing.
+         */
+        private void add(Registration registration) {
+
+            if (registration.cancelled)
+                return;
+
+            SelectableChannel channel = registration.reader.getChannel();
+            try {
+                registration.key = channel.register(selector,
+                        registration.suspended ? 0 : SelectionKey.OP_READ,
+                        registration);
+            }
+            catch (ClosedChannelException e) {
+                fail(registration, new GuacamoleConnectionClosedException("Connection to guacd is closed.", e));
+                return;
+            }
+
+            registration.lastActivity = System.currentTimeMillis();
+            registrations.add(registration);
+
+            // Data may already be buffered within the reader
+            service(registration);
+
+        }
+
+        /**
+         * Stops servicing the given registration.
+         *
+         * @param registration
+         *     The registration to stop servicing.
+         */
+        private void remove(Registration registration) {
+
+            registration.cancelled = true;
+            registrations.remove(registration);
+
+            if (registration.key != null)
+                registration.key.cancel();
+
+        }
+
+        /**
+         * Stops servicing the given registration due to the given error,
+         * notifying its listener.
+         *
+         * @param registration
+         *     The failed registration.
+         *
+         * @param e
+         *     The error which caused the registration to fail.
+         */
+        private void fail(Registration registration, GuacamoleException e) {
+
+            // Notify only once, and only if not cancelled by the listener
+            if (registration.cancelled)
+                return;
+
+            remove(registration);
+
+            try {
+                registration.listener.readFailed(e);
+            }
+            catch (RuntimeException listenerError) {
+                logger.error("Reader listener failed unexpectedly.", listenerError);
+            }
+
+        }
+
+        /**
+         * Reads and passes on all instructions which can be read from the
+         * given registration's reader without blocking, unless reading is
+         * suspended.
+         *
+         * @param registration
+         *     The registration to service.
+         */
+        private void service(Registration registration) {
+
+            if (registration.cancelled || registration.suspended)
+                return;
+
+            GuacamoleReaderListener listener = registration.listener;
+            try {
+
+                // Pass on every instruction that is immediately available
+                boolean received = false;
+                ByteBuffer instruction;
+                while (!registration.suspended && !registration.cancelled
+                        && (instruction = registration.reader.pollBytes()) != null) {
+                    listener.instructionReceived(instruction);
+                    received = true;
+                }
+
+                if (received && !registration.cancelled)
+                    listener.instructionsDrained();
+
+            }
+            catch (GuacamoleException e) {
+                fail(registration, e);
+            }
+            catch (RuntimeException e) {
+                logger.error("Unexpected error while servicing reader.", e);
+                fail(registration, new GuacamoleServerException(e));
+            }
+
+        }
+
+        /**
+         * Fails any registration whose channel has been closed, or which has
+         * not received data within the timeout.
+         */
+        private void sweep() {
+
+            long now = System.currentTimeMillis();
+
+            for (Registration registration : new ArrayList<Registration>(registrations)) {
+
+                // Closing a channel silently cancels its keys
+                if (!registration.reader.getChannel().isOpen())
+                    fail(registration, new GuacamoleConnectionClosedException("Connection to guacd is closed."));
+
+                // Readers which are suspended are not expected to be read
+                else if (timeout > 0 && !registration.suspended
+                        && now - registration.lastActivity >= timeout)
+                    fail(registration, new GuacamoleUpstreamTimeoutException("Connection to guacd timed out."));
+
+            }
+
+        }
+
+        @Override
+        public void run() {
+
+            long lastSweep = System.currentTimeMillis();
+
+            try {
+
+                while (running) {
+
+                    selector.select(SWEEP_INTERVAL);
+
+                    // Run any pending tasks
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+
+                    // Service all readable channels
+                    long now = System.currentTimeMillis();
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+
+                        SelectionKey key = selected.next();
+                        selected.remove();
+
+                        Registration registration = (Registration) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            registration.lastActivity = now;
+                            service(registration);
+                        }
+
+                    }
+
+                    // Periodically check for closure and timeouts
+                    if (now - lastSweep >= SWEEP_INTERVAL) {
+                        sweep();
+                        lastSweep = now;
+                    }
+
+                }
+
+            }
+            catch (IOException e) {
+                logger.error("Event loop thread \"{}\" failed: {}", getName(), e.getMessage());
+                logger.debug("Error waiting for data within event loop.", e);
+            }
+            catch (ClosedSelectorException e) {
+                logger.debug("Selector of event loop thread \"{}\" closed.", getName(), e);
+            }
+
+            // Fail any remaining registrations
+            for (Registration registration : new ArrayList<Registration>(registrations))
+                fail(registration, new GuacamoleServerException("Event loop has stopped."));
+
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                logger.debug("Unable to close selector of event loop.", e);
+            }
+
+        }
+
+        /**
+         * Signals this thread to stop, failing all remaining registrations.
+         */
+        public void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+    }
+
+    /**
+     * Creates and starts a new GuacamoleReaderEventLoop with the given number
+     * of threads.
+     *
+     * @param threadCount
+     *     The number of threads which should service registered readers.
+     *     This should typically not exceed the number of available
+     *     processors.
+     *
+     * @param timeout
+     *     The number of milliseconds that a reader may go without receiving
+     *     data before it is considered timed out, or zero to wait
+     *     indefinitely.
+     *
+     * @throws GuacamoleException
+     *     If the resources required by the event loop cannot be allocated.
+     */
+    public GuacamoleReaderEventLoop(int threadCount, int timeout)
+            throws GuacamoleException {
+
+        if (threadCount < 1)
+            throw new IllegalArgumentException("At least one thread is required.");
+
+        this.timeout = timeout;
+        this.threads = new LoopThread[threadCount];
+
+        int loop = loopCount.incrementAndGet();
+
+        try {
+            for (int i = 0; i < threadCount; i++)
+                threads[i] = new LoopThread("guacamole-event-loop-" + loop + "-" + i);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Unable to create event loop.", e);
+        }
+
+        for (LoopThread thread : threads)
+            thread.start();
+
+    }
+
+    /**
+     * Begins servicing the given reader, passing all instructions read to the
+     * given listener. Instructions already buffered within the reader will be
+     * passed on immediately. The reader must not be read by any other thread
+     * until the returned registration has been cancelled or has failed.
+     *
+     * @param reader
+     *     The reader to service. The channel of this reader must be
+     *     non-null.
+     *
+     * @param listener
+     *     The listener which should receive all instructions read.
+     *
+     * @return
+     *     A Registration which can be used to suspend, resume, or cancel
+     *     reading.
+     *
+     * @throws GuacamoleException
+     *     If the reader cannot be read without blocking.
+     */
+    public Registration register(SelectableGuacamoleReader reader,
+            GuacamoleReaderListener listener) throws GuacamoleException {
+
+        if (reader.getChannel() == null)
+            throw new GuacamoleServerException("Reader cannot be read without blocking.");
+
+        // Distribute readers evenly across threads
+        final LoopThread thread = threads[(nextThread.getAndIncrement() & Integer.MAX_VALUE) % threads.length];
+        final Registration registration = new Registration(thread, reader, listener);
+
+        thread.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                thread.add(registration);
+            }
+
+        });
+
+        return registration;
+
+    }
+
+    /**
+     * Returns the number of threads servicing readers registered with this
+     * event loop.
+     *
+     * @return
+     *     The number of threads of this event loop.
+     */
+    public int getThreadCount() {
+        return threads.length;
+    }
+
+    /**
+     * Stops all threads of this event loop. Any readers which remain
+     * registered are failed with a GuacamoleServerException.
+     */
+    public void shutdown() {
+        for (LoopThread thread : threads)
+            thread.shutdown();
+    }
+
+}
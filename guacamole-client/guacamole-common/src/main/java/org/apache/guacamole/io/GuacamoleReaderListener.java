@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.io;
+
+import java.nio.ByteBuffer;
+import org.apache.guacamole.GuacamoleException;
+
+/**
+ * Receives the instructions read by a GuacamoleReaderEventLoop from a single
+ * SelectableGuacamoleReader. All functions are invoked from an event loop
+ * thread, and must return promptly without blocking, as any delay will also
+ * delay every other reader serviced by that thread.
+ */
+public interface GuacamoleReaderListener {
+
+    /**
+     * Called for each instruction read. The given buffer is only valid for
+     * the duration of this call, and must not be modified.
+     *
+     * @param instruction
+     *     A buffer containing the raw UTF-8 bytes of exactly one complete
+     *     Guacamole instruction between its position and limit.
+     *
+     * @throws GuacamoleException
+     *     If the instruction cannot be handled. The reader will be
+     *     unregistered, and readFailed() invoked with the exception thrown.
+     */
+    public void instructionReceived(ByteBuffer instruction)
+            throws GuacamoleException;
+
+    /**
+     * Called after one or more calls to instructionReceived() once no further
+     * instructions can be read without blocking. This is the point at which
+     * any buffered instructions should be sent onward.
+     *
+     * @throws GuacamoleException
+     *     If the buffered instructions cannot be handled. The reader will be
+     *     unregistered, and readFailed() invoked with the exception thrown.
+     */
+    public void instructionsDrained() throws GuacamoleException;
+
+    /**
+     * Called once if reading fails, including if the end of the stream is
+     * reached, the underlying channel is closed, or the reader times out.
+     * The reader has already been unregistered, and no further functions of
+     * this listener will be invoked.
+     *
+     * @param e
+     *     The error which caused reading to fail. The end of the stream and
+     *     closure of the channel are represented by a
+     *     GuacamoleConnectionClosedException.
+     */
+    public void readFailed(GuacamoleException e);
+
+}
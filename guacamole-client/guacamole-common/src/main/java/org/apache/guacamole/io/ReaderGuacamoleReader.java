@@ -24,8 +24,7 @@ import java.io.IOException;
 import java.io.Reader;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.Arrays;
 import org.apache.guacamole.GuacamoleConnectionClosedException;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleServerException;
@@ -40,19 +39,54 @@ import org.apache.guacamole.protocol.GuacamoleInstruction;
  */
 public class ReaderGuacamoleReader implements GuacamoleReader {
 
+    /**
+     * The default maximum number of characters allowed within any single
+     * instruction read by a ReaderGuacamoleReader.
+     */
+    public static final int DEFAULT_MAX_INSTRUCTION_LENGTH = 1048576;
+
+    /**
+     * The initial size of the buffer holding received data, in characters.
+     */
+    static final int INITIAL_BUFFER_SIZE = BufferPolicy.INITIAL_BUFFER_SIZE;
+
     /**
      * Wrapped Reader to be used for all input.
      */
     private Reader input;
 
+    /**
+     * The maximum number of characters allowed within any single instruction.
+     */
+    private final int maxInstructionLength;
+
     /**
      * Creates a new ReaderGuacamoleReader which will use the given Reader as
-     * the Guacamole instruction stream.
+     * the Guacamole instruction stream. Instructions will be limited to
+     * DEFAULT_MAX_INSTRUCTION_LENGTH characters.
      *
      * @param input The Reader to use as the Guacamole instruction stream.
      */
     public ReaderGuacamoleReader(Reader input) {
+        this(input, DEFAULT_MAX_INSTRUCTION_LENGTH);
+    }
+
+    /**
+     * Creates a new ReaderGuacamoleReader which will use the given Reader as
+     * the Guacamole instruction stream, refusing to read any instruction
+     * longer than the given number of characters.
+     *
+     * @param input
+     *     The Reader to use as the Guacamole instruction stream.
+     *
+     * @param maxInstructionLength
+     *     The maximum number of characters allowed within any single
+     *     instruction. Reading an instruction longer than this will fail with
+     *     a GuacamoleServerException.
+     */
+    public ReaderGuacamoleReader(Reader input, int maxInstructionLength) {
         this.input = input;
+        this.maxInstructionLength = maxInstructionLength;
     }
 
     /**
@@ -64,27 +98,139 @@ public class ReaderGuacamoleReader implements GuacamoleReader {
     /**
      * The buffer holding all received, unparsed data.
      */
-    private char[] buffer = new char[20480];
+    private char[] buffer = new char[INITIAL_BUFFER_SIZE];
+
+    /**
+     * The location within the received data buffer of the first character of
+     * the instruction currently being parsed. All characters before this
+     * location belong to instructions which have already been returned by
+     * read() and are free space which may be reclaimed.
+     */
+    private int start = 0;
+
+    /**
+     * The location within the received data buffer just after the last
+     * character received. All characters from this location onward are free
+     * space available for future reads.
+     */
+    private int end = 0;
+
+    /**
+     * The total number of characters moved or copied within or between
+     * internal buffers to make room for received data, excluding any copies
+     * of instructions returned by read() or readInstruction().
+     */
+    private long copiedChars = 0;
+
+    /**
+     * The offset of the content of each element of the instruction currently
+     * being parsed, relative to the start of that instruction. Once read()
+     * returns, this describes the elements of the returned instruction.
+     */
+    private int[] elementOffsets = new int[16];
 
     /**
-     * The number of characters currently used within the data buffer. All
-     * other characters within the buffer are free space available for
-     * future reads.
+     * The length of the content of each element of the instruction currently
+     * being parsed. Once read() returns, this describes the elements of the
+     * returned instruction.
      */
-    private int usedLength = 0;
+    private int[] elementLengths = new int[16];
+
+    /**
+     * The number of elements of the instruction currently being parsed which
+     * have been completely received. Once read() returns, this is the number
+     * of elements in the returned instruction.
+     */
+    private int elementCount = 0;
+
+    /**
+     * The number of elements in the instruction most recently parsed.
+     */
+    private int lastElementCount = 0;
+
+    /**
+     * The buffer containing the instruction most recently parsed. This is
+     * the received data buffer unless that buffer has since been shrunk.
+     */
+    private char[] lastBuffer = buffer;
+
+    /**
+     * The location within lastBuffer of the first character of the
+     * instruction most recently parsed.
+     */
+    private int lastStart = 0;
+
+    /**
+     * The number of characters in the instruction most recently parsed.
+     */
+    private int lastLength = 0;
 
     @Override
     public boolean available() throws GuacamoleException {
         try {
-            return input.ready() || usedLength != 0;
+            return input.ready() || end != start;
         }
         catch (IOException e) {
             throw new GuacamoleServerException(e);
         }
     }
 
-    @Override
-    public char[] read() throws GuacamoleException {
+    /**
+     * Ensures the buffer has space available after the end of all received
+     * data for the next read, moving unparsed data or growing the buffer as
+     * dictated by BufferPolicy.
+     */
+    private void prepareBuffer() {
+
+        int length = end - start;
+
+        // If nothing is buffered, simply rewind
+        if (length == 0) {
+            start = end = parseStart = 0;
+            return;
+        }
+
+        int size = BufferPolicy.getPreparedSize(buffer.length, length, end);
+
+        // No need to move anything
+        if (size == -1)
+            return;
+
+        // Move unparsed data to the beginning of the buffer, resizing the
+        // buffer if required
+        if (size != buffer.length) {
+            char[] biggerBuffer = new char[size];
+            System.arraycopy(buffer, start, biggerBuffer, 0, length);
+            buffer = biggerBuffer;
+        }
+        else
+            System.arraycopy(buffer, start, buffer, 0, length);
+
+        copiedChars += length;
+
+        // Parsing continues relative to the new location of the data
+        parseStart -= start;
+        start = 0;
+        end = length;
+
+    }
+
+    /**
+     * Parses the next complete instruction within the received data buffer,
+     * reading more data as necessary. The location and elements of the
+     * parsed instruction are recorded in lastStart, lastLength,
+     * lastElementCount, elementOffsets and elementLengths, and remain valid
+     * only until the next call to this function.
+     *
+     * @return
+     *     true if an instruction was parsed, or false if no more instructions
+     *     are available for reading.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while reading from the stream, or if the received
+     *     data is not valid Guacamole protocol data.
+     */
+    private boolean parseInstruction() throws GuacamoleException {
 
         try {
 
@@ -98,24 +244,40 @@ public class ReaderGuacamoleReader implements GuacamoleReader {
                 int i = parseStart;
 
                 // Parse instruction in buffer
-                while (i < usedLength) {
+                while (i < end) {
 
                     // Read character
                     char readChar = buffer[i++];
 
                     // If digit, update length
-                    if (readChar >= '0' && readChar <= '9')
+                    if (readChar >= '0' && readChar <= '9') {
+
                         elementLength = elementLength * 10 + readChar - '0';
 
+                        // Refuse to buffer elements which are too long
+                        if (elementLength > maxInstructionLength)
+                            throw new GuacamoleServerException("Instruction exceeds maximum length.");
+
+                    }
+
                     // If not digit, check for end-of-length character
                     else if (readChar == '.') {
 
                         // Check if element present in buffer
-                        if (i + elementLength < usedLength) {
+                        if (i + elementLength < end) {
 
                             // Get terminator
                             char terminator = buffer[i + elementLength];
 
+                            // Record location of element content
+                            if (elementCount == elementOffsets.length) {
+                                elementOffsets = Arrays.copyOf(elementOffsets, elementCount * 2);
+                                elementLengths = Arrays.copyOf(elementLengths, elementCount * 2);
+                            }
+                            elementOffsets[elementCount] = i - start;
+                            elementLengths[elementCount] = elementLength;
+                            elementCount++;
+
                             // Move to character after terminator
                             i += elementLength + 1;
 
@@ -129,16 +291,22 @@ public class ReaderGuacamoleReader implements GuacamoleReader {
                             // instruction.
                             if (terminator == ';') {
 
-                                // Copy instruction data
-                                char[] instruction = new char[i];
-                                System.arraycopy(buffer, 0, instruction, 0, i);
+                                // Record location of instruction
+                                lastBuffer = buffer;
+                                lastStart = start;
+                                lastLength = i - start;
+
+                                // Advance past instruction without moving
+                                // the remaining data
+                                start = i;
+                                lastElementCount = elementCount;
+                                elementCount = 0;
 
-                                // Update buffer
-                                usedLength -= i;
-                                parseStart = 0;
-                                System.arraycopy(buffer, i, buffer, 0, usedLength);
+                                // Release any space needed only by that
+                                // instruction
+                                shrinkBuffer();
 
-                                return instruction;
+                                return true;
 
                             }
 
@@ -160,20 +328,20 @@ public class ReaderGuacamoleReader implements GuacamoleReader {
 
                 }
 
-                // If past threshold, resize buffer before reading
-                if (usedLength > buffer.length/2) {
-                    char[] biggerBuffer = new char[buffer.length*2];
-                    System.arraycopy(buffer, 0, biggerBuffer, 0, usedLength);
-                    buffer = biggerBuffer;
-                }
+                // Refuse to buffer instructions which are too long
+                if (end - start > maxInstructionLength)
+                    throw new GuacamoleServerException("Instruction exceeds maximum length.");
+
+                // Ensure there is space for more data
+                prepareBuffer();
 
                 // Attempt to fill buffer
-                int numRead = input.read(buffer, usedLength, buffer.length - usedLength);
+                int numRead = input.read(buffer, end, buffer.length - end);
                 if (numRead == -1)
-                    return null;
+                    return false;
 
-                // Update used length
-                usedLength += numRead;
+                // Update end of received data
+                end += numRead;
 
             } // End read loop
 
@@ -190,79 +358,127 @@ public class ReaderGuacamoleReader implements GuacamoleReader {
 
     }
 
-    @Override
-    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+    /**
+     * Shrinks an enlarged buffer back to its initial size once the
+     * instruction which required the larger buffer has been read, if allowed
+     * by BufferPolicy. The previous buffer is replaced rather than modified,
+     * and thus still contains the instruction most recently parsed.
+     */
+    private void shrinkBuffer() {
+
+        int length = end - start;
+        if (!BufferPolicy.isShrinkable(buffer.length, length))
+            return;
+
+        // Move any remaining data into a buffer of the initial size
+        char[] smallerBuffer = new char[INITIAL_BUFFER_SIZE];
+        System.arraycopy(buffer, start, smallerBuffer, 0, length);
+        buffer = smallerBuffer;
+        copiedChars += length;
+
+        // Parsing continues relative to the new location of the data
+        parseStart -= start;
+        start = 0;
+        end = length;
+
+    }
+
+    /**
+     * Returns the current size of the buffer holding received data, in
+     * characters.
+     *
+     * @return
+     *     The current size of the buffer holding received data.
+     */
+    int getBufferSize() {
+        return buffer.length;
+    }
+
+    /**
+     * Returns the total number of characters moved or copied so far to make
+     * room for received data, either by compacting the buffer or by moving
+     * data into a buffer of a different size. Copies of the instructions
+     * returned by read() or readInstruction() are not included.
+     *
+     * @return
+     *     The total number of characters moved or copied to make room for
+     *     received data.
+     */
+    long getCopiedChars() {
+        return copiedChars;
+    }
 
-        // Get instruction
-        char[] instructionBuffer = read();
+    @Override
+    public char[] read() throws GuacamoleException {
 
         // If EOF, return EOF
-        if (instructionBuffer == null)
+        if (!parseInstruction())
             return null;
 
-        // Start of element
-        int elementStart = 0;
+        // Copy instruction data, as the caller may retain the returned buffer
+        char[] instruction = new char[lastLength];
+        System.arraycopy(lastBuffer, lastStart, instruction, 0, lastLength);
+        return instruction;
 
-        // Build list of elements
-        Deque<String> elements = new LinkedList<String>();
-        while (elementStart < instructionBuffer.length) {
+    }
 
-            // Find end of length
-            int lengthEnd = -1;
-            for (int i=elementStart; i<instructionBuffer.length; i++) {
-                if (instructionBuffer[i] == '.') {
-                    lengthEnd = i;
-                    break;
-                }
-            }
-
-            // read() is required to return a complete instruction. If it does
-            // not, this is a severe internal error.
-            if (lengthEnd == -1)
-                throw new GuacamoleServerException("Read returned incomplete instruction.");
-
-            // Parse length
-            int length = Integer.parseInt(new String(
-                    instructionBuffer,
-                    elementStart,
-                    lengthEnd - elementStart
-            ));
-
-            // Parse element from just after period
-            elementStart = lengthEnd + 1;
-            String element = new String(
-                    instructionBuffer,
-                    elementStart,
-                    length
-            );
-
-            // Append element to list of elements
-            elements.addLast(element);
-
-            // Read terminator after element
-            elementStart += length;
-            char terminator = instructionBuffer[elementStart];
-
-            // Continue reading instructions after terminator
-            elementStart++;
-
-            // If we've reached the end of the instruction
-            if (terminator == ';')
-                break;
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
 
-        }
+        // If EOF, return EOF
+        if (!parseInstruction())
+            return null;
 
-        // Pull opcode off elements list
-        String opcode = elements.removeFirst();
+        // Copy instruction data, as the caller may retain the returned
+        // instruction beyond the next read
+        char[] instruction = new char[lastLength];
+        System.arraycopy(lastBuffer, lastStart, instruction, 0, lastLength);
 
-        // Create instruction
-        GuacamoleInstruction instruction = new GuacamoleInstruction(
-                opcode,
-                elements.toArray(new String[elements.size()])
-        );
+        // The element locations recorded while parsing are already relative
+        // to the start of the instruction
+        int count = lastElementCount;
+        return new GuacamoleInstruction(instruction,
+                Arrays.copyOf(elementOffsets, count),
+                Arrays.copyOf(elementLengths, count), count);
 
-        // Return parsed instruction
-        return instruction;
+    }
+
+    /**
+     * Reads exactly one complete Guacamole instruction and returns the fully
+     * parsed instruction as a view over the internal buffer of this
+     * ReaderGuacamoleReader, without copying any instruction data. Unlike
+     * readInstruction(), the returned instruction, including any arguments
+     * not yet retrieved through getArgs(), is only valid until the next call
+     * to read(), readInstruction() or readInstructionView(). Callers which
+     * need the instruction beyond that point must copy it, for example with
+     * toCharArray().
+     *
+     * @return
+     *     The next complete instruction from the stream, valid only until the
+     *     next read, or null if no more instructions are available for
+     *     reading.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while reading from the stream, or if the
+     *     instruction cannot be parsed.
+     */
+    public GuacamoleInstruction readInstructionView() throws GuacamoleException {
+
+        // If EOF, return EOF
+        if (!parseInstruction())
+            return null;
+
+        // The element locations recorded while parsing are relative to the
+        // start of the instruction, while the view addresses the buffer
+        int count = lastElementCount;
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++)
+            offsets[i] = lastStart + elementOffsets[i];
+
+        // Create instruction as a view directly over the received data,
+        // decoding argument values only if requested
+        return new GuacamoleInstruction(lastBuffer, lastStart, lastLength,
+                offsets, Arrays.copyOf(elementLengths, count), count);
 
     }
 
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.io;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import org.apache.guacamole.GuacamoleConnectionClosedException;
+import org.apache.guacamole.GuacamoleException;
+
+/**
+ * A GuacamoleByteReader whose underlying data source is a non-blocking
+ * SelectableChannel, allowing the reader to be serviced by a
+ * GuacamoleReaderEventLoop rather than by a thread which blocks within
+ * read().
+ */
+public interface SelectableGuacamoleReader extends GuacamoleByteReader {
+
+    /**
+     * Returns the non-blocking channel from which this reader ultimately
+     * reads. Whenever this channel is readable, pollBytes() may be able to
+     * return a further instruction. If this reader cannot be read without
+     * blocking, null is returned, and pollBytes() must not be used.
+     *
+     * @return
+     *     The non-blocking channel from which this reader reads, or null if
+     *     this reader cannot be read without blocking.
+     */
+    public SelectableChannel getChannel();
+
+    /**
+     * Reads exactly one complete Guacamole instruction if that instruction
+     * can be read without blocking, returning a buffer containing the raw
+     * UTF-8 bytes of that instruction between its position and limit. Any
+     * partial instruction is retained until further data is received. The
+     * returned buffer is subject to the same restrictions as a buffer
+     * returned by readBytes(), and the instruction it contains may likewise
+     * be decoded with decodeInstruction().
+     *
+     * @return
+     *     A buffer containing the bytes of exactly one complete Guacamole
+     *     instruction, or null if no complete instruction can be read
+     *     without blocking.
+     *
+     * @throws GuacamoleConnectionClosedException
+     *     If the end of the stream has been reached.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while reading from the stream, or if this
+     *     reader cannot be read without blocking.
+     */
+    public ByteBuffer pollBytes() throws GuacamoleException;
+
+}
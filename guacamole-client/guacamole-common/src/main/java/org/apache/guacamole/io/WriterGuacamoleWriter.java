@@ -32,11 +32,14 @@ import org.apache.guacamole.protocol.GuacamoleInstruction;
 
 /**
  * A GuacamoleWriter which wraps a standard Java Writer, using that Writer as
- * the Guacamole instruction stream.
+ * the Guacamole instruction stream. By default, the Writer is flushed after
+ * every write. If a flush threshold is given, writes are instead coalesced,
+ * and the Writer is only flushed as dictated by
+ * AbstractFlushableGuacamoleWriter.
  *
  * @author Michael Jumper
  */
-public class WriterGuacamoleWriter implements GuacamoleWriter {
+public class WriterGuacamoleWriter extends AbstractFlushableGuacamoleWriter {
 
     /**
      * Wrapped Writer to be used for all output.
@@ -45,39 +48,90 @@ public class WriterGuacamoleWriter implements GuacamoleWriter {
 
     /**
      * Creates a new WriterGuacamoleWriter which will use the given Writer as
-     * the Guacamole instruction stream.
+     * the Guacamole instruction stream, flushing that Writer after every
+     * write.
      *
      * @param output The Writer to use as the Guacamole instruction stream.
      */
     public WriterGuacamoleWriter(Writer output) {
+        this(output, 0, 0);
+    }
+
+    /**
+     * Creates a new WriterGuacamoleWriter which will use the given Writer as
+     * the Guacamole instruction stream, coalescing writes such that the
+     * Writer is flushed only once the given number of characters have been
+     * written, when data is written after the given delay has elapsed, or
+     * once explicitly flushed. The caller must flush once it has finished
+     * writing.
+     *
+     * @param output
+     *     The Writer to use as the Guacamole instruction stream.
+     *
+     * @param flushThreshold
+     *     The number of characters which may be buffered before the Writer is
+     *     flushed automatically, or zero to flush after every write.
+     *
+     * @param flushDelay
+     *     The number of milliseconds after which the Writer is flushed
+     *     automatically by the next write.
+     */
+    public WriterGuacamoleWriter(Writer output, int flushThreshold,
+            int flushDelay) {
+        super(flushThreshold, flushDelay);
         this.output = output;
     }
 
+    /**
+     * Converts the given IOException into the corresponding
+     * GuacamoleException.
+     *
+     * @param e
+     *     The IOException to convert.
+     *
+     * @return
+     *     A GuacamoleException describing the given IOException.
+     */
+    private GuacamoleException translate(IOException e) {
+
+        if (e instanceof SocketTimeoutException)
+            return new GuacamoleUpstreamTimeoutException("Connection to guacd timed out.", e);
+
+        if (e instanceof SocketException)
+            return new GuacamoleConnectionClosedException("Connection to guacd is closed.", e);
+
+        return new GuacamoleServerException(e);
+
+    }
+
     @Override
-    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+    protected void buffer(char[] chunk, int off, int len) throws GuacamoleException {
         try {
             output.write(chunk, off, len);
-            output.flush();
-        }
-        catch (SocketTimeoutException e) {
-            throw new GuacamoleUpstreamTimeoutException("Connection to guacd timed out.", e);
-        }
-        catch (SocketException e) {
-            throw new GuacamoleConnectionClosedException("Connection to guacd is closed.", e);
         }
         catch (IOException e) {
-            throw new GuacamoleServerException(e);
+            throw translate(e);
         }
     }
 
     @Override
-    public void write(char[] chunk) throws GuacamoleException {
-        write(chunk, 0, chunk.length);
+    protected void buffer(GuacamoleInstruction instruction) throws GuacamoleException {
+        try {
+            instruction.writeTo(output);
+        }
+        catch (IOException e) {
+            throw translate(e);
+        }
     }
 
     @Override
-    public void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
-        write(instruction.toString().toCharArray());
+    protected void send() throws GuacamoleException {
+        try {
+            output.flush();
+        }
+        catch (IOException e) {
+            throw translate(e);
+        }
     }
 
 }
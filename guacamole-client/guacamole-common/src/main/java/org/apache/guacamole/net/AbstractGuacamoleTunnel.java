@@ -19,30 +19,43 @@
 
 package org.apache.guacamole.net;
 
-
-import java.util.concurrent.locks.ReentrantLock;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.AbstractFlushableGuacamoleWriter;
+import org.apache.guacamole.io.FlushableGuacamoleWriter;
 import org.apache.guacamole.io.GuacamoleReader;
 import org.apache.guacamole.io.GuacamoleWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Base GuacamoleTunnel implementation which synchronizes access to the
- * underlying reader and writer with reentrant locks. Implementations need only
- * provide the tunnel's UUID and socket.
+ * underlying reader and writer with reentrant locks. Read access may be
+ * released by a thread other than the thread which acquired it, such that
+ * access can be handed to a thread which reads on behalf of the acquiring
+ * thread. Write access is granted according to the WriterPriority of each
+ * waiting thread. If the writer of the underlying socket supports
+ * coalescing, writes are coalesced only while write access is held through
+ * this tunnel, and are flushed when that access is released.
+ * Implementations need only provide the tunnel's UUID and socket.
  *
  * @author Michael Jumper
  */
-public abstract class AbstractGuacamoleTunnel implements GuacamoleTunnel {
+public abstract class AbstractGuacamoleTunnel implements PrioritizedGuacamoleTunnel {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(AbstractGuacamoleTunnel.class);
 
     /**
      * Lock acquired when a read operation is in progress.
      */
-    private final ReentrantLock readerLock;
+    private final ReaderLock readerLock;
 
     /**
      * Lock acquired when a write operation is in progress.
      */
-    private final ReentrantLock writerLock;
+    private final PriorityWriterLock writerLock;
 
     /**
      * Creates a new GuacamoleTunnel which synchronizes access to the
@@ -50,8 +63,8 @@ public abstract class AbstractGuacamoleTunnel implements GuacamoleTunnel {
      * GuacamoleSocket.
      */
     public AbstractGuacamoleTunnel() {
-        readerLock = new ReentrantLock();
-        writerLock = new ReentrantLock();
+        readerLock = new ReaderLock();
+        writerLock = new PriorityWriterLock();
     }
 
     /**
@@ -70,7 +83,9 @@ public abstract class AbstractGuacamoleTunnel implements GuacamoleTunnel {
     /**
      * Relinquishes exclusive read access to the Guacamole instruction
      * stream. This function should be called whenever a thread finishes using
-     * a GuacamoleTunnel's GuacamoleReader.
+     * a GuacamoleTunnel's GuacamoleReader, and may be called by a thread
+     * other than the thread which acquired read access if that access has
+     * been handed to the calling thread.
      */
     @Override
     public void releaseReader() {
@@ -91,25 +106,98 @@ public abstract class AbstractGuacamoleTunnel implements GuacamoleTunnel {
 
     /**
      * Acquires exclusive write access to the Guacamole instruction stream
-     * and returns a GuacamoleWriter for writing to that stream.
+     * with CONTROL priority and returns a GuacamoleWriter for writing to that
+     * stream.
      *
      * @return A GuacamoleWriter for writing to the Guacamole instruction
      *         stream.
      */
     @Override
     public GuacamoleWriter acquireWriter() {
-        writerLock.lock();
-        return getSocket().getWriter();
+        return acquireWriter(WriterPriority.CONTROL);
+    }
+
+    /**
+     * Acquires exclusive write access to the Guacamole instruction stream
+     * and returns a GuacamoleWriter for writing to that stream. Threads
+     * waiting to write data of higher priority are granted access first.
+     *
+     * @param priority
+     *     The priority of the data which will be written while write access
+     *     is held.
+     *
+     * @return A GuacamoleWriter for writing to the Guacamole instruction
+     *         stream.
+     */
+    @Override
+    public GuacamoleWriter acquireWriter(WriterPriority priority) {
+
+        writerLock.lock(priority);
+
+        // Coalesce writes until access is released, as the releasing thread
+        // will flush
+        GuacamoleWriter writer = getSocket().getWriter();
+        if (writerLock.getHoldCount() == 1
+                && writer instanceof AbstractFlushableGuacamoleWriter)
+            ((AbstractFlushableGuacamoleWriter) writer).setCoalescing(
+                    AbstractFlushableGuacamoleWriter.DEFAULT_FLUSH_THRESHOLD,
+                    AbstractFlushableGuacamoleWriter.DEFAULT_FLUSH_DELAY);
+
+        return writer;
+
     }
 
     /**
      * Relinquishes exclusive write access to the Guacamole instruction
      * stream. This function should be called whenever a thread finishes using
-     * a GuacamoleTunnel's GuacamoleWriter.
+     * a GuacamoleTunnel's GuacamoleWriter. If the GuacamoleWriter buffers
+     * written instructions, those instructions are flushed first. If they
+     * cannot be flushed, the tunnel is closed, such that the failure is seen
+     * by all further use of the tunnel. Once write access is released
+     * entirely, coalescing is disabled, such that data written directly to
+     * the socket is sent immediately.
      */
     @Override
     public void releaseWriter() {
-        writerLock.unlock();
+
+        GuacamoleWriter writer = getSocket().getWriter();
+
+        try {
+
+            // Send anything the releasing thread left buffered
+            if (writer instanceof FlushableGuacamoleWriter)
+                ((FlushableGuacamoleWriter) writer).flush();
+
+        }
+
+        // Instructions which cannot be sent leave the stream incomplete, thus
+        // the tunnel cannot continue to be used
+        catch (GuacamoleException e) {
+
+            logger.info("Closing tunnel as buffered instructions could not "
+                    + "be sent: {}", e.getMessage());
+            logger.debug("Unable to flush instructions upon release of writer.", e);
+
+            try {
+                close();
+            }
+            catch (GuacamoleException closeError) {
+                logger.debug("Unable to close tunnel after failed flush.", closeError);
+            }
+
+        }
+
+        finally {
+
+            // Stop coalescing unless access is still held by this thread
+            if (writerLock.getHoldCount() == 1
+                    && writer instanceof AbstractFlushableGuacamoleWriter)
+                ((AbstractFlushableGuacamoleWriter) writer).setCoalescing(0, 0);
+
+            writerLock.unlock();
+
+        }
+
     }
 
     @Override
@@ -30,7 +30,7 @@ import org.apache.guacamole.io.GuacamoleWriter;
  *
  * @author Michael Jumper
  */
-public class DelegatingGuacamoleTunnel implements GuacamoleTunnel {
+public class DelegatingGuacamoleTunnel implements PrioritizedGuacamoleTunnel {
 
     /**
      * The wrapped GuacamoleTunnel.
@@ -48,6 +48,17 @@ public class DelegatingGuacamoleTunnel implements GuacamoleTunnel {
         this.tunnel = tunnel;
     }
 
+    /**
+     * Returns the tunnel to which all function calls against this tunnel
+     * are delegated.
+     *
+     * @return
+     *     The wrapped GuacamoleTunnel.
+     */
+    public GuacamoleTunnel getDelegate() {
+        return tunnel;
+    }
+
     @Override
     public GuacamoleReader acquireReader() {
         return tunnel.acquireReader();
@@ -65,7 +76,12 @@ public class DelegatingGuacamoleTunnel implements GuacamoleTunnel {
 
     @Override
     public GuacamoleWriter acquireWriter() {
-        return tunnel.acquireWriter();
+        return acquireWriter(WriterPriority.CONTROL);
+    }
+
+    @Override
+    public GuacamoleWriter acquireWriter(WriterPriority priority) {
+        return WriterPriority.acquireWriter(tunnel, priority);
     }
 
     @Override
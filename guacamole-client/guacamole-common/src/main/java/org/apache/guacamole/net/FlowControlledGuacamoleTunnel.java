@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import java.nio.ByteBuffer;
+import org.apache.guacamole.GuacamoleConnectionClosedException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.protocol.FilteredGuacamoleReader;
+import org.apache.guacamole.protocol.FilteredGuacamoleWriter;
+import org.apache.guacamole.protocol.GuacamoleFilterChain;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.apache.guacamole.protocol.SyncFlowControl;
+
+/**
+ * GuacamoleTunnel implementation which pauses reading from the wrapped tunnel
+ * while the client has too many unacknowledged frames, as tracked by a
+ * SyncFlowControl. Blocking reads wait until the client catches up, and
+ * available() reports no data while paused such that anything already read
+ * is flushed to the client. Non-blocking reads through pollBytes() instead
+ * return null while paused, and those reading without blocking should pause
+ * and resume via a SyncFlowControl.Listener.
+ */
+public class FlowControlledGuacamoleTunnel extends DelegatingGuacamoleTunnel {
+
+    /**
+     * The number of milliseconds to wait between checks of whether the
+     * tunnel has been closed while a blocking read is paused.
+     */
+    private static final int CLOSE_CHECK_INTERVAL = 1000;
+
+    /**
+     * The frames sent to, and acknowledged by, the client of this tunnel.
+     */
+    private final SyncFlowControl flowControl;
+
+    /**
+     * Filter applied to all instructions read from the wrapped tunnel.
+     */
+    private final GuacamoleFilterChain readFilter = new GuacamoleFilterChain();
+
+    /**
+     * Filter applied to all instructions written to the wrapped tunnel.
+     */
+    private final GuacamoleFilterChain writeFilter = new GuacamoleFilterChain();
+
+    /**
+     * The writer of the wrapped tunnel which was most recently wrapped, or
+     * null if no writer has yet been acquired.
+     */
+    private GuacamoleWriter wrappedWriter;
+
+    /**
+     * The filtered writer wrapping the wrapped tunnel's writer. As the parser
+     * of this writer may hold partial instructions, the same filtered writer
+     * is reused for as long as the wrapped writer is unchanged.
+     */
+    private GuacamoleWriter filteredWriter;
+
+    /**
+     * GuacamoleReader which waits for the client to acknowledge frames before
+     * reading further.
+     */
+    private class FlowControlledReader extends FilteredGuacamoleReader {
+
+        /**
+         * Wraps the given reader, pausing reads while the client lags too
+         * far behind.
+         *
+         * @param reader
+         *     The reader to wrap.
+         */
+        public FlowControlledReader(GuacamoleReader reader) {
+            super(reader, readFilter);
+        }
+
+        /**
+         * Waits until the client has acknowledged enough frames that reading
+         * may resume.
+         *
+         * @throws GuacamoleException
+         *     If the tunnel is closed while waiting, or if the thread is
+         *     interrupted.
+         */
+        private void awaitResume() throws GuacamoleException {
+            while (!flowControl.awaitResume(CLOSE_CHECK_INTERVAL)) {
+                if (!isOpen())
+                    throw new GuacamoleConnectionClosedException("Tunnel "
+                            + "closed while awaiting client acknowledgement "
+                            + "of frames.");
+            }
+        }
+
+        @Override
+        public boolean available() throws GuacamoleException {
+            return !flowControl.isPaused() && super.available();
+        }
+
+        @Override
+        public char[] read() throws GuacamoleException {
+            awaitResume();
+            return super.read();
+        }
+
+        @Override
+        public ByteBuffer readBytes() throws GuacamoleException {
+            awaitResume();
+            return super.readBytes();
+        }
+
+        @Override
+        public ByteBuffer pollBytes() throws GuacamoleException {
+
+            if (flowControl.isPaused())
+                return null;
+
+            return super.pollBytes();
+
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction() throws GuacamoleException {
+            awaitResume();
+            return super.readInstruction();
+        }
+
+    }
+
+    /**
+     * Wraps the given tunnel, pausing reads once the client has the given
+     * number of unacknowledged frames.
+     *
+     * @param tunnel
+     *     The tunnel to wrap.
+     *
+     * @param maxFrameLag
+     *     The maximum number of unacknowledged frames, or zero if frames
+     *     should be tracked without ever pausing reading. This may not
+     *     exceed SyncFlowControl.MAX_TRACKED_FRAMES.
+     *
+     * @throws IllegalArgumentException
+     *     If the given maximum frame lag is negative or exceeds
+     *     SyncFlowControl.MAX_TRACKED_FRAMES.
+     */
+    public FlowControlledGuacamoleTunnel(GuacamoleTunnel tunnel,
+            int maxFrameLag) {
+        super(tunnel);
+        flowControl = new SyncFlowControl(maxFrameLag);
+        readFilter.addFilter(flowControl.getServerFilter(), SyncFlowControl.SYNC_OPCODE);
+        writeFilter.addFilter(flowControl.getClientFilter(), SyncFlowControl.SYNC_OPCODE);
+    }
+
+    /**
+     * Returns the object tracking the frames sent to, and acknowledged by,
+     * the client of this tunnel.
+     *
+     * @return
+     *     The SyncFlowControl of this tunnel.
+     */
+    public SyncFlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    @Override
+    public GuacamoleReader acquireReader() {
+        return new FlowControlledReader(super.acquireReader());
+    }
+
+    @Override
+    public GuacamoleWriter acquireWriter(WriterPriority priority) {
+
+        GuacamoleWriter writer = super.acquireWriter(priority);
+
+        // Writer lock is held, thus the filtered writer is used exclusively
+        if (writer != wrappedWriter) {
+            wrappedWriter = writer;
+            filteredWriter = new FilteredGuacamoleWriter(writer, writeFilter);
+        }
+
+        return filteredWriter;
+
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+        try {
+            super.close();
+        }
+        finally {
+            flowControl.close();
+        }
+    }
+
+}
@@ -55,7 +55,9 @@ public interface GuacamoleTunnel {
     /**
      * Relinquishes exclusive read access to the Guacamole instruction
      * stream. This function should be called whenever a thread finishes using
-     * a GuacamoleTunnel's GuacamoleReader.
+     * a GuacamoleTunnel's GuacamoleReader. Read access may be handed to
+     * another thread which reads on behalf of the acquiring thread, in which
+     * case that thread relinquishes access once it has finished reading.
      */
     void releaseReader();
 
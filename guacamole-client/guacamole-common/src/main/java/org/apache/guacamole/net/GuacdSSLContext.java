@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SSL/TLS context shared by all SSL connections to guacd. As the same
+ * context is used for every connection, TLS sessions negotiated with guacd
+ * are cached and resumed by later connections, avoiding a full handshake.
+ * The certificates trusted may optionally be restricted to those within a
+ * given trust store, pinning the certificate of guacd. The number and
+ * duration of handshakes, and how many resumed an existing session, are
+ * tracked.
+ */
+public class GuacdSSLContext {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacdSSLContext.class);
+
+    /**
+     * The context used by SSLGuacamoleSocket, or null if not yet created.
+     */
+    private static GuacdSSLContext defaultContext;
+
+    /**
+     * The factory producing SSL sockets from the underlying SSLContext.
+     */
+    private final SSLSocketFactory socketFactory;
+
+    /**
+     * The total number of handshakes performed.
+     */
+    private final AtomicLong handshakeCount = new AtomicLong();
+
+    /**
+     * The number of handshakes which resumed a cached session.
+     */
+    private final AtomicLong resumedCount = new AtomicLong();
+
+    /**
+     * The total time spent performing handshakes, in nanoseconds.
+     */
+    private final AtomicLong handshakeTime = new AtomicLong();
+
+    /**
+     * The longest time spent performing any single handshake, in
+     * nanoseconds.
+     */
+    private final AtomicLong peakHandshakeTime = new AtomicLong();
+
+    /**
+     * Creates a new GuacdSSLContext which produces SSL connections using the
+     * given SSLContext.
+     *
+     * @param context
+     *     The SSLContext to use for all SSL connections.
+     */
+    public GuacdSSLContext(SSLContext context) {
+        this.socketFactory = context.getSocketFactory();
+    }
+
+    /**
+     * Creates a new GuacdSSLContext which trusts the certificates within the
+     * given trust store, caching TLS sessions as specified.
+     *
+     * @param trustStore
+     *     The trust store containing the certificates to trust, or null to
+     *     trust the certificates trusted by the JVM by default.
+     *
+     * @param trustStorePassword
+     *     The password of the trust store, or null if the trust store has no
+     *     password.
+     *
+     * @param trustStoreType
+     *     The type of the trust store, such as "JKS" or "PKCS12", or null to
+     *     use the default type of the JVM.
+     *
+     * @param sessionCacheSize
+     *     The maximum number of TLS sessions to cache, or zero for no limit.
+     *
+     * @param sessionTimeout
+     *     The number of seconds that a cached TLS session may be resumed, or
+     *     zero for no limit.
+     *
+     * @return
+     *     A new GuacdSSLContext configured as specified.
+     *
+     * @throws GuacamoleException
+     *     If the trust store cannot be read, or the SSLContext cannot be
+     *     created.
+     */
+    public static GuacdSSLContext create(File trustStore,
+            String trustStorePassword, String trustStoreType,
+            int sessionCacheSize, int sessionTimeout)
+            throws GuacamoleException {
+
+        try {
+
+            // Trust only certificates within trust store, if given
+            TrustManager[] trustManagers = null;
+            if (trustStore != null) {
+
+                KeyStore keyStore = KeyStore.getInstance(trustStoreType != null
+                        ? trustStoreType : KeyStore.getDefaultType());
+
+                InputStream input = new FileInputStream(trustStore);
+                try {
+                    keyStore.load(input, trustStorePassword != null
+                            ? trustStorePassword.toCharArray() : null);
+                }
+                finally {
+                    input.close();
+                }
+
+                TrustManagerFactory factory = TrustManagerFactory.getInstance(
+                        TrustManagerFactory.getDefaultAlgorithm());
+                factory.init(keyStore);
+                trustManagers = factory.getTrustManagers();
+
+            }
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers, null);
+
+            // Configure caching of sessions for resumption
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeout);
+
+            return new GuacdSSLContext(context);
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Unable to read trust store \""
+                    + trustStore + "\".", e);
+        }
+        catch (GeneralSecurityException e) {
+            throw new GuacamoleServerException("Unable to create SSL context "
+                    + "for connections to guacd.", e);
+        }
+
+    }
+
+    /**
+     * Returns the context used for all SSL connections to guacd. If no
+     * context has been set via setDefault(), a context using the default
+     * SSLContext of the JVM is created.
+     *
+     * @return
+     *     The context used for all SSL connections to guacd.
+     *
+     * @throws GuacamoleException
+     *     If the default SSLContext of the JVM cannot be created.
+     */
+    public static synchronized GuacdSSLContext getDefault() throws GuacamoleException {
+
+        if (defaultContext == null) {
+            try {
+                defaultContext = new GuacdSSLContext(SSLContext.getDefault());
+            }
+            catch (GeneralSecurityException e) {
+                throw new GuacamoleServerException("Unable to create SSL "
+                        + "context for connections to guacd.", e);
+            }
+        }
+
+        return defaultContext;
+
+    }
+
+    /**
+     * Sets the context used for all future SSL connections to guacd.
+     *
+     * @param context
+     *     The context to use for all future SSL connections to guacd.
+     */
+    public static synchronized void setDefault(GuacdSSLContext context) {
+        defaultContext = context;
+    }
+
+    /**
+     * Returns the factory producing SSL sockets using this context.
+     *
+     * @return
+     *     The factory producing SSL sockets using this context.
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * Records a completed handshake.
+     *
+     * @param duration
+     *     The time spent performing the handshake, in nanoseconds.
+     *
+     * @param resumed
+     *     Whether the handshake resumed a cached session.
+     */
+    void recordHandshake(long duration, boolean resumed) {
+
+        handshakeCount.incrementAndGet();
+        handshakeTime.addAndGet(duration);
+        if (resumed)
+            resumedCount.incrementAndGet();
+
+        // Update peak
+        long peak;
+        while (duration > (peak = peakHandshakeTime.get())
+                && !peakHandshakeTime.compareAndSet(peak, duration));
+
+        logger.debug("SSL/TLS handshake with guacd completed in {} ms ({}).",
+                duration / 1000000.0, resumed ? "resumed" : "full");
+
+    }
+
+    /**
+     * Returns the total number of handshakes performed.
+     *
+     * @return
+     *     The total number of handshakes performed.
+     */
+    public long getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    /**
+     * Returns the number of handshakes which resumed a cached session.
+     *
+     * @return
+     *     The number of handshakes which resumed a cached session.
+     */
+    public long getResumedCount() {
+        return resumedCount.get();
+    }
+
+    /**
+     * Returns the average time spent performing each handshake.
+     *
+     * @return
+     *     The average time spent performing each handshake, in nanoseconds,
+     *     or zero if no handshakes have been performed.
+     */
+    public long getAverageHandshakeTime() {
+        long count = handshakeCount.get();
+        return count == 0 ? 0 : handshakeTime.get() / count;
+    }
+
+    /**
+     * Returns the longest time spent performing any single handshake.
+     *
+     * @return
+     *     The longest time spent performing any single handshake, in
+     *     nanoseconds.
+     */
+    public long getPeakHandshakeTime() {
+        return peakHandshakeTime.get();
+    }
+
+    @Override
+    public String toString() {
+        return "handshakes=" + getHandshakeCount()
+            + " resumed=" + getResumedCount()
+            + " avg=" + getAverageHandshakeTime() / 1000000.0 + "ms"
+            + " peak=" + getPeakHandshakeTime() / 1000000.0 + "ms";
+    }
+
+}
@@ -0,0 +1,642 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of established, not-yet-configured connections to guacd. Connections
+ * are established ahead of time, either continuously to maintain a given
+ * number of idle connections, or on request via prefetch() while the caller
+ * performs other work, such that acquire() need not wait for hostname
+ * resolution or the TCP (and SSL) handshake. The resolved address of guacd
+ * is cached for ADDRESS_TTL milliseconds.
+ *
+ * As guacd closes any connection which does not receive "select" in a
+ * timely manner, idle connections are discarded and replaced once older than
+ * MAX_IDLE_AGE milliseconds, and plain TCP connections are checked for
+ * closure before being handed out. The background threads which establish
+ * and check connections exist only while the pool has a non-zero size or
+ * holds or is establishing connections.
+ */
+public class GuacdSocketPool {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacdSocketPool.class);
+
+    /**
+     * The number of milliseconds that a resolved address of guacd remains
+     * valid.
+     */
+    private static final long ADDRESS_TTL = 30000;
+
+    /**
+     * The maximum number of milliseconds that an idle connection may remain
+     * in the pool. This must be less than the amount of time guacd waits for
+     * the "select" instruction (15 seconds).
+     */
+    private static final long MAX_IDLE_AGE = 10000;
+
+    /**
+     * The number of milliseconds between checks of the health of idle
+     * connections.
+     */
+    private static final long CHECK_INTERVAL = 1000;
+
+    /**
+     * All pools created through getInstance(), indexed by the hostname, port,
+     * and SSL setting of their guacd.
+     */
+    private static final ConcurrentMap<String, GuacdSocketPool> pools =
+            new ConcurrentHashMap<String, GuacdSocketPool>();
+
+    /**
+     * Factory for the daemon threads which establish and check connections
+     * in the background.
+     */
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "guacd-socket-pool");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    };
+
+    /**
+     * An established connection awaiting use.
+     */
+    private static class IdleSocket {
+
+        /**
+         * The established connection.
+         */
+        private final TimedGuacamoleSocket socket;
+
+        /**
+         * The time the connection was established, in milliseconds.
+         */
+        private final long created = System.currentTimeMillis();
+
+        /**
+         * Creates a new IdleSocket which tracks the age of the given
+         * established connection.
+         *
+         * @param socket
+         *     The established connection.
+         */
+        public IdleSocket(TimedGuacamoleSocket socket) {
+            this.socket = socket;
+        }
+
+    }
+
+    /**
+     * The hostname of guacd.
+     */
+    private final String hostname;
+
+    /**
+     * The port of guacd.
+     */
+    private final int port;
+
+    /**
+     * Whether guacd requires SSL/TLS.
+     */
+    private final boolean ssl;
+
+    /**
+     * The number of idle connections to maintain at all times.
+     */
+    private volatile int size = 0;
+
+    /**
+     * The most recently resolved address of guacd, or null if not yet
+     * resolved.
+     */
+    private volatile InetSocketAddress address;
+
+    /**
+     * The time the address of guacd was resolved, in milliseconds.
+     */
+    private volatile long resolved;
+
+    /**
+     * All idle connections, oldest first. Guarded by this pool.
+     */
+    private final Deque<IdleSocket> idle = new ArrayDeque<IdleSocket>();
+
+    /**
+     * The number of connections currently being established in the
+     * background. Guarded by this pool.
+     */
+    private int connecting = 0;
+
+    /**
+     * Executor which establishes connections and checks idle connections in
+     * the background, or null if no such work is currently needed. Guarded
+     * by this pool.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Whether this pool has been shut down. Guarded by this pool.
+     */
+    private boolean shutdown = false;
+
+    /**
+     * Task which establishes a single connection to guacd, adding that
+     * connection to the pool.
+     */
+    private class ConnectTask implements Runnable {
+
+        @Override
+        public void run() {
+
+            TimedGuacamoleSocket socket = null;
+            try {
+                socket = connect();
+            }
+            catch (GuacamoleException e) {
+                logger.debug("Unable to establish connection to guacd ahead of use.", e);
+            }
+
+            // Always wake any waiting callers, even if connecting failed
+            finally {
+                synchronized (GuacdSocketPool.this) {
+                    if (socket != null)
+                        idle.addLast(new IdleSocket(socket));
+                    connecting--;
+                    GuacdSocketPool.this.notifyAll();
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Task which discards idle connections which are too old or no longer
+     * healthy, replacing them as needed to maintain the configured number of
+     * idle connections.
+     */
+    private class CheckTask implements Runnable {
+
+        @Override
+        public void run() {
+
+            Deque<IdleSocket> stale = new ArrayDeque<IdleSocket>();
+            long now = System.currentTimeMillis();
+
+            // Remove stale connections
+            synchronized (GuacdSocketPool.this) {
+                Iterator<IdleSocket> entries = idle.iterator();
+                while (entries.hasNext()) {
+                    IdleSocket entry = entries.next();
+                    if (now - entry.created >= MAX_IDLE_AGE || !isHealthy(entry.socket)) {
+                        entries.remove();
+                        stale.add(entry);
+                    }
+                }
+            }
+
+            // Close outside lock
+            for (IdleSocket entry : stale)
+                closeQuietly(entry.socket);
+
+            fill();
+
+            // Release background threads once there is nothing to maintain
+            synchronized (GuacdSocketPool.this) {
+                if (size == 0 && idle.isEmpty() && connecting == 0
+                        && executor != null) {
+                    executor.shutdown();
+                    executor = null;
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Creates a new GuacdSocketPool which establishes connections to the
+     * guacd instance at the given hostname and port. No connections are
+     * established ahead of time until either setSize() or prefetch() is
+     * called.
+     *
+     * @param hostname
+     *     The hostname of guacd.
+     *
+     * @param port
+     *     The port of guacd.
+     *
+     * @param ssl
+     *     Whether guacd requires SSL/TLS.
+     */
+    public GuacdSocketPool(String hostname, int port, boolean ssl) {
+        this.hostname = hostname;
+        this.port = port;
+        this.ssl = ssl;
+    }
+
+    /**
+     * Returns the key under which the pool for the guacd instance at the
+     * given hostname and port is stored within the pools created through
+     * getInstance().
+     *
+     * @param hostname
+     *     The hostname of guacd.
+     *
+     * @param port
+     *     The port of guacd.
+     *
+     * @param ssl
+     *     Whether guacd requires SSL/TLS.
+     *
+     * @return
+     *     The key of the pool for the given guacd instance.
+     */
+    private static String getKey(String hostname, int port, boolean ssl) {
+        return hostname + ":" + port + (ssl ? ":ssl" : "");
+    }
+
+    /**
+     * Returns the pool shared by all callers for the guacd instance at the
+     * given hostname and port, creating that pool if necessary.
+     *
+     * @param hostname
+     *     The hostname of guacd.
+     *
+     * @param port
+     *     The port of guacd.
+     *
+     * @param ssl
+     *     Whether guacd requires SSL/TLS.
+     *
+     * @return
+     *     The shared pool for the given guacd instance.
+     */
+    public static GuacdSocketPool getInstance(String hostname, int port, boolean ssl) {
+
+        String key = getKey(hostname, port, ssl);
+
+        GuacdSocketPool pool = pools.get(key);
+        if (pool != null)
+            return pool;
+
+        // Create new pool, using any other created concurrently instead
+        pool = new GuacdSocketPool(hostname, port, ssl);
+        GuacdSocketPool existing = pools.putIfAbsent(key, pool);
+        if (existing != null)
+            return existing;
+
+        return pool;
+
+    }
+
+    /**
+     * Sets the number of idle connections this pool should maintain at all
+     * times. If zero, connections are established ahead of time only via
+     * prefetch().
+     *
+     * @param size
+     *     The number of idle connections to maintain.
+     */
+    public void setSize(int size) {
+        this.size = Math.max(0, size);
+        fill();
+    }
+
+    /**
+     * Returns the address of guacd, resolving its hostname only if not
+     * resolved within the last ADDRESS_TTL milliseconds.
+     *
+     * @return
+     *     The address of guacd.
+     *
+     * @throws GuacamoleException
+     *     If the hostname of guacd cannot be resolved.
+     */
+    private InetSocketAddress resolve() throws GuacamoleException {
+
+        InetSocketAddress current = address;
+        if (current != null && System.currentTimeMillis() - resolved < ADDRESS_TTL)
+            return current;
+
+        try {
+            current = new InetSocketAddress(InetAddress.getByName(hostname), port);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+
+        resolved = System.currentTimeMillis();
+        address = current;
+        return current;
+
+    }
+
+    /**
+     * Establishes a new connection to guacd using the cached address of
+     * guacd.
+     *
+     * @return
+     *     A new connection to guacd.
+     *
+     * @throws GuacamoleException
+     *     If the connection cannot be established.
+     */
+    private TimedGuacamoleSocket connect() throws GuacamoleException {
+
+        InetSocketAddress current = resolve();
+
+        try {
+            if (ssl)
+                return new SSLGuacamoleSocket(hostname, current);
+            return new InetGuacamoleSocket(current);
+        }
+
+        // Resolve again next time, in case the address has changed
+        catch (GuacamoleException e) {
+            address = null;
+            throw e;
+        }
+
+    }
+
+    /**
+     * Returns whether the given idle connection can still be used.
+     *
+     * @param socket
+     *     The idle connection to check.
+     *
+     * @return
+     *     true if the connection can still be used, false otherwise.
+     */
+    private static boolean isHealthy(TimedGuacamoleSocket socket) {
+
+        if (socket instanceof InetGuacamoleSocket)
+            return ((InetGuacamoleSocket) socket).isIdle();
+
+        return socket.isOpen();
+
+    }
+
+    /**
+     * Closes the given connection, logging rather than throwing any errors.
+     *
+     * @param socket
+     *     The connection to close.
+     */
+    private static void closeQuietly(GuacamoleSocket socket) {
+        try {
+            socket.close();
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Unable to close idle connection to guacd.", e);
+        }
+    }
+
+    /**
+     * Returns the executor which establishes and checks connections in the
+     * background, creating that executor and scheduling the periodic check
+     * of idle connections if necessary.
+     *
+     * @return
+     *     The executor which establishes and checks connections, or null if
+     *     this pool has been shut down.
+     */
+    private synchronized ScheduledExecutorService getExecutor() {
+
+        if (executor == null && !shutdown) {
+            executor = Executors.newScheduledThreadPool(2, threadFactory);
+            executor.scheduleWithFixedDelay(new CheckTask(),
+                    CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        return executor;
+
+    }
+
+    /**
+     * Starts establishing the given number of connections in the background.
+     *
+     * @param count
+     *     The number of connections to establish.
+     */
+    private void startConnecting(int count) {
+
+        if (count == 0)
+            return;
+
+        ScheduledExecutorService executor = getExecutor();
+        for (int i = 0; i < count; i++) {
+
+            try {
+                if (executor != null) {
+                    executor.execute(new ConnectTask());
+                    continue;
+                }
+            }
+            catch (RejectedExecutionException e) {
+                // Pool has been shut down
+            }
+
+            // Wake any callers waiting for connections which will never be
+            // established
+            synchronized (this) {
+                connecting -= count - i;
+                notifyAll();
+            }
+            return;
+
+        }
+
+    }
+
+    /**
+     * Starts establishing enough connections in the background to maintain
+     * the configured number of idle connections.
+     */
+    private void fill() {
+
+        int count;
+        synchronized (this) {
+            count = Math.max(0, size - idle.size() - connecting);
+            connecting += count;
+        }
+
+        startConnecting(count);
+
+    }
+
+    /**
+     * Starts establishing a connection in the background for use by a
+     * subsequent call to acquire(), allowing the caller to perform other work
+     * while the connection is established. If an idle connection is already
+     * available, this function has no effect.
+     */
+    public void prefetch() {
+
+        synchronized (this) {
+            if (idle.size() + connecting > 0)
+                return;
+            connecting++;
+        }
+
+        startConnecting(1);
+
+    }
+
+    /**
+     * Returns an established connection to guacd which has not yet received
+     * the "select" instruction, taking an idle connection from the pool if
+     * available, waiting for a connection already being established if
+     * possible, and otherwise connecting directly.
+     *
+     * @return
+     *     A new, established connection to guacd.
+     *
+     * @throws GuacamoleException
+     *     If no connection can be established.
+     */
+    public TimedGuacamoleSocket acquire() throws GuacamoleException {
+
+        TimedGuacamoleSocket socket = null;
+
+        synchronized (this) {
+            try {
+
+                while (socket == null) {
+
+                    // Use the newest idle connection, discarding any which
+                    // have failed
+                    IdleSocket entry = idle.pollLast();
+                    if (entry != null) {
+                        if (isHealthy(entry.socket))
+                            socket = entry.socket;
+                        else
+                            closeQuietly(entry.socket);
+                        continue;
+                    }
+
+                    // Wait for pending connections, if any
+                    if (connecting == 0)
+                        break;
+
+                    wait();
+
+                }
+
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GuacamoleServerException("Interrupted while "
+                        + "waiting for connection to guacd.", e);
+            }
+        }
+
+        // Replace the connection taken, if maintaining idle connections
+        fill();
+
+        if (socket != null) {
+            if (socket instanceof InetGuacamoleSocket)
+                ((InetGuacamoleSocket) socket).clearTiming();
+            else if (socket instanceof SSLGuacamoleSocket)
+                ((SSLGuacamoleSocket) socket).clearTiming();
+            return socket;
+        }
+
+        // Otherwise, connect directly
+        return connect();
+
+    }
+
+    /**
+     * Returns the number of idle connections currently within this pool.
+     *
+     * @return
+     *     The number of idle connections.
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Shuts down this pool, stopping all background threads and closing all
+     * idle connections. Connections already acquired are unaffected, and
+     * later calls to acquire() connect directly. If this pool was obtained
+     * through getInstance(), later calls to getInstance() will create a new
+     * pool.
+     */
+    public void shutdown() {
+
+        pools.remove(getKey(hostname, port, ssl), this);
+
+        synchronized (this) {
+
+            shutdown = true;
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+
+            for (IdleSocket entry : idle)
+                closeQuietly(entry.socket);
+            idle.clear();
+
+        }
+
+    }
+
+    /**
+     * Returns whether this pool currently has background threads which
+     * establish and check connections.
+     *
+     * @return
+     *     true if background threads currently exist, false otherwise.
+     */
+    synchronized boolean isActive() {
+        return executor != null;
+    }
+
+}
@@ -20,20 +20,18 @@
 package org.apache.guacamole.net;
 
 
+import org.apache.guacamole.io.ChannelGuacamoleReader;
+import org.apache.guacamole.io.ChannelGuacamoleWriter;
+import org.apache.guacamole.io.ChannelSelector;
 import org.apache.guacamole.io.GuacamoleReader;
-import org.apache.guacamole.io.ReaderGuacamoleReader;
-import org.apache.guacamole.io.WriterGuacamoleWriter;
 import org.apache.guacamole.io.GuacamoleWriter;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
-
-import java.io.InputStreamReader;
-
-import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleServerException;
 import org.apache.guacamole.GuacamoleUpstreamTimeoutException;
@@ -46,7 +44,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author Michael Jumper
  */
-public class InetGuacamoleSocket implements GuacamoleSocket {
+public class InetGuacamoleSocket implements TimedGuacamoleSocket {
 
     /**
      * Logger for this class.
@@ -56,12 +54,12 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
     /**
      * The GuacamoleReader this socket should read from.
      */
-    private GuacamoleReader reader;
+    private ChannelGuacamoleReader reader;
 
     /**
      * The GuacamoleWriter this socket should write to.
      */
-    private GuacamoleWriter writer;
+    private ChannelGuacamoleWriter writer;
 
     /**
      * The number of milliseconds to wait for data on the TCP socket before
@@ -70,10 +68,22 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
     private static final int SOCKET_TIMEOUT = 15000;
 
     /**
-     * The TCP socket that the GuacamoleReader and GuacamoleWriter exposed
-     * by this class should affect.
+     * The channel of the TCP socket that the GuacamoleReader and
+     * GuacamoleWriter exposed by this class should affect.
+     */
+    private SocketChannel channel;
+
+    /**
+     * The time spent resolving the hostname of the Guacamole proxy server,
+     * in nanoseconds.
+     */
+    private long resolutionTime;
+
+    /**
+     * The time spent establishing the TCP connection to the Guacamole proxy
+     * server, in nanoseconds.
      */
-    private Socket sock;
+    private long connectTime;
 
     /**
      * Creates a new InetGuacamoleSocket which reads and writes instructions
@@ -87,46 +97,150 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
      */
     public InetGuacamoleSocket(String hostname, int port) throws GuacamoleException {
 
-        try {
-
-            logger.debug("Connecting to guacd at {}:{}.", hostname, port);
+        logger.debug("Connecting to guacd at {}:{}.", hostname, port);
 
-            // Get address
-            SocketAddress address = new InetSocketAddress(
+        // Get address
+        long resolutionStart = System.nanoTime();
+        SocketAddress address;
+        try {
+            address = new InetSocketAddress(
                     InetAddress.getByName(hostname),
                     port
             );
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+        resolutionTime = System.nanoTime() - resolutionStart;
+
+        connect(address);
+
+    }
+
+    /**
+     * Creates a new InetGuacamoleSocket which reads and writes instructions
+     * to the Guacamole instruction stream of the Guacamole proxy server
+     * listening at the given, already-resolved address. No time is spent
+     * resolving the address.
+     *
+     * @param address
+     *     The resolved address of the Guacamole proxy server to connect to.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while connecting to the Guacamole proxy server.
+     */
+    public InetGuacamoleSocket(InetSocketAddress address) throws GuacamoleException {
+        logger.debug("Connecting to guacd at {}.", address);
+        connect(address);
+    }
+
+    /**
+     * Connects to the Guacamole proxy server at the given address, preparing
+     * the reader and writer of this socket.
+     *
+     * @param address
+     *     The address of the Guacamole proxy server to connect to.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while connecting to the Guacamole proxy server.
+     */
+    private void connect(SocketAddress address) throws GuacamoleException {
+
+        try {
 
-            // Connect with timeout
-            sock = new Socket();
-            sock.connect(address, SOCKET_TIMEOUT);
+            // Connect with timeout (the timeout is only honored in blocking
+            // mode)
+            long connectStart = System.nanoTime();
+            channel = SocketChannel.open();
+            channel.socket().connect(address, SOCKET_TIMEOUT);
+            connectTime = System.nanoTime() - connectStart;
 
-            // Set read timeout
-            sock.setSoTimeout(SOCKET_TIMEOUT);
+            // Once connected, all further I/O waits via a selector using the
+            // same timeout
+            channel.configureBlocking(false);
 
-            // On successful connect, retrieve I/O streams
-            reader = new ReaderGuacamoleReader(new InputStreamReader(sock.getInputStream(),   "UTF-8"));
-            writer = new WriterGuacamoleWriter(new OutputStreamWriter(sock.getOutputStream(), "UTF-8"));
+            // On successful connect, read and write the channel directly,
+            // waiting through a single selector shared by both
+            ChannelSelector selector = new ChannelSelector(channel);
+            reader = new ChannelGuacamoleReader(channel, selector, SOCKET_TIMEOUT);
+            writer = new ChannelGuacamoleWriter(channel, selector, SOCKET_TIMEOUT);
 
         }
         catch (SocketTimeoutException e) {
+            closeQuietly();
             throw new GuacamoleUpstreamTimeoutException("Connection timed out.", e);
         }
         catch (IOException e) {
+            closeQuietly();
             throw new GuacamoleServerException(e);
         }
 
     }
 
+    /**
+     * Returns whether this socket is still connected and has received no
+     * data. As guacd sends nothing until the "select" instruction is
+     * received, any data or end of stream indicates that this socket can no
+     * longer be used for a new connection. This function must only be
+     * called before the socket is first used.
+     *
+     * @return
+     *     true if this socket remains usable for a new connection, false
+     *     otherwise.
+     */
+    boolean isIdle() {
+
+        if (!channel.isOpen())
+            return false;
+
+        // Non-blocking read returns 0 if nothing has been received
+        try {
+            return channel.read(ByteBuffer.allocate(1)) == 0;
+        }
+        catch (IOException e) {
+            logger.debug("Idle connection to guacd has failed.", e);
+            return false;
+        }
+
+    }
+
+    /**
+     * Clears the recorded resolution and connection times of this socket,
+     * as no time was spent on either from the perspective of the caller
+     * taking this socket from a pool of established connections.
+     */
+    void clearTiming() {
+        resolutionTime = 0;
+        connectTime = 0;
+    }
+
+    /**
+     * Closes the underlying channel after a failed connection attempt,
+     * ignoring any errors, as the original failure is what matters.
+     */
+    private void closeQuietly() {
+        try {
+            if (channel != null)
+                channel.close();
+        }
+        catch (IOException e) {
+            logger.debug("Unable to close failed connection to guacd.", e);
+        }
+    }
+
     @Override
     public void close() throws GuacamoleException {
         try {
             logger.debug("Closing socket to guacd.");
-            sock.close();
+            channel.close();
         }
         catch (IOException e) {
             throw new GuacamoleServerException(e);
         }
+        finally {
+            reader.close();
+            writer.close();
+        }
     }
 
     @Override
@@ -141,7 +255,17 @@ public class InetGuacamoleSocket implements GuacamoleSocket {
 
     @Override
     public boolean isOpen() {
-        return !sock.isClosed();
+        return channel.isOpen();
+    }
+
+    @Override
+    public long getResolutionTime() {
+        return resolutionTime;
+    }
+
+    @Override
+    public long getConnectTime() {
+        return connectTime;
     }
 
 }
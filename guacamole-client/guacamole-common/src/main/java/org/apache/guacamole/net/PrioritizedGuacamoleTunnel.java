@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import org.apache.guacamole.io.GuacamoleWriter;
+
+/**
+ * A GuacamoleTunnel which grants write access according to the priority of
+ * the data each waiting thread will write. Callers holding an arbitrary
+ * GuacamoleTunnel should acquire its writer through
+ * WriterPriority.acquireWriter(), which falls back to acquireWriter() for
+ * tunnels which do not implement this interface.
+ */
+public interface PrioritizedGuacamoleTunnel extends GuacamoleTunnel {
+
+    /**
+     * Acquires exclusive write access to the Guacamole instruction stream
+     * and returns a GuacamoleWriter for writing to that stream. If other
+     * threads are also waiting for write access, threads writing data of
+     * higher priority are granted access first. The no-argument form of this
+     * function acquires access with CONTROL priority.
+     *
+     * @param priority
+     *     The priority of the data which will be written while write access
+     *     is held.
+     *
+     * @return A GuacamoleWriter for writing to the Guacamole instruction
+     *         stream.
+     */
+    GuacamoleWriter acquireWriter(WriterPriority priority);
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Reentrant lock which grants write access to a tunnel according to the
+ * WriterPriority of each waiting thread. Threads of the same priority are
+ * granted access in the order they began waiting, while a thread of higher
+ * priority is granted access before any waiting thread of lower priority.
+ * To prevent starvation, a thread of lower priority which has been passed
+ * over MAX_BYPASS times is granted access next regardless of any threads of
+ * higher priority.
+ *
+ * Access is handed directly to the chosen thread upon release, such that
+ * newly-arriving threads cannot take the lock from threads already waiting.
+ * As with ReentrantLock.lock(), waiting for the lock is not interruptible;
+ * the interrupted status of the waiting thread is restored once the lock has
+ * been acquired.
+ */
+class PriorityWriterLock {
+
+    /**
+     * The number of times the threads of any one priority may be passed over
+     * in favor of threads of higher priority before being granted access.
+     */
+    static final int MAX_BYPASS = 8;
+
+    /**
+     * The threads waiting for the lock at a particular priority.
+     */
+    private static class WaitQueue {
+
+        /**
+         * The waiting threads, in the order they began waiting.
+         */
+        private final Queue<Thread> threads = new ArrayDeque<Thread>();
+
+        /**
+         * The number of times the lock has been granted to a thread of higher
+         * priority while threads were waiting in this queue, since a thread
+         * was last granted the lock from this queue.
+         */
+        private int bypassed = 0;
+
+    }
+
+    /**
+     * The queues of waiting threads, indexed by the ordinal of their
+     * WriterPriority.
+     */
+    private final WaitQueue[] queues;
+
+    /**
+     * The thread currently holding the lock, or null if the lock is not held.
+     */
+    private Thread owner = null;
+
+    /**
+     * The number of times the owning thread has acquired the lock without
+     * releasing it.
+     */
+    private int holds = 0;
+
+    /**
+     * Creates a new PriorityWriterLock which is not held by any thread.
+     */
+    public PriorityWriterLock() {
+        queues = new WaitQueue[WriterPriority.values().length];
+        for (int i = 0; i < queues.length; i++)
+            queues[i] = new WaitQueue();
+    }
+
+    /**
+     * Acquires the lock, waiting behind any threads already waiting for the
+     * lock at the same or higher priority. If the current thread already
+     * holds the lock, the lock is acquired again immediately.
+     *
+     * @param priority
+     *     The priority of the data the current thread will write while
+     *     holding the lock.
+     */
+    public synchronized void lock(WriterPriority priority) {
+
+        Thread current = Thread.currentThread();
+
+        // Reacquire immediately if already held
+        if (owner == current) {
+            holds++;
+            return;
+        }
+
+        // Acquire immediately if not held at all (there can be no waiting
+        // threads, as access is handed off directly upon release)
+        if (owner == null) {
+            owner = current;
+            holds = 1;
+            return;
+        }
+
+        // Otherwise, wait for access to be handed off
+        queues[priority.ordinal()].threads.add(current);
+
+        boolean interrupted = false;
+        while (owner != current) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            current.interrupt();
+
+    }
+
+    /**
+     * Releases the lock. If the current thread has released the lock as many
+     * times as it acquired the lock, access is handed to the next waiting
+     * thread, if any.
+     *
+     * @throws IllegalMonitorStateException
+     *     If the current thread does not hold the lock.
+     */
+    public synchronized void unlock() {
+
+        if (owner != Thread.currentThread())
+            throw new IllegalMonitorStateException();
+
+        if (--holds > 0)
+            return;
+
+        // Hand off to the next waiting thread
+        owner = next();
+        if (owner != null) {
+            holds = 1;
+            notifyAll();
+        }
+
+    }
+
+    /**
+     * Removes and returns the thread which should be granted the lock next,
+     * updating the number of times the threads of each queue have been passed
+     * over. This function must be invoked while synchronized on this lock.
+     *
+     * @return
+     *     The thread which should be granted the lock next, or null if no
+     *     threads are waiting.
+     */
+    private Thread next() {
+
+        // Choose any queue which has been passed over too many times,
+        // otherwise the highest-priority queue having waiting threads
+        int chosen = -1;
+        for (int i = 0; i < queues.length && chosen == -1; i++) {
+            WaitQueue queue = queues[i];
+            if (!queue.threads.isEmpty() && queue.bypassed >= MAX_BYPASS)
+                chosen = i;
+        }
+
+        for (int i = 0; i < queues.length && chosen == -1; i++) {
+            if (!queues[i].threads.isEmpty())
+                chosen = i;
+        }
+
+        if (chosen == -1)
+            return null;
+
+        // Any waiting threads of lower priority have now been passed over
+        for (int i = chosen + 1; i < queues.length; i++) {
+            WaitQueue queue = queues[i];
+            if (!queue.threads.isEmpty())
+                queue.bypassed++;
+        }
+
+        WaitQueue queue = queues[chosen];
+        queue.bypassed = 0;
+        return queue.threads.remove();
+
+    }
+
+    /**
+     * Returns the number of times the current thread holds this lock, which
+     * is zero if the current thread does not hold this lock.
+     *
+     * @return
+     *     The number of times the current thread holds this lock.
+     */
+    public synchronized int getHoldCount() {
+        return (owner == Thread.currentThread()) ? holds : 0;
+    }
+
+    /**
+     * Returns whether any threads are waiting to acquire this lock.
+     *
+     * @return
+     *     true if any threads are waiting to acquire this lock, false
+     *     otherwise.
+     */
+    public synchronized boolean hasQueuedThreads() {
+
+        for (WaitQueue queue : queues) {
+            if (!queue.threads.isEmpty())
+                return true;
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Returns the number of threads waiting to acquire this lock at the given
+     * priority.
+     *
+     * @param priority
+     *     The priority of the waiting threads to count.
+     *
+     * @return
+     *     The number of threads waiting to acquire this lock at the given
+     *     priority.
+     */
+    public synchronized int getQueueLength(WriterPriority priority) {
+        return queues[priority.ordinal()].threads.size();
+    }
+
+}
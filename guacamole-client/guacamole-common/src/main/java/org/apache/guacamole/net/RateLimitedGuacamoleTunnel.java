@@ -0,0 +1,542 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleConnectionClosedException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.protocol.FilteredGuacamoleReader;
+import org.apache.guacamole.protocol.GuacamoleFilterChain;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleTunnel implementation which limits the rate at which data is read
+ * from the wrapped tunnel using one or more token buckets, such as a bucket
+ * specific to the tunnel and a bucket shared by all tunnels of the same user.
+ * Data is never dropped; once any bucket is in debt, reading pauses until
+ * that debt has been repaid. Blocking reads wait, and available() reports no
+ * data while paused such that anything already read is flushed to the
+ * client. Non-blocking reads through pollBytes() instead return null while
+ * paused, and those reading without blocking should pause and resume via a
+ * Listener.
+ */
+public class RateLimitedGuacamoleTunnel extends DelegatingGuacamoleTunnel {
+
+    /**
+     * Listener which is notified when reading is paused or resumed due to
+     * the rate limit.
+     */
+    public interface Listener {
+
+        /**
+         * Called when data has been read faster than the rate limit allows,
+         * and reading from guacd should pause.
+         */
+        void rateExceeded();
+
+        /**
+         * Called when enough time has passed that reading from guacd may
+         * resume.
+         */
+        void rateRecovered();
+
+    }
+
+    /**
+     * The maximum number of milliseconds to wait between checks of whether
+     * the tunnel has been closed while a blocking read is paused.
+     */
+    private static final int CLOSE_CHECK_INTERVAL = 1000;
+
+    /**
+     * The number of milliseconds over which the current rate is measured.
+     */
+    private static final int RATE_INTERVAL = 1000;
+
+    /**
+     * Executor shared by all tunnels for notifying listeners that reading may
+     * resume.
+     */
+    private static final ScheduledExecutorService resumeExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "guacamole-rate-limit");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    /**
+     * The buckets from which all data read must be consumed.
+     */
+    private final TokenBucket[] buckets;
+
+    /**
+     * The listener to notify when reading is paused or resumed, or null if
+     * no listener has been set.
+     */
+    private Listener listener;
+
+    /**
+     * Whether the listener has been told that reading should pause, and has
+     * not yet been told that reading may resume.
+     */
+    private boolean listenerPaused = false;
+
+    /**
+     * The pending notification that reading may resume, or null if no such
+     * notification is pending.
+     */
+    private ScheduledFuture<?> pendingResume;
+
+    /**
+     * The time that reading was most recently paused, in milliseconds since
+     * the epoch, or zero if reading is not paused.
+     */
+    private long throttledSince = 0;
+
+    /**
+     * The total number of times reading has been paused.
+     */
+    private long throttleCount = 0;
+
+    /**
+     * The total number of milliseconds reading has spent paused, not
+     * including any pause still in progress.
+     */
+    private long throttledTime = 0;
+
+    /**
+     * The total number of bytes read.
+     */
+    private long bytesRead = 0;
+
+    /**
+     * The time the current rate measurement interval began, in milliseconds
+     * since the epoch.
+     */
+    private long intervalStart = System.currentTimeMillis();
+
+    /**
+     * The number of bytes read within the current rate measurement interval.
+     */
+    private long intervalBytes = 0;
+
+    /**
+     * The rate measured over the most recent complete interval, in bytes per
+     * second.
+     */
+    private long rate = 0;
+
+    /**
+     * GuacamoleReader which waits for all buckets to leave debt before
+     * reading further.
+     */
+    private class RateLimitedReader extends FilteredGuacamoleReader {
+
+        /**
+         * Whether a read is in progress, such that any read made through
+         * this reader by the implementation of that read is not counted
+         * twice. Readers are used only while holding the reader lock, thus
+         * by one thread at a time.
+         */
+        private boolean reading = false;
+
+        /**
+         * Wraps the given reader, pausing reads while data has been read
+         * faster than allowed.
+         *
+         * @param reader
+         *     The reader to wrap.
+         */
+        public RateLimitedReader(GuacamoleReader reader) {
+            super(reader, new GuacamoleFilterChain());
+        }
+
+        /**
+         * Waits until all buckets have left debt.
+         *
+         * @throws GuacamoleException
+         *     If the tunnel is closed while waiting, or if the thread is
+         *     interrupted.
+         */
+        private void awaitTokens() throws GuacamoleException {
+
+            long delay;
+            while ((delay = getDelay()) > 0) {
+
+                throttled();
+                if (!isOpen())
+                    throw new GuacamoleConnectionClosedException("Tunnel "
+                            + "closed while rate limited.");
+
+                try {
+                    Thread.sleep(Math.min(delay, CLOSE_CHECK_INTERVAL));
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GuacamoleServerException("Interrupted while "
+                            + "rate limited.", e);
+                }
+
+            }
+
+            recovered();
+
+        }
+
+        @Override
+        public boolean available() throws GuacamoleException {
+            return getDelay() == 0 && super.available();
+        }
+
+        @Override
+        public char[] read() throws GuacamoleException {
+
+            // Reads nested within another read are counted by that read
+            if (reading)
+                return super.read();
+
+            awaitTokens();
+            reading = true;
+            try {
+                char[] instruction = super.read();
+                if (instruction != null)
+                    consume(GuacamoleInstruction.getEncodedLength(
+                            instruction, 0, instruction.length));
+                return instruction;
+            }
+            finally {
+                reading = false;
+            }
+
+        }
+
+        @Override
+        public ByteBuffer readBytes() throws GuacamoleException {
+
+            // Reads nested within another read are counted by that read
+            if (reading)
+                return super.readBytes();
+
+            awaitTokens();
+            reading = true;
+            try {
+                ByteBuffer instruction = super.readBytes();
+                if (instruction != null)
+                    consume(instruction.remaining());
+                return instruction;
+            }
+            finally {
+                reading = false;
+            }
+
+        }
+
+        @Override
+        public ByteBuffer pollBytes() throws GuacamoleException {
+
+            // Reads nested within another read are counted by that read
+            if (reading)
+                return super.pollBytes();
+
+            long delay = getDelay();
+            if (delay > 0) {
+                pause(delay);
+                return null;
+            }
+
+            recovered();
+            reading = true;
+            try {
+                ByteBuffer instruction = super.pollBytes();
+                if (instruction != null)
+                    consume(instruction.remaining());
+                return instruction;
+            }
+            finally {
+                reading = false;
+            }
+
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+            // Reads nested within another read are counted by that read
+            if (reading)
+                return super.readInstruction();
+
+            awaitTokens();
+            reading = true;
+            try {
+                GuacamoleInstruction instruction = super.readInstruction();
+                if (instruction != null)
+                    consume(instruction.getEncodedLength());
+                return instruction;
+            }
+            finally {
+                reading = false;
+            }
+
+        }
+
+    }
+
+    /**
+     * Wraps the given tunnel, limiting the rate of reads from that tunnel
+     * by the given token buckets.
+     *
+     * @param tunnel
+     *     The tunnel to wrap.
+     *
+     * @param buckets
+     *     The buckets from which all data read must be consumed. Each bucket
+     *     may be shared with other tunnels.
+     */
+    public RateLimitedGuacamoleTunnel(GuacamoleTunnel tunnel,
+            TokenBucket... buckets) {
+        super(tunnel);
+        this.buckets = buckets.clone();
+    }
+
+    /**
+     * Returns the number of milliseconds which must elapse before reading
+     * may resume.
+     *
+     * @return
+     *     The number of milliseconds which must elapse before reading may
+     *     resume, or zero if reading may continue now.
+     */
+    private long getDelay() {
+
+        long delay = 0;
+        for (TokenBucket bucket : buckets)
+            delay = Math.max(delay, bucket.getDelay());
+
+        return delay;
+
+    }
+
+    /**
+     * Consumes the given number of bytes from all buckets, updating the
+     * measured rate.
+     *
+     * @param bytes
+     *     The number of bytes read.
+     */
+    private void consume(long bytes) {
+
+        for (TokenBucket bucket : buckets)
+            bucket.consume(bytes);
+
+        synchronized (this) {
+
+            long now = System.currentTimeMillis();
+            long elapsed = now - intervalStart;
+            if (elapsed >= RATE_INTERVAL) {
+                rate = intervalBytes * 1000 / elapsed;
+                intervalStart = now;
+                intervalBytes = 0;
+            }
+
+            intervalBytes += bytes;
+            bytesRead += bytes;
+
+        }
+
+    }
+
+    /**
+     * Records that reading has been paused, if not already recorded.
+     */
+    private synchronized void throttled() {
+        if (throttledSince == 0) {
+            throttledSince = System.currentTimeMillis();
+            throttleCount++;
+        }
+    }
+
+    /**
+     * Records that reading has resumed, if previously paused.
+     */
+    private synchronized void recovered() {
+        if (throttledSince != 0) {
+            throttledTime += System.currentTimeMillis() - throttledSince;
+            throttledSince = 0;
+        }
+    }
+
+    /**
+     * Pauses non-blocking reading for the given number of milliseconds,
+     * notifying the listener, if any, that reading should pause, and
+     * scheduling notification that reading may resume.
+     *
+     * @param delay
+     *     The number of milliseconds until reading may resume.
+     */
+    private void pause(long delay) {
+
+        final Listener notify;
+        synchronized (this) {
+
+            throttled();
+
+            // Nothing further to do if the listener was already told to
+            // pause, or there is no listener
+            notify = listener;
+            if (notify == null || listenerPaused)
+                return;
+
+            listenerPaused = true;
+
+        }
+
+        // Notify of pause before scheduling resume, such that the
+        // notifications cannot arrive out of order
+        notify.rateExceeded();
+
+        synchronized (this) {
+            pendingResume = resumeExecutor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    synchronized (RateLimitedGuacamoleTunnel.this) {
+                        listenerPaused = false;
+                        pendingResume = null;
+                        recovered();
+                    }
+
+                    notify.rateRecovered();
+
+                }
+
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    /**
+     * Sets the listener to notify when non-blocking reading should pause or
+     * resume due to the rate limit.
+     *
+     * @param listener
+     *     The listener to notify, or null to stop notifying any listener.
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public GuacamoleReader acquireReader() {
+        return new RateLimitedReader(super.acquireReader());
+    }
+
+    /**
+     * Returns the rate at which data has recently been read from this tunnel.
+     *
+     * @return
+     *     The rate measured over approximately the last second, in bytes per
+     *     second.
+     */
+    public synchronized long getRate() {
+
+        // Measure the interval in progress if it is already complete, such
+        // that a tunnel which has stopped reading reports its decline
+        long elapsed = System.currentTimeMillis() - intervalStart;
+        if (elapsed >= RATE_INTERVAL)
+            return intervalBytes * 1000 / elapsed;
+
+        return rate;
+
+    }
+
+    /**
+     * Returns the total number of bytes read from this tunnel.
+     *
+     * @return
+     *     The total number of bytes read.
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Returns the total number of times reading has been paused due to the
+     * rate limit.
+     *
+     * @return
+     *     The total number of pauses.
+     */
+    public synchronized long getThrottleCount() {
+        return throttleCount;
+    }
+
+    /**
+     * Returns the total number of milliseconds that reading has spent paused
+     * due to the rate limit, including any pause still in progress.
+     *
+     * @return
+     *     The total time spent paused, in milliseconds.
+     */
+    public synchronized long getThrottledTime() {
+
+        if (throttledSince != 0)
+            return throttledTime + System.currentTimeMillis() - throttledSince;
+
+        return throttledTime;
+
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+        try {
+            super.close();
+        }
+        finally {
+            synchronized (this) {
+                if (pendingResume != null) {
+                    pendingResume.cancel(false);
+                    pendingResume = null;
+                }
+                recovered();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RateLimitedGuacamoleTunnel[rate=" + getRate() + "B/s, bytes="
+                + bytesRead + ", throttles=" + throttleCount
+                + ", throttledTime=" + getThrottledTime() + "ms]";
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Reentrant lock which grants read access to a tunnel to one holder at a
+ * time, in the order threads began waiting. Unlike ReentrantLock, the lock
+ * may be released by a thread other than the thread which acquired it,
+ * allowing access acquired by one thread to be handed to another, such as an
+ * event loop which reads on behalf of the acquiring thread. As with
+ * ReentrantLock.lock(), waiting for the lock is not interruptible; the
+ * interrupted status of the waiting thread is restored once the lock has
+ * been acquired.
+ */
+class ReaderLock {
+
+    /**
+     * The threads waiting for the lock, in the order they began waiting.
+     */
+    private final Queue<Thread> waiting = new ArrayDeque<Thread>();
+
+    /**
+     * The thread which acquired the lock, or null if the lock is not held.
+     */
+    private Thread owner = null;
+
+    /**
+     * The number of times the lock has been acquired without being
+     * released.
+     */
+    private int holds = 0;
+
+    /**
+     * Acquires the lock, waiting behind any threads already waiting for the
+     * lock. If the current thread already holds the lock, the lock is
+     * acquired again immediately.
+     */
+    public synchronized void lock() {
+
+        Thread current = Thread.currentThread();
+
+        // Reacquire immediately if already held
+        if (owner == current) {
+            holds++;
+            return;
+        }
+
+        // Acquire immediately if not held at all (there can be no waiting
+        // threads, as access is handed off directly upon release)
+        if (owner == null) {
+            owner = current;
+            holds = 1;
+            return;
+        }
+
+        // Otherwise, wait for access to be handed off
+        waiting.add(current);
+
+        boolean interrupted = false;
+        while (owner != current) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            current.interrupt();
+
+    }
+
+    /**
+     * Releases the lock, which may be done by any thread. Once the lock has
+     * been released as many times as it was acquired, access is handed to
+     * the next waiting thread, if any.
+     *
+     * @throws IllegalMonitorStateException
+     *     If the lock is not held.
+     */
+    public synchronized void unlock() {
+
+        if (owner == null)
+            throw new IllegalMonitorStateException();
+
+        if (--holds > 0)
+            return;
+
+        // Hand off to the next waiting thread
+        owner = waiting.poll();
+        if (owner != null) {
+            holds = 1;
+            notifyAll();
+        }
+
+    }
+
+    /**
+     * Returns whether any threads are waiting to acquire this lock.
+     *
+     * @return
+     *     true if any threads are waiting to acquire this lock, false
+     *     otherwise.
+     */
+    public synchronized boolean hasQueuedThreads() {
+        return !waiting.isEmpty();
+    }
+
+}
@@ -26,9 +26,7 @@ import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
-import javax.net.SocketFactory;
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLSocket;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleServerException;
 import org.apache.guacamole.io.GuacamoleReader;
@@ -44,7 +42,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author Michael Jumper
  */
-public class SSLGuacamoleSocket implements GuacamoleSocket {
+public class SSLGuacamoleSocket implements TimedGuacamoleSocket {
 
     /**
      * Logger for this class.
@@ -73,6 +71,29 @@ public class SSLGuacamoleSocket implements GuacamoleSocket {
      */
     private Socket sock;
 
+    /**
+     * The time spent resolving the hostname of the Guacamole proxy server,
+     * in nanoseconds.
+     */
+    private long resolutionTime;
+
+    /**
+     * The time spent establishing the TCP connection to the Guacamole proxy
+     * server, including the SSL/TLS handshake, in nanoseconds.
+     */
+    private long connectTime;
+
+    /**
+     * The time spent performing the SSL/TLS handshake with the Guacamole
+     * proxy server, in nanoseconds.
+     */
+    private long handshakeTime;
+
+    /**
+     * Whether the SSL/TLS handshake resumed a cached session.
+     */
+    private boolean sessionResumed;
+
     /**
      * Creates a new SSLGuacamoleSocket which reads and writes instructions
      * to the Guacamole instruction stream of the Guacamole proxy server
@@ -85,26 +106,98 @@ public class SSLGuacamoleSocket implements GuacamoleSocket {
      */
     public SSLGuacamoleSocket(String hostname, int port) throws GuacamoleException {
 
-        // Get factory for SSL sockets
-        SocketFactory socket_factory = SSLSocketFactory.getDefault();
-        
-        try {
-
-            logger.debug("Connecting to guacd at {}:{} via SSL/TLS.",
-                    hostname, port);
+        logger.debug("Connecting to guacd at {}:{} via SSL/TLS.",
+                hostname, port);
 
-            // Get address
-            SocketAddress address = new InetSocketAddress(
+        // Get address
+        long resolutionStart = System.nanoTime();
+        InetSocketAddress address;
+        try {
+            address = new InetSocketAddress(
                 InetAddress.getByName(hostname),
                 port
             );
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException(e);
+        }
+        resolutionTime = System.nanoTime() - resolutionStart;
+
+        connect(hostname, address);
+
+    }
+
+    /**
+     * Creates a new SSLGuacamoleSocket which reads and writes instructions
+     * to the Guacamole instruction stream of the Guacamole proxy server
+     * listening at the given, already-resolved address using SSL. No time is
+     * spent resolving the address.
+     *
+     * @param hostname
+     *     The configured hostname of the Guacamole proxy server, used to
+     *     identify the server during the SSL/TLS handshake.
+     *
+     * @param address
+     *     The resolved address of the Guacamole proxy server to connect to.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while connecting to the Guacamole proxy server.
+     */
+    public SSLGuacamoleSocket(String hostname, InetSocketAddress address)
+            throws GuacamoleException {
+        logger.debug("Connecting to guacd at {} via SSL/TLS.", address);
+        connect(hostname, address);
+    }
+
+    /**
+     * Connects to the Guacamole proxy server at the given address using SSL,
+     * preparing the reader and writer of this socket. The SSL/TLS handshake
+     * is performed using the shared GuacdSSLContext, resuming any session
+     * cached from an earlier connection to the same server.
+     *
+     * @param hostname
+     *     The configured hostname of the Guacamole proxy server, used to
+     *     identify the server during the SSL/TLS handshake. This hostname is
+     *     passed through as given, avoiding any reverse lookup of the
+     *     resolved address.
+     *
+     * @param address
+     *     The address of the Guacamole proxy server to connect to.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while connecting to the Guacamole proxy server.
+     */
+    private void connect(String hostname, InetSocketAddress address)
+            throws GuacamoleException {
+
+        GuacdSSLContext context = GuacdSSLContext.getDefault();
+        Socket plain = new Socket();
+
+        try {
 
             // Connect with timeout
-            sock = socket_factory.createSocket();
-            sock.connect(address, SOCKET_TIMEOUT);
+            long connectStart = System.nanoTime();
+            plain.connect(address, SOCKET_TIMEOUT);
+
+            // Set read timeout (also honored during the handshake)
+            plain.setSoTimeout(SOCKET_TIMEOUT);
 
-            // Set read timeout
-            sock.setSoTimeout(SOCKET_TIMEOUT);
+            // Layer SSL over the established connection, identifying guacd
+            // by hostname and port such that cached sessions can be resumed
+            SSLSocket sslSocket = (SSLSocket) context.getSocketFactory().createSocket(
+                    plain, hostname, address.getPort(), true);
+            sock = sslSocket;
+
+            // Perform handshake now, rather than upon first write
+            long handshakeStart = System.nanoTime();
+            long handshakeStartMillis = System.currentTimeMillis();
+            sslSocket.startHandshake();
+            handshakeTime = System.nanoTime() - handshakeStart;
+            connectTime = System.nanoTime() - connectStart;
+
+            // A resumed session was created by an earlier handshake
+            sessionResumed = sslSocket.getSession().getCreationTime() < handshakeStartMillis;
+            context.recordHandshake(handshakeTime, sessionResumed);
 
             // On successful connect, retrieve I/O streams
             reader = new ReaderGuacamoleReader(new InputStreamReader(sock.getInputStream(),   "UTF-8"));
@@ -112,11 +205,62 @@ public class SSLGuacamoleSocket implements GuacamoleSocket {
 
         }
         catch (IOException e) {
+            closeQuietly(plain);
             throw new GuacamoleServerException(e);
         }
 
     }
 
+    /**
+     * Closes the given socket after a failed connection attempt, ignoring
+     * any errors, as the original failure is what matters.
+     *
+     * @param socket
+     *     The socket to close.
+     */
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            logger.debug("Unable to close failed connection to guacd.", e);
+        }
+    }
+
+    /**
+     * Returns the time spent performing the SSL/TLS handshake with guacd.
+     * This time is included within the time returned by getConnectTime().
+     *
+     * @return
+     *     The time spent performing the handshake, in nanoseconds.
+     */
+    public long getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    /**
+     * Returns whether the SSL/TLS handshake with guacd resumed a session
+     * cached from an earlier connection, rather than negotiating a new
+     * session.
+     *
+     * @return
+     *     true if a cached session was resumed, false otherwise.
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    /**
+     * Clears the recorded resolution and connection times of this socket,
+     * as no time was spent on either from the perspective of the caller
+     * taking this socket from a pool of established connections.
+     */
+    void clearTiming() {
+        resolutionTime = 0;
+        connectTime = 0;
+        handshakeTime = 0;
+    }
+
     @Override
     public void close() throws GuacamoleException {
         try {
@@ -143,4 +287,14 @@ public class SSLGuacamoleSocket implements GuacamoleSocket {
         return !sock.isClosed();
     }
 
+    @Override
+    public long getResolutionTime() {
+        return resolutionTime;
+    }
+
+    @Override
+    public long getConnectTime() {
+        return connectTime;
+    }
+
 }
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+/**
+ * A GuacamoleSocket which records how long it took to establish its
+ * underlying network connection.
+ */
+public interface TimedGuacamoleSocket extends GuacamoleSocket {
+
+    /**
+     * Returns the time spent resolving the hostname of the Guacamole proxy
+     * server to an address.
+     *
+     * @return
+     *     The time spent resolving the hostname, in nanoseconds.
+     */
+    public long getResolutionTime();
+
+    /**
+     * Returns the time spent establishing the network connection to the
+     * Guacamole proxy server, once its address was known.
+     *
+     * @return
+     *     The time spent establishing the connection, in nanoseconds.
+     */
+    public long getConnectTime();
+
+}
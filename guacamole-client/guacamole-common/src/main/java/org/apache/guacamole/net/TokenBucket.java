@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+/**
+ * Token bucket limiting the rate at which data may be read, which may be
+ * shared by any number of tunnels to limit their combined rate. The bucket
+ * refills continuously at the configured rate, up to a maximum burst size.
+ * Data is consumed after it has been read, such that the bucket may fall into
+ * debt by up to one instruction; readers must wait for getDelay() to elapse
+ * before reading again.
+ */
+public class TokenBucket {
+
+    /**
+     * The number of bytes added to the bucket each second.
+     */
+    private long rate;
+
+    /**
+     * The maximum number of bytes the bucket may hold.
+     */
+    private long burst;
+
+    /**
+     * The number of bytes currently available, which is negative while the
+     * bucket is in debt.
+     */
+    private double tokens;
+
+    /**
+     * The value of System.nanoTime() when the bucket was last refilled.
+     */
+    private long lastRefill;
+
+    /**
+     * Creates a new, full TokenBucket which refills at the given rate, up to
+     * the given burst size.
+     *
+     * @param rate
+     *     The number of bytes added to the bucket each second. This value
+     *     must be positive.
+     *
+     * @param burst
+     *     The maximum number of bytes the bucket may hold, and thus the
+     *     largest amount of data which may be read at once without waiting.
+     *
+     * @throws IllegalArgumentException
+     *     If the given rate is not positive.
+     */
+    public TokenBucket(long rate, long burst) {
+
+        if (rate <= 0)
+            throw new IllegalArgumentException("Rate must be positive.");
+
+        this.rate = rate;
+        this.burst = Math.max(burst, 0);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+
+    }
+
+    /**
+     * Creates a new, full TokenBucket which refills at the given rate and
+     * may hold up to one second of data.
+     *
+     * @param rate
+     *     The number of bytes added to the bucket each second. This value
+     *     must be positive.
+     *
+     * @throws IllegalArgumentException
+     *     If the given rate is not positive.
+     */
+    public TokenBucket(long rate) {
+        this(rate, rate);
+    }
+
+    /**
+     * Changes the rate at which this bucket refills and the maximum number of
+     * bytes it may hold. Bytes accumulated so far are retained, up to the new
+     * burst size, as is any debt, such that tunnels sharing this bucket are
+     * limited by the new rate from now on.
+     *
+     * @param rate
+     *     The number of bytes added to the bucket each second. This value
+     *     must be positive.
+     *
+     * @param burst
+     *     The maximum number of bytes the bucket may hold, and thus the
+     *     largest amount of data which may be read at once without waiting.
+     *
+     * @throws IllegalArgumentException
+     *     If the given rate is not positive.
+     */
+    public synchronized void setRate(long rate, long burst) {
+
+        if (rate <= 0)
+            throw new IllegalArgumentException("Rate must be positive.");
+
+        // Account for bytes accumulated at the previous rate
+        refill();
+
+        this.rate = rate;
+        this.burst = Math.max(burst, 0);
+        this.tokens = Math.min(this.burst, tokens);
+
+    }
+
+    /**
+     * Changes the rate at which this bucket refills, allowing the bucket to
+     * hold up to one second of data at the new rate.
+     *
+     * @param rate
+     *     The number of bytes added to the bucket each second. This value
+     *     must be positive.
+     *
+     * @throws IllegalArgumentException
+     *     If the given rate is not positive.
+     */
+    public void setRate(long rate) {
+        setRate(rate, rate);
+    }
+
+    /**
+     * Adds any bytes accumulated since the bucket was last refilled. This
+     * function must be invoked while synchronized on this bucket.
+     */
+    private void refill() {
+
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000000000.0);
+        lastRefill = now;
+
+    }
+
+    /**
+     * Removes the given number of bytes from the bucket, placing the bucket
+     * in debt if fewer bytes are available.
+     *
+     * @param bytes
+     *     The number of bytes read.
+     */
+    public synchronized void consume(long bytes) {
+        refill();
+        tokens -= bytes;
+    }
+
+    /**
+     * Returns the number of milliseconds which must elapse before the bucket
+     * is no longer in debt.
+     *
+     * @return
+     *     The number of milliseconds which must elapse before further data
+     *     may be read, or zero if data may be read now.
+     */
+    public synchronized long getDelay() {
+
+        refill();
+        if (tokens >= 0)
+            return 0;
+
+        return (long) Math.ceil(-tokens * 1000 / rate);
+
+    }
+
+    /**
+     * Returns the number of bytes added to the bucket each second.
+     *
+     * @return
+     *     The number of bytes added to the bucket each second.
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns the maximum number of bytes the bucket may hold.
+     *
+     * @return
+     *     The maximum number of bytes the bucket may hold.
+     */
+    public synchronized long getBurst() {
+        return burst;
+    }
+
+}
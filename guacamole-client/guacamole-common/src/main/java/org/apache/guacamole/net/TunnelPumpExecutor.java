@@ -0,0 +1,505 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.net;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor which runs the long-lived "read pumps" of tunnels, each of which
+ * reads from a tunnel for the lifetime of that tunnel. Pumps are run on
+ * virtual threads where the JVM supports them (Java 21 and later), as a
+ * virtual thread blocked in read() costs only its heap-allocated stack.
+ * Otherwise, pumps are run on a pool of platform threads, optionally bounded
+ * such that excess pumps are rejected rather than exhausting the native
+ * thread limit of the host.
+ *
+ * Statistics describing the cost of each pump are maintained, including the
+ * time taken to dispatch each pump to a thread and, where measurable, the
+ * amount of memory allocated by each pump. These statistics are logged each
+ * time the number of simultaneously-running pumps reaches a new peak, and
+ * whenever a pump is rejected.
+ */
+public class TunnelPumpExecutor implements Executor {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(TunnelPumpExecutor.class);
+
+    /**
+     * The number of seconds that an idle platform thread is retained for
+     * reuse by a future pump.
+     */
+    private static final long KEEP_ALIVE = 60;
+
+    /**
+     * Factory producing virtual threads, or null if virtual threads are not
+     * supported by this JVM.
+     */
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+
+    /**
+     * The getThreadAllocatedBytes() function of the HotSpot-specific
+     * ThreadMXBean, or null if allocations cannot be measured.
+     */
+    private static final Method GET_THREAD_ALLOCATED_BYTES = findAllocationCounter();
+
+    /**
+     * The executor used by default, created upon first use.
+     */
+    private static TunnelPumpExecutor defaultExecutor;
+
+    /**
+     * The name given to each thread created by this executor, followed by a
+     * unique number.
+     */
+    private final String name;
+
+    /**
+     * The pool of platform threads running pumps, or null if pumps run on
+     * virtual threads.
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * The number of threads created thus far.
+     */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * The total number of pumps which have been started.
+     */
+    private final AtomicLong startedCount = new AtomicLong();
+
+    /**
+     * The total number of pumps which were rejected.
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * The number of pumps currently running.
+     */
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    /**
+     * The highest number of pumps which have run simultaneously.
+     */
+    private final AtomicInteger peakActiveCount = new AtomicInteger();
+
+    /**
+     * The total number of nanoseconds spent dispatching pumps to threads,
+     * including the creation of any new threads.
+     */
+    private final AtomicLong dispatchTime = new AtomicLong();
+
+    /**
+     * The total number of pumps which have completed.
+     */
+    private final AtomicLong completedCount = new AtomicLong();
+
+    /**
+     * The total number of bytes allocated by completed pumps whose
+     * allocations could be measured.
+     */
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /**
+     * The number of completed pumps whose allocations could be measured.
+     */
+    private final AtomicLong measuredCount = new AtomicLong();
+
+    /**
+     * Creates a new TunnelPumpExecutor which runs pumps on virtual threads if
+     * requested and supported, and on platform threads otherwise.
+     *
+     * @param name
+     *     The name to give each thread created, followed by a unique number.
+     *
+     * @param useVirtualThreads
+     *     Whether pumps should be run on virtual threads if supported.
+     *
+     * @param maxPlatformThreads
+     *     The maximum number of platform threads which may run pumps
+     *     simultaneously, or zero if there is no limit. Pumps submitted
+     *     while this many platform threads are busy are rejected.
+     */
+    public TunnelPumpExecutor(String name, boolean useVirtualThreads,
+            int maxPlatformThreads) {
+
+        this.name = name;
+
+        // Virtual threads require no pool
+        if (useVirtualThreads && VIRTUAL_THREAD_FACTORY != null) {
+            pool = null;
+            return;
+        }
+
+        // Otherwise, use a pool of platform threads, reusing idle threads
+        // and rejecting work beyond the limit
+        pool = new ThreadPoolExecutor(0,
+                maxPlatformThreads > 0 ? maxPlatformThreads : Integer.MAX_VALUE,
+                KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        return new Thread(task, threadName());
+                    }
+
+                });
+
+    }
+
+    /**
+     * Returns the executor used for tunnel pumps by default. This executor
+     * uses virtual threads if supported, falling back to an unbounded pool of
+     * platform threads.
+     *
+     * @return
+     *     The default TunnelPumpExecutor.
+     */
+    public static synchronized TunnelPumpExecutor getDefault() {
+
+        if (defaultExecutor == null)
+            defaultExecutor = new TunnelPumpExecutor("guacamole-tunnel-pump", true, 0);
+
+        return defaultExecutor;
+
+    }
+
+    /**
+     * Creates a ThreadFactory producing virtual threads, if supported by this
+     * JVM. Reflection is used, as virtual threads are not part of the API of
+     * the Java versions this library targets.
+     *
+     * @return
+     *     A ThreadFactory producing virtual threads, or null if virtual
+     *     threads are not supported.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        }
+
+        // Virtual threads not supported
+        catch (ClassNotFoundException e) {}
+        catch (NoSuchMethodException e) {}
+        catch (IllegalAccessException e) {}
+        catch (InvocationTargetException e) {}
+
+        return null;
+
+    }
+
+    /**
+     * Returns whether virtual threads are supported by this JVM.
+     *
+     * @return
+     *     true if virtual threads are supported, false otherwise.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Returns a new, unique name for a thread created by this executor.
+     *
+     * @return
+     *     A unique thread name.
+     */
+    private String threadName() {
+        return name + "-" + threadCount.incrementAndGet();
+    }
+
+    /**
+     * Locates the getThreadAllocatedBytes() function of the HotSpot-specific
+     * extension of ThreadMXBean, if provided by this JVM and enabled.
+     *
+     * @return
+     *     The getThreadAllocatedBytes() function, or null if allocations
+     *     cannot be measured.
+     */
+    private static Method findAllocationCounter() {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        try {
+
+            Class<?> extension = Class.forName("com.sun.management.ThreadMXBean");
+            if (!extension.isInstance(threads))
+                return null;
+
+            // Allocation counting may be supported yet disabled
+            if (!((Boolean) extension.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads)))
+                return null;
+
+            return extension.getMethod("getThreadAllocatedBytes", long.class);
+
+        }
+
+        // Allocations cannot be measured
+        catch (ClassNotFoundException e) {}
+        catch (NoSuchMethodException e) {}
+        catch (IllegalAccessException e) {}
+        catch (InvocationTargetException e) {}
+
+        return null;
+
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread thus far,
+     * if measurable.
+     *
+     * @return
+     *     The number of bytes allocated by the current thread, or -1 if this
+     *     cannot be measured.
+     */
+    private static long getAllocatedBytes() {
+
+        if (GET_THREAD_ALLOCATED_BYTES == null)
+            return -1;
+
+        try {
+            return (Long) GET_THREAD_ALLOCATED_BYTES.invoke(
+                    ManagementFactory.getThreadMXBean(),
+                    Thread.currentThread().getId());
+        }
+        catch (IllegalAccessException e) {}
+        catch (InvocationTargetException e) {}
+
+        return -1;
+
+    }
+
+    /**
+     * Runs the given pump, maintaining all statistics.
+     *
+     * @param pump
+     *     The pump to run.
+     */
+    private void run(Runnable pump) {
+
+        // Track concurrency, reporting the cost of pumps at each new peak
+        int active = activeCount.incrementAndGet();
+        for (;;) {
+
+            int peak = peakActiveCount.get();
+            if (active <= peak)
+                break;
+
+            if (peakActiveCount.compareAndSet(peak, active)) {
+                logger.info("Tunnel pumps reached a new peak of {} running "
+                        + "simultaneously ({}).", active, this);
+                break;
+            }
+
+        }
+
+        long startTime = System.currentTimeMillis();
+        long startBytes = (pool != null) ? getAllocatedBytes() : -1;
+
+        try {
+            pump.run();
+        }
+        finally {
+
+            activeCount.decrementAndGet();
+            completedCount.incrementAndGet();
+
+            // Record allocations, if measurable
+            long bytes = -1;
+            if (startBytes != -1) {
+                long endBytes = getAllocatedBytes();
+                if (endBytes != -1) {
+                    bytes = endBytes - startBytes;
+                    allocatedBytes.addAndGet(bytes);
+                    measuredCount.incrementAndGet();
+                }
+            }
+
+            logger.debug("Tunnel pump completed after {} ms ({} bytes "
+                    + "allocated). Pump statistics: {}",
+                    System.currentTimeMillis() - startTime, bytes, this);
+
+        }
+
+    }
+
+    @Override
+    public void execute(final Runnable pump) throws RejectedExecutionException {
+
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                TunnelPumpExecutor.this.run(pump);
+            }
+
+        };
+
+        long start = System.nanoTime();
+
+        try {
+
+            // Start a new virtual thread for each pump
+            if (pool == null) {
+                Thread thread = VIRTUAL_THREAD_FACTORY.newThread(task);
+                thread.setName(threadName());
+                thread.start();
+            }
+
+            // Otherwise, reuse or create a platform thread
+            else
+                pool.execute(task);
+
+        }
+        catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            logger.warn("Tunnel pump rejected: all {} threads are in use ({}).",
+                    pool.getMaximumPoolSize(), this);
+            throw e;
+        }
+
+        dispatchTime.addAndGet(System.nanoTime() - start);
+        startedCount.incrementAndGet();
+
+    }
+
+    /**
+     * Returns whether this executor runs pumps on virtual threads.
+     *
+     * @return
+     *     true if pumps are run on virtual threads, false if pumps are run
+     *     on platform threads.
+     */
+    public boolean isVirtual() {
+        return pool == null;
+    }
+
+    /**
+     * Returns the total number of threads created by this executor.
+     *
+     * @return
+     *     The total number of threads created.
+     */
+    public int getThreadCount() {
+        return threadCount.get();
+    }
+
+    /**
+     * Returns the total number of pumps started by this executor.
+     *
+     * @return
+     *     The total number of pumps started.
+     */
+    public long getStartedCount() {
+        return startedCount.get();
+    }
+
+    /**
+     * Returns the total number of pumps rejected by this executor because
+     * all permitted platform threads were in use.
+     *
+     * @return
+     *     The total number of pumps rejected.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of pumps currently running.
+     *
+     * @return
+     *     The number of pumps currently running.
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * Returns the highest number of pumps which have run simultaneously.
+     *
+     * @return
+     *     The highest number of simultaneously-running pumps.
+     */
+    public int getPeakActiveCount() {
+        return peakActiveCount.get();
+    }
+
+    /**
+     * Returns the average time taken to dispatch a pump to a thread,
+     * including the creation and starting of any new thread. This is the
+     * per-session cost of thread creation.
+     *
+     * @return
+     *     The average dispatch time in nanoseconds, or zero if no pumps have
+     *     been started.
+     */
+    public long getAverageDispatchTime() {
+        long started = startedCount.get();
+        return started == 0 ? 0 : dispatchTime.get() / started;
+    }
+
+    /**
+     * Returns the average number of bytes of heap allocated by each completed
+     * pump over its lifetime. Allocations can be measured only for pumps
+     * running on platform threads of a JVM whose ThreadMXBean supports
+     * allocation counting.
+     *
+     * @return
+     *     The average number of bytes allocated per pump, or -1 if no
+     *     allocations have been measured.
+     */
+    public long getAverageAllocatedBytes() {
+        long measured = measuredCount.get();
+        return measured == 0 ? -1 : allocatedBytes.get() / measured;
+    }
+
+    @Override
+    public String toString() {
+        return (isVirtual() ? "virtual" : "platform")
+            + " threads=" + getThreadCount()
+            + " started=" + getStartedCount()
+            + " active=" + getActiveCount()
+            + " peak=" + getPeakActiveCount()
+            + " rejected=" + getRejectedCount()
+            + " dispatch=" + getAverageDispatchTime() + "ns"
+            + " allocated=" + getAverageAllocatedBytes() + "B";
+    }
+
+}
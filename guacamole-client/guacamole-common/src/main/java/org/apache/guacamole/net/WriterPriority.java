@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import org.apache.guacamole.io.GuacamoleWriter;
+
+/**
+ * The classes of data which may be written toward guacd by the threads
+ * sharing a tunnel, in order of decreasing urgency. When several threads are
+ * waiting for write access to the same tunnel, the thread waiting to send the
+ * most urgent class of data is granted access first, such that user input is
+ * not delayed behind bulk stream data. Lower classes are never starved, as a
+ * waiting thread is granted access once it has been passed over a bounded
+ * number of times.
+ *
+ * Priority affects only the order in which waiting threads are granted access
+ * to the writer. The data written by any one thread, and thus the order of the
+ * instructions of any one stream, is never reordered.
+ */
+public enum WriterPriority {
+
+    /**
+     * User input, such as mouse movement, key presses, and changes to the
+     * size of the display. The latency of this data is directly perceived by
+     * the user.
+     */
+    INPUT,
+
+    /**
+     * Control instructions, such as stream acknowledgements and frame
+     * synchronization, which are small but which may hold up the flow of data
+     * if delayed. This is the priority of any instruction which is neither
+     * input nor bulk data.
+     */
+    CONTROL,
+
+    /**
+     * Bulk stream data, such as the blobs of a file upload, for which overall
+     * throughput matters more than the latency of any one instruction.
+     */
+    BULK;
+
+    /**
+     * The opcodes of all instructions which carry user input.
+     */
+    private static final String[] INPUT_OPCODES = {
+        "mouse", "key", "size", "touch"
+    };
+
+    /**
+     * The opcodes of all instructions which carry bulk stream data.
+     */
+    private static final String[] BULK_OPCODES = {
+        "blob"
+    };
+
+    /**
+     * Returns whether the given region of characters is identical to any of
+     * the given strings.
+     *
+     * @param buffer
+     *     The buffer containing the region of characters to test.
+     *
+     * @param offset
+     *     The offset of the first character of the region.
+     *
+     * @param length
+     *     The number of characters in the region.
+     *
+     * @param values
+     *     The strings to compare against.
+     *
+     * @return
+     *     true if the region is identical to any of the given strings, false
+     *     otherwise.
+     */
+    private static boolean matches(char[] buffer, int offset, int length,
+            String[] values) {
+
+        for (String value : values) {
+
+            if (value.length() != length)
+                continue;
+
+            int i = 0;
+            while (i < length && buffer[offset + i] == value.charAt(i))
+                i++;
+
+            if (i == length)
+                return true;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Returns the priority of the instruction having the given opcode, where
+     * the opcode is the given region of characters.
+     *
+     * @param buffer
+     *     The buffer containing the opcode.
+     *
+     * @param offset
+     *     The offset of the first character of the opcode.
+     *
+     * @param length
+     *     The number of characters in the opcode.
+     *
+     * @return
+     *     The priority of the instruction having the given opcode.
+     */
+    private static WriterPriority forOpcode(char[] buffer, int offset,
+            int length) {
+
+        if (matches(buffer, offset, length, INPUT_OPCODES))
+            return INPUT;
+
+        if (matches(buffer, offset, length, BULK_OPCODES))
+            return BULK;
+
+        return CONTROL;
+
+    }
+
+    /**
+     * Returns the priority of the instruction having the given opcode.
+     *
+     * @param opcode
+     *     The opcode of the instruction.
+     *
+     * @return
+     *     The priority of the instruction having the given opcode.
+     */
+    public static WriterPriority forOpcode(String opcode) {
+
+        for (String input : INPUT_OPCODES) {
+            if (input.equals(opcode))
+                return INPUT;
+        }
+
+        for (String bulk : BULK_OPCODES) {
+            if (bulk.equals(opcode))
+                return BULK;
+        }
+
+        return CONTROL;
+
+    }
+
+    /**
+     * Returns the priority of the given Guacamole protocol data, which may
+     * contain any number of complete instructions. As the data is written as
+     * a whole, the data is given the priority of its most urgent instruction,
+     * such that user input is never delayed by the other instructions it
+     * happens to be sent with. Only the opcodes of the instructions are
+     * inspected, thus data which ends partway through an instruction, such as
+     * the first chunk of a larger message, is classified by the opcodes it
+     * contains. If the data is empty or is not well-formed, the priority of
+     * any instructions which could not be read is assumed to be CONTROL.
+     *
+     * @param buffer
+     *     The buffer containing the Guacamole protocol data.
+     *
+     * @param offset
+     *     The offset of the first character of the data.
+     *
+     * @param length
+     *     The number of characters of data.
+     *
+     * @return
+     *     The priority of the given data.
+     */
+    public static WriterPriority forMessage(char[] buffer, int offset,
+            int length) {
+
+        WriterPriority priority = null;
+
+        int end = offset + length;
+        int i = offset;
+        boolean opcode = true;
+
+        while (i < end) {
+
+            // Parse length prefix of element
+            int elementLength = 0;
+            int digitsEnd = Math.min(end, i + 9);
+            int digitsStart = i;
+            while (i < digitsEnd && buffer[i] >= '0' && buffer[i] <= '9')
+                elementLength = elementLength * 10 + (buffer[i++] - '0');
+
+            // Stop at the first malformed element
+            if (i == digitsStart || (i < end && buffer[i] != '.'))
+                return CONTROL;
+
+            // Data may end partway through an instruction, in which case
+            // that instruction is classified by its opcode alone
+            if (i >= end || elementLength > end - i - 2) {
+                if (!opcode)
+                    return priority;
+                return CONTROL;
+            }
+
+            int valueStart = i + 1;
+            i = valueStart + elementLength;
+
+            // Classify each instruction by its opcode, stopping once nothing
+            // can be more urgent
+            if (opcode) {
+                WriterPriority current = forOpcode(buffer, valueStart, elementLength);
+                if (priority == null || current.compareTo(priority) < 0)
+                    priority = current;
+                if (priority == INPUT)
+                    return INPUT;
+            }
+
+            // The next element is an opcode only if this element ends the
+            // instruction
+            char terminator = buffer[i++];
+            if (terminator == ';')
+                opcode = true;
+            else if (terminator == ',')
+                opcode = false;
+            else
+                return CONTROL;
+
+        }
+
+        if (priority == null)
+            return CONTROL;
+
+        return priority;
+
+    }
+
+    /**
+     * Returns the priority of the given Guacamole protocol data, which may
+     * contain any number of complete instructions, as defined by
+     * forMessage(char[], int, int).
+     *
+     * @param buffer
+     *     The buffer containing the Guacamole protocol data.
+     *
+     * @return
+     *     The priority of the given data.
+     */
+    public static WriterPriority forMessage(char[] buffer) {
+        return forMessage(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Acquires exclusive write access to the given tunnel with the given
+     * priority, if that tunnel grants write access by priority. Tunnels which
+     * do not implement PrioritizedGuacamoleTunnel grant write access in their
+     * usual order.
+     *
+     * @param tunnel
+     *     The tunnel to acquire write access to.
+     *
+     * @param priority
+     *     The priority of the data which will be written while write access
+     *     is held.
+     *
+     * @return
+     *     A GuacamoleWriter for writing to the Guacamole instruction stream
+     *     of the given tunnel.
+     */
+    public static GuacamoleWriter acquireWriter(GuacamoleTunnel tunnel,
+            WriterPriority priority) {
+
+        if (tunnel instanceof PrioritizedGuacamoleTunnel)
+            return ((PrioritizedGuacamoleTunnel) tunnel).acquireWriter(priority);
+
+        return tunnel.acquireWriter();
+
+    }
+
+}
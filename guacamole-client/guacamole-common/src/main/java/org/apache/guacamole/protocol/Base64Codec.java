@@ -0,0 +1,365 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Base64 encoder and decoder which works directly between caller-provided
+ * buffers, allocating nothing per call. Blob data within the Guacamole
+ * protocol is always base64-encoded, and instructions read from guacd can be
+ * decoded straight from the buffer they were received into, without first
+ * decoding their arguments into Strings.
+ */
+public final class Base64Codec {
+
+    /**
+     * The characters of the base64 alphabet, by value.
+     */
+    private static final char[] ENCODE =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * The value of each character of the base64 alphabet, indexed by the
+     * low eight bits of the character, with -1 for characters outside the
+     * alphabet.
+     */
+    private static final int[] DECODE = new int[256];
+
+    static {
+        Arrays.fill(DECODE, -1);
+        for (int i = 0; i < ENCODE.length; i++)
+            DECODE[ENCODE[i]] = i;
+    }
+
+    /**
+     * The padding character used when the encoded data is not a multiple of
+     * three bytes.
+     */
+    private static final char PAD = '=';
+
+    /**
+     * This class is a utility class and should not be instantiated.
+     */
+    private Base64Codec() {}
+
+    /**
+     * Returns the number of characters required to encode the given number
+     * of bytes, including padding.
+     *
+     * @param length
+     *     The number of bytes to encode.
+     *
+     * @return
+     *     The number of base64 characters required.
+     */
+    public static int getEncodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Returns the largest number of bytes which the given number of base64
+     * characters may decode to.
+     *
+     * @param length
+     *     The number of base64 characters to decode.
+     *
+     * @return
+     *     The maximum number of bytes produced by decoding.
+     */
+    public static int getMaxDecodedLength(int length) {
+        return length / 4 * 3;
+    }
+
+    /**
+     * Encodes the given bytes as base64, storing the result in the given
+     * character buffer.
+     *
+     * @param src
+     *     The buffer containing the bytes to encode.
+     *
+     * @param offset
+     *     The offset of the first byte to encode.
+     *
+     * @param length
+     *     The number of bytes to encode.
+     *
+     * @param dst
+     *     The buffer which should receive the encoded characters. This
+     *     buffer must have room for getEncodedLength(length) characters.
+     *
+     * @param dstOffset
+     *     The offset within dst at which to store the first character.
+     *
+     * @return
+     *     The number of characters stored.
+     */
+    public static int encode(byte[] src, int offset, int length, char[] dst,
+            int dstOffset) {
+
+        int in = offset;
+        int out = dstOffset;
+        int fullEnd = offset + length / 3 * 3;
+
+        // Encode each complete group of three bytes
+        while (in < fullEnd) {
+            int bits = (src[in] & 0xFF) << 16 | (src[in + 1] & 0xFF) << 8
+                    | (src[in + 2] & 0xFF);
+            dst[out]     = ENCODE[bits >>> 18];
+            dst[out + 1] = ENCODE[(bits >>> 12) & 0x3F];
+            dst[out + 2] = ENCODE[(bits >>> 6) & 0x3F];
+            dst[out + 3] = ENCODE[bits & 0x3F];
+            in += 3;
+            out += 4;
+        }
+
+        // Encode and pad any remaining one or two bytes
+        int remaining = offset + length - in;
+        if (remaining > 0) {
+
+            int bits = (src[in] & 0xFF) << 16;
+            if (remaining == 2)
+                bits |= (src[in + 1] & 0xFF) << 8;
+
+            dst[out]     = ENCODE[bits >>> 18];
+            dst[out + 1] = ENCODE[(bits >>> 12) & 0x3F];
+            dst[out + 2] = (remaining == 2) ? ENCODE[(bits >>> 6) & 0x3F] : PAD;
+            dst[out + 3] = PAD;
+            out += 4;
+
+        }
+
+        return out - dstOffset;
+
+    }
+
+    /**
+     * Returns the value of the given base64 character, or -1 if the
+     * character is not part of the base64 alphabet.
+     *
+     * @param c
+     *     The character to decode.
+     *
+     * @return
+     *     The six-bit value of the given character, or -1 if the character
+     *     is invalid.
+     */
+    private static int valueOf(char c) {
+
+        // Characters beyond the table are forced negative without branching
+        return DECODE[c & 0xFF] | ((0xFF - c) >> 31);
+
+    }
+
+    /**
+     * Creates the exception thrown when base64 data is invalid.
+     *
+     * @return
+     *     A new IllegalArgumentException describing invalid base64 data.
+     */
+    private static IllegalArgumentException invalid() {
+        return new IllegalArgumentException("Invalid base64 data.");
+    }
+
+    /**
+     * Decodes the given base64 characters, storing the result in the given
+     * byte buffer.
+     *
+     * @param src
+     *     The buffer containing the characters to decode.
+     *
+     * @param offset
+     *     The offset of the first character to decode.
+     *
+     * @param length
+     *     The number of characters to decode. This must be a multiple of
+     *     four.
+     *
+     * @param dst
+     *     The buffer which should receive the decoded bytes. This buffer must
+     *     have room for getMaxDecodedLength(length) bytes.
+     *
+     * @param dstOffset
+     *     The offset within dst at which to store the first byte.
+     *
+     * @return
+     *     The number of bytes stored.
+     *
+     * @throws IllegalArgumentException
+     *     If the given characters are not valid base64.
+     */
+    public static int decode(char[] src, int offset, int length, byte[] dst,
+            int dstOffset) {
+
+        if (length % 4 != 0)
+            throw new IllegalArgumentException("Length of base64 data must be a multiple of 4.");
+
+        if (length == 0)
+            return 0;
+
+        int last = offset + length - 4;
+        int in = offset;
+        int out = dstOffset;
+
+        // Decode every group except the last, none of which may be padded.
+        // Invalid characters have negative values, thus any invalid character
+        // within a group results in negative bits.
+        while (in < last) {
+
+            int bits = valueOf(src[in]) << 18 | valueOf(src[in + 1]) << 12
+                    | valueOf(src[in + 2]) << 6 | valueOf(src[in + 3]);
+            if (bits < 0)
+                throw invalid();
+
+            dst[out]     = (byte) (bits >>> 16);
+            dst[out + 1] = (byte) (bits >>> 8);
+            dst[out + 2] = (byte) bits;
+            in += 4;
+            out += 3;
+
+        }
+
+        // Decode final group, which may contain one or two padding characters
+        char c = src[in + 2];
+        char d = src[in + 3];
+        int bits = valueOf(src[in]) << 18 | valueOf(src[in + 1]) << 12;
+
+        if (d != PAD)
+            bits |= valueOf(c) << 6 | valueOf(d);
+        else if (c != PAD)
+            bits |= valueOf(c) << 6;
+
+        if (bits < 0 || (c == PAD && d != PAD))
+            throw invalid();
+
+        dst[out++] = (byte) (bits >>> 16);
+        if (c != PAD) {
+            dst[out++] = (byte) (bits >>> 8);
+            if (d != PAD)
+                dst[out++] = (byte) bits;
+        }
+
+        return out - dstOffset;
+
+    }
+
+    /**
+     * Decodes the given base64 characters, writing the result to the given
+     * OutputStream in chunks no larger than the given buffer. Each chunk is
+     * validated before it is written, however if the data does not fit
+     * within a single chunk, chunks preceding an invalid chunk will already
+     * have been written when decoding fails.
+     *
+     * @param src
+     *     The buffer containing the characters to decode.
+     *
+     * @param offset
+     *     The offset of the first character to decode.
+     *
+     * @param length
+     *     The number of characters to decode. This must be a multiple of
+     *     four.
+     *
+     * @param output
+     *     The OutputStream to write decoded bytes to.
+     *
+     * @param buffer
+     *     The buffer to decode each chunk into. This buffer must be at least
+     *     three bytes long.
+     *
+     * @return
+     *     The total number of bytes written.
+     *
+     * @throws IOException
+     *     If an error occurs while writing to the OutputStream.
+     *
+     * @throws IllegalArgumentException
+     *     If the given characters are not valid base64.
+     */
+    public static int decode(char[] src, int offset, int length,
+            OutputStream output, byte[] buffer) throws IOException {
+
+        if (length % 4 != 0)
+            throw new IllegalArgumentException("Length of base64 data must be a multiple of 4.");
+
+        int chunkLength = buffer.length / 3 * 4;
+        int written = 0;
+
+        while (length > 0) {
+
+            int decodeLength = Math.min(length, chunkLength);
+            int decoded = decode(src, offset, decodeLength, buffer, 0);
+            output.write(buffer, 0, decoded);
+
+            offset += decodeLength;
+            length -= decodeLength;
+            written += decoded;
+
+        }
+
+        return written;
+
+    }
+
+    /**
+     * Decodes the given base64 argument of the given instruction, writing the
+     * result to the given OutputStream in chunks no larger than the given
+     * buffer. If the instruction was parsed from received data, the argument
+     * is decoded directly from the received characters.
+     *
+     * @param instruction
+     *     The instruction containing the base64 argument.
+     *
+     * @param index
+     *     The index of the argument to decode.
+     *
+     * @param output
+     *     The OutputStream to write decoded bytes to.
+     *
+     * @param buffer
+     *     The buffer to decode each chunk into. This buffer must be at least
+     *     three bytes long.
+     *
+     * @return
+     *     The total number of bytes written.
+     *
+     * @throws IOException
+     *     If an error occurs while writing to the OutputStream.
+     *
+     * @throws IllegalArgumentException
+     *     If the argument is not valid base64.
+     */
+    public static int decode(GuacamoleInstruction instruction, int index,
+            OutputStream output, byte[] buffer) throws IOException {
+
+        // Decode directly from received data if possible
+        char[] received = instruction.getArgBuffer();
+        if (received != null)
+            return decode(received, instruction.getArgOffset(index),
+                    instruction.getArgLength(index), output, buffer);
+
+        char[] value = instruction.getArgs().get(index).toCharArray();
+        return decode(value, 0, value.length, output, buffer);
+
+    }
+
+}
@@ -23,9 +23,13 @@ package org.apache.guacamole.protocol;
 import java.util.List;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.io.FlushableGuacamoleWriter;
 import org.apache.guacamole.io.GuacamoleReader;
 import org.apache.guacamole.io.GuacamoleWriter;
 import org.apache.guacamole.net.GuacamoleSocket;
+import org.apache.guacamole.net.TimedGuacamoleSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A GuacamoleSocket which pre-configures the connection based on a given
@@ -41,6 +45,11 @@ import org.apache.guacamole.net.GuacamoleSocket;
  */
 public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
 
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ConfiguredGuacamoleSocket.class);
+
     /**
      * The wrapped socket.
      */
@@ -57,6 +66,11 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
      * by the "ready" instruction received from the Guacamole proxy.
      */
     private String id;
+
+    /**
+     * The time spent within each phase of establishing this connection.
+     */
+    private GuacamoleHandshakeTiming timing;
     
     /**
      * Waits for the instruction having the given opcode, returning that
@@ -85,6 +99,18 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
 
     }
  
+    /**
+     * Sends any instructions buffered by the given writer, such that the
+     * Guacamole proxy can respond to them.
+     *
+     * @param writer The writer to flush.
+     * @throws GuacamoleException If an error occurs while flushing.
+     */
+    private void flush(GuacamoleWriter writer) throws GuacamoleException {
+        if (writer instanceof FlushableGuacamoleWriter)
+            ((FlushableGuacamoleWriter) writer).flush();
+    }
+
     /**
      * Creates a new ConfiguredGuacamoleSocket which uses the given
      * GuacamoleConfiguration to complete the initial protocol handshake over
@@ -132,10 +158,13 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
             select_arg = config.getProtocol();
 
         // Send requested protocol or connection ID
+        long selectStart = System.nanoTime();
         writer.writeInstruction(new GuacamoleInstruction("select", select_arg));
+        flush(writer);
 
         // Wait for server args
         GuacamoleInstruction args = expect(reader, "args");
+        long selectTime = System.nanoTime() - selectStart;
 
         // Build args list off provided names and config
         List<String> arg_names = args.getArgs();
@@ -156,7 +185,11 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
 
         }
 
-        // Send size
+        // Send all remaining handshake instructions as a single batch,
+        // serialized directly by the writer
+        long connectStart = System.nanoTime();
+
+        // Size
         writer.writeInstruction(
             new GuacamoleInstruction(
                 "size",
@@ -166,32 +199,34 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
             )
         );
 
-        // Send supported audio formats
+        // Supported audio formats
         writer.writeInstruction(
                 new GuacamoleInstruction(
                     "audio",
                     info.getAudioMimetypes().toArray(new String[0])
                 ));
 
-        // Send supported video formats
+        // Supported video formats
         writer.writeInstruction(
                 new GuacamoleInstruction(
                     "video",
                     info.getVideoMimetypes().toArray(new String[0])
                 ));
 
-        // Send supported image formats
+        // Supported image formats
         writer.writeInstruction(
                 new GuacamoleInstruction(
                     "image",
                     info.getImageMimetypes().toArray(new String[0])
                 ));
 
-        // Send args
+        // Args
         writer.writeInstruction(new GuacamoleInstruction("connect", arg_values));
+        flush(writer);
 
         // Wait for ready, store ID
         GuacamoleInstruction ready = expect(reader, "ready");
+        long readyTime = System.nanoTime() - connectStart;
 
         List<String> ready_args = ready.getArgs();
         if (ready_args.isEmpty())
@@ -199,6 +234,20 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
 
         id = ready.getArgs().get(0);
 
+        // Include time spent connecting, if known
+        long resolutionTime = -1;
+        long connectTime = -1;
+        if (socket instanceof TimedGuacamoleSocket) {
+            TimedGuacamoleSocket timedSocket = (TimedGuacamoleSocket) socket;
+            resolutionTime = timedSocket.getResolutionTime();
+            connectTime = timedSocket.getConnectTime();
+        }
+
+        timing = new GuacamoleHandshakeTiming(resolutionTime, connectTime,
+                selectTime, readyTime);
+
+        logger.info("Connection \"{}\" established ({}).", id, timing);
+
     }
 
     /**
@@ -223,6 +272,19 @@ public class ConfiguredGuacamoleSocket implements GuacamoleSocket {
         return id;
     }
 
+    /**
+     * Returns the time spent within each phase of establishing the Guacamole
+     * connection negotiated by this ConfiguredGuacamoleSocket, including the
+     * time spent connecting the wrapped socket if that socket records such
+     * timing.
+     *
+     * @return The time spent within each phase of establishing the
+     *         connection.
+     */
+    public GuacamoleHandshakeTiming getHandshakeTiming() {
+        return timing;
+    }
+
     @Override
     public GuacamoleWriter getWriter() {
         return socket.getWriter();
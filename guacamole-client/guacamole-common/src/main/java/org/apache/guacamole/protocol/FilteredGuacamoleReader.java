@@ -19,17 +19,30 @@
 
 package org.apache.guacamole.protocol;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleUnsupportedException;
+import org.apache.guacamole.io.GuacamoleByteReader;
 import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.SelectableGuacamoleReader;
 
 /**
  * GuacamoleReader which applies a given GuacamoleFilter to observe or alter all
  * read instructions. Instructions may also be dropped or denied by the the
  * filter.
  *
+ * If the wrapped reader is a GuacamoleByteReader and the filter is a
+ * GuacamoleFilterChain, instructions which no filter in the chain is
+ * interested in are passed through by readBytes() as raw bytes, without being
+ * decoded or parsed.
+ *
+ * If the wrapped reader is a SelectableGuacamoleReader, this reader may
+ * likewise be serviced without blocking through pollBytes().
+ *
  * @author Michael Jumper
  */
-public class FilteredGuacamoleReader implements GuacamoleReader {
+public class FilteredGuacamoleReader implements SelectableGuacamoleReader {
 
     /**
      * The wrapped GuacamoleReader.
@@ -41,6 +54,24 @@ public class FilteredGuacamoleReader implements GuacamoleReader {
      */
     private final GuacamoleFilter filter;
 
+    /**
+     * The filter to apply when reading instructions, if that filter is a
+     * GuacamoleFilterChain, or null otherwise.
+     */
+    private final GuacamoleFilterChain chain;
+
+    /**
+     * The instruction most recently returned by readBytes(), if that
+     * instruction has been parsed, or null otherwise.
+     */
+    private GuacamoleInstruction lastInstruction;
+
+    /**
+     * Buffer containing the UTF-8 encoding of the instruction most recently
+     * returned by readBytes(), if that instruction had to be encoded.
+     */
+    private ByteBuffer encoded = ByteBuffer.allocate(0);
+
     /**
      * Wraps the given GuacamoleReader, applying the given filter to all read
      * instructions. Future reads will return only instructions which pass
@@ -53,6 +84,7 @@ public class FilteredGuacamoleReader implements GuacamoleReader {
     public FilteredGuacamoleReader(GuacamoleReader reader, GuacamoleFilter filter) {
         this.reader = reader;
         this.filter = filter;
+        this.chain = (filter instanceof GuacamoleFilterChain) ? (GuacamoleFilterChain) filter : null;
     }
     
     @Override
@@ -67,10 +99,146 @@ public class FilteredGuacamoleReader implements GuacamoleReader {
         if (filteredInstruction == null)
             return null;
 
-        return filteredInstruction.toString().toCharArray();
+        // Instructions passed through unchanged are returned exactly as
+        // received
+        return filteredInstruction.getCharArray();
         
     }
 
+    /**
+     * Encodes the given instruction as UTF-8 into a buffer which is reused
+     * for each encoded instruction.
+     *
+     * @param instruction
+     *     The instruction to encode.
+     *
+     * @return
+     *     A buffer containing the UTF-8 bytes of the given instruction
+     *     between its position and limit.
+     */
+    private ByteBuffer encode(GuacamoleInstruction instruction) {
+
+        // Each character requires at most three bytes
+        int maxLength = instruction.getLength() * 3;
+        if (encoded.capacity() < maxLength)
+            encoded = ByteBuffer.allocate(maxLength);
+
+        encoded.clear();
+        instruction.writeTo(encoded);
+        encoded.flip();
+
+        return encoded;
+
+    }
+
+    /**
+     * Reads and filters instructions from the wrapped GuacamoleByteReader
+     * until an instruction passes the filter, optionally returning
+     * immediately if no complete instruction can be read without blocking.
+     *
+     * @param byteReader
+     *     The wrapped reader.
+     *
+     * @param block
+     *     true if this function should wait until an instruction passes the
+     *     filter, false if the wrapped reader should be read with
+     *     pollBytes().
+     *
+     * @return
+     *     A buffer containing the bytes of the filtered instruction, or null
+     *     if the wrapped reader returned null.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while reading or filtering.
+     */
+    private ByteBuffer readBytes(GuacamoleByteReader byteReader, boolean block)
+            throws GuacamoleException {
+
+        // Read and filter instructions until no instructions are dropped
+        for (;;) {
+
+            // Read next instruction
+            ByteBuffer instruction = block ? byteReader.readBytes()
+                    : ((SelectableGuacamoleReader) byteReader).pollBytes();
+            if (instruction == null)
+                return null;
+
+            // Pass through raw bytes which no filter is interested in
+            if (chain != null && !chain.isFiltered(instruction))
+                return instruction;
+
+            // Apply filter
+            GuacamoleInstruction unfilteredInstruction = byteReader.decodeInstruction();
+            GuacamoleInstruction filteredInstruction = filter.filter(unfilteredInstruction);
+            if (filteredInstruction == null)
+                continue;
+
+            lastInstruction = filteredInstruction;
+
+            // Pass through raw bytes of unaltered instructions
+            if (filteredInstruction == unfilteredInstruction)
+                return instruction;
+
+            return encode(filteredInstruction);
+
+        }
+
+    }
+
+    @Override
+    public ByteBuffer readBytes() throws GuacamoleException {
+
+        lastInstruction = null;
+
+        // Encode characters from readers which cannot provide bytes
+        if (!(reader instanceof GuacamoleByteReader)) {
+
+            GuacamoleInstruction filteredInstruction = readInstruction();
+            if (filteredInstruction == null)
+                return null;
+
+            lastInstruction = filteredInstruction;
+            return encode(filteredInstruction);
+
+        }
+
+        return readBytes((GuacamoleByteReader) reader, true);
+
+    }
+
+    @Override
+    public SelectableChannel getChannel() {
+
+        // Non-blocking reads are possible only if the wrapped reader allows
+        if (reader instanceof SelectableGuacamoleReader)
+            return ((SelectableGuacamoleReader) reader).getChannel();
+
+        return null;
+
+    }
+
+    @Override
+    public ByteBuffer pollBytes() throws GuacamoleException {
+
+        if (getChannel() == null)
+            throw new GuacamoleUnsupportedException("Wrapped reader cannot be read without blocking.");
+
+        lastInstruction = null;
+        return readBytes((GuacamoleByteReader) reader, false);
+
+    }
+
+    @Override
+    public GuacamoleInstruction decodeInstruction() throws GuacamoleException {
+
+        // Decode pass-through instructions only as requested
+        if (lastInstruction == null && reader instanceof GuacamoleByteReader)
+            return ((GuacamoleByteReader) reader).decodeInstruction();
+
+        return lastInstruction;
+
+    }
+
     @Override
     public GuacamoleInstruction readInstruction() throws GuacamoleException {
 
@@ -21,6 +21,7 @@ package org.apache.guacamole.protocol;
 
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.io.FlushableGuacamoleWriter;
 import org.apache.guacamole.io.GuacamoleWriter;
 
 /**
@@ -30,7 +31,7 @@ import org.apache.guacamole.io.GuacamoleWriter;
  *
  * @author Michael Jumper
  */
-public class FilteredGuacamoleWriter implements GuacamoleWriter {
+public class FilteredGuacamoleWriter implements FlushableGuacamoleWriter {
 
     /**
      * The wrapped GuacamoleWriter.
@@ -101,4 +102,13 @@ public class FilteredGuacamoleWriter implements GuacamoleWriter {
 
     }
 
+    @Override
+    public void flush() throws GuacamoleException {
+
+        // Flush wrapped writer only if it may buffer data
+        if (writer instanceof FlushableGuacamoleWriter)
+            ((FlushableGuacamoleWriter) writer).flush();
+
+    }
+
 }
@@ -0,0 +1,474 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.guacamole.GuacamoleException;
+
+/**
+ * GuacamoleFilter which applies an ordered chain of filters in a single pass,
+ * invoking each filter only for the opcodes it has registered interest in.
+ * Filters are located through a dispatch table keyed by opcode, which can be
+ * consulted using the raw characters or bytes of an instruction, such that
+ * instructions which no filter is interested in need not be parsed at all.
+ *
+ * Filters are applied in the order they were added. If a filter replaces an
+ * instruction with an instruction having a different opcode, the remaining
+ * filters are chosen based on the new opcode.
+ */
+public class GuacamoleFilterChain implements GuacamoleFilter {
+
+    /**
+     * Immutable dispatch table mapping each opcode to the filters interested
+     * in that opcode. A new table is built each time a filter is added, such
+     * that lookups never require locking.
+     */
+    private static class DispatchTable {
+
+        /**
+         * All filters, in the order they were added.
+         */
+        private final GuacamoleFilter[] filters;
+
+        /**
+         * Open-addressed hash table of all opcodes that specific filters have
+         * registered interest in. The size of this array is always a power of
+         * two, and unused slots are null.
+         */
+        private final String[] opcodes;
+
+        /**
+         * The indices of the filters applicable to the opcode in the
+         * corresponding slot of the opcodes array, in ascending order.
+         */
+        private final int[][] indices;
+
+        /**
+         * The indices of the filters which apply to all opcodes, in ascending
+         * order. These are the only filters which apply to opcodes which are
+         * not in the table.
+         */
+        private final int[] defaultIndices;
+
+        /**
+         * Creates a new DispatchTable from the given filters and their
+         * registered opcodes.
+         *
+         * @param filters
+         *     All filters, in the order they were added.
+         *
+         * @param filterOpcodes
+         *     The opcodes registered for the filter at the corresponding
+         *     index, or null if that filter applies to all opcodes.
+         */
+        public DispatchTable(List<GuacamoleFilter> filters,
+                List<String[]> filterOpcodes) {
+
+            this.filters = filters.toArray(new GuacamoleFilter[filters.size()]);
+
+            // Determine the filters applicable to each opcode, including
+            // filters which apply to all opcodes
+            List<Integer> universal = new ArrayList<Integer>();
+            Map<String, List<Integer>> byOpcode = new LinkedHashMap<String, List<Integer>>();
+            for (int i = 0; i < this.filters.length; i++) {
+
+                String[] registered = filterOpcodes.get(i);
+
+                // Filters without registered opcodes apply everywhere
+                if (registered == null) {
+                    universal.add(i);
+                    for (List<Integer> applicable : byOpcode.values())
+                        applicable.add(i);
+                    continue;
+                }
+
+                for (String opcode : registered) {
+
+                    // Each opcode begins with all previous universal filters
+                    List<Integer> applicable = byOpcode.get(opcode);
+                    if (applicable == null) {
+                        applicable = new ArrayList<Integer>(universal);
+                        byOpcode.put(opcode, applicable);
+                    }
+
+                    if (applicable.isEmpty() || applicable.get(applicable.size() - 1) != i)
+                        applicable.add(i);
+
+                }
+
+            }
+
+            this.defaultIndices = toArray(universal);
+
+            // Size table such that it is at most half full
+            int size = 2;
+            while (size < byOpcode.size() * 2)
+                size <<= 1;
+
+            this.opcodes = new String[size];
+            this.indices = new int[size][];
+
+            // Populate table using linear probing
+            for (Map.Entry<String, List<Integer>> entry : byOpcode.entrySet()) {
+
+                String opcode = entry.getKey();
+                int slot = opcode.hashCode() & (size - 1);
+                while (opcodes[slot] != null)
+                    slot = (slot + 1) & (size - 1);
+
+                opcodes[slot] = opcode.intern();
+                indices[slot] = toArray(entry.getValue());
+
+            }
+
+        }
+
+        /**
+         * Converts the given list of integers into an array.
+         *
+         * @param list
+         *     The list to convert.
+         *
+         * @return
+         *     An array containing the same integers in the same order.
+         */
+        private static int[] toArray(List<Integer> list) {
+
+            int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = list.get(i);
+
+            return array;
+
+        }
+
+        /**
+         * Returns the indices of the filters applicable to the given opcode.
+         *
+         * @param opcode
+         *     The opcode to look up.
+         *
+         * @return
+         *     The indices of all applicable filters, in ascending order.
+         */
+        public int[] lookup(String opcode) {
+
+            int mask = opcodes.length - 1;
+            for (int slot = opcode.hashCode() & mask; opcodes[slot] != null; slot = (slot + 1) & mask) {
+                if (opcodes[slot].equals(opcode))
+                    return indices[slot];
+            }
+
+            return defaultIndices;
+
+        }
+
+        /**
+         * Returns the indices of the filters applicable to the opcode stored
+         * within the given portion of an array of characters.
+         *
+         * @param buffer
+         *     The array containing the opcode.
+         *
+         * @param offset
+         *     The offset of the first character of the opcode.
+         *
+         * @param length
+         *     The number of characters in the opcode.
+         *
+         * @return
+         *     The indices of all applicable filters, in ascending order.
+         */
+        public int[] lookup(char[] buffer, int offset, int length) {
+
+            // Hash identically to String.hashCode()
+            int hash = 0;
+            for (int i = 0; i < length; i++)
+                hash = 31 * hash + buffer[offset + i];
+
+            int mask = opcodes.length - 1;
+            for (int slot = hash & mask; opcodes[slot] != null; slot = (slot + 1) & mask) {
+
+                String opcode = opcodes[slot];
+                if (opcode.length() != length)
+                    continue;
+
+                // Compare characters without creating a String
+                int i = 0;
+                while (i < length && opcode.charAt(i) == buffer[offset + i])
+                    i++;
+
+                if (i == length)
+                    return indices[slot];
+
+            }
+
+            return defaultIndices;
+
+        }
+
+        /**
+         * Returns the indices of the filters applicable to the opcode stored
+         * within the given portion of a buffer of UTF-8 bytes. Only opcodes
+         * consisting entirely of ASCII characters are looked up directly. As
+         * any non-ASCII opcode cannot be compared without decoding, all
+         * filters are considered applicable to such opcodes.
+         *
+         * @param buffer
+         *     The buffer containing the opcode.
+         *
+         * @param offset
+         *     The absolute index of the first byte of the opcode.
+         *
+         * @param length
+         *     The number of bytes in the opcode.
+         *
+         * @return
+         *     The indices of all applicable filters, in ascending order, or
+         *     null if the opcode is not ASCII.
+         */
+        public int[] lookup(ByteBuffer buffer, int offset, int length) {
+
+            // Hash identically to String.hashCode()
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+
+                byte b = buffer.get(offset + i);
+                if (b < 0)
+                    return null;
+
+                hash = 31 * hash + b;
+
+            }
+
+            int mask = opcodes.length - 1;
+            for (int slot = hash & mask; opcodes[slot] != null; slot = (slot + 1) & mask) {
+
+                String opcode = opcodes[slot];
+                if (opcode.length() != length)
+                    continue;
+
+                // Compare bytes without creating a String
+                int i = 0;
+                while (i < length && opcode.charAt(i) == buffer.get(offset + i))
+                    i++;
+
+                if (i == length)
+                    return indices[slot];
+
+            }
+
+            return defaultIndices;
+
+        }
+
+    }
+
+    /**
+     * All filters, in the order they were added.
+     */
+    private final List<GuacamoleFilter> filters = new ArrayList<GuacamoleFilter>();
+
+    /**
+     * The opcodes registered for each filter, or null for filters which apply
+     * to all opcodes.
+     */
+    private final List<String[]> filterOpcodes = new ArrayList<String[]>();
+
+    /**
+     * The current dispatch table, rebuilt whenever a filter is added.
+     */
+    private volatile DispatchTable table = new DispatchTable(filters, filterOpcodes);
+
+    /**
+     * Adds the given filter to the end of this chain, applying that filter
+     * to every instruction. Every instruction must be parsed while such a
+     * filter is present.
+     *
+     * @param filter
+     *     The filter to add.
+     */
+    public synchronized void addFilter(GuacamoleFilter filter) {
+        filters.add(filter);
+        filterOpcodes.add(null);
+        table = new DispatchTable(filters, filterOpcodes);
+    }
+
+    /**
+     * Adds the given filter to the end of this chain, applying that filter
+     * only to instructions having any of the given opcodes.
+     *
+     * @param filter
+     *     The filter to add.
+     *
+     * @param opcodes
+     *     The opcodes of all instructions which should be passed to the given
+     *     filter.
+     */
+    public synchronized void addFilter(GuacamoleFilter filter,
+            String... opcodes) {
+        filters.add(filter);
+        filterOpcodes.add(Arrays.copyOf(opcodes, opcodes.length));
+        table = new DispatchTable(filters, filterOpcodes);
+    }
+
+    /**
+     * Returns whether any filter within this chain is interested in
+     * instructions having the given opcode.
+     *
+     * @param opcode
+     *     The opcode to test.
+     *
+     * @return
+     *     true if at least one filter applies to the given opcode, false
+     *     otherwise.
+     */
+    public boolean isFiltered(String opcode) {
+        return table.lookup(opcode).length != 0;
+    }
+
+    /**
+     * Returns whether any filter within this chain is interested in the
+     * given complete instruction, which has not yet been parsed. Only the
+     * opcode of the instruction is examined.
+     *
+     * @param instruction
+     *     An array containing the complete instruction, in the form it would
+     *     be sent over the Guacamole protocol.
+     *
+     * @param offset
+     *     The offset of the first character of the instruction.
+     *
+     * @param length
+     *     The number of characters in the instruction.
+     *
+     * @return
+     *     true if at least one filter applies to the opcode of the given
+     *     instruction, or if the opcode cannot be located, false otherwise.
+     */
+    public boolean isFiltered(char[] instruction, int offset, int length) {
+
+        // Locate opcode following its length prefix
+        int end = offset + length;
+        int opcodeLength = 0;
+        int i = offset;
+        for (; i < end && instruction[i] != '.'; i++) {
+
+            char c = instruction[i];
+            if (c < '0' || c > '9')
+                return true;
+
+            opcodeLength = opcodeLength * 10 + c - '0';
+
+        }
+
+        // Let parsing report any malformed instruction
+        if (i + 1 + opcodeLength > end)
+            return true;
+
+        return table.lookup(instruction, i + 1, opcodeLength).length != 0;
+
+    }
+
+    /**
+     * Returns whether any filter within this chain is interested in the
+     * given complete instruction, which has not yet been decoded or parsed.
+     * Only the opcode of the instruction is examined. The position of the
+     * given buffer is not changed.
+     *
+     * @param instruction
+     *     A buffer containing the UTF-8 bytes of the complete instruction
+     *     between its position and limit.
+     *
+     * @return
+     *     true if at least one filter applies to the opcode of the given
+     *     instruction, or if the opcode cannot be examined without decoding,
+     *     false otherwise.
+     */
+    public boolean isFiltered(ByteBuffer instruction) {
+
+        // Locate opcode following its length prefix
+        int end = instruction.limit();
+        int opcodeLength = 0;
+        int i = instruction.position();
+        for (; i < end && instruction.get(i) != '.'; i++) {
+
+            byte b = instruction.get(i);
+            if (b < '0' || b > '9')
+                return true;
+
+            opcodeLength = opcodeLength * 10 + b - '0';
+
+        }
+
+        // Let parsing report any malformed instruction
+        if (i + 1 + opcodeLength > end)
+            return true;
+
+        int[] applicable = table.lookup(instruction, i + 1, opcodeLength);
+        return applicable == null || applicable.length != 0;
+
+    }
+
+    @Override
+    public GuacamoleInstruction filter(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+
+        DispatchTable current = table;
+        GuacamoleFilter[] chain = current.filters;
+
+        String opcode = instruction.getOpcode();
+        int[] applicable = current.lookup(opcode);
+
+        for (int i = 0; i < applicable.length; i++) {
+
+            int index = applicable[i];
+            instruction = chain[index].filter(instruction);
+
+            // Stop if dropped
+            if (instruction == null)
+                return null;
+
+            // If the opcode was changed, continue with the filters which
+            // apply to the new opcode
+            if (!instruction.getOpcode().equals(opcode)) {
+
+                opcode = instruction.getOpcode();
+                applicable = current.lookup(opcode);
+
+                // Resume after the filter just applied
+                i = -1;
+                while (i + 1 < applicable.length && applicable[i + 1] <= index)
+                    i++;
+
+            }
+
+        }
+
+        return instruction;
+
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time spent within each phase of establishing a connection to the
+ * Guacamole proxy server, from resolving its hostname through receipt of the
+ * "ready" instruction. Each duration is in nanoseconds, with -1 denoting a
+ * phase whose duration is unknown.
+ */
+public class GuacamoleHandshakeTiming {
+
+    /**
+     * The time spent resolving the hostname of the Guacamole proxy server.
+     */
+    private final long resolutionTime;
+
+    /**
+     * The time spent establishing the network connection.
+     */
+    private final long connectTime;
+
+    /**
+     * The time between sending "select" and receiving "args".
+     */
+    private final long selectTime;
+
+    /**
+     * The time between sending "connect" and receiving "ready".
+     */
+    private final long readyTime;
+
+    /**
+     * Creates a new GuacamoleHandshakeTiming describing the given durations.
+     *
+     * @param resolutionTime
+     *     The time spent resolving the hostname of the Guacamole proxy
+     *     server, in nanoseconds, or -1 if unknown.
+     *
+     * @param connectTime
+     *     The time spent establishing the network connection, in nanoseconds,
+     *     or -1 if unknown.
+     *
+     * @param selectTime
+     *     The time between sending "select" and receiving "args", in
+     *     nanoseconds, or -1 if unknown.
+     *
+     * @param readyTime
+     *     The time between sending "connect" and receiving "ready", in
+     *     nanoseconds, or -1 if unknown.
+     */
+    public GuacamoleHandshakeTiming(long resolutionTime, long connectTime,
+            long selectTime, long readyTime) {
+        this.resolutionTime = resolutionTime;
+        this.connectTime = connectTime;
+        this.selectTime = selectTime;
+        this.readyTime = readyTime;
+    }
+
+    /**
+     * Returns the time spent resolving the hostname of the Guacamole proxy
+     * server.
+     *
+     * @return
+     *     The time spent resolving the hostname, in nanoseconds, or -1 if
+     *     unknown.
+     */
+    public long getResolutionTime() {
+        return resolutionTime;
+    }
+
+    /**
+     * Returns the time spent establishing the network connection to the
+     * Guacamole proxy server.
+     *
+     * @return
+     *     The time spent establishing the network connection, in
+     *     nanoseconds, or -1 if unknown.
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * Returns the time between sending the "select" instruction and
+     * receiving the "args" instruction in response.
+     *
+     * @return
+     *     The time between "select" and "args", in nanoseconds, or -1 if
+     *     unknown.
+     */
+    public long getSelectTime() {
+        return selectTime;
+    }
+
+    /**
+     * Returns the time between sending the "connect" instruction and
+     * receiving the "ready" instruction in response. This is typically
+     * dominated by guacd establishing the remote desktop connection.
+     *
+     * @return
+     *     The time between "connect" and "ready", in nanoseconds, or -1 if
+     *     unknown.
+     */
+    public long getReadyTime() {
+        return readyTime;
+    }
+
+    /**
+     * Returns the given duration as a human-readable number of milliseconds.
+     *
+     * @param duration
+     *     The duration to format, in nanoseconds, or -1 if unknown.
+     *
+     * @return
+     *     The given duration in milliseconds, or "?" if unknown.
+     */
+    private static String format(long duration) {
+
+        if (duration < 0)
+            return "?";
+
+        return TimeUnit.NANOSECONDS.toMicros(duration) / 1000.0 + "ms";
+
+    }
+
+    @Override
+    public String toString() {
+        return "resolve=" + format(resolutionTime)
+            + " connect=" + format(connectTime)
+            + " select->args=" + format(selectTime)
+            + " connect->ready=" + format(readyTime);
+    }
+
+}
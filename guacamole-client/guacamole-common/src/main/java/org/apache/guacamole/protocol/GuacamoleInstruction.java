@@ -20,9 +20,16 @@
 package org.apache.guacamole.protocol;
 
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
 
 /**
  * An abstract representation of a Guacamole instruction, as defined by the
@@ -42,6 +49,25 @@ public class GuacamoleInstruction {
      */
     private List<String> args;
 
+    /**
+     * The original wire representation of this instruction, if this
+     * instruction was parsed from received data, or null if this instruction
+     * was constructed from its opcode and arguments.
+     */
+    private char[] wire;
+
+    /**
+     * The offset within the wire buffer of the first character of this
+     * instruction.
+     */
+    private int wireOffset;
+
+    /**
+     * The number of characters within the wire buffer, starting at
+     * wireOffset, which make up this instruction.
+     */
+    private int wireLength;
+
     /**
      * Creates a new GuacamoleInstruction having the given Operation and
      * list of arguments values.
@@ -69,6 +95,281 @@ public class GuacamoleInstruction {
         this.args = Collections.unmodifiableList(args);
     }
 
+    /**
+     * Creates a new GuacamoleInstruction which is a view over the given
+     * buffer of already-received instruction data. The opcode of the
+     * instruction is decoded immediately, while each argument value is
+     * decoded into a String only when first requested through getArgs().
+     * The given buffer and arrays are used directly and must not be modified
+     * after the instruction has been created.
+     *
+     * The buffer must contain exactly the one complete instruction described
+     * by the given elements, including its terminating semicolon. The buffer
+     * is reused as-is whenever this instruction is serialized.
+     *
+     * @param buffer
+     *     The buffer containing the complete instruction.
+     *
+     * @param elementOffsets
+     *     The offset of the content of each element within the buffer,
+     *     beginning with the opcode.
+     *
+     * @param elementLengths
+     *     The length of the content of each element within the buffer,
+     *     beginning with the opcode.
+     *
+     * @param elementCount
+     *     The total number of elements in the instruction, including the
+     *     opcode. This must be at least 1.
+     */
+    public GuacamoleInstruction(char[] buffer, int[] elementOffsets,
+            int[] elementLengths, int elementCount) {
+        this(new String(buffer, elementOffsets[0], elementLengths[0]),
+                buffer, elementOffsets, elementLengths, elementCount,
+                buffer.length);
+    }
+
+    /**
+     * Creates a new GuacamoleInstruction which is a view over the given
+     * region of a buffer of already-received instruction data, such as the
+     * internal buffer of a GuacamoleReader. The opcode of the instruction is
+     * decoded immediately, while each argument value is decoded into a String
+     * only when first requested through getArgs(). No data is copied: the
+     * given buffer and arrays are used directly, and the instruction remains
+     * valid only for as long as the given region of the buffer is left
+     * unmodified.
+     *
+     * @param buffer
+     *     The buffer containing the complete instruction.
+     *
+     * @param offset
+     *     The offset within the buffer of the first character of the
+     *     instruction.
+     *
+     * @param length
+     *     The number of characters in the instruction, including its
+     *     terminating semicolon.
+     *
+     * @param elementOffsets
+     *     The offset of the content of each element within the buffer,
+     *     beginning with the opcode. These offsets are relative to the start
+     *     of the buffer, not to the given offset.
+     *
+     * @param elementLengths
+     *     The length of the content of each element within the buffer,
+     *     beginning with the opcode.
+     *
+     * @param elementCount
+     *     The total number of elements in the instruction, including the
+     *     opcode. This must be at least 1.
+     */
+    public GuacamoleInstruction(char[] buffer, int offset, int length,
+            int[] elementOffsets, int[] elementLengths, int elementCount) {
+        this(new String(buffer, elementOffsets[0], elementLengths[0]),
+                buffer, elementOffsets, elementLengths, elementCount, length);
+        this.wireOffset = offset;
+    }
+
+    /**
+     * Creates a new GuacamoleInstruction which is a view over the first
+     * instructionLength characters of the given buffer, using the given,
+     * already-decoded opcode. The given buffer and arrays are used directly,
+     * and may be replaced later through reset().
+     *
+     * @param opcode
+     *     The opcode of the instruction, which must match the content of the
+     *     first element.
+     *
+     * @param buffer
+     *     The buffer containing the complete instruction at its beginning.
+     *
+     * @param elementOffsets
+     *     The offset of the content of each element within the buffer,
+     *     beginning with the opcode.
+     *
+     * @param elementLengths
+     *     The length of the content of each element within the buffer,
+     *     beginning with the opcode.
+     *
+     * @param elementCount
+     *     The total number of elements in the instruction, including the
+     *     opcode. This must be at least 1.
+     *
+     * @param instructionLength
+     *     The number of characters at the beginning of the buffer which make
+     *     up the complete instruction.
+     */
+    GuacamoleInstruction(String opcode, char[] buffer, int[] elementOffsets,
+            int[] elementLengths, int elementCount, int instructionLength) {
+        this.opcode = opcode;
+        this.args = new ElementList(buffer, elementOffsets, elementLengths,
+                elementCount);
+        this.wire = buffer;
+        this.wireLength = instructionLength;
+    }
+
+    /**
+     * Replaces the content of this GuacamoleInstruction, which must have been
+     * created as a view over a buffer, such that this instruction becomes a
+     * view over the given buffer. Any arguments previously obtained through
+     * getArgs() remain valid, but the list returned by getArgs() will
+     * reflect the new content.
+     *
+     * @param opcode
+     *     The opcode of the instruction, which must match the content of the
+     *     first element.
+     *
+     * @param buffer
+     *     The buffer containing the complete instruction at its beginning.
+     *
+     * @param elementOffsets
+     *     The offset of the content of each element within the buffer,
+     *     beginning with the opcode.
+     *
+     * @param elementLengths
+     *     The length of the content of each element within the buffer,
+     *     beginning with the opcode.
+     *
+     * @param elementCount
+     *     The total number of elements in the instruction, including the
+     *     opcode. This must be at least 1.
+     *
+     * @param instructionLength
+     *     The number of characters at the beginning of the buffer which make
+     *     up the complete instruction.
+     */
+    void reset(String opcode, char[] buffer, int[] elementOffsets,
+            int[] elementLengths, int elementCount, int instructionLength) {
+        this.opcode = opcode;
+        ((ElementList) this.args).reset(buffer, elementOffsets, elementLengths,
+                elementCount);
+        this.wire = buffer;
+        this.wireOffset = 0;
+        this.wireLength = instructionLength;
+    }
+
+    /**
+     * Read-only List of argument values which decodes each value from an
+     * underlying buffer only when that value is first requested. The first
+     * element of the underlying buffer (the opcode) is skipped.
+     */
+    private static class ElementList extends AbstractList<String>
+            implements RandomAccess {
+
+        /**
+         * The buffer containing the data of each element.
+         */
+        private char[] buffer;
+
+        /**
+         * The offset of the content of each element within the buffer,
+         * including the opcode.
+         */
+        private int[] offsets;
+
+        /**
+         * The length of the content of each element within the buffer,
+         * including the opcode.
+         */
+        private int[] lengths;
+
+        /**
+         * All argument values which have been decoded thus far. Values which
+         * have not yet been requested are null. This array may be larger
+         * than the number of arguments if this list has been reset.
+         */
+        private String[] values;
+
+        /**
+         * The number of arguments in this list.
+         */
+        private int size;
+
+        /**
+         * Creates a new ElementList which lazily decodes the arguments of an
+         * instruction from the given buffer.
+         *
+         * @param buffer
+         *     The buffer containing the data of each element.
+         *
+         * @param offsets
+         *     The offset of the content of each element within the buffer,
+         *     including the opcode.
+         *
+         * @param lengths
+         *     The length of the content of each element within the buffer,
+         *     including the opcode.
+         *
+         * @param elementCount
+         *     The total number of elements, including the opcode.
+         */
+        public ElementList(char[] buffer, int[] offsets, int[] lengths,
+                int elementCount) {
+            this.buffer = buffer;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.values = new String[elementCount - 1];
+            this.size = elementCount - 1;
+        }
+
+        /**
+         * Replaces the content of this ElementList, discarding any values
+         * decoded thus far.
+         *
+         * @param buffer
+         *     The buffer containing the data of each element.
+         *
+         * @param offsets
+         *     The offset of the content of each element within the buffer,
+         *     including the opcode.
+         *
+         * @param lengths
+         *     The length of the content of each element within the buffer,
+         *     including the opcode.
+         *
+         * @param elementCount
+         *     The total number of elements, including the opcode.
+         */
+        public void reset(char[] buffer, int[] offsets, int[] lengths,
+                int elementCount) {
+
+            this.buffer = buffer;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.size = elementCount - 1;
+
+            // Reuse storage for decoded values where possible
+            if (values.length < size)
+                values = new String[size];
+            else
+                Arrays.fill(values, 0, size, null);
+
+        }
+
+        @Override
+        public String get(int index) {
+
+            if (index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+            // Decode requested value only if not yet decoded
+            String value = values[index];
+            if (value == null) {
+                value = new String(buffer, offsets[index + 1], lengths[index + 1]);
+                values[index] = value;
+            }
+
+            return value;
+
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+    }
+
     /**
      * Returns the opcode associated with this GuacamoleInstruction.
      * @return The opcode associated with this GuacamoleInstruction.
@@ -89,35 +390,403 @@ public class GuacamoleInstruction {
         return args;
     }
 
+    /**
+     * Returns the buffer containing the raw content of all arguments, if
+     * this instruction is a view over received data. The content of each
+     * argument may then be accessed without decoding that argument into a
+     * String.
+     *
+     * @return
+     *     The buffer containing the content of all arguments, or null if
+     *     this instruction was constructed from its opcode and arguments.
+     */
+    char[] getArgBuffer() {
+        return (args instanceof ElementList) ? ((ElementList) args).buffer : null;
+    }
+
+    /**
+     * Returns the offset of the content of the given argument within the
+     * buffer returned by getArgBuffer(). This instruction must be a view over
+     * received data.
+     *
+     * @param index
+     *     The index of the argument.
+     *
+     * @return
+     *     The offset of the content of the given argument.
+     */
+    int getArgOffset(int index) {
+        ElementList elements = (ElementList) args;
+        if (index >= elements.size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + elements.size);
+        return elements.offsets[index + 1];
+    }
+
+    /**
+     * Returns the length of the content of the given argument within the
+     * buffer returned by getArgBuffer(). This instruction must be a view over
+     * received data.
+     *
+     * @param index
+     *     The index of the argument.
+     *
+     * @return
+     *     The length of the content of the given argument, in characters.
+     */
+    int getArgLength(int index) {
+        ElementList elements = (ElementList) args;
+        if (index >= elements.size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + elements.size);
+        return elements.lengths[index + 1];
+    }
+
+    /**
+     * Returns the number of decimal digits required to represent the given
+     * non-negative integer.
+     *
+     * @param value
+     *     The non-negative integer to measure.
+     *
+     * @return
+     *     The number of decimal digits in the given integer.
+     */
+    private static int digits(int value) {
+
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+
+        return digits;
+
+    }
+
+    /**
+     * Writes a single element in the form it would be sent over the
+     * Guacamole protocol, excluding its terminator, into the given array.
+     *
+     * @param value
+     *     The value of the element to write.
+     *
+     * @param buffer
+     *     The array to write the element into.
+     *
+     * @param offset
+     *     The offset within the array at which to begin writing.
+     *
+     * @return
+     *     The offset within the array immediately following the element.
+     */
+    private static int writeElement(String value, char[] buffer, int offset) {
+
+        int length = value.length();
+
+        // Write length, least significant digit last
+        int end = offset + digits(length);
+        for (int i = end - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + length % 10);
+            length /= 10;
+        }
+
+        // Write value
+        buffer[end] = '.';
+        value.getChars(0, value.length(), buffer, end + 1);
+
+        return end + 1 + value.length();
+
+    }
+
+    /**
+     * Returns the number of characters within this GuacamoleInstruction when
+     * sent over the Guacamole protocol.
+     *
+     * @return
+     *     The number of characters within this GuacamoleInstruction, as it
+     *     would be sent over the Guacamole protocol.
+     */
+    public int getLength() {
+
+        if (wire != null)
+            return wireLength;
+
+        // Opcode and terminator
+        int length = digits(opcode.length()) + opcode.length() + 2;
+
+        // Each argument and its preceding comma
+        for (String value : args)
+            length += digits(value.length()) + value.length() + 2;
+
+        return length;
+
+    }
+
+    /**
+     * Returns the number of bytes within this GuacamoleInstruction when sent
+     * over the Guacamole protocol as UTF-8, as written by
+     * writeTo(ByteBuffer).
+     *
+     * @return
+     *     The number of bytes within this GuacamoleInstruction, as it would
+     *     be sent over the Guacamole protocol as UTF-8.
+     */
+    public int getEncodedLength() {
+
+        if (wire != null)
+            return getEncodedLength(wire, wireOffset, wireLength);
+
+        char[] chars = toCharArray();
+        return getEncodedLength(chars, 0, chars.length);
+
+    }
+
+    /**
+     * Returns the number of bytes within the given characters when encoded as
+     * UTF-8, with unpaired surrogates encoded as '?', as written by
+     * writeTo(ByteBuffer).
+     *
+     * @param chars
+     *     The array containing the characters to measure.
+     *
+     * @param offset
+     *     The offset within the array of the first character to measure.
+     *
+     * @param length
+     *     The number of characters to measure.
+     *
+     * @return
+     *     The number of bytes within the given characters when encoded as
+     *     UTF-8.
+     */
+    public static int getEncodedLength(char[] chars, int offset, int length) {
+
+        int encoded = 0;
+
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+
+            char c = chars[i];
+
+            // Single byte
+            if (c < 0x80)
+                encoded++;
+
+            // Two bytes
+            else if (c < 0x800)
+                encoded += 2;
+
+            // Four bytes (surrogate pair)
+            else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(chars[i + 1])) {
+                encoded += 4;
+                i++;
+            }
+
+            // Unpaired surrogate
+            else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+                encoded++;
+
+            // Three bytes
+            else
+                encoded += 3;
+
+        }
+
+        return encoded;
+
+    }
+
     /**
      * Returns this GuacamoleInstruction in the form it would be sent over the
-     * Guacamole protocol.
+     * Guacamole protocol, as a new array of characters which may be freely
+     * modified by the caller.
      *
-     * @return This GuacamoleInstruction in the form it would be sent over the
-     *         Guacamole protocol.
+     * @return
+     *     This GuacamoleInstruction in the form it would be sent over the
+     *     Guacamole protocol.
      */
-    @Override
-    public String toString() {
+    public char[] toCharArray() {
+
+        if (wire != null)
+            return Arrays.copyOfRange(wire, wireOffset, wireOffset + wireLength);
+
+        return encode();
+
+    }
+
+    /**
+     * Returns this GuacamoleInstruction in the form it would be sent over the
+     * Guacamole protocol, as an array of characters. If this instruction was
+     * parsed from received data and that data occupies an entire array, that
+     * array is returned directly rather than copied, and must not be
+     * modified.
+     *
+     * @return
+     *     This GuacamoleInstruction in the form it would be sent over the
+     *     Guacamole protocol, possibly sharing the internal array of this
+     *     instruction.
+     */
+    char[] getCharArray() {
 
-        StringBuilder buff = new StringBuilder();
+        if (wire != null && wireOffset == 0 && wireLength == wire.length)
+            return wire;
 
-        // Write opcode
-        buff.append(opcode.length());
-        buff.append('.');
-        buff.append(opcode);
+        return toCharArray();
 
-        // Write argument values
+    }
+
+    /**
+     * Encodes the opcode and arguments of this GuacamoleInstruction in the
+     * form they would be sent over the Guacamole protocol.
+     *
+     * @return
+     *     A new array containing this GuacamoleInstruction in the form it
+     *     would be sent over the Guacamole protocol.
+     */
+    private char[] encode() {
+
+        char[] buffer = new char[getLength()];
+
+        // Write opcode and argument values
+        int offset = writeElement(opcode, buffer, 0);
         for (String value : args) {
-            buff.append(',');
-            buff.append(value.length());
-            buff.append('.');
-            buff.append(value);
+            buffer[offset++] = ',';
+            offset = writeElement(value, buffer, offset);
         }
 
         // Write terminator
-        buff.append(';');
+        buffer[offset] = ';';
+
+        return buffer;
+
+    }
+
+    /**
+     * Writes this GuacamoleInstruction to the given Writer in the form it
+     * would be sent over the Guacamole protocol.
+     *
+     * @param output
+     *     The Writer to write this instruction to.
+     *
+     * @throws IOException
+     *     If an error occurs while writing to the Writer.
+     */
+    public void writeTo(Writer output) throws IOException {
+
+        if (wire != null)
+            output.write(wire, wireOffset, wireLength);
+        else
+            output.write(toCharArray());
+
+    }
+
+    /**
+     * Writes this GuacamoleInstruction into the given CharBuffer in the form
+     * it would be sent over the Guacamole protocol, advancing the position of
+     * the buffer accordingly.
+     *
+     * @param buffer
+     *     The CharBuffer to write this instruction into.
+     *
+     * @throws BufferOverflowException
+     *     If the buffer does not have room for the entire instruction, as
+     *     determined by getLength(). The buffer is left unchanged.
+     */
+    public void writeTo(CharBuffer buffer) throws BufferOverflowException {
+
+        if (buffer.remaining() < getLength())
+            throw new BufferOverflowException();
+
+        if (wire != null)
+            buffer.put(wire, wireOffset, wireLength);
+        else
+            buffer.put(toCharArray());
+
+    }
+
+    /**
+     * Writes this GuacamoleInstruction into the given ByteBuffer as UTF-8, in
+     * the form it would be sent over the Guacamole protocol, advancing the
+     * position of the buffer accordingly. Unpaired surrogates are written as
+     * '?'.
+     *
+     * @param buffer
+     *     The ByteBuffer to write this instruction into.
+     *
+     * @throws BufferOverflowException
+     *     If the buffer does not have room for the entire encoded
+     *     instruction. The buffer is left unchanged.
+     */
+    public void writeTo(ByteBuffer buffer) throws BufferOverflowException {
+
+        int start = buffer.position();
+
+        try {
+
+            char[] chars = (wire != null) ? wire : toCharArray();
+            int offset = (wire != null) ? wireOffset : 0;
+            int length = offset + ((wire != null) ? wireLength : chars.length);
+            for (int i = offset; i < length; i++) {
+
+                char c = chars[i];
+
+                // Single byte
+                if (c < 0x80)
+                    buffer.put((byte) c);
+
+                // Two bytes
+                else if (c < 0x800) {
+                    buffer.put((byte) (0xC0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                }
+
+                // Four bytes (surrogate pair)
+                else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(chars[i + 1])) {
+                    int codePoint = Character.toCodePoint(c, chars[++i]);
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                }
+
+                // Unpaired surrogate
+                else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+                    buffer.put((byte) '?');
+
+                // Three bytes
+                else {
+                    buffer.put((byte) (0xE0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                }
+
+            }
+
+        }
+
+        // Leave buffer as it was if the instruction does not fit
+        catch (BufferOverflowException e) {
+            buffer.position(start);
+            throw e;
+        }
+
+    }
+
+    /**
+     * Returns this GuacamoleInstruction in the form it would be sent over the
+     * Guacamole protocol.
+     *
+     * @return This GuacamoleInstruction in the form it would be sent over the
+     *         Guacamole protocol.
+     */
+    @Override
+    public String toString() {
+
+        if (wire != null)
+            return new String(wire, wireOffset, wireLength);
 
-        return buff.toString();
+        return new String(toCharArray());
 
     }
 
@@ -21,7 +21,6 @@ package org.apache.guacamole.protocol;
 
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleServerException;
 
@@ -30,6 +29,11 @@ import org.apache.guacamole.GuacamoleServerException;
  * and instructions are returned as a result. Invalid instructions result in
  * exceptions.
  *
+ * Data may be appended in chunks of any size, including chunks which end
+ * partway through an element. All appended data is consumed and accumulated
+ * within an internal buffer which is reused for each instruction, such that
+ * no data needs to be appended more than once.
+ *
  * @author Michael Jumper
  */
 public class GuacamoleParser implements Iterator<GuacamoleInstruction> {
@@ -49,6 +53,25 @@ public class GuacamoleParser implements Iterator<GuacamoleInstruction> {
      */
     public static final int INSTRUCTION_MAX_ELEMENTS = 64;
 
+    /**
+     * The initial size of the buffer holding the instruction being parsed.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * The largest buffer which will be retained between instructions. Larger
+     * buffers are replaced with a buffer of the initial size once the
+     * instruction requiring them has been read.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 65536;
+
+    /**
+     * The number of distinct opcodes whose String representations are cached
+     * to avoid creating a new String for each instruction. This must be a
+     * power of two.
+     */
+    private static final int OPCODE_CACHE_SIZE = 32;
+
     /**
      * All possible states of the instruction parser.
      */ 
@@ -78,18 +101,32 @@ public class GuacamoleParser implements Iterator<GuacamoleInstruction> {
             
     }
 
+    /**
+     * Whether the same GuacamoleInstruction object should be returned for
+     * every parsed instruction.
+     */
+    private final boolean reuseInstruction;
+
     /**
      * The latest parsed instruction, if any.
      */
     private GuacamoleInstruction parsedInstruction;
 
+    /**
+     * The instruction object reused for every parsed instruction, if
+     * instructions are being reused and at least one instruction has been
+     * parsed.
+     */
+    private GuacamoleInstruction reusableInstruction;
+
     /**
      * The parse state of the instruction.
      */
     private State state = State.PARSING_LENGTH;
 
     /**
-     * The length of the current element, if known.
+     * The length of the current element, if known. While parsing element
+     * content, this is the number of characters of content remaining.
      */
     private int elementLength = 0;
 
@@ -99,12 +136,158 @@ public class GuacamoleParser implements Iterator<GuacamoleInstruction> {
     private int elementCount = 0;
 
     /**
-     * All currently parsed elements.
+     * The offset of the content of each element within the buffer.
      */
-    private final String elements[] = new String[INSTRUCTION_MAX_ELEMENTS];
+    private final int[] elementOffsets = new int[INSTRUCTION_MAX_ELEMENTS];
 
     /**
-     * Appends data from the given buffer to the current instruction.
+     * The length of the content of each element within the buffer.
+     */
+    private final int[] elementLengths = new int[INSTRUCTION_MAX_ELEMENTS];
+
+    /**
+     * Buffer containing all data appended thus far for the instruction being
+     * parsed.
+     */
+    private char[] buffer = new char[INITIAL_BUFFER_SIZE];
+
+    /**
+     * The number of characters of the instruction being parsed which are
+     * within the buffer.
+     */
+    private int length = 0;
+
+    /**
+     * Cache of recently-parsed opcodes, indexed by hash.
+     */
+    private final String[] opcodeCache = new String[OPCODE_CACHE_SIZE];
+
+    /**
+     * Creates a new GuacamoleParser which returns a new GuacamoleInstruction
+     * for each parsed instruction. Each returned instruction remains valid
+     * indefinitely.
+     */
+    public GuacamoleParser() {
+        this(false);
+    }
+
+    /**
+     * Creates a new GuacamoleParser which optionally returns the same
+     * GuacamoleInstruction object for every parsed instruction, such that
+     * parsing does not allocate memory once the parser has warmed up. A
+     * reused instruction, and any list returned by its getArgs(), is only
+     * valid until the next call to append(). Argument values already
+     * obtained from that list remain valid.
+     *
+     * @param reuseInstruction
+     *     true if the same GuacamoleInstruction object should be returned for
+     *     every parsed instruction, false if each parsed instruction should
+     *     be a new object.
+     */
+    public GuacamoleParser(boolean reuseInstruction) {
+        this.reuseInstruction = reuseInstruction;
+    }
+
+    /**
+     * Adds the given characters to the end of the buffer, growing the buffer
+     * if necessary.
+     *
+     * @param chunk The array containing the characters to add.
+     * @param offset The offset of the first character to add.
+     * @param count The number of characters to add.
+     */
+    private void buffer(char[] chunk, int offset, int count) {
+
+        // Grow buffer as needed
+        if (length + count > buffer.length) {
+            int size = buffer.length * 2;
+            while (size < length + count)
+                size *= 2;
+            buffer = Arrays.copyOf(buffer, size);
+        }
+
+        System.arraycopy(chunk, offset, buffer, length, count);
+        length += count;
+
+    }
+
+    /**
+     * Returns a String containing the opcode of the instruction within the
+     * buffer, reusing a previously-created String if possible.
+     *
+     * @return The opcode of the instruction within the buffer.
+     */
+    private String getOpcode() {
+
+        int offset = elementOffsets[0];
+        int opcodeLength = elementLengths[0];
+
+        // Hash identically to String.hashCode()
+        int hash = 0;
+        for (int i = 0; i < opcodeLength; i++)
+            hash = 31 * hash + buffer[offset + i];
+
+        int slot = hash & (OPCODE_CACHE_SIZE - 1);
+
+        // Reuse cached opcode if identical
+        String cached = opcodeCache[slot];
+        if (cached != null && cached.length() == opcodeLength) {
+
+            int i = 0;
+            while (i < opcodeLength && cached.charAt(i) == buffer[offset + i])
+                i++;
+
+            if (i == opcodeLength)
+                return cached;
+
+        }
+
+        // Otherwise, cache new opcode
+        String opcode = new String(buffer, offset, opcodeLength);
+        opcodeCache[slot] = opcode;
+        return opcode;
+
+    }
+
+    /**
+     * Marks the instruction within the buffer as complete, creating or
+     * updating the GuacamoleInstruction to be returned by next().
+     */
+    private void completeInstruction() {
+
+        state = State.COMPLETE;
+        String opcode = getOpcode();
+
+        // Point reused instruction at the buffer directly
+        if (reuseInstruction) {
+
+            if (reusableInstruction == null)
+                reusableInstruction = new GuacamoleInstruction(opcode, buffer,
+                        elementOffsets, elementLengths, elementCount, length);
+            else
+                reusableInstruction.reset(opcode, buffer, elementOffsets,
+                        elementLengths, elementCount, length);
+
+            parsedInstruction = reusableInstruction;
+
+        }
+
+        // Otherwise, copy instruction out of the buffer
+        else
+            parsedInstruction = new GuacamoleInstruction(opcode,
+                    Arrays.copyOf(buffer, length),
+                    Arrays.copyOf(elementOffsets, elementCount),
+                    Arrays.copyOf(elementLengths, elementCount),
+                    elementCount, length);
+
+    }
+
+    /**
+     * Appends data from the given buffer to the current instruction. Data is
+     * consumed up to the end of the current instruction, even if that
+     * instruction is not yet complete. Once an instruction is complete, no
+     * further data will be consumed until that instruction is read via
+     * next().
      * 
      * @param chunk The buffer containing the data to append.
      * @param offset The offset within the buffer where the data begins.
@@ -116,31 +299,46 @@ public class GuacamoleParser implements Iterator<GuacamoleInstruction> {
      */
     public int append(char chunk[], int offset, int length) throws GuacamoleException {
 
-        int charsParsed = 0;
-
-        // Do not exceed maximum number of elements
-        if (elementCount == INSTRUCTION_MAX_ELEMENTS && state != State.COMPLETE) {
-            state = State.ERROR;
-            throw new GuacamoleServerException("Instruction contains too many elements.");
-        }
+        // Release any unusually large buffer before starting a new instruction
+        if (this.length == 0 && buffer.length > MAX_RETAINED_BUFFER_SIZE)
+            buffer = new char[INITIAL_BUFFER_SIZE];
 
-        // Parse element length
-        if (state == State.PARSING_LENGTH) {
+        int charsParsed = 0;
+        while (charsParsed < length) {
 
-            int parsedLength = elementLength;
-            while (charsParsed < length) {
+            // Parse element length
+            if (state == State.PARSING_LENGTH) {
 
                 // Pull next character
                 char c = chunk[offset + charsParsed++];
+                buffer(chunk, offset + charsParsed - 1, 1);
 
                 // If digit, add to length
-                if (c >= '0' && c <= '9')
-                    parsedLength = parsedLength*10 + c - '0';
+                if (c >= '0' && c <= '9') {
+
+                    elementLength = elementLength * 10 + c - '0';
+
+                    // If too long, parse error
+                    if (elementLength > INSTRUCTION_MAX_LENGTH) {
+                        state = State.ERROR;
+                        throw new GuacamoleServerException("Instruction exceeds maximum length.");
+                    }
+
+                }
 
                 // If period, switch to parsing content
                 else if (c == '.') {
+
+                    // Do not exceed maximum number of elements
+                    if (elementCount == INSTRUCTION_MAX_ELEMENTS) {
+                        state = State.ERROR;
+                        throw new GuacamoleServerException("Instruction contains too many elements.");
+                    }
+
+                    elementOffsets[elementCount] = this.length;
+                    elementLengths[elementCount] = elementLength;
                     state = State.PARSING_CONTENT;
-                    break;
+
                 }
 
                 // If not digit, parse error
@@ -149,51 +347,49 @@ public class GuacamoleParser implements Iterator<GuacamoleInstruction> {
                     throw new GuacamoleServerException("Non-numeric character in element length.");
                 }
 
-            }
+            } // end parse length
 
-            // If too long, parse error
-            if (parsedLength > INSTRUCTION_MAX_LENGTH) {
-                state = State.ERROR;
-                throw new GuacamoleServerException("Instruction exceeds maximum length.");
-            }
+            // Parse element content, consuming as much as is available
+            else if (state == State.PARSING_CONTENT && elementLength > 0) {
 
-            // Save length
-            elementLength = parsedLength;
+                int count = Math.min(elementLength, length - charsParsed);
+                buffer(chunk, offset + charsParsed, count);
+                charsParsed += count;
+                elementLength -= count;
 
-        } // end parse length
+            } // end parse content
 
-        // Parse element content, if available
-        if (state == State.PARSING_CONTENT && charsParsed + elementLength + 1 <= length) {
+            // Read terminator char following element
+            else if (state == State.PARSING_CONTENT) {
 
-            // Read element
-            String element = new String(chunk, offset + charsParsed, elementLength);
-            charsParsed += elementLength;
-            elementLength = 0;
+                char terminator = chunk[offset + charsParsed++];
+                buffer(chunk, offset + charsParsed - 1, 1);
+                elementCount++;
 
-            // Read terminator char following element
-            char terminator = chunk[offset + charsParsed++];
+                // If semicolon, store end-of-instruction
+                if (terminator == ';') {
+                    completeInstruction();
+                    break;
+                }
 
-            // Add element to currently parsed elements
-            elements[elementCount++] = element;
-            
-            // If semicolon, store end-of-instruction
-            if (terminator == ';') {
-                state = State.COMPLETE;
-                parsedInstruction = new GuacamoleInstruction(elements[0],
-                        Arrays.asList(elements).subList(1, elementCount));
-            }
+                // If comma, move on to next element
+                else if (terminator == ',')
+                    state = State.PARSING_LENGTH;
 
-            // If comma, move on to next element
-            else if (terminator == ',')
-                state = State.PARSING_LENGTH;
+                // Otherwise, parse error
+                else {
+                    state = State.ERROR;
+                    throw new GuacamoleServerException("Element terminator of instruction was not ';' nor ','");
+                }
 
-            // Otherwise, parse error
-            else {
-                state = State.ERROR;
-                throw new GuacamoleServerException("Element terminator of instruction was not ';' nor ','");
-            }
+            } // end parse terminator
 
-        } // end parse content
+            // Nothing further can be parsed until the current instruction is
+            // read or if an error has occurred
+            else
+                break;
+
+        }
 
         return charsParsed;
 
@@ -228,6 +424,7 @@ public class GuacamoleParser implements Iterator<GuacamoleInstruction> {
         state = State.PARSING_LENGTH;
         elementCount = 0;
         elementLength = 0;
+        length = 0;
         
         return parsedInstruction;
 
@@ -0,0 +1,477 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.protocol;
+
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+
+/**
+ * Tracks the frames sent to a Guacamole client which that client has not yet
+ * acknowledged, pausing reads from guacd while the client lags too far
+ * behind. Each frame ends with a "sync" instruction sent by guacd, and the
+ * client acknowledges each frame, once rendered, by replying with a "sync"
+ * instruction bearing the same timestamp.
+ *
+ * Frames are observed through two filters: the server filter, which must be
+ * applied to instructions read from guacd, and the client filter, which must
+ * be applied to instructions written by the client. Reading is considered
+ * paused whenever the number of unacknowledged frames reaches the maximum
+ * frame lag. Blocking readers wait within awaitResume(), while non-blocking
+ * readers may be notified through a Listener.
+ */
+public class SyncFlowControl {
+
+    /**
+     * The opcode of the instruction which ends each frame and acknowledges
+     * each frame received.
+     */
+    public static final String SYNC_OPCODE = "sync";
+
+    /**
+     * The maximum number of unacknowledged frames tracked. Beyond this, the
+     * oldest frames are forgotten, such that a client which never
+     * acknowledges frames cannot cause unbounded growth. As no more frames
+     * than this can ever be outstanding, this is also the largest maximum
+     * frame lag which can be enforced.
+     */
+    public static final int MAX_TRACKED_FRAMES = 1024;
+
+    /**
+     * Listener which is notified when reading is paused or resumed.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the client has fallen the maximum number of frames
+         * behind, and reading from guacd should pause.
+         */
+        void lagExceeded();
+
+        /**
+         * Called when the client has acknowledged enough frames that reading
+         * from guacd may resume.
+         */
+        void lagRecovered();
+
+    }
+
+    /**
+     * The maximum number of unacknowledged frames, or zero if reading should
+     * never be paused.
+     */
+    private final int maxFrameLag;
+
+    /**
+     * The timestamps of all unacknowledged frames, in the order sent, each
+     * paired with the time the frame was sent in milliseconds since the
+     * epoch.
+     */
+    private final LinkedList<long[]> outstanding = new LinkedList<long[]>();
+
+    /**
+     * The listener to notify when reading is paused or resumed, or null if
+     * no listener is set.
+     */
+    private Listener listener;
+
+    /**
+     * The time that reading was last paused, in milliseconds since the
+     * epoch.
+     */
+    private long pausedSince;
+
+    /**
+     * Whether tracking has stopped due to the tunnel closing.
+     */
+    private boolean closed = false;
+
+    /**
+     * The total number of frames sent.
+     */
+    private long frameCount = 0;
+
+    /**
+     * The largest number of unacknowledged frames observed.
+     */
+    private int peakFrameLag = 0;
+
+    /**
+     * The total number of times reading has been paused.
+     */
+    private long pauseCount = 0;
+
+    /**
+     * The total number of milliseconds that reading has spent paused.
+     */
+    private long pausedTime = 0;
+
+    /**
+     * The total number of frames acknowledged.
+     */
+    private long acknowledgedCount = 0;
+
+    /**
+     * The sum of the number of milliseconds between each acknowledged frame
+     * being sent and being acknowledged.
+     */
+    private long totalLatency = 0;
+
+    /**
+     * Filter which observes each frame sent by guacd.
+     */
+    private final GuacamoleFilter serverFilter = new GuacamoleFilter() {
+
+        @Override
+        public GuacamoleInstruction filter(GuacamoleInstruction instruction)
+                throws GuacamoleException {
+
+            Long timestamp = getTimestamp(instruction);
+            if (timestamp != null)
+                frameSent(timestamp);
+
+            return instruction;
+
+        }
+
+    };
+
+    /**
+     * Filter which observes each frame acknowledged by the client.
+     */
+    private final GuacamoleFilter clientFilter = new GuacamoleFilter() {
+
+        @Override
+        public GuacamoleInstruction filter(GuacamoleInstruction instruction)
+                throws GuacamoleException {
+
+            Long timestamp = getTimestamp(instruction);
+            if (timestamp != null)
+                frameAcknowledged(timestamp);
+
+            return instruction;
+
+        }
+
+    };
+
+    /**
+     * Creates a new SyncFlowControl which pauses reading once the given
+     * number of frames are unacknowledged.
+     *
+     * @param maxFrameLag
+     *     The maximum number of unacknowledged frames, or zero if frames
+     *     should be tracked without ever pausing reading. This may not
+     *     exceed MAX_TRACKED_FRAMES.
+     *
+     * @throws IllegalArgumentException
+     *     If the given maximum frame lag is negative or exceeds
+     *     MAX_TRACKED_FRAMES, and thus could never be reached.
+     */
+    public SyncFlowControl(int maxFrameLag) {
+
+        if (maxFrameLag < 0 || maxFrameLag > MAX_TRACKED_FRAMES)
+            throw new IllegalArgumentException("Maximum frame lag must be "
+                    + "between 0 and " + MAX_TRACKED_FRAMES + ", not "
+                    + maxFrameLag + ".");
+
+        this.maxFrameLag = maxFrameLag;
+
+    }
+
+    /**
+     * Returns the timestamp of the given instruction, if that instruction is
+     * a sync instruction.
+     *
+     * @param instruction
+     *     The instruction to inspect.
+     *
+     * @return
+     *     The timestamp of the given sync instruction, or null if the
+     *     instruction is not a sync instruction or has no valid timestamp.
+     */
+    private static Long getTimestamp(GuacamoleInstruction instruction) {
+
+        if (!SYNC_OPCODE.equals(instruction.getOpcode()))
+            return null;
+
+        List<String> args = instruction.getArgs();
+        if (args.isEmpty())
+            return null;
+
+        try {
+            return Long.valueOf(args.get(0));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+
+    }
+
+    /**
+     * Returns the filter which must be applied to all instructions read from
+     * guacd. Only sync instructions need be passed to this filter.
+     *
+     * @return
+     *     The filter observing frames sent by guacd.
+     */
+    public GuacamoleFilter getServerFilter() {
+        return serverFilter;
+    }
+
+    /**
+     * Returns the filter which must be applied to all instructions written
+     * by the client. Only sync instructions need be passed to this filter.
+     *
+     * @return
+     *     The filter observing frames acknowledged by the client.
+     */
+    public GuacamoleFilter getClientFilter() {
+        return clientFilter;
+    }
+
+    /**
+     * Sets the listener to notify when reading is paused or resumed. The
+     * listener is never invoked while this object is locked.
+     *
+     * @param listener
+     *     The listener to notify, or null to notify no listener.
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Records that a frame having the given timestamp has been read from
+     * guacd, pausing reading if the client now lags too far behind.
+     *
+     * @param timestamp
+     *     The timestamp of the frame.
+     */
+    public void frameSent(long timestamp) {
+
+        Listener notify = null;
+
+        synchronized (this) {
+
+            boolean wasPaused = isPaused();
+
+            outstanding.add(new long[] { timestamp, System.currentTimeMillis() });
+            if (outstanding.size() > MAX_TRACKED_FRAMES)
+                outstanding.removeFirst();
+
+            frameCount++;
+            peakFrameLag = Math.max(peakFrameLag, outstanding.size());
+
+            if (!wasPaused && isPaused()) {
+                pausedSince = System.currentTimeMillis();
+                pauseCount++;
+                notify = listener;
+            }
+
+        }
+
+        if (notify != null)
+            notify.lagExceeded();
+
+    }
+
+    /**
+     * Records that the client has acknowledged all frames having timestamps
+     * up to and including the given timestamp, resuming reading if the
+     * client no longer lags too far behind.
+     *
+     * @param timestamp
+     *     The timestamp acknowledged by the client.
+     */
+    public void frameAcknowledged(long timestamp) {
+
+        Listener notify = null;
+
+        synchronized (this) {
+
+            boolean wasPaused = isPaused();
+            long now = System.currentTimeMillis();
+
+            while (!outstanding.isEmpty() && outstanding.getFirst()[0] <= timestamp) {
+                totalLatency += now - outstanding.removeFirst()[1];
+                acknowledgedCount++;
+            }
+
+            if (wasPaused && !isPaused()) {
+                pausedTime += now - pausedSince;
+                notify = listener;
+                notifyAll();
+            }
+
+        }
+
+        if (notify != null)
+            notify.lagRecovered();
+
+    }
+
+    /**
+     * Returns whether reading from guacd is currently paused, awaiting
+     * acknowledgement of frames by the client.
+     *
+     * @return
+     *     true if reading is paused, false otherwise.
+     */
+    public synchronized boolean isPaused() {
+        return !closed && maxFrameLag > 0 && outstanding.size() >= maxFrameLag;
+    }
+
+    /**
+     * Waits until reading is no longer paused, or until the given number of
+     * milliseconds have elapsed.
+     *
+     * @param timeout
+     *     The maximum number of milliseconds to wait.
+     *
+     * @return
+     *     true if reading is no longer paused, false if the timeout elapsed
+     *     while reading remained paused.
+     *
+     * @throws GuacamoleException
+     *     If the thread is interrupted while waiting.
+     */
+    public synchronized boolean awaitResume(long timeout)
+            throws GuacamoleException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+            long remaining;
+            while (isPaused() && (remaining = deadline - System.currentTimeMillis()) > 0)
+                wait(remaining);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GuacamoleServerException("Interrupted while awaiting "
+                    + "client acknowledgement of frames.", e);
+        }
+
+        return !isPaused();
+
+    }
+
+    /**
+     * Stops pausing reading, waking any threads within awaitResume(). This
+     * should be called when the tunnel is closed.
+     */
+    public synchronized void close() {
+
+        if (isPaused())
+            pausedTime += System.currentTimeMillis() - pausedSince;
+
+        closed = true;
+        notifyAll();
+
+    }
+
+    /**
+     * Returns the maximum number of unacknowledged frames before reading is
+     * paused.
+     *
+     * @return
+     *     The maximum frame lag, or zero if reading is never paused.
+     */
+    public int getMaxFrameLag() {
+        return maxFrameLag;
+    }
+
+    /**
+     * Returns the number of frames sent which the client has not yet
+     * acknowledged.
+     *
+     * @return
+     *     The current frame lag.
+     */
+    public synchronized int getFrameLag() {
+        return outstanding.size();
+    }
+
+    /**
+     * Returns the largest number of unacknowledged frames observed.
+     *
+     * @return
+     *     The peak frame lag.
+     */
+    public synchronized int getPeakFrameLag() {
+        return peakFrameLag;
+    }
+
+    /**
+     * Returns the total number of frames read from guacd.
+     *
+     * @return
+     *     The total number of frames sent.
+     */
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the total number of times reading has been paused.
+     *
+     * @return
+     *     The total number of pauses.
+     */
+    public synchronized long getPauseCount() {
+        return pauseCount;
+    }
+
+    /**
+     * Returns the total number of milliseconds that reading has spent
+     * paused, not including any pause still in progress.
+     *
+     * @return
+     *     The total time spent paused, in milliseconds.
+     */
+    public synchronized long getPausedTime() {
+        return pausedTime;
+    }
+
+    /**
+     * Returns the average number of milliseconds between a frame being read
+     * from guacd and that frame being acknowledged by the client.
+     *
+     * @return
+     *     The average frame latency in milliseconds, or zero if no frames
+     *     have been acknowledged.
+     */
+    public synchronized long getAverageFrameLatency() {
+        if (acknowledgedCount == 0)
+            return 0;
+        return totalLatency / acknowledgedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SyncFlowControl[maxFrameLag=" + maxFrameLag + ", frameLag="
+                + outstanding.size() + ", peakFrameLag=" + peakFrameLag
+                + ", frames=" + frameCount + ", pauses=" + pauseCount
+                + ", pausedTime=" + pausedTime + "ms, averageLatency="
+                + getAverageFrameLatency() + "ms]";
+    }
+
+}
@@ -21,6 +21,7 @@ package org.apache.guacamole.servlet;
 
 import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.util.ExpiryWheel;
 
 /**
  * Tracks the last time a particular GuacamoleTunnel was accessed. This
@@ -39,7 +40,19 @@ class GuacamoleHTTPTunnel extends DelegatingGuacamoleTunnel {
     /**
      * The last time this tunnel was accessed.
      */
-    private long lastAccessedTime;
+    private volatile long lastAccessedTime;
+
+    /**
+     * The timeout which closes this tunnel if not accessed, or null if no
+     * such timeout has been scheduled.
+     */
+    private volatile ExpiryWheel.Timeout timeout;
+
+    /**
+     * The codec used to encode and decode all data sent over this tunnel
+     * via HTTP.
+     */
+    private final HTTPTunnelCodec codec = new HTTPTunnelCodec();
 
     /**
      * Creates a new GuacamoleHTTPTunnel which wraps the given tunnel.
@@ -57,7 +70,14 @@ class GuacamoleHTTPTunnel extends DelegatingGuacamoleTunnel {
      * Updates this tunnel, marking it as recently accessed.
      */
     public void access() {
+
         lastAccessedTime = System.currentTimeMillis();
+
+        // Postpone timeout, if any
+        ExpiryWheel.Timeout current = timeout;
+        if (current != null)
+            current.touch();
+
     }
 
     /**
@@ -72,4 +92,38 @@ class GuacamoleHTTPTunnel extends DelegatingGuacamoleTunnel {
         return lastAccessedTime;
     }
 
+    /**
+     * Returns the timeout which closes this tunnel if not accessed.
+     *
+     * @return
+     *     The timeout of this tunnel, or null if no timeout has been set.
+     */
+    public ExpiryWheel.Timeout getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the timeout which closes this tunnel if not accessed. Each call
+     * to access() will postpone this timeout.
+     *
+     * @param timeout
+     *     The timeout of this tunnel.
+     */
+    public void setTimeout(ExpiryWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the codec used to encode and decode all data sent over this
+     * tunnel via HTTP. The encoding half of the codec may only be used while
+     * holding the reader of this tunnel, and the decoding half only while
+     * holding the writer.
+     *
+     * @return
+     *     The codec of this tunnel.
+     */
+    public HTTPTunnelCodec getCodec() {
+        return codec;
+    }
+
 }
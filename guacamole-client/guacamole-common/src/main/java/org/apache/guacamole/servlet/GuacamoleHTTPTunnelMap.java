@@ -19,15 +19,11 @@
 
 package org.apache.guacamole.servlet;
 
-import java.util.Iterator;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.util.ExpiryWheel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,17 +43,17 @@ class GuacamoleHTTPTunnelMap {
     private static final Logger logger = LoggerFactory.getLogger(GuacamoleHTTPTunnelMap.class);
 
     /**
-     * The number of seconds to wait between tunnel accesses before timing out
-     * Note that this will be enforced only within a factor of 2. If a tunnel
-     * is unused, it will take between TUNNEL_TIMEOUT and TUNNEL_TIMEOUT*2
-     * seconds before that tunnel is closed and removed.
+     * The number of seconds to wait between tunnel accesses before timing out.
+     * If a tunnel is unused, it will be closed and removed within one tick of
+     * the shared ExpiryWheel after TUNNEL_TIMEOUT seconds have elapsed.
      */
     private static final int TUNNEL_TIMEOUT = 15;
 
     /**
-     * Executor service which runs the periodic tunnel timeout task.
+     * The timing wheel which closes tunnels that have not been accessed
+     * within TUNNEL_TIMEOUT seconds.
      */
-    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+    private final ExpiryWheel wheel = ExpiryWheel.acquire();
 
     /**
      * Map of all tunnels that are using HTTP, indexed by tunnel UUID.
@@ -66,79 +62,56 @@ class GuacamoleHTTPTunnelMap {
             new ConcurrentHashMap<String, GuacamoleHTTPTunnel>();
 
     /**
-     * Creates a new GuacamoleHTTPTunnelMap which automatically closes and
-     * removes HTTP tunnels which are no longer in use.
+     * Listener which removes and closes a single tunnel once that tunnel
+     * has not been accessed within TUNNEL_TIMEOUT seconds.
      */
-    public GuacamoleHTTPTunnelMap() {
+    private class TunnelTimeoutListener implements ExpiryWheel.Listener {
 
-        // Check for unused tunnels every few seconds
-        executor.scheduleAtFixedRate(
-            new TunnelTimeoutTask(TUNNEL_TIMEOUT * 1000l),
-            TUNNEL_TIMEOUT, TUNNEL_TIMEOUT, TimeUnit.SECONDS);
-
-    }
-
-    /**
-     * Task which iterates through all registered tunnels, removing and those
-     * tunnels which have not been accessed for a given number of milliseconds.
-     */
-    private class TunnelTimeoutTask implements Runnable {
+        /**
+         * The UUID of the tunnel to close.
+         */
+        private final String uuid;
 
         /**
-         * The maximum amount of time to allow between accesses to any one
-         * HTTP tunnel, in milliseconds.
+         * The tunnel to close.
          */
-        private final long tunnelTimeout;
+        private final GuacamoleHTTPTunnel tunnel;
 
         /**
-         * Creates a new task which automatically closes and removes tunnels
-         * which have not been accessed for at least the given number of
-         * milliseconds.
+         * Creates a new listener which removes and closes the given tunnel
+         * upon expiry.
          *
-         * @param tunnelTimeout
-         *     The maximum amount of time to allow between separate tunnel
-         *     read/write requests, in milliseconds.
+         * @param uuid
+         *     The UUID of the tunnel to close.
+         *
+         * @param tunnel
+         *     The tunnel to close.
          */
-        public TunnelTimeoutTask(long tunnelTimeout) {
-            this.tunnelTimeout = tunnelTimeout;
+        public TunnelTimeoutListener(String uuid, GuacamoleHTTPTunnel tunnel) {
+            this.uuid = uuid;
+            this.tunnel = tunnel;
         }
 
         @Override
-        public void run() {
-
-            // Get current time
-            long now = System.currentTimeMillis();
-
-            // For each tunnel, close and remove any tunnels which have expired
-            Iterator<Map.Entry<String, GuacamoleHTTPTunnel>> entries = tunnelMap.entrySet().iterator();
-            while (entries.hasNext()) {
-
-                Map.Entry<String, GuacamoleHTTPTunnel> entry = entries.next();
-                GuacamoleHTTPTunnel tunnel = entry.getValue();
-
-                // Get elapsed time since last access
-                long age = now - tunnel.getLastAccessedTime();
-
-                // If tunnel is too old, close and remove it
-                if (age >= tunnelTimeout) {
+        public boolean expired() {
 
-                    // Remove old entry
-                    logger.debug("HTTP tunnel \"{}\" has timed out.", entry.getKey());
-                    entries.remove();
+            // Remove old entry, unless already replaced or removed
+            if (!tunnelMap.remove(uuid, tunnel))
+                return true;
 
-                    // Attempt to close tunnel
-                    try {
-                        tunnel.close();
-                    }
-                    catch (GuacamoleException e) {
-                        logger.debug("Unable to close expired HTTP tunnel.", e);
-                    }
+            logger.debug("HTTP tunnel \"{}\" has timed out.", uuid);
 
-                }
+            // Attempt to close tunnel
+            try {
+                tunnel.close();
+            }
+            catch (GuacamoleException e) {
+                logger.debug("Unable to close expired HTTP tunnel.", e);
+            }
 
-            } // end for each tunnel
+            return true;
 
-        } // end timeout task run()
+        }
 
     }
 
@@ -179,7 +152,16 @@ class GuacamoleHTTPTunnelMap {
      *     having just been established via HTTP.
      */
     public void put(String uuid, GuacamoleTunnel tunnel) {
-        tunnelMap.put(uuid, new GuacamoleHTTPTunnel(tunnel));
+
+        GuacamoleHTTPTunnel httpTunnel = new GuacamoleHTTPTunnel(tunnel);
+        httpTunnel.setTimeout(wheel.schedule(TUNNEL_TIMEOUT * 1000l,
+                new TunnelTimeoutListener(uuid, httpTunnel)));
+
+        // Cancel timeout of any replaced tunnel
+        GuacamoleHTTPTunnel replaced = tunnelMap.put(uuid, httpTunnel);
+        if (replaced != null)
+            replaced.getTimeout().cancel();
+
     }
 
     /**
@@ -196,7 +178,14 @@ class GuacamoleHTTPTunnelMap {
      *     exists and no removal was performed.
      */
     public GuacamoleHTTPTunnel remove(String uuid) {
-        return tunnelMap.remove(uuid);
+
+        // Tunnel no longer needs to time out once removed
+        GuacamoleHTTPTunnel tunnel = tunnelMap.remove(uuid);
+        if (tunnel != null)
+            tunnel.getTimeout().cancel();
+
+        return tunnel;
+
     }
 
     /**
@@ -204,7 +193,12 @@ class GuacamoleHTTPTunnelMap {
      * registered and reclaiming any resources.
      */
     public void shutdown() {
-        executor.shutdownNow();
+
+        for (GuacamoleHTTPTunnel tunnel : tunnelMap.values())
+            tunnel.getTimeout().cancel();
+
+        ExpiryWheel.release(wheel);
+
     }
 
 }
@@ -19,12 +19,10 @@
 
 package org.apache.guacamole.servlet;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -34,6 +32,7 @@ import org.apache.guacamole.GuacamoleConnectionClosedException;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleResourceNotFoundException;
 import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.io.GuacamoleByteReader;
 import org.apache.guacamole.io.GuacamoleReader;
 import org.apache.guacamole.io.GuacamoleWriter;
 import org.apache.guacamole.net.GuacamoleTunnel;
@@ -84,6 +83,11 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
      */
     private static final int UUID_LENGTH = 36;
 
+    /**
+     * The UTF-8 encoding of the marker sent at the end of each read response.
+     */
+    private static final byte[] END_OF_INSTRUCTIONS = { '0', '.', ';' };
+
     /**
      * Registers the given tunnel such that future read/write requests to that
      * tunnel will be properly directed.
@@ -292,6 +296,88 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
     protected abstract GuacamoleTunnel doConnect(HttpServletRequest request)
             throws GuacamoleException;
 
+    /**
+     * Returns the codec to use to encode and decode data for the given
+     * tunnel. Registered tunnels keep a single codec for their lifetime,
+     * while a new codec is created for any other tunnel.
+     *
+     * @param tunnel
+     *     The tunnel whose data will be encoded or decoded.
+     *
+     * @return
+     *     The codec to use for the given tunnel.
+     */
+    private HTTPTunnelCodec getCodec(GuacamoleTunnel tunnel) {
+
+        if (tunnel instanceof GuacamoleHTTPTunnel)
+            return ((GuacamoleHTTPTunnel) tunnel).getCodec();
+
+        return new HTTPTunnelCodec();
+
+    }
+
+    /**
+     * Reads the next instruction from the given GuacamoleReader, copying it
+     * to the HTTP response. If the reader provides the raw bytes of each
+     * instruction, those bytes are written directly to the given
+     * OutputStream without being decoded and re-encoded, otherwise the
+     * instruction is encoded using the given codec.
+     *
+     * @param reader
+     *     The GuacamoleReader to read the next instruction from.
+     *
+     * @param output
+     *     The OutputStream of the HTTP response.
+     *
+     * @param codec
+     *     The codec of the tunnel, used only if the reader cannot provide
+     *     raw bytes.
+     *
+     * @return
+     *     true if an instruction was copied, false if the end of the stream
+     *     has been reached.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while reading from the tunnel.
+     *
+     * @throws IOException
+     *     If an error occurs while writing to the HTTP response.
+     */
+    private boolean copyInstruction(GuacamoleReader reader,
+            OutputStream output, HTTPTunnelCodec codec)
+            throws GuacamoleException, IOException {
+
+        // Forward raw bytes as-is if available
+        if (reader instanceof GuacamoleByteReader) {
+
+            ByteBuffer message = ((GuacamoleByteReader) reader).readBytes();
+            if (message == null)
+                return false;
+
+            if (message.hasArray())
+                output.write(message.array(),
+                        message.arrayOffset() + message.position(),
+                        message.remaining());
+            else {
+                byte[] bytes = new byte[message.remaining()];
+                message.get(bytes);
+                output.write(bytes);
+            }
+
+            return true;
+
+        }
+
+        // Otherwise, encode characters
+        char[] message = reader.read();
+        if (message == null)
+            return false;
+
+        codec.encode(message, 0, message.length, output);
+        return true;
+
+    }
+
     /**
      * Called whenever the JavaScript Guacamole client makes a read request.
      * This function should in general not be overridden, as it already
@@ -335,46 +421,40 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
             response.setContentType("application/octet-stream");
             response.setHeader("Cache-Control", "no-cache");
 
-            // Get writer for response
-            Writer out = new BufferedWriter(new OutputStreamWriter(
-                    response.getOutputStream(), "UTF-8"));
+            // Encode response using the codec of the tunnel
+            OutputStream output = response.getOutputStream();
+            HTTPTunnelCodec codec = getCodec(tunnel);
 
             // Stream data to response, ensuring output stream is closed
             try {
 
                 // Deregister tunnel and throw error if we reach EOF without
                 // having ever sent any data
-                char[] message = reader.read();
-                if (message == null)
+                boolean more = copyInstruction(reader, output, codec);
+                if (!more)
                     throw new GuacamoleConnectionClosedException("Tunnel reached end of stream.");
 
                 // For all messages, until another stream is ready (we send at least one message)
                 do {
 
-                    // Get message output bytes
-                    out.write(message, 0, message.length);
-
                     // Flush if we expect to wait
-                    if (!reader.available()) {
-                        out.flush();
+                    if (!reader.available())
                         response.flushBuffer();
-                    }
 
                     // No more messages another stream can take over
                     if (tunnel.hasQueuedReaderThreads())
                         break;
 
-                } while (tunnel.isOpen() && (message = reader.read()) != null);
+                } while (tunnel.isOpen() && (more = copyInstruction(reader, output, codec)));
 
                 // Close tunnel immediately upon EOF
-                if (message == null) {
+                if (!more) {
                     deregisterTunnel(tunnel);
                     tunnel.close();
                 }
 
                 // End-of-instructions marker
-                out.write("0.;");
-                out.flush();
+                output.write(END_OF_INSTRUCTIONS);
                 response.flushBuffer();
             }
 
@@ -386,8 +466,7 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
                 tunnel.close();
 
                 // End-of-instructions marker
-                out.write("0.;");
-                out.flush();
+                output.write(END_OF_INSTRUCTIONS);
                 response.flushBuffer();
 
             }
@@ -403,7 +482,7 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
 
             // Always close output stream
             finally {
-                out.close();
+                output.close();
             }
 
         }
@@ -464,22 +543,19 @@ public abstract class GuacamoleHTTPTunnelServlet extends HttpServlet {
             // Get writer from tunnel
             GuacamoleWriter writer = tunnel.acquireWriter();
 
-            // Get input reader for HTTP stream
-            Reader input = new InputStreamReader(
-                    request.getInputStream(), "UTF-8");
+            // Decode request using the codec of the tunnel
+            InputStream input = request.getInputStream();
+            HTTPTunnelCodec codec = getCodec(tunnel);
+            codec.resetDecoder();
 
             // Transfer data from input stream to tunnel output, ensuring
             // input is always closed
             try {
 
-                // Buffer
+                // Transfer data as it is decoded
                 int length;
-                char[] buffer = new char[8192];
-
-                // Transfer data using buffer
-                while (tunnel.isOpen() &&
-                        (length = input.read(buffer, 0, buffer.length)) != -1)
-                    writer.write(buffer, 0, length);
+                while (tunnel.isOpen() && (length = codec.decode(input)) != -1)
+                    writer.write(codec.getDecodedChars(), 0, length);
 
             }
 
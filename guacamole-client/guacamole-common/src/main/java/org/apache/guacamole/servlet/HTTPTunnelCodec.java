@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reusable UTF-8 encoder and decoder for the data of a single HTTP tunnel.
+ * Each tunnel keeps one codec for its entire lifetime, such that read and
+ * write requests need not allocate new readers, writers, and buffers. The
+ * encoding half may only be used while holding the reader of the tunnel,
+ * and the decoding half only while holding the writer of the tunnel.
+ */
+class HTTPTunnelCodec {
+
+    /**
+     * The character set of all data sent over the HTTP tunnel.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The size of each buffer used for encoding and decoding.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Encoder for data sent in response to read requests.
+     */
+    private final CharsetEncoder encoder = UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Decoder for data received within write requests.
+     */
+    private final CharsetDecoder decoder = UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Buffer receiving encoded bytes before they are written to the HTTP
+     * response.
+     */
+    private final ByteBuffer encoded = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Buffer receiving bytes read from the HTTP request which have not yet
+     * been decoded.
+     */
+    private final ByteBuffer undecoded = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Buffer receiving decoded characters. As each byte of UTF-8 decodes to
+     * at most one character, this buffer can never overflow while decoding
+     * the contents of the undecoded buffer.
+     */
+    private final CharBuffer decoded = CharBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Whether the end of the current HTTP request has been reached.
+     */
+    private boolean endOfInput = false;
+
+    /**
+     * Writes all bytes within the encoded buffer to the given OutputStream,
+     * clearing the buffer.
+     *
+     * @param output
+     *     The OutputStream to write to.
+     *
+     * @throws IOException
+     *     If an error occurs while writing to the OutputStream.
+     */
+    private void drain(OutputStream output) throws IOException {
+        output.write(encoded.array(), 0, encoded.position());
+        encoded.clear();
+    }
+
+    /**
+     * Encodes the given characters as UTF-8, writing the result to the given
+     * OutputStream. The characters must form complete instructions, as the
+     * encoder is reset before each call.
+     *
+     * @param chars
+     *     The buffer containing the characters to encode.
+     *
+     * @param offset
+     *     The offset of the first character to encode.
+     *
+     * @param length
+     *     The number of characters to encode.
+     *
+     * @param output
+     *     The OutputStream to write encoded bytes to.
+     *
+     * @throws IOException
+     *     If an error occurs while writing to the OutputStream.
+     */
+    public void encode(char[] chars, int offset, int length,
+            OutputStream output) throws IOException {
+
+        CharBuffer input = CharBuffer.wrap(chars, offset, length);
+        encoder.reset();
+
+        // Encode all characters, draining the buffer whenever full
+        while (encoder.encode(input, encoded, true).isOverflow())
+            drain(output);
+
+        while (encoder.flush(encoded).isOverflow())
+            drain(output);
+
+        drain(output);
+
+    }
+
+    /**
+     * Prepares the decoding half of this codec for a new HTTP request.
+     */
+    public void resetDecoder() {
+        decoder.reset();
+        undecoded.clear();
+        endOfInput = false;
+    }
+
+    /**
+     * Reads the next block of data from the given InputStream, decoding as
+     * much as possible. Any incomplete character at the end of the block is
+     * retained until the next call. The decoded characters are available
+     * through getDecodedChars() until the next call.
+     *
+     * @param input
+     *     The InputStream of the HTTP request.
+     *
+     * @return
+     *     The number of characters decoded, which may be zero, or -1 if the
+     *     end of the request has been reached and all data has been decoded.
+     *
+     * @throws IOException
+     *     If an error occurs while reading from the InputStream.
+     */
+    public int decode(InputStream input) throws IOException {
+
+        if (endOfInput)
+            return -1;
+
+        // Read next block after any incomplete character of the last block
+        int read = input.read(undecoded.array(), undecoded.position(),
+                undecoded.remaining());
+
+        if (read == -1)
+            endOfInput = true;
+        else
+            undecoded.position(undecoded.position() + read);
+
+        // Decode all complete characters
+        decoded.clear();
+        undecoded.flip();
+        CoderResult result = decoder.decode(undecoded, decoded, endOfInput);
+        if (endOfInput && result.isUnderflow())
+            decoder.flush(decoded);
+        undecoded.compact();
+
+        if (endOfInput && decoded.position() == 0)
+            return -1;
+
+        return decoded.position();
+
+    }
+
+    /**
+     * Returns the buffer containing the characters decoded by the last call
+     * to decode(), starting at offset zero.
+     *
+     * @return
+     *     The buffer containing the most recently decoded characters.
+     */
+    public char[] getDecodedChars() {
+        return decoded.array();
+    }
+
+}
@@ -0,0 +1,687 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hierarchical timing wheel which expires objects that have not been
+ * accessed within a timeout. Each scheduled Timeout is stored within a slot
+ * of the wheel corresponding to its deadline, such that scheduling,
+ * cancelling, and expiring are each constant-time, and each tick examines
+ * only the timeouts due at that tick rather than every timeout.
+ *
+ * Touching a Timeout merely records a new deadline, without locking or
+ * moving the Timeout within the wheel. When a touched Timeout reaches its
+ * original slot, it is moved to the slot of its new deadline instead of
+ * being expired, thus the cost of frequent accesses is paid at most once per
+ * timeout period.
+ *
+ * Slots are arranged in levels of 64, each level covering 64 times the span
+ * of the level below. Timeouts within distant levels are cascaded into lower
+ * levels as their deadlines approach.
+ */
+public class ExpiryWheel {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ExpiryWheel.class);
+
+    /**
+     * The default duration of each tick of the wheel, in milliseconds.
+     */
+    public static final long DEFAULT_TICK_DURATION = 1000;
+
+    /**
+     * The number of bits of each tick number which select a slot within a
+     * single level.
+     */
+    private static final int SLOT_BITS = 6;
+
+    /**
+     * The number of slots within each level.
+     */
+    private static final int SLOT_COUNT = 1 << SLOT_BITS;
+
+    /**
+     * Mask selecting the slot within a single level.
+     */
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+
+    /**
+     * The number of levels. With the default tick duration, four levels
+     * span roughly 194 days; timeouts beyond this span are parked within the
+     * highest level and moved closer as the wheel turns.
+     */
+    private static final int LEVEL_COUNT = 4;
+
+    /**
+     * The wheel shared by all callers of acquire(), or null if no such
+     * callers currently exist.
+     */
+    private static ExpiryWheel shared;
+
+    /**
+     * The number of callers of acquire() which have not yet called
+     * release().
+     */
+    private static int sharedUsers = 0;
+
+    /**
+     * Listener which is notified when a Timeout expires.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked when the associated Timeout has not been touched within its
+         * timeout. Implementations may keep the Timeout alive by returning
+         * false, in which case it is treated as if touched.
+         *
+         * @return
+         *     true if the expiry has been handled and the Timeout should be
+         *     discarded, false if the Timeout should remain scheduled.
+         */
+        boolean expired();
+
+    }
+
+    /**
+     * A single object tracked by this wheel, expiring once not touched for
+     * a given amount of time.
+     */
+    public class Timeout {
+
+        /**
+         * The number of milliseconds after each touch that this Timeout
+         * expires.
+         */
+        private final long timeout;
+
+        /**
+         * The listener to notify upon expiry.
+         */
+        private final Listener listener;
+
+        /**
+         * The time at which this Timeout expires, in milliseconds relative to
+         * the same origin as now().
+         */
+        private volatile long deadline;
+
+        /**
+         * The previous Timeout within the same slot. Guarded by the wheel.
+         */
+        private Timeout previous;
+
+        /**
+         * The next Timeout within the same slot. Guarded by the wheel.
+         */
+        private Timeout next;
+
+        /**
+         * The level containing this Timeout, or -1 if not within any slot.
+         * Guarded by the wheel.
+         */
+        private int level = -1;
+
+        /**
+         * The slot containing this Timeout within its level. Guarded by the
+         * wheel.
+         */
+        private int slot;
+
+        /**
+         * Whether this Timeout has been cancelled or has expired. Guarded by
+         * the wheel.
+         */
+        private boolean done = false;
+
+        /**
+         * Creates a new Timeout which expires the given number of
+         * milliseconds after creation or after last being touched.
+         *
+         * @param timeout
+         *     The number of milliseconds after each touch that the Timeout
+         *     expires.
+         *
+         * @param listener
+         *     The listener to notify upon expiry.
+         */
+        private Timeout(long timeout, Listener listener) {
+            this.timeout = timeout;
+            this.listener = listener;
+            this.deadline = now() + timeout;
+        }
+
+        /**
+         * Marks the object associated with this Timeout as accessed,
+         * postponing expiry until the full timeout has again elapsed. This
+         * function does not lock and may be invoked as frequently as
+         * desired.
+         */
+        public void touch() {
+            deadline = now() + timeout;
+        }
+
+        /**
+         * Cancels this Timeout, such that it will never expire. If the
+         * Timeout has already expired, this function has no effect.
+         */
+        public void cancel() {
+            synchronized (ExpiryWheel.this) {
+                if (!done) {
+                    done = true;
+                    unlink(this);
+                    size--;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * The origin of all tick numbers, in milliseconds relative to the same
+     * origin as now().
+     */
+    private final long origin = now();
+
+    /**
+     * The duration of each tick, in milliseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * The first Timeout within each slot of each level, or null for empty
+     * slots. Guarded by this wheel.
+     */
+    private final Timeout[][] slots = new Timeout[LEVEL_COUNT][SLOT_COUNT];
+
+    /**
+     * The number of the most recently processed tick. Guarded by this
+     * wheel.
+     */
+    private long currentTick = 0;
+
+    /**
+     * The number of Timeouts currently scheduled. Guarded by this wheel.
+     */
+    private int size = 0;
+
+    /**
+     * The executor which turns this wheel.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * The number of Timeouts examined during the most recent tick.
+     */
+    private volatile long lastTickWork = 0;
+
+    /**
+     * The largest number of Timeouts examined during any single tick.
+     */
+    private volatile long peakTickWork = 0;
+
+    /**
+     * The largest number of milliseconds between the deadline of any
+     * Timeout expired during the most recent tick and its actual expiry.
+     */
+    private volatile long lastExpiryLag = 0;
+
+    /**
+     * The largest number of milliseconds between the deadline of any
+     * Timeout and its actual expiry.
+     */
+    private volatile long peakExpiryLag = 0;
+
+    /**
+     * The total number of Timeouts expired.
+     */
+    private volatile long expiredCount = 0;
+
+    /**
+     * The total number of Timeouts kept alive by their listeners upon
+     * expiry.
+     */
+    private volatile long renewedCount = 0;
+
+    /**
+     * Creates a new ExpiryWheel which turns once per tick within a dedicated
+     * daemon thread having the given name.
+     *
+     * @param name
+     *     The name of the thread turning the wheel.
+     *
+     * @param tickDuration
+     *     The duration of each tick, in milliseconds. Timeouts expire within
+     *     one tick of their deadlines.
+     */
+    public ExpiryWheel(final String name, long tickDuration) {
+
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("Tick duration must be positive.");
+
+        this.tickDuration = tickDuration;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+
+        executor.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    tick();
+                }
+                catch (RuntimeException e) {
+                    logger.error("Expiry of timed out objects failed: {}", e.getMessage());
+                    logger.debug("Unexpected error during expiry wheel tick.", e);
+                }
+            }
+
+        }, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * Returns the wheel shared by all callers of this function, creating
+     * that wheel if necessary. Each call must be paired with a call to
+     * release() once the wheel is no longer needed.
+     *
+     * @return
+     *     The shared wheel.
+     */
+    public static synchronized ExpiryWheel acquire() {
+
+        if (shared == null)
+            shared = new ExpiryWheel("guacamole-expiry", DEFAULT_TICK_DURATION);
+
+        sharedUsers++;
+        return shared;
+
+    }
+
+    /**
+     * Releases the shared wheel previously returned by acquire(), shutting
+     * it down once all callers have released it.
+     *
+     * @param wheel
+     *     The wheel returned by acquire().
+     */
+    public static synchronized void release(ExpiryWheel wheel) {
+
+        if (wheel != shared)
+            return;
+
+        if (--sharedUsers == 0) {
+            shared.shutdown();
+            shared = null;
+        }
+
+    }
+
+    /**
+     * Returns the current time in milliseconds relative to an arbitrary,
+     * monotonic origin.
+     *
+     * @return
+     *     The current time, in milliseconds.
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Schedules a new Timeout which expires once not touched for the given
+     * number of milliseconds, notifying the given listener from within the
+     * thread turning this wheel.
+     *
+     * @param timeout
+     *     The number of milliseconds after each touch that the Timeout
+     *     expires.
+     *
+     * @param listener
+     *     The listener to notify upon expiry.
+     *
+     * @return
+     *     The new Timeout.
+     */
+    public Timeout schedule(long timeout, Listener listener) {
+
+        Timeout entry = new Timeout(timeout, listener);
+
+        synchronized (this) {
+            insert(entry, currentTick + 1);
+            size++;
+        }
+
+        return entry;
+
+    }
+
+    /**
+     * Inserts the given Timeout into the slot corresponding to its deadline,
+     * no earlier than the given tick. Must be called while synchronized on
+     * this wheel.
+     *
+     * @param entry
+     *     The Timeout to insert.
+     *
+     * @param minimumTick
+     *     The earliest tick at which the Timeout may be examined.
+     */
+    private void insert(Timeout entry, long minimumTick) {
+
+        long expiryTick = (entry.deadline - origin + tickDuration - 1) / tickDuration;
+        if (expiryTick < minimumTick)
+            expiryTick = minimumTick;
+
+        // Find lowest level whose slots span the deadline
+        int level = 0;
+        while (level < LEVEL_COUNT - 1 && (expiryTick >>> (SLOT_BITS * level))
+                - (currentTick >>> (SLOT_BITS * level)) >= SLOT_COUNT)
+            level++;
+
+        // Park timeouts beyond the span of the wheel in the furthest slot
+        int shift = SLOT_BITS * level;
+        if ((expiryTick >>> shift) - (currentTick >>> shift) >= SLOT_COUNT)
+            expiryTick = ((currentTick >>> shift) + SLOT_COUNT - 1) << shift;
+
+        int slot = (int) ((expiryTick >>> shift) & SLOT_MASK);
+
+        // Link at head of slot
+        Timeout head = slots[level][slot];
+        entry.previous = null;
+        entry.next = head;
+        if (head != null)
+            head.previous = entry;
+
+        slots[level][slot] = entry;
+        entry.level = level;
+        entry.slot = slot;
+
+    }
+
+    /**
+     * Removes the given Timeout from its slot, if any. Must be called while
+     * synchronized on this wheel.
+     *
+     * @param entry
+     *     The Timeout to remove.
+     */
+    private void unlink(Timeout entry) {
+
+        if (entry.level == -1)
+            return;
+
+        if (entry.previous != null)
+            entry.previous.next = entry.next;
+        else
+            slots[entry.level][entry.slot] = entry.next;
+
+        if (entry.next != null)
+            entry.next.previous = entry.previous;
+
+        entry.previous = null;
+        entry.next = null;
+        entry.level = -1;
+
+    }
+
+    /**
+     * Removes and returns all Timeouts within the given slot, as a list
+     * linked through their next fields. Must be called while synchronized on
+     * this wheel.
+     *
+     * @param level
+     *     The level containing the slot.
+     *
+     * @param slot
+     *     The slot to empty.
+     *
+     * @return
+     *     The first Timeout of the slot, or null if the slot was empty.
+     */
+    private Timeout detach(int level, int slot) {
+
+        Timeout head = slots[level][slot];
+        slots[level][slot] = null;
+
+        for (Timeout entry = head; entry != null; entry = entry.next)
+            entry.level = -1;
+
+        return head;
+
+    }
+
+    /**
+     * Advances this wheel to the current time, expiring all Timeouts whose
+     * deadlines have passed and notifying their listeners.
+     */
+    private void tick() {
+
+        long now = now();
+        long targetTick = (now - origin) / tickDuration;
+
+        List<Timeout> expired = new ArrayList<Timeout>();
+        long work = 0;
+        long lag = 0;
+
+        synchronized (this) {
+
+            while (currentTick < targetTick) {
+
+                currentTick++;
+
+                // Cascade higher levels whose slot boundary has been reached
+                for (int level = LEVEL_COUNT - 1; level > 0; level--) {
+
+                    int shift = SLOT_BITS * level;
+                    if ((currentTick & ((1L << shift) - 1)) != 0)
+                        continue;
+
+                    Timeout entry = detach(level, (int) ((currentTick >>> shift) & SLOT_MASK));
+                    while (entry != null) {
+                        Timeout next = entry.next;
+                        insert(entry, currentTick);
+                        entry = next;
+                        work++;
+                    }
+
+                }
+
+                // Expire or reschedule each timeout within current slot
+                Timeout entry = detach(0, (int) (currentTick & SLOT_MASK));
+                while (entry != null) {
+
+                    Timeout next = entry.next;
+                    long deadline = entry.deadline;
+
+                    if (deadline > now)
+                        insert(entry, currentTick + 1);
+                    else {
+                        entry.previous = null;
+                        entry.next = null;
+                        expired.add(entry);
+                        lag = Math.max(lag, now - deadline);
+                    }
+
+                    entry = next;
+                    work++;
+
+                }
+
+            }
+
+        }
+
+        // Notify listeners outside lock
+        long expiredTotal = 0;
+        long renewedTotal = 0;
+        for (Timeout entry : expired) {
+
+            synchronized (this) {
+                if (entry.done)
+                    continue;
+            }
+
+            boolean handled = entry.listener.expired();
+
+            synchronized (this) {
+
+                if (entry.done)
+                    continue;
+
+                // Keep alive if requested, as if touched
+                if (!handled) {
+                    entry.touch();
+                    insert(entry, currentTick + 1);
+                    renewedTotal++;
+                }
+
+                else {
+                    entry.done = true;
+                    size--;
+                    expiredTotal++;
+                }
+
+            }
+
+        }
+
+        // Update metrics
+        lastTickWork = work;
+        lastExpiryLag = lag;
+        peakTickWork = Math.max(peakTickWork, work);
+        peakExpiryLag = Math.max(peakExpiryLag, lag);
+        expiredCount += expiredTotal;
+        renewedCount += renewedTotal;
+
+    }
+
+    /**
+     * Returns the number of Timeouts currently scheduled.
+     *
+     * @return
+     *     The number of Timeouts currently scheduled.
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of Timeouts examined during the most recent tick,
+     * including Timeouts cascaded from higher levels.
+     *
+     * @return
+     *     The number of Timeouts examined during the most recent tick.
+     */
+    public long getLastTickWork() {
+        return lastTickWork;
+    }
+
+    /**
+     * Returns the largest number of Timeouts examined during any single
+     * tick.
+     *
+     * @return
+     *     The largest number of Timeouts examined during any single tick.
+     */
+    public long getPeakTickWork() {
+        return peakTickWork;
+    }
+
+    /**
+     * Returns the largest delay between the deadline of any Timeout expired
+     * during the most recent tick and its actual expiry.
+     *
+     * @return
+     *     The expiry lag of the most recent tick, in milliseconds.
+     */
+    public long getLastExpiryLag() {
+        return lastExpiryLag;
+    }
+
+    /**
+     * Returns the largest delay between the deadline of any Timeout and its
+     * actual expiry.
+     *
+     * @return
+     *     The largest expiry lag observed, in milliseconds.
+     */
+    public long getPeakExpiryLag() {
+        return peakExpiryLag;
+    }
+
+    /**
+     * Returns the total number of Timeouts which have expired.
+     *
+     * @return
+     *     The total number of Timeouts which have expired.
+     */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Returns the total number of Timeouts which were kept alive by their
+     * listeners upon expiry.
+     *
+     * @return
+     *     The total number of Timeouts kept alive upon expiry.
+     */
+    public long getRenewedCount() {
+        return renewedCount;
+    }
+
+    /**
+     * Stops turning this wheel. Scheduled Timeouts will no longer expire.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "ExpiryWheel[size=" + getSize()
+                + ", lastTickWork=" + lastTickWork
+                + ", peakTickWork=" + peakTickWork
+                + ", lastExpiryLag=" + lastExpiryLag + "ms"
+                + ", peakExpiryLag=" + peakExpiryLag + "ms"
+                + ", expired=" + expiredCount
+                + ", renewed=" + renewedCount + "]";
+    }
+
+}
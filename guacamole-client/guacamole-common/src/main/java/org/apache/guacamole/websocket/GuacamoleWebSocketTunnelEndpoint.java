@@ -20,6 +20,12 @@
 package org.apache.guacamole.websocket;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.websocket.CloseReason;
 import javax.websocket.CloseReason.CloseCode;
 import javax.websocket.Endpoint;
@@ -28,16 +34,25 @@ import javax.websocket.MessageHandler;
 import javax.websocket.OnClose;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
-import javax.websocket.RemoteEndpoint;
 import javax.websocket.Session;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleByteReader;
 import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleReaderEventLoop;
+import org.apache.guacamole.io.GuacamoleReaderListener;
 import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.io.SelectableGuacamoleReader;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.FlowControlledGuacamoleTunnel;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.RateLimitedGuacamoleTunnel;
+import org.apache.guacamole.net.TunnelPumpExecutor;
+import org.apache.guacamole.net.WriterPriority;
 import org.apache.guacamole.GuacamoleClientException;
 import org.apache.guacamole.GuacamoleConnectionClosedException;
 import org.apache.guacamole.protocol.GuacamoleInstruction;
 import org.apache.guacamole.protocol.GuacamoleStatus;
+import org.apache.guacamole.protocol.SyncFlowControl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +62,17 @@ import org.slf4j.LoggerFactory;
  * Messages sent/received are simply chunks of the Guacamole protocol
  * instruction stream.
  *
+ * By default, each tunnel is read by its own "read pump", run by the
+ * Executor returned by getReadPumpExecutor(). If getEventLoop() is
+ * overridden to provide a GuacamoleReaderEventLoop, tunnels whose readers
+ * support non-blocking reads are instead serviced by that event loop.
+ *
+ * In either case, instructions are sent to the client asynchronously through
+ * a bounded queue, with reading from the tunnel paused while that queue is
+ * full. The limits of the queue, and the handling of clients which cannot
+ * receive data quickly enough, are dictated by the WebSocketSendPolicy
+ * returned by getSendPolicy().
+ *
  * @author Michael Jumper
  */
 public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
@@ -56,6 +82,11 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
      */
     private static final int BUFFER_SIZE = 8192;
 
+    /**
+     * The charset of the Guacamole protocol.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * Logger for this class.
      */
@@ -66,7 +97,13 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
      * as reads/writes to this tunnel.
      */
     private GuacamoleTunnel tunnel;
-    
+
+    /**
+     * The queue of messages awaiting sending to the client, or null if the
+     * tunnel has not yet been read.
+     */
+    private WebSocketSendQueue sendQueue;
+
     /**
      * Sends the given status on the given WebSocket connection and closes the
      * connection.
@@ -87,6 +124,265 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
 
     }
 
+    /**
+     * Logs the given error, which caused reading from the tunnel to fail,
+     * returning the status with which the WebSocket connection should be
+     * closed as a result.
+     *
+     * @param e
+     *     The error which caused reading from the tunnel to fail.
+     *
+     * @return
+     *     The status with which the WebSocket connection should be closed.
+     */
+    private GuacamoleStatus getCloseStatus(GuacamoleException e) {
+
+        // Errors caused by the client
+        if (e instanceof GuacamoleClientException) {
+            logger.info("WebSocket connection terminated: {}", e.getMessage());
+            logger.debug("WebSocket connection terminated due to client error.", e);
+            return e.getStatus();
+        }
+
+        // Normal closure of the connection to guacd
+        if (e instanceof GuacamoleConnectionClosedException) {
+            logger.debug("Connection to guacd closed.", e);
+            return GuacamoleStatus.SUCCESS;
+        }
+
+        logger.error("Connection to guacd terminated abnormally: {}", e.getMessage());
+        logger.debug("Internal error during connection to guacd.", e);
+        return e.getStatus();
+
+    }
+
+    /**
+     * Receives instructions read from the tunnel by an event loop, queueing
+     * them for asynchronous sending to the client. Reading is suspended
+     * while the queue is above its high watermark, while the client lags
+     * too many frames behind if the tunnel is flow controlled, and while the
+     * rate limit is exceeded if the tunnel is rate limited. Read access to
+     * the tunnel is held on behalf of the event loop until reading stops.
+     */
+    private class EventLoopReadListener extends WebSocketSendQueue
+            implements GuacamoleReaderListener, SyncFlowControl.Listener,
+            RateLimitedGuacamoleTunnel.Listener {
+
+        /**
+         * Buffer of instructions not yet queued.
+         */
+        private byte[] buffer = new byte[BUFFER_SIZE];
+
+        /**
+         * The number of bytes within the buffer.
+         */
+        private int length = 0;
+
+        /**
+         * The registration of the tunnel's reader with the event loop, or
+         * null if the reader has not yet been registered.
+         */
+        private volatile GuacamoleReaderEventLoop.Registration registration;
+
+        /**
+         * Whether read access to the tunnel is still held on behalf of the
+         * event loop.
+         */
+        private final AtomicBoolean readerHeld = new AtomicBoolean(true);
+
+        /**
+         * Whether the client currently lags too many frames behind for
+         * reading to continue.
+         */
+        private boolean lagging = false;
+
+        /**
+         * Whether data has been read faster than the rate limit of the
+         * tunnel allows, such that reading must wait.
+         */
+        private boolean throttled = false;
+
+        /**
+         * Creates a new EventLoopReadListener which sends all instructions
+         * received to the client of the given session. Read access to the
+         * tunnel must already be held, and is released by this listener once
+         * reading stops.
+         *
+         * @param session
+         *     The WebSocket session receiving all instructions.
+         *
+         * @param policy
+         *     The policy dictating the limits of the outbound queue.
+         */
+        public EventLoopReadListener(Session session,
+                WebSocketSendPolicy policy) {
+            super(session, policy);
+        }
+
+        /**
+         * Begins reading from the given reader using the given event loop,
+         * first sending the given instruction.
+         *
+         * @param eventLoop
+         *     The event loop which should service the reader.
+         *
+         * @param reader
+         *     The reader of the tunnel.
+         *
+         * @param instruction
+         *     The instruction to send before any instruction read.
+         *
+         * @throws GuacamoleException
+         *     If the reader cannot be registered with the event loop.
+         */
+        public synchronized void start(GuacamoleReaderEventLoop eventLoop,
+                SelectableGuacamoleReader reader,
+                GuacamoleInstruction instruction) throws GuacamoleException {
+
+            append(ByteBuffer.wrap(instruction.toString().getBytes(UTF8)));
+            flush();
+
+            registration = eventLoop.register(reader, this);
+            if (isPaused() || lagging || throttled)
+                registration.suspend();
+
+        }
+
+        /**
+         * Relinquishes read access to the tunnel, if not already
+         * relinquished. This must only be invoked once the event loop will
+         * no longer read from the tunnel.
+         */
+        public void releaseReader() {
+            if (readerHeld.compareAndSet(true, false))
+                tunnel.releaseReader();
+        }
+
+        /**
+         * Appends the given data to the buffer of instructions not yet
+         * queued.
+         *
+         * @param data
+         *     The data to append.
+         */
+        private void append(ByteBuffer data) {
+
+            // Ensure buffer has space for the data
+            int dataLength = data.remaining();
+            if (length + dataLength > buffer.length)
+                buffer = Arrays.copyOf(buffer,
+                        Math.max(buffer.length * 2, length + dataLength));
+
+            data.get(buffer, length, dataLength);
+            length += dataLength;
+
+        }
+
+        /**
+         * Queues all buffered instructions as a single message.
+         */
+        private void flush() {
+
+            if (length == 0)
+                return;
+
+            String message = new String(buffer, 0, length, UTF8);
+            length = 0;
+
+            try {
+                offer(message);
+            }
+            catch (IOException e) {
+                logger.debug("I/O error prevents further reads.", e);
+                stopReading();
+            }
+
+        }
+
+        @Override
+        protected void pauseReading() {
+            if (registration != null)
+                registration.suspend();
+        }
+
+        @Override
+        protected void resumeReading() {
+            if (registration != null && !lagging && !throttled)
+                registration.resume();
+        }
+
+        @Override
+        protected void stopReading() {
+
+            if (registration == null)
+                return;
+
+            // Release read access only once the event loop has stopped
+            registration.cancel(new Runnable() {
+
+                @Override
+                public void run() {
+                    releaseReader();
+                }
+
+            });
+
+        }
+
+        @Override
+        public synchronized void lagExceeded() {
+            lagging = true;
+            if (registration != null)
+                registration.suspend();
+        }
+
+        @Override
+        public synchronized void lagRecovered() {
+            lagging = false;
+            if (registration != null && !isPaused() && !throttled)
+                registration.resume();
+        }
+
+        @Override
+        public synchronized void rateExceeded() {
+            throttled = true;
+            if (registration != null)
+                registration.suspend();
+        }
+
+        @Override
+        public synchronized void rateRecovered() {
+            throttled = false;
+            if (registration != null && !isPaused() && !lagging)
+                registration.resume();
+        }
+
+        @Override
+        public synchronized void instructionReceived(ByteBuffer instruction) {
+            append(instruction);
+            if (length >= BUFFER_SIZE)
+                flush();
+        }
+
+        @Override
+        public synchronized void instructionsDrained() {
+            flush();
+        }
+
+        @Override
+        public synchronized void readFailed(GuacamoleException e) {
+
+            // The event loop has already stopped reading
+            releaseReader();
+
+            // Close only after any remaining instructions are sent
+            flush();
+            close(getCloseStatus(e));
+
+        }
+
+    }
+
     /**
      * Returns a new tunnel for the given session. How this tunnel is created
      * or retrieved is implementation-dependent.
@@ -102,6 +398,155 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
     protected abstract GuacamoleTunnel createTunnel(Session session, EndpointConfig config)
             throws GuacamoleException;
 
+    /**
+     * Returns the event loop which should read from the tunnel of the given
+     * session, or null if the tunnel should be read by a dedicated thread.
+     * Tunnels whose readers cannot be read without blocking are always read
+     * by a dedicated thread. By default, this function returns null.
+     *
+     * @param session The session associated with the active WebSocket
+     *                connection.
+     * @param config Configuration information associated with the instance of
+     *               the endpoint created for handling this single connection.
+     * @return The event loop to use, or null if a dedicated thread should be
+     *         used.
+     */
+    protected GuacamoleReaderEventLoop getEventLoop(Session session,
+            EndpointConfig config) {
+        return null;
+    }
+
+    /**
+     * Returns the Executor which should run the read pump of the tunnel of
+     * the given session, if that tunnel is not read by an event loop. Each
+     * read pump blocks for the lifetime of its tunnel. By default, the
+     * shared TunnelPumpExecutor is used, which runs pumps on virtual threads
+     * where supported.
+     *
+     * @param session The session associated with the active WebSocket
+     *                connection.
+     * @param config Configuration information associated with the instance of
+     *               the endpoint created for handling this single connection.
+     * @return The Executor which should run the read pump.
+     */
+    protected Executor getReadPumpExecutor(Session session,
+            EndpointConfig config) {
+        return TunnelPumpExecutor.getDefault();
+    }
+
+    /**
+     * Returns the policy dictating how much data may be queued for sending
+     * to the client of the given session, and how that client is handled if
+     * it cannot receive data quickly enough. By default, the policy returned
+     * by WebSocketSendPolicy.getDefault() is used.
+     *
+     * @param session The session associated with the active WebSocket
+     *                connection.
+     * @param config Configuration information associated with the instance of
+     *               the endpoint created for handling this single connection.
+     * @return The policy to apply to data sent to the client.
+     */
+    protected WebSocketSendPolicy getSendPolicy(Session session,
+            EndpointConfig config) {
+        return WebSocketSendPolicy.getDefault();
+    }
+
+    /**
+     * Returns the tunnel of the given type which is either the tunnel of this
+     * endpoint or is wrapped by that tunnel, if any.
+     *
+     * @param <T>
+     *     The type of tunnel to find.
+     *
+     * @param type
+     *     The class of the tunnel to find.
+     *
+     * @return
+     *     The first tunnel of the given type found, or null if no such tunnel
+     *     exists.
+     */
+    private <T extends GuacamoleTunnel> T findTunnel(Class<T> type) {
+
+        GuacamoleTunnel current = tunnel;
+        while (current != null) {
+
+            if (type.isInstance(current))
+                return type.cast(current);
+
+            if (!(current instanceof DelegatingGuacamoleTunnel))
+                break;
+
+            current = ((DelegatingGuacamoleTunnel) current).getDelegate();
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Attempts to read from the tunnel using the given event loop, rather
+     * than a dedicated thread.
+     *
+     * @param session The session associated with the active WebSocket
+     *                connection.
+     * @param eventLoop The event loop which should read from the tunnel.
+     * @param policy The policy to apply to data sent to the client.
+     * @return true if the tunnel is now being read by the event loop, false
+     *         if the tunnel must be read by a dedicated thread.
+     */
+    private boolean startEventLoopRead(Session session,
+            GuacamoleReaderEventLoop eventLoop, WebSocketSendPolicy policy) {
+
+        GuacamoleReader reader = tunnel.acquireReader();
+
+        // Only non-blocking readers can be serviced by an event loop
+        if (!(reader instanceof SelectableGuacamoleReader)
+                || ((SelectableGuacamoleReader) reader).getChannel() == null) {
+            tunnel.releaseReader();
+            return false;
+        }
+
+        // Read access is now held on behalf of the event loop, and is
+        // released by the listener once reading stops
+        EventLoopReadListener listener = new EventLoopReadListener(session, policy);
+        sendQueue = listener;
+
+        try {
+
+            // Pause while the client lags behind, if flow controlled
+            FlowControlledGuacamoleTunnel flowControlled =
+                    findTunnel(FlowControlledGuacamoleTunnel.class);
+            if (flowControlled != null)
+                flowControlled.getFlowControl().setListener(listener);
+
+            // Pause while reading faster than allowed, if rate limited
+            RateLimitedGuacamoleTunnel rateLimited =
+                    findTunnel(RateLimitedGuacamoleTunnel.class);
+            if (rateLimited != null)
+                rateLimited.setListener(listener);
+
+            // Start reading, beginning with the tunnel UUID
+            listener.start(eventLoop,
+                (SelectableGuacamoleReader) reader,
+                new GuacamoleInstruction(
+                    GuacamoleTunnel.INTERNAL_DATA_OPCODE,
+                    tunnel.getUUID().toString()
+                )
+            );
+
+        }
+        catch (GuacamoleException e) {
+            logger.error("Unable to read WebSocket tunnel using event loop: {}", e.getMessage());
+            logger.debug("Error registering tunnel with event loop.", e);
+            listener.releaseReader();
+            sendQueue.close(e.getStatus());
+        }
+
+        return true;
+
+    }
+
     @Override
     @OnOpen
     public void onOpen(final Session session, EndpointConfig config) {
@@ -133,14 +578,62 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
 
         });
 
-        // Prepare read transfer thread
-        Thread readThread = new Thread() {
+        // Use event loop rather than a dedicated thread, if possible
+        WebSocketSendPolicy policy = getSendPolicy(session, config);
+        GuacamoleReaderEventLoop eventLoop = getEventLoop(session, config);
+        if (eventLoop != null && startEventLoopRead(session, eventLoop, policy))
+            return;
+
+        final WebSocketSendQueue queue = new WebSocketSendQueue(session, policy);
+        sendQueue = queue;
+
+        // Prepare read pump
+        Runnable readPump = new Runnable() {
 
             /**
-             * Remote (client) side of this connection
+             * Reads all instructions from the given reader as raw UTF-8,
+             * sending each chunk of buffered instructions as a single text
+             * message. Instructions are only decoded once, as the message
+             * is queued.
+             *
+             * @param reader
+             *     The reader to read raw instructions from.
+             *
+             * @throws GuacamoleException
+             *     If an error occurs while reading from the tunnel.
+             *
+             * @throws IOException
+             *     If an error occurs while sending data over the WebSocket.
              */
-            private final RemoteEndpoint.Basic remote = session.getBasicRemote();
-                
+            private void sendBytes(GuacamoleByteReader reader)
+                    throws GuacamoleException, IOException {
+
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int length = 0;
+
+                ByteBuffer readMessage;
+                while ((readMessage = reader.readBytes()) != null) {
+
+                    // Ensure buffer has space for the message
+                    int messageLength = readMessage.remaining();
+                    if (length + messageLength > buffer.length)
+                        buffer = Arrays.copyOf(buffer,
+                                Math.max(buffer.length * 2, length + messageLength));
+
+                    // Buffer message
+                    readMessage.get(buffer, length, messageLength);
+                    length += messageLength;
+
+                    // Flush if we expect to wait or buffer is getting full
+                    if (!reader.available() || length >= BUFFER_SIZE) {
+                        queue.send(new String(buffer, 0, length, UTF8));
+                        length = 0;
+                    }
+
+                }
+
+            }
+
             @Override
             public void run() {
 
@@ -151,61 +644,73 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
                 try {
 
                     // Send tunnel UUID
-                    remote.sendText(new GuacamoleInstruction(
+                    queue.offer(new GuacamoleInstruction(
                         GuacamoleTunnel.INTERNAL_DATA_OPCODE,
                         tunnel.getUUID().toString()
                     ).toString());
 
                     try {
 
+                        // Forward raw bytes without intermediate decoding
+                        // if possible
+                        if (reader instanceof GuacamoleByteReader)
+                            sendBytes((GuacamoleByteReader) reader);
+
                         // Attempt to read
-                        while ((readMessage = reader.read()) != null) {
+                        else while ((readMessage = reader.read()) != null) {
 
                             // Buffer message
                             buffer.append(readMessage);
 
                             // Flush if we expect to wait or buffer is getting full
                             if (!reader.available() || buffer.length() >= BUFFER_SIZE) {
-                                remote.sendText(buffer.toString());
+                                queue.send(buffer.toString());
                                 buffer.setLength(0);
                             }
 
                         }
 
                         // No more data
-                        closeConnection(session, GuacamoleStatus.SUCCESS);
+                        queue.close(GuacamoleStatus.SUCCESS);
 
                     }
 
                     // Catch any thrown guacamole exception and attempt
                     // to pass within the WebSocket connection, logging
                     // each error appropriately.
-                    catch (GuacamoleClientException e) {
-                        logger.info("WebSocket connection terminated: {}", e.getMessage());
-                        logger.debug("WebSocket connection terminated due to client error.", e);
-                        closeConnection(session, e.getStatus());
-                    }
-                    catch (GuacamoleConnectionClosedException e) {
-                        logger.debug("Connection to guacd closed.", e);
-                        closeConnection(session, GuacamoleStatus.SUCCESS);
-                    }
                     catch (GuacamoleException e) {
-                        logger.error("Connection to guacd terminated abnormally: {}", e.getMessage());
-                        logger.debug("Internal error during connection to guacd.", e);
-                        closeConnection(session, e.getStatus());
+                        queue.close(getCloseStatus(e));
                     }
 
                 }
                 catch (IOException e) {
                     logger.debug("I/O error prevents further reads.", e);
-                    closeConnection(session, GuacamoleStatus.SERVER_ERROR);
+                    queue.close(GuacamoleStatus.SERVER_ERROR);
                 }
 
             }
 
         };
 
-        readThread.start();
+        // Start pump, refusing the connection if no thread is available
+        try {
+            getReadPumpExecutor(session, config).execute(readPump);
+        }
+        catch (RejectedExecutionException e) {
+
+            logger.warn("WebSocket tunnel refused: too many active tunnels.");
+            logger.debug("Unable to start read pump.", e);
+
+            try {
+                tunnel.close();
+            }
+            catch (GuacamoleException closeError) {
+                logger.debug("Unable to close WebSocket tunnel.", closeError);
+            }
+
+            closeConnection(session, GuacamoleStatus.SERVER_BUSY);
+
+        }
 
     }
 
@@ -216,11 +721,14 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
         if (tunnel == null)
             return;
 
-        GuacamoleWriter writer = tunnel.acquireWriter();
+        // Write ahead of any less urgent data waiting to be sent
+        char[] chars = message.toCharArray();
+        GuacamoleWriter writer = WriterPriority.acquireWriter(tunnel,
+                WriterPriority.forMessage(chars));
 
         try {
             // Write received message
-            writer.write(message.toCharArray());
+            writer.write(chars);
         }
         catch (GuacamoleConnectionClosedException e) {
             logger.debug("Connection to guacd closed.", e);
@@ -237,6 +745,10 @@ public abstract class GuacamoleWebSocketTunnelEndpoint extends Endpoint {
     @OnClose
     public void onClose(Session session, CloseReason closeReason) {
 
+        // Discard any data the client can no longer receive
+        if (sendQueue != null)
+            sendQueue.abort();
+
         try {
             if (tunnel != null)
                 tunnel.close();
@@ -0,0 +1,380 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The limits placed upon data queued for sending to WebSocket clients, and
+ * the action taken when a client cannot receive that data quickly enough.
+ * Once the data queued for a tunnel reaches the high watermark, reading from
+ * that tunnel is paused until the queue drains to the low watermark. A client
+ * which keeps reading paused for longer than the slow consumer timeout is a
+ * slow consumer, and is dealt with according to the slow consumer action.
+ *
+ * Each policy also accumulates statistics describing all tunnels using that
+ * policy. All limits are expressed in characters of the Guacamole protocol.
+ */
+public class WebSocketSendPolicy {
+
+    /**
+     * The actions which may be taken when a slow consumer is detected.
+     */
+    public enum SlowConsumerAction {
+
+        /**
+         * Close the WebSocket connection with the CLIENT_TIMEOUT status.
+         */
+        DISCONNECT,
+
+        /**
+         * Leave the WebSocket connection open, with reading paused. guacd,
+         * no longer able to send to the tunnel, is left to reduce the rate
+         * at which it sends updates.
+         */
+        DEGRADE
+
+    }
+
+    /**
+     * The default number of queued characters at which reading is paused.
+     */
+    public static final int DEFAULT_HIGH_WATERMARK = 1048576;
+
+    /**
+     * The default number of queued characters at which paused reading is
+     * resumed.
+     */
+    public static final int DEFAULT_LOW_WATERMARK = 262144;
+
+    /**
+     * The default number of milliseconds that reading may remain paused
+     * before the client is considered a slow consumer.
+     */
+    public static final int DEFAULT_SLOW_CONSUMER_TIMEOUT = 30000;
+
+    /**
+     * The policy used when none has been explicitly configured.
+     */
+    private static final WebSocketSendPolicy DEFAULT = new WebSocketSendPolicy(
+            DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK,
+            DEFAULT_SLOW_CONSUMER_TIMEOUT, SlowConsumerAction.DEGRADE);
+
+    /**
+     * The number of queued characters at which paused reading is resumed.
+     */
+    private final int lowWatermark;
+
+    /**
+     * The number of queued characters at which reading is paused.
+     */
+    private final int highWatermark;
+
+    /**
+     * The number of milliseconds that reading may remain paused before the
+     * client is considered a slow consumer.
+     */
+    private final int slowConsumerTimeout;
+
+    /**
+     * The action taken when a slow consumer is detected.
+     */
+    private final SlowConsumerAction slowConsumerAction;
+
+    /**
+     * The total number of messages sent.
+     */
+    private final AtomicLong sentMessages = new AtomicLong();
+
+    /**
+     * The total number of characters sent.
+     */
+    private final AtomicLong sentCharacters = new AtomicLong();
+
+    /**
+     * The largest number of characters ever queued for a single tunnel.
+     */
+    private final AtomicLong peakQueuedCharacters = new AtomicLong();
+
+    /**
+     * The total number of times reading has been paused.
+     */
+    private final AtomicLong pauseCount = new AtomicLong();
+
+    /**
+     * The total number of milliseconds that reading has spent paused.
+     */
+    private final AtomicLong pausedTime = new AtomicLong();
+
+    /**
+     * The total number of slow consumers detected.
+     */
+    private final AtomicLong slowConsumerCount = new AtomicLong();
+
+    /**
+     * The total number of slow consumers disconnected.
+     */
+    private final AtomicLong disconnectCount = new AtomicLong();
+
+    /**
+     * Creates a new WebSocketSendPolicy with the given limits.
+     *
+     * @param lowWatermark
+     *     The number of queued characters at which paused reading is
+     *     resumed.
+     *
+     * @param highWatermark
+     *     The number of queued characters at which reading is paused. This
+     *     must be at least the low watermark.
+     *
+     * @param slowConsumerTimeout
+     *     The number of milliseconds that reading may remain paused before
+     *     the client is considered a slow consumer, or zero if clients
+     *     should never be considered slow consumers.
+     *
+     * @param slowConsumerAction
+     *     The action to take when a slow consumer is detected.
+     *
+     * @throws IllegalArgumentException
+     *     If any of the given limits are negative, or if the high watermark
+     *     is below the low watermark.
+     */
+    public WebSocketSendPolicy(int lowWatermark, int highWatermark,
+            int slowConsumerTimeout, SlowConsumerAction slowConsumerAction) {
+
+        if (lowWatermark < 0 || highWatermark < lowWatermark)
+            throw new IllegalArgumentException("High watermark must not be "
+                    + "below the low watermark.");
+
+        if (slowConsumerTimeout < 0)
+            throw new IllegalArgumentException("Slow consumer timeout must "
+                    + "not be negative.");
+
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.slowConsumerTimeout = slowConsumerTimeout;
+        this.slowConsumerAction = slowConsumerAction;
+
+    }
+
+    /**
+     * Returns the policy used when none has been explicitly configured. The
+     * default policy pauses reading at DEFAULT_HIGH_WATERMARK, resumes at
+     * DEFAULT_LOW_WATERMARK, and degrades slow consumers rather than
+     * disconnecting them.
+     *
+     * @return
+     *     The default policy.
+     */
+    public static WebSocketSendPolicy getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the number of queued characters at which paused reading is
+     * resumed.
+     *
+     * @return
+     *     The low watermark, in characters.
+     */
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Returns the number of queued characters at which reading is paused.
+     *
+     * @return
+     *     The high watermark, in characters.
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Returns the number of milliseconds that reading may remain paused
+     * before the client is considered a slow consumer.
+     *
+     * @return
+     *     The slow consumer timeout, in milliseconds, or zero if clients are
+     *     never considered slow consumers.
+     */
+    public int getSlowConsumerTimeout() {
+        return slowConsumerTimeout;
+    }
+
+    /**
+     * Returns the action taken when a slow consumer is detected.
+     *
+     * @return
+     *     The action taken when a slow consumer is detected.
+     */
+    public SlowConsumerAction getSlowConsumerAction() {
+        return slowConsumerAction;
+    }
+
+    /**
+     * Records that a message has been queued, leaving the given number of
+     * characters queued for its tunnel.
+     *
+     * @param queued
+     *     The number of characters now queued, including the new message.
+     */
+    void messageQueued(long queued) {
+
+        long peak;
+        do {
+            peak = peakQueuedCharacters.get();
+        } while (queued > peak && !peakQueuedCharacters.compareAndSet(peak, queued));
+
+    }
+
+    /**
+     * Records that a message of the given length has been sent.
+     *
+     * @param length
+     *     The length of the message sent, in characters.
+     */
+    void messageSent(int length) {
+        sentMessages.incrementAndGet();
+        sentCharacters.addAndGet(length);
+    }
+
+    /**
+     * Records that reading from a tunnel has been paused.
+     */
+    void readPaused() {
+        pauseCount.incrementAndGet();
+    }
+
+    /**
+     * Records that reading from a tunnel has been resumed, having been
+     * paused for the given duration.
+     *
+     * @param duration
+     *     The number of milliseconds that reading was paused.
+     */
+    void readResumed(long duration) {
+        pausedTime.addAndGet(duration);
+    }
+
+    /**
+     * Records that a slow consumer has been detected.
+     *
+     * @param disconnected
+     *     Whether the slow consumer was disconnected as a result.
+     */
+    void slowConsumerDetected(boolean disconnected) {
+        slowConsumerCount.incrementAndGet();
+        if (disconnected)
+            disconnectCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the total number of messages sent by all tunnels using this
+     * policy.
+     *
+     * @return
+     *     The total number of messages sent.
+     */
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    /**
+     * Returns the total number of characters sent by all tunnels using this
+     * policy.
+     *
+     * @return
+     *     The total number of characters sent.
+     */
+    public long getSentCharacters() {
+        return sentCharacters.get();
+    }
+
+    /**
+     * Returns the largest number of characters ever queued for any single
+     * tunnel using this policy.
+     *
+     * @return
+     *     The peak number of queued characters.
+     */
+    public long getPeakQueuedCharacters() {
+        return peakQueuedCharacters.get();
+    }
+
+    /**
+     * Returns the total number of times reading has been paused for any
+     * tunnel using this policy.
+     *
+     * @return
+     *     The total number of pauses.
+     */
+    public long getPauseCount() {
+        return pauseCount.get();
+    }
+
+    /**
+     * Returns the total number of milliseconds that reading has spent paused
+     * across all tunnels using this policy, not including pauses still in
+     * progress.
+     *
+     * @return
+     *     The total time spent paused, in milliseconds.
+     */
+    public long getPausedTime() {
+        return pausedTime.get();
+    }
+
+    /**
+     * Returns the total number of slow consumers detected among tunnels
+     * using this policy.
+     *
+     * @return
+     *     The total number of slow consumers.
+     */
+    public long getSlowConsumerCount() {
+        return slowConsumerCount.get();
+    }
+
+    /**
+     * Returns the total number of slow consumers disconnected.
+     *
+     * @return
+     *     The total number of slow consumers disconnected.
+     */
+    public long getDisconnectCount() {
+        return disconnectCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocketSendPolicy[watermarks=" + lowWatermark + "/"
+                + highWatermark + ", slowConsumerTimeout="
+                + slowConsumerTimeout + "ms, action=" + slowConsumerAction
+                + ", sent=" + getSentMessages() + " messages/"
+                + getSentCharacters() + " chars, peakQueued="
+                + getPeakQueuedCharacters() + ", pauses=" + getPauseCount()
+                + ", pausedTime=" + getPausedTime() + "ms, slowConsumers="
+                + getSlowConsumerCount() + ", disconnects="
+                + getDisconnectCount() + "]";
+    }
+
+}
@@ -0,0 +1,487 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.websocket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCode;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import org.apache.guacamole.GuacamoleClientTimeoutException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.protocol.GuacamoleStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of text messages awaiting asynchronous delivery to the client
+ * of a WebSocket session. At most one message is in the process of being sent
+ * at any time, with further messages queued in order. The limits of the
+ * queue, and the handling of clients which cannot keep up, are dictated by a
+ * WebSocketSendPolicy.
+ *
+ * Reading from the tunnel is paused once the queue reaches the policy's high
+ * watermark, and resumed once it drains to the low watermark. Threads which
+ * read from the tunnel themselves pause by calling send(), which blocks while
+ * reading is paused. Readers which cannot block, such as event loops, must
+ * instead override pauseReading() and resumeReading().
+ */
+class WebSocketSendQueue implements SendHandler {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketSendQueue.class);
+
+    /**
+     * Executor shared by all queues for detecting slow consumers.
+     */
+    private static final ScheduledExecutorService slowConsumerExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "guacamole-websocket-slow-consumer");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    /**
+     * The WebSocket session whose client receives all queued messages.
+     */
+    private final Session session;
+
+    /**
+     * Remote (client) side of the WebSocket connection.
+     */
+    private final RemoteEndpoint.Async remote;
+
+    /**
+     * The policy dictating the limits of this queue.
+     */
+    private final WebSocketSendPolicy policy;
+
+    /**
+     * All messages not yet being sent, in order.
+     */
+    private final Queue<String> messages = new LinkedList<String>();
+
+    /**
+     * The message currently being sent, or null if no message is being sent.
+     */
+    private String sending;
+
+    /**
+     * The total length of all queued messages, including the message
+     * currently being sent, in characters.
+     */
+    private long queued = 0;
+
+    /**
+     * Whether reading from the tunnel is currently paused.
+     */
+    private boolean paused = false;
+
+    /**
+     * The time that reading was last paused, in milliseconds since the
+     * epoch.
+     */
+    private long pausedSince;
+
+    /**
+     * The pending check for whether the current pause has lasted long enough
+     * that the client is a slow consumer, or null if no such check is
+     * pending.
+     */
+    private ScheduledFuture<?> slowConsumerCheck;
+
+    /**
+     * Whether the client has been detected as a slow consumer during the
+     * current pause.
+     */
+    private boolean slowConsumer = false;
+
+    /**
+     * The error which caused a message to fail to be sent, or null if all
+     * messages have been sent successfully.
+     */
+    private Throwable failure;
+
+    /**
+     * The status with which the WebSocket connection should be closed once
+     * all queued messages are sent, or null if close() has not been called.
+     */
+    private GuacamoleStatus closeStatus;
+
+    /**
+     * Whether this queue has been closed, discarding any messages not yet
+     * sent.
+     */
+    private boolean closed = false;
+
+    /**
+     * Creates a new WebSocketSendQueue which sends messages to the client of
+     * the given session, within the limits of the given policy.
+     *
+     * @param session
+     *     The WebSocket session whose client should receive all messages.
+     *
+     * @param policy
+     *     The policy dictating the limits of the queue.
+     */
+    public WebSocketSendQueue(Session session, WebSocketSendPolicy policy) {
+        this.session = session;
+        this.remote = session.getAsyncRemote();
+        this.policy = policy;
+    }
+
+    /**
+     * Called when the queue reaches its high watermark and reading from the
+     * tunnel should be paused. The queue is locked while this function is
+     * invoked. By default, this function does nothing.
+     */
+    protected void pauseReading() {
+    }
+
+    /**
+     * Called when the queue drains to its low watermark and paused reading
+     * should be resumed. The queue is locked while this function is invoked.
+     * By default, this function does nothing.
+     */
+    protected void resumeReading() {
+    }
+
+    /**
+     * Called when the queue is closed before its messages could be sent, due
+     * to a failed send, a disconnected slow consumer, or a call to abort().
+     * Reading from the tunnel should stop entirely, as all further messages
+     * will be rejected. The queue is locked while this function is invoked.
+     * By default, this function does nothing.
+     */
+    protected void stopReading() {
+    }
+
+    /**
+     * Sends the given status on the WebSocket connection and closes the
+     * connection.
+     *
+     * @param status
+     *     The status to send.
+     */
+    private void closeConnection(GuacamoleStatus status) {
+
+        try {
+            CloseCode code = CloseReason.CloseCodes.getCloseCode(status.getWebSocketCode());
+            String message = Integer.toString(status.getGuacamoleStatusCode());
+            session.close(new CloseReason(code, message));
+        }
+        catch (IOException e) {
+            logger.debug("Unable to close WebSocket connection.", e);
+        }
+
+    }
+
+    /**
+     * Begins sending the next queued message, if any. No message may
+     * currently be in the process of being sent.
+     */
+    private void sendNext() {
+
+        sending = messages.poll();
+        if (sending != null)
+            remote.sendText(sending, this);
+
+        // Close once everything has been sent, if requested
+        else if (closeStatus != null && !closed) {
+            closed = true;
+            closeConnection(closeStatus);
+        }
+
+    }
+
+    /**
+     * Pauses reading from the tunnel, scheduling a check for whether the
+     * client has become a slow consumer.
+     */
+    private void pause() {
+
+        paused = true;
+        pausedSince = System.currentTimeMillis();
+        policy.readPaused();
+
+        int timeout = policy.getSlowConsumerTimeout();
+        if (timeout > 0)
+            slowConsumerCheck = slowConsumerExecutor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    checkSlowConsumer();
+                }
+
+            }, timeout, TimeUnit.MILLISECONDS);
+
+        pauseReading();
+
+    }
+
+    /**
+     * Marks reading from the tunnel as no longer paused, cancelling any
+     * pending slow consumer check and waking any threads blocked within
+     * send().
+     */
+    private void unpause() {
+
+        paused = false;
+        policy.readResumed(System.currentTimeMillis() - pausedSince);
+
+        if (slowConsumerCheck != null) {
+            slowConsumerCheck.cancel(false);
+            slowConsumerCheck = null;
+        }
+
+        notifyAll();
+
+    }
+
+    /**
+     * Discards all messages not yet sent, rejecting any further messages and
+     * waking any threads blocked within send().
+     */
+    private void discard() {
+
+        closed = true;
+        messages.clear();
+        queued = (sending != null) ? sending.length() : 0;
+
+        if (paused)
+            unpause();
+
+        notifyAll();
+        stopReading();
+
+    }
+
+    /**
+     * Determines whether reading has been paused long enough for the client
+     * to be considered a slow consumer, taking the action dictated by the
+     * policy if so.
+     */
+    private synchronized void checkSlowConsumer() {
+
+        // Ignore checks which no longer apply
+        if (!paused || closed || slowConsumer
+                || System.currentTimeMillis() - pausedSince < policy.getSlowConsumerTimeout())
+            return;
+
+        slowConsumer = true;
+
+        if (policy.getSlowConsumerAction() == WebSocketSendPolicy.SlowConsumerAction.DISCONNECT) {
+            logger.info("Disconnecting WebSocket client which has not received "
+                    + "data for {}ms ({} characters queued).",
+                    policy.getSlowConsumerTimeout(), queued);
+            policy.slowConsumerDetected(true);
+            discard();
+            closeConnection(GuacamoleStatus.CLIENT_TIMEOUT);
+        }
+
+        else {
+            logger.info("WebSocket client has not received data for {}ms ({} "
+                    + "characters queued). Reading remains paused until the "
+                    + "client catches up.", policy.getSlowConsumerTimeout(),
+                    queued);
+            policy.slowConsumerDetected(false);
+        }
+
+    }
+
+    /**
+     * Queues the given message for sending, pausing reading if the queue
+     * reaches its high watermark. This function never blocks.
+     *
+     * @param message
+     *     The message to send.
+     *
+     * @throws IOException
+     *     If a previous message could not be sent, or if the queue has been
+     *     closed.
+     */
+    public synchronized void offer(String message) throws IOException {
+
+        if (failure != null)
+            throw new IOException("Unable to send data over WebSocket.", failure);
+
+        if (closed || closeStatus != null)
+            throw new IOException("WebSocket connection has been closed.");
+
+        messages.add(message);
+        queued += message.length();
+        policy.messageQueued(queued);
+
+        if (sending == null)
+            sendNext();
+
+        if (!paused && !closed && queued >= policy.getHighWatermark())
+            pause();
+
+    }
+
+    /**
+     * Queues the given message for sending, blocking while reading is paused.
+     * Unlike offer(), this function provides backpressure to the calling
+     * thread, and is intended for threads which read from the tunnel
+     * themselves.
+     *
+     * @param message
+     *     The message to send.
+     *
+     * @throws IOException
+     *     If the message cannot be sent, or if the thread is interrupted
+     *     while waiting.
+     *
+     * @throws GuacamoleException
+     *     If the client is disconnected for being a slow consumer.
+     */
+    public synchronized void send(String message)
+            throws IOException, GuacamoleException {
+
+        offer(message);
+
+        try {
+            while (paused && !closed)
+                wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for "
+                    + "WebSocket client to receive data.");
+        }
+
+        if (failure != null)
+            throw new IOException("Unable to send data over WebSocket.", failure);
+
+        if (closed && slowConsumer)
+            throw new GuacamoleClientTimeoutException("WebSocket client did "
+                    + "not receive data quickly enough.");
+
+    }
+
+    /**
+     * Closes the WebSocket connection with the given status once all queued
+     * messages have been sent. If the queue has already been closed, this
+     * function has no effect.
+     *
+     * @param status
+     *     The status to send when closing the WebSocket connection.
+     */
+    public synchronized void close(GuacamoleStatus status) {
+
+        if (closed || closeStatus != null)
+            return;
+
+        closeStatus = status;
+        if (sending == null)
+            sendNext();
+
+    }
+
+    /**
+     * Discards all messages not yet sent without closing the WebSocket
+     * connection, as when the connection has already been closed by the
+     * client.
+     */
+    public synchronized void abort() {
+        if (!closed)
+            discard();
+    }
+
+    /**
+     * Returns whether reading from the tunnel is currently paused.
+     *
+     * @return
+     *     true if reading is paused, false otherwise.
+     */
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Returns the total length of all queued messages, including the message
+     * currently being sent.
+     *
+     * @return
+     *     The number of characters queued.
+     */
+    public synchronized long getQueuedLength() {
+        return queued;
+    }
+
+    @Override
+    public synchronized void onResult(SendResult result) {
+
+        int length = sending.length();
+        queued -= length;
+        sending = null;
+
+        // Stop sending entirely if the client cannot be sent data
+        if (!result.isOK()) {
+            logger.debug("Unable to send data over WebSocket.", result.getException());
+            failure = result.getException();
+            if (!closed) {
+                discard();
+                closeConnection(GuacamoleStatus.SERVER_ERROR);
+            }
+            return;
+        }
+
+        policy.messageSent(length);
+
+        if (closed)
+            return;
+
+        sendNext();
+
+        // Resume reading once sufficiently drained
+        if (paused && queued <= policy.getLowWatermark()) {
+
+            if (slowConsumer) {
+                logger.debug("Slow WebSocket client has caught up.");
+                slowConsumer = false;
+            }
+
+            unpause();
+            resumeReading();
+
+        }
+
+    }
+
+}
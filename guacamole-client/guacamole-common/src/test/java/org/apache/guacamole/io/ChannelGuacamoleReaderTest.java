@@ -0,0 +1,365 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ChannelGuacamoleReader implementation of GuacamoleByteReader,
+ * validating that instructions are framed correctly on raw UTF-8 data.
+ */
+public class ChannelGuacamoleReaderTest {
+
+    /**
+     * The charset of the Guacamole protocol.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Test string containing characters encoded as UTF-8 sequences of every
+     * possible length, including a character outside the BMP whose length
+     * counts as a single code point despite being two Java characters.
+     */
+    private static final String TEST =
+              "4.test,3.a\u00E9\u20AC,1.\uD83D\uDE00,5.hello;"
+            + "4.sync,8.12345678;"
+            + "0.;";
+
+    /**
+     * Returns a channel which provides the given data as UTF-8, at most one
+     * byte per read, such that every multi-byte sequence is split across
+     * reads.
+     *
+     * @param data
+     *     The data that the returned channel should provide.
+     *
+     * @return
+     *     A channel providing the given data one byte at a time.
+     */
+    private ReadableByteChannel byteAtATime(String data) {
+
+        InputStream input = new ByteArrayInputStream(data.getBytes(UTF8)) {
+
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length) {
+                return super.read(buffer, offset, Math.min(length, 1));
+            }
+
+        };
+
+        return Channels.newChannel(input);
+
+    }
+
+    /**
+     * Validates that the given reader produces the instructions within TEST,
+     * in order.
+     *
+     * @param reader
+     *     The reader to validate.
+     *
+     * @throws GuacamoleException
+     *     If a parse error occurs.
+     */
+    private void validate(GuacamoleReader reader) throws GuacamoleException {
+
+        GuacamoleInstruction instruction;
+
+        // Validate first test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("test", instruction.getOpcode());
+        assertEquals(3, instruction.getArgs().size());
+        assertEquals("a\u00E9\u20AC", instruction.getArgs().get(0));
+        assertEquals("\uD83D\uDE00", instruction.getArgs().get(1));
+        assertEquals("hello", instruction.getArgs().get(2));
+
+        // Validate second test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("sync", instruction.getOpcode());
+        assertEquals("12345678", instruction.getArgs().get(0));
+
+        // Validate third test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("", instruction.getOpcode());
+        assertEquals(0, instruction.getArgs().size());
+
+        // There should be no more instructions
+        assertNull(reader.readInstruction());
+
+    }
+
+    /**
+     * Test of ChannelGuacamoleReader parsing of multi-byte characters which
+     * are split across reads.
+     *
+     * @throws GuacamoleException
+     *     If a parse error occurs while parsing the known-good test string.
+     */
+    @Test
+    public void testReader() throws GuacamoleException {
+        validate(new ChannelGuacamoleReader(byteAtATime(TEST), 0));
+    }
+
+    /**
+     * Test that the raw bytes returned by ChannelGuacamoleReader correspond
+     * exactly to each received instruction.
+     *
+     * @throws GuacamoleException
+     *     If a parse error occurs while parsing the known-good test string.
+     */
+    @Test
+    public void testReadBytes() throws GuacamoleException {
+
+        GuacamoleByteReader reader = new ChannelGuacamoleReader(byteAtATime(TEST), 0);
+
+        StringBuilder received = new StringBuilder();
+        ByteBuffer instruction;
+        while ((instruction = reader.readBytes()) != null)
+            received.append(UTF8.decode(instruction)).append('|');
+
+        assertEquals("4.test,3.a\u00E9\u20AC,1.\uD83D\uDE00,5.hello;|"
+                + "4.sync,8.12345678;|0.;|", received.toString());
+
+    }
+
+    /**
+     * Test of ChannelGuacamoleReader reading from a non-blocking channel
+     * written by a ChannelGuacamoleWriter.
+     *
+     * @throws GuacamoleException
+     *     If a parse error occurs while parsing the known-good test string.
+     *
+     * @throws IOException
+     *     If the pipe cannot be created.
+     */
+    @Test
+    public void testNonBlocking() throws GuacamoleException, IOException {
+
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+
+        ChannelGuacamoleReader reader = new ChannelGuacamoleReader(pipe.source(), 5000);
+        ChannelGuacamoleWriter writer = new ChannelGuacamoleWriter(pipe.sink(), 5000);
+
+        // Nothing has been written yet
+        assertFalse(reader.available());
+
+        writer.write(TEST.toCharArray());
+        pipe.sink().close();
+        validate(reader);
+
+        reader.close();
+        writer.close();
+        pipe.source().close();
+
+    }
+
+    /**
+     * Test that a surrogate pair split across separate writes to a
+     * ChannelGuacamoleWriter is encoded as the single character it
+     * represents.
+     *
+     * @throws GuacamoleException
+     *     If a parse error occurs while parsing the known-good test string.
+     *
+     * @throws IOException
+     *     If the pipe cannot be created.
+     */
+    @Test
+    public void testSplitSurrogate() throws GuacamoleException, IOException {
+
+        Pipe pipe = Pipe.open();
+
+        ChannelGuacamoleReader reader = new ChannelGuacamoleReader(pipe.source(), 5000);
+        ChannelGuacamoleWriter writer = new ChannelGuacamoleWriter(pipe.sink(), 5000);
+
+        // Write one character at a time, splitting every surrogate pair
+        for (char c : TEST.toCharArray())
+            writer.write(new char[] { c });
+
+        pipe.sink().close();
+        validate(reader);
+
+        reader.close();
+        writer.close();
+        pipe.source().close();
+
+    }
+
+    /**
+     * Test that a reader and writer sharing a single ChannelSelector may both
+     * wait upon the same non-blocking channel at the same time.
+     *
+     * @throws Exception
+     *     If the connection cannot be established, or if reading or writing
+     *     fails.
+     */
+    @Test
+    public void testSharedSelector() throws Exception {
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        final SocketChannel peer = server.accept();
+        channel.configureBlocking(false);
+
+        ChannelSelector selector = new ChannelSelector(channel);
+        final ChannelGuacamoleReader reader = new ChannelGuacamoleReader(channel, selector, 5000);
+        ChannelGuacamoleWriter writer = new ChannelGuacamoleWriter(channel, selector, 5000, 0, 0);
+
+        // Large enough to fill the socket buffers, forcing the writer to wait
+        // while the reader is already waiting
+        final char[] large = new char[4194304];
+        Arrays.fill(large, 'x');
+
+        // Peer sends the test data only after receiving everything written
+        Thread peerThread = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer received = ByteBuffer.allocate(65536);
+                    long remaining = large.length;
+                    while (remaining > 0) {
+                        received.clear();
+                        remaining -= peer.read(received);
+                    }
+                    peer.write(ByteBuffer.wrap(TEST.getBytes(UTF8)));
+                    peer.close();
+                }
+                catch (IOException e) {
+                    // Failure is detected by the reader timing out
+                }
+            }
+
+        };
+
+        // Begin waiting for data before any is written
+        final String[] opcode = new String[1];
+        final GuacamoleException[] failure = new GuacamoleException[1];
+        Thread readerThread = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    opcode[0] = reader.readInstruction().getOpcode();
+                }
+                catch (GuacamoleException e) {
+                    failure[0] = e;
+                }
+            }
+
+        };
+
+        readerThread.start();
+        peerThread.start();
+
+        writer.write(large);
+
+        readerThread.join();
+        peerThread.join();
+
+        assertNull(failure[0]);
+        assertEquals("test", opcode[0]);
+
+        reader.close();
+        writer.close();
+        channel.close();
+        server.close();
+
+    }
+
+    /**
+     * Test that the buffer of ChannelGuacamoleReader grows to contain a large
+     * instruction, and is shrunk back to its initial size as soon as that
+     * instruction has been read, rather than only on a later read.
+     *
+     * @throws GuacamoleException
+     *     If a parse error occurs while parsing the known-good test string.
+     */
+    @Test
+    public void testBufferShrink() throws GuacamoleException {
+
+        char[] data = new char[100000];
+        Arrays.fill(data, 'A');
+        String blob = "4.blob,1.0,100000." + new String(data) + ";";
+
+        ChannelGuacamoleReader reader = new ChannelGuacamoleReader(
+                Channels.newChannel(new ByteArrayInputStream(
+                        ("4.sync,1.1;" + blob + "4.sync,1.2;").getBytes(UTF8))),
+                0);
+        int initialSize = ChannelGuacamoleReader.INITIAL_BUFFER_SIZE;
+
+        // Small instructions need no more than the initial buffer
+        GuacamoleInstruction instruction = reader.readInstruction();
+        assertEquals("1", instruction.getArgs().get(0));
+        assertEquals(initialSize, reader.getBufferSize());
+
+        // The larger buffer needed by the large instruction must be released
+        // as soon as that instruction has been read, without affecting that
+        // instruction
+        ByteBuffer bytes = reader.readBytes();
+        assertEquals(initialSize, reader.getBufferSize());
+        assertEquals(blob, UTF8.decode(bytes).toString());
+
+        // Later small instructions must continue to use the initial buffer
+        instruction = reader.readInstruction();
+        assertEquals("2", instruction.getArgs().get(0));
+        assertEquals(initialSize, reader.getBufferSize());
+
+        assertNull(reader.readInstruction());
+
+    }
+
+    /**
+     * Test that ChannelGuacamoleReader refuses to read instructions which
+     * exceed the configured maximum length.
+     *
+     * @throws GuacamoleException
+     *     If the instruction is refused, as expected.
+     */
+    @Test(expected=GuacamoleServerException.class)
+    public void testMaximumLength() throws GuacamoleException {
+        new ChannelGuacamoleReader(byteAtATime("4.test,32.01234567890123456789012345678901;"),
+                0, 16).readInstruction();
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleConnectionClosedException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleUpstreamTimeoutException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests GuacamoleReaderEventLoop, validating that instructions are delivered
+ * from non-blocking readers as data arrives, and that suspension, closure and
+ * timeouts are handled.
+ */
+public class GuacamoleReaderEventLoopTest {
+
+    /**
+     * The charset of the Guacamole protocol.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The number of seconds to wait for any expected event.
+     */
+    private static final long WAIT = 5;
+
+    /**
+     * GuacamoleReaderListener which records all instructions and failures.
+     */
+    private static class RecordingListener implements GuacamoleReaderListener {
+
+        /**
+         * All instructions received, in order.
+         */
+        public final BlockingQueue<String> instructions = new LinkedBlockingQueue<String>();
+
+        /**
+         * All failures reported.
+         */
+        public final BlockingQueue<GuacamoleException> failures = new LinkedBlockingQueue<GuacamoleException>();
+
+        @Override
+        public void instructionReceived(ByteBuffer instruction) {
+            instructions.add(UTF8.decode(instruction).toString());
+        }
+
+        @Override
+        public void instructionsDrained() {
+        }
+
+        @Override
+        public void readFailed(GuacamoleException e) {
+            failures.add(e);
+        }
+
+    }
+
+    /**
+     * Writes the given data to the given pipe.
+     *
+     * @param pipe
+     *     The pipe to write to.
+     *
+     * @param data
+     *     The data to write.
+     *
+     * @throws IOException
+     *     If the data cannot be written.
+     */
+    private void write(Pipe pipe, String data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(UTF8));
+        while (buffer.hasRemaining())
+            pipe.sink().write(buffer);
+    }
+
+    /**
+     * Creates a non-blocking reader for the source of the given pipe.
+     *
+     * @param pipe
+     *     The pipe to read from.
+     *
+     * @return
+     *     A reader for the source of the given pipe.
+     *
+     * @throws IOException
+     *     If the pipe cannot be made non-blocking.
+     */
+    private SelectableGuacamoleReader reader(Pipe pipe) throws IOException {
+        pipe.source().configureBlocking(false);
+        return new ChannelGuacamoleReader(pipe.source(), 0);
+    }
+
+    /**
+     * Test that instructions are delivered as they arrive, including
+     * instructions split across writes, and that closure of the stream is
+     * reported.
+     *
+     * @throws Exception
+     *     If the test fails unexpectedly.
+     */
+    @Test
+    public void testRead() throws Exception {
+
+        GuacamoleReaderEventLoop eventLoop = new GuacamoleReaderEventLoop(1, 0);
+        try {
+
+            Pipe pipe = Pipe.open();
+            RecordingListener listener = new RecordingListener();
+            eventLoop.register(reader(pipe), listener);
+
+            write(pipe, "4.sync,4.1234;5.mou");
+            assertEquals("4.sync,4.1234;", listener.instructions.poll(WAIT, TimeUnit.SECONDS));
+
+            write(pipe, "se,1.1,1.2;");
+            assertEquals("5.mouse,1.1,1.2;", listener.instructions.poll(WAIT, TimeUnit.SECONDS));
+
+            pipe.sink().close();
+            assertTrue(listener.failures.poll(WAIT, TimeUnit.SECONDS)
+                    instanceof GuacamoleConnectionClosedException);
+
+        }
+        finally {
+            eventLoop.shutdown();
+        }
+
+    }
+
+    /**
+     * Test that no instructions are delivered while reading is suspended,
+     * and that instructions already buffered are delivered upon resume.
+     *
+     * @throws Exception
+     *     If the test fails unexpectedly.
+     */
+    @Test
+    public void testSuspend() throws Exception {
+
+        GuacamoleReaderEventLoop eventLoop = new GuacamoleReaderEventLoop(1, 0);
+        try {
+
+            Pipe pipe = Pipe.open();
+            final RecordingListener listener = new RecordingListener();
+            final GuacamoleReaderEventLoop.Registration[] registration =
+                    new GuacamoleReaderEventLoop.Registration[1];
+
+            // Suspend after first instruction
+            registration[0] = eventLoop.register(reader(pipe), new RecordingListener() {
+
+                @Override
+                public void instructionReceived(ByteBuffer instruction) {
+                    listener.instructionReceived(instruction);
+                    registration[0].suspend();
+                }
+
+            });
+
+            write(pipe, "3.nop;4.sync,1.1;");
+            assertEquals("3.nop;", listener.instructions.poll(WAIT, TimeUnit.SECONDS));
+            assertNull(listener.instructions.poll(200, TimeUnit.MILLISECONDS));
+            assertTrue(registration[0].isSuspended());
+
+            registration[0].resume();
+            assertEquals("4.sync,1.1;", listener.instructions.poll(WAIT, TimeUnit.SECONDS));
+
+        }
+        finally {
+            eventLoop.shutdown();
+        }
+
+    }
+
+    /**
+     * Test that no instructions are delivered once reading is cancelled,
+     * that the task given upon cancellation runs once reading has stopped,
+     * and that the reader may then be read directly.
+     *
+     * @throws Exception
+     *     If the test fails unexpectedly.
+     */
+    @Test
+    public void testCancel() throws Exception {
+
+        GuacamoleReaderEventLoop eventLoop = new GuacamoleReaderEventLoop(1, 0);
+        try {
+
+            Pipe pipe = Pipe.open();
+            SelectableGuacamoleReader reader = reader(pipe);
+            RecordingListener listener = new RecordingListener();
+            GuacamoleReaderEventLoop.Registration registration =
+                    eventLoop.register(reader, listener);
+
+            write(pipe, "3.nop;");
+            assertEquals("3.nop;", listener.instructions.poll(WAIT, TimeUnit.SECONDS));
+
+            final BlockingQueue<Thread> stopped = new LinkedBlockingQueue<Thread>();
+            registration.cancel(new Runnable() {
+
+                @Override
+                public void run() {
+                    stopped.add(Thread.currentThread());
+                }
+
+            });
+
+            // Task must run within the event loop once reading has stopped
+            Thread thread = stopped.poll(WAIT, TimeUnit.SECONDS);
+            assertNotNull(thread);
+            assertNotSame(Thread.currentThread(), thread);
+
+            // Further data is left for the caller
+            write(pipe, "4.sync,1.1;");
+            assertNull(listener.instructions.poll(200, TimeUnit.MILLISECONDS));
+            assertEquals("4.sync,1.1;", UTF8.decode(reader.readBytes()).toString());
+
+        }
+        finally {
+            eventLoop.shutdown();
+        }
+
+    }
+
+    /**
+     * Test that readers which receive no data within the timeout are failed.
+     *
+     * @throws Exception
+     *     If the test fails unexpectedly.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+
+        GuacamoleReaderEventLoop eventLoop = new GuacamoleReaderEventLoop(1, 100);
+        try {
+
+            Pipe pipe = Pipe.open();
+            RecordingListener listener = new RecordingListener();
+            eventLoop.register(reader(pipe), listener);
+
+            assertTrue(listener.failures.poll(WAIT, TimeUnit.SECONDS)
+                    instanceof GuacamoleUpstreamTimeoutException);
+
+        }
+        finally {
+            eventLoop.shutdown();
+        }
+
+    }
+
+}
@@ -19,8 +19,12 @@
 
 package org.apache.guacamole.io;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
+import java.util.Arrays;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
 import org.apache.guacamole.protocol.GuacamoleInstruction;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -83,6 +87,358 @@ public class ReaderGuacamoleReaderTest {
 
     }
 
+    /**
+     * Test of ReaderGuacamoleReader parsing when the underlying Reader only
+     * provides a single character per read, such that each instruction must
+     * be parsed incrementally.
+     *
+     * @throws GuacamoleException If a parse error occurs while parsing the
+     *                            known-good test string.
+     */
+    @Test
+    public void testIncrementalReader() throws GuacamoleException {
+
+        // Test string
+        final String test = "4.sync,8.12345678;3.img,1.1,2.12,9.image/png,1.0,1.0;";
+
+        // Reader which returns at most one character at a time
+        Reader input = new StringReader(test) {
+
+            @Override
+            public int read(char[] buffer, int offset, int length)
+                    throws IOException {
+                return super.read(buffer, offset, Math.min(length, 1));
+            }
+
+        };
+
+        GuacamoleReader reader = new ReaderGuacamoleReader(input);
+
+        GuacamoleInstruction instruction;
+
+        // Validate first test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("sync", instruction.getOpcode());
+        assertEquals(1, instruction.getArgs().size());
+        assertEquals("12345678", instruction.getArgs().get(0));
+        assertEquals("4.sync,8.12345678;", instruction.toString());
+
+        // Validate second test instruction, accessing arguments out of order
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("img", instruction.getOpcode());
+        assertEquals(5, instruction.getArgs().size());
+        assertEquals("image/png", instruction.getArgs().get(2));
+        assertEquals("1", instruction.getArgs().get(0));
+        assertEquals("12", instruction.getArgs().get(1));
+        assertEquals("0", instruction.getArgs().get(4));
+
+        // There should be no more instructions
+        instruction = reader.readInstruction();
+        assertNull(instruction);
+
+    }
+
+    /**
+     * Test of ReaderGuacamoleReader parsing of instructions which are larger
+     * than the initial size of its internal buffer, interleaved with small
+     * instructions.
+     *
+     * @throws GuacamoleException If a parse error occurs while parsing the
+     *                            known-good test string.
+     */
+    @Test
+    public void testLargeInstruction() throws GuacamoleException {
+
+        // Generate a blob far larger than the initial buffer
+        char[] data = new char[100000];
+        Arrays.fill(data, 'A');
+        String blob = new String(data);
+
+        // Test string
+        final String test = "4.sync,1.1;"
+                + "4.blob,1.0," + blob.length() + "." + blob + ";"
+                + "4.sync,1.2;";
+
+        GuacamoleReader reader = new ReaderGuacamoleReader(new StringReader(test));
+
+        GuacamoleInstruction instruction;
+
+        // Validate first test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("sync", instruction.getOpcode());
+        assertEquals("1", instruction.getArgs().get(0));
+
+        // Validate large test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("blob", instruction.getOpcode());
+        assertEquals(2, instruction.getArgs().size());
+        assertEquals("0", instruction.getArgs().get(0));
+        assertEquals(blob, instruction.getArgs().get(1));
+
+        // Validate final test instruction
+        instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("sync", instruction.getOpcode());
+        assertEquals("2", instruction.getArgs().get(0));
+
+        // There should be no more instructions
+        instruction = reader.readInstruction();
+        assertNull(instruction);
+
+    }
+
+    /**
+     * Test that ReaderGuacamoleReader refuses to read instructions which
+     * exceed the configured maximum length.
+     *
+     * @throws GuacamoleException If the instruction is refused, as expected.
+     */
+    @Test(expected=GuacamoleServerException.class)
+    public void testMaximumLength() throws GuacamoleException {
+
+        // Test string
+        final String test = "4.sync,1.1;4.blob,1.0,20.AAAAAAAAAAAAAAAAAAAA;";
+
+        GuacamoleReader reader = new ReaderGuacamoleReader(new StringReader(test), 16);
+
+        // First instruction is within limits
+        GuacamoleInstruction instruction = reader.readInstruction();
+        assertNotNull(instruction);
+        assertEquals("sync", instruction.getOpcode());
+
+        // Second instruction is not
+        reader.readInstruction();
+
+    }
+
+    /**
+     * Reader which provides the same test data repeatedly, returning at most
+     * a fixed number of characters per read, and which records the largest
+     * buffer it has been asked to read into.
+     */
+    private static class ChunkedReader extends Reader {
+
+        /**
+         * The data provided by this reader.
+         */
+        private final char[] data;
+
+        /**
+         * The maximum number of characters to return from each read.
+         */
+        private final int chunkSize;
+
+        /**
+         * The number of times the data remains to be provided.
+         */
+        private int remaining;
+
+        /**
+         * The offset within the data of the next character to provide.
+         */
+        private int offset = 0;
+
+        /**
+         * The size of the largest buffer passed to read().
+         */
+        private int largestBuffer = 0;
+
+        /**
+         * Creates a new ChunkedReader which provides the given data the given
+         * number of times, returning at most chunkSize characters per read.
+         *
+         * @param data
+         *     The data to provide.
+         *
+         * @param repeat
+         *     The number of times the data should be provided.
+         *
+         * @param chunkSize
+         *     The maximum number of characters to return from each read.
+         */
+        public ChunkedReader(String data, int repeat, int chunkSize) {
+            this.data = data.toCharArray();
+            this.remaining = repeat;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read(char[] buffer, int off, int len) {
+
+            largestBuffer = Math.max(largestBuffer, buffer.length);
+
+            if (remaining == 0)
+                return -1;
+
+            // Fill the requested space, continuing across repetitions of the
+            // data such that reads do not align with instructions
+            int total = 0;
+            len = Math.min(len, chunkSize);
+            while (total < len && remaining > 0) {
+
+                int length = Math.min(len - total, data.length - offset);
+                System.arraycopy(data, offset, buffer, off + total, length);
+                total += length;
+
+                offset += length;
+                if (offset == data.length) {
+                    offset = 0;
+                    remaining--;
+                }
+
+            }
+
+            return total;
+
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    /**
+     * Returns a blob instruction containing the given number of characters
+     * of data.
+     *
+     * @param length
+     *     The number of characters of data within the blob.
+     *
+     * @return
+     *     A blob instruction containing the given number of characters.
+     */
+    private static String blob(int length) {
+        char[] data = new char[length];
+        Arrays.fill(data, 'A');
+        return "4.blob,1.0," + length + "." + new String(data) + ";";
+    }
+
+    /**
+     * Test that the buffer of ReaderGuacamoleReader grows to contain a large
+     * instruction, and is shrunk back to its initial size as soon as that
+     * instruction has been read, rather than only on a later read.
+     *
+     * @throws GuacamoleException If a parse error occurs while parsing the
+     *                            known-good test string.
+     */
+    @Test
+    public void testBufferShrink() throws GuacamoleException {
+
+        final String test = "4.sync,1.1;" + blob(100000) + "4.sync,1.2;"
+                + "4.sync,1.3;";
+
+        ChunkedReader input = new ChunkedReader(test, 1, 4096);
+        ReaderGuacamoleReader reader = new ReaderGuacamoleReader(input);
+        int initialSize = ReaderGuacamoleReader.INITIAL_BUFFER_SIZE;
+
+        // Small instructions need no more than the initial buffer
+        GuacamoleInstruction instruction = reader.readInstruction();
+        assertEquals("1", instruction.getArgs().get(0));
+        assertEquals(initialSize, reader.getBufferSize());
+
+        // The buffer must grow to contain the large instruction
+        instruction = reader.readInstruction();
+        assertEquals("blob", instruction.getOpcode());
+        assertEquals(100000, instruction.getArgs().get(1).length());
+        assertTrue(input.largestBuffer >= 100000);
+
+        // The larger buffer must be released as soon as the large
+        // instruction has been read, without affecting that instruction
+        assertEquals(initialSize, reader.getBufferSize());
+        assertEquals(blob(100000), instruction.toString());
+
+        // Later small instructions must continue to use the initial buffer
+        instruction = reader.readInstruction();
+        assertEquals("2", instruction.getArgs().get(0));
+        instruction = reader.readInstruction();
+        assertEquals("3", instruction.getArgs().get(0));
+        assertEquals(initialSize, reader.getBufferSize());
+
+        assertNull(reader.readInstruction());
+
+    }
+
+    /**
+     * Test that instructions returned by readInstruction() remain valid after
+     * later reads move data within the internal buffer, while
+     * readInstructionView() returns the same instructions without copying.
+     *
+     * @throws GuacamoleException If a parse error occurs while parsing the
+     *                            known-good test string.
+     */
+    @Test
+    public void testRetainedInstruction() throws GuacamoleException {
+
+        final String test = "4.sync,1.1;" + blob(10924) + blob(10924)
+                + "4.sync,1.2;" + blob(10924) + "4.sync,1.3;";
+
+        ChunkedReader input = new ChunkedReader(test, 1, 8192);
+        ReaderGuacamoleReader reader = new ReaderGuacamoleReader(input);
+
+        // Retain first instruction while reading enough data to reuse the
+        // space it occupied
+        GuacamoleInstruction retained = reader.readInstruction();
+        assertEquals(blob(10924), reader.readInstruction().toString());
+        assertEquals(blob(10924), reader.readInstruction().toString());
+
+        assertEquals("sync", retained.getOpcode());
+        assertEquals("1", retained.getArgs().get(0));
+        assertEquals("4.sync,1.1;", retained.toString());
+
+        // Views describe the same instructions
+        GuacamoleInstruction instruction = reader.readInstructionView();
+        assertEquals("2", instruction.getArgs().get(0));
+        assertEquals(blob(10924), reader.readInstructionView().toString());
+        assertEquals("4.sync,1.3;", reader.readInstructionView().toString());
+        assertNull(reader.readInstructionView());
+
+    }
+
+    /**
+     * Measures the number of characters moved within or between the
+     * internal buffers of ReaderGuacamoleReader per instruction read, for a
+     * typical mix of mouse, sync and 8 KB blob instructions received in
+     * socket-sized chunks. Blobs of this size must fit within the initial
+     * buffer, and the remaining data must be moved only when the buffer
+     * wraps, not once per instruction, such that on average each received
+     * character is moved less than once.
+     *
+     * @throws GuacamoleException If a parse error occurs while parsing the
+     *                            known-good test string.
+     */
+    @Test
+    public void testCopiedChars() throws GuacamoleException {
+
+        // 8 KB of data is 10924 characters of base64
+        final String test = "5.mouse,3.100,3.200;" + blob(10924)
+                + "5.mouse,3.101,3.201;4.sync,8.12345678;";
+
+        int repeat = 5000;
+        ChunkedReader input = new ChunkedReader(test, repeat, 8192);
+        ReaderGuacamoleReader reader = new ReaderGuacamoleReader(input);
+
+        int count = 0;
+        while (reader.readInstruction() != null)
+            count++;
+
+        assertEquals(repeat * 4, count);
+
+        // The buffer must never have grown
+        assertEquals(ReaderGuacamoleReader.INITIAL_BUFFER_SIZE, input.largestBuffer);
+
+        // Compacting the buffer once per instruction would move each
+        // received character several times, as each blob is followed by
+        // several smaller instructions
+        long perInstruction = reader.getCopiedChars() / count;
+        long received = (long) test.length() * repeat / count;
+        assertTrue("Moved " + perInstruction + " characters per instruction "
+                + "of " + received + " characters.", perInstruction < received);
+
+    }
 
-   
 }
@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.io;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.GuacamoleSocket;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the WriterGuacamoleWriter implementation of GuacamoleWriter,
+ * validating that writes are coalesced when requested.
+ */
+public class WriterGuacamoleWriterTest {
+
+    /**
+     * StringWriter which records the data present as of the most recent
+     * flush.
+     */
+    private static class FlushRecordingWriter extends StringWriter {
+
+        /**
+         * The data written as of the most recent flush.
+         */
+        private String flushed = "";
+
+        @Override
+        public void flush() {
+            super.flush();
+            flushed = toString();
+        }
+
+    }
+
+    /**
+     * Writer whose next flush may be made to fail, recording the data
+     * present as of the most recent successful flush.
+     */
+    private static class UnreliableWriter extends Writer {
+
+        /**
+         * All data written.
+         */
+        private final StringBuilder written = new StringBuilder();
+
+        /**
+         * The data written as of the most recent successful flush.
+         */
+        private String flushed = "";
+
+        /**
+         * Whether the next flush should fail.
+         */
+        private boolean failNextFlush = false;
+
+        @Override
+        public void write(char[] chunk, int off, int len) {
+            written.append(chunk, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+
+            if (failNextFlush) {
+                failNextFlush = false;
+                throw new IOException("Simulated failure.");
+            }
+
+            flushed = written.toString();
+
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    /**
+     * Test that a WriterGuacamoleWriter without a flush threshold flushes
+     * every write immediately.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while writing.
+     */
+    @Test
+    public void testUnbuffered() throws GuacamoleException {
+
+        FlushRecordingWriter output = new FlushRecordingWriter();
+        WriterGuacamoleWriter writer = new WriterGuacamoleWriter(output);
+
+        writer.writeInstruction(new GuacamoleInstruction("sync", "1"));
+        assertEquals("4.sync,1.1;", output.flushed);
+
+        writer.writeInstruction(new GuacamoleInstruction("sync", "2"));
+        assertEquals("4.sync,1.1;4.sync,1.2;", output.flushed);
+
+        assertEquals(2, writer.getWriteCount());
+        assertEquals(2, writer.getFlushCount());
+
+    }
+
+    /**
+     * Test that a WriterGuacamoleWriter with a flush threshold coalesces
+     * writes until the threshold is reached or an explicit flush occurs.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while writing.
+     */
+    @Test
+    public void testCoalescing() throws GuacamoleException {
+
+        FlushRecordingWriter output = new FlushRecordingWriter();
+        WriterGuacamoleWriter writer = new WriterGuacamoleWriter(output, 30, 60000);
+
+        // Writes below the threshold remain buffered
+        writer.writeInstruction(new GuacamoleInstruction("sync", "1"));
+        writer.writeInstruction(new GuacamoleInstruction("sync", "2"));
+        assertEquals("", output.flushed);
+
+        // Reaching the threshold flushes everything written
+        writer.writeInstruction(new GuacamoleInstruction("sync", "3"));
+        assertEquals("4.sync,1.1;4.sync,1.2;4.sync,1.3;", output.flushed);
+
+        // Explicit flushes send whatever remains
+        writer.writeInstruction(new GuacamoleInstruction("sync", "4"));
+        writer.flush();
+        assertEquals("4.sync,1.1;4.sync,1.2;4.sync,1.3;4.sync,1.4;", output.flushed);
+
+        // Flushing with nothing buffered has no effect
+        writer.flush();
+
+        assertEquals(4, writer.getWriteCount());
+        assertEquals(2, writer.getFlushCount());
+
+    }
+
+    /**
+     * Test that data buffered for longer than the flush delay is sent by the
+     * next write, even if the flush threshold has not been reached.
+     *
+     * @throws Exception
+     *     If an error occurs while writing, or if the test is interrupted.
+     */
+    @Test
+    public void testFlushDelay() throws Exception {
+
+        FlushRecordingWriter output = new FlushRecordingWriter();
+        WriterGuacamoleWriter writer = new WriterGuacamoleWriter(output, 1024, 50);
+
+        // Data remains buffered until the delay has elapsed
+        writer.writeInstruction(new GuacamoleInstruction("sync", "1"));
+        assertEquals("", output.flushed);
+
+        // The next write after the delay sends everything buffered
+        Thread.sleep(100);
+        writer.writeInstruction(new GuacamoleInstruction("sync", "2"));
+        assertEquals("4.sync,1.1;4.sync,1.2;", output.flushed);
+
+    }
+
+    /**
+     * Test that data whose flush fails remains pending, such that a later
+     * flush retries rather than treating the data as sent.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while writing, other than the simulated
+     *     failure.
+     */
+    @Test
+    public void testFailedFlush() throws GuacamoleException {
+
+        UnreliableWriter output = new UnreliableWriter();
+        WriterGuacamoleWriter writer = new WriterGuacamoleWriter(output, 1024, 60000);
+
+        writer.writeInstruction(new GuacamoleInstruction("sync", "1"));
+
+        // The first flush fails
+        output.failNextFlush = true;
+        try {
+            writer.flush();
+            fail("Flush should have failed.");
+        }
+        catch (GuacamoleException e) {
+            // Expected
+        }
+        assertEquals("", output.flushed);
+
+        // The next flush retries
+        writer.flush();
+        assertEquals("4.sync,1.1;", output.flushed);
+        assertEquals(1, writer.getFlushCount());
+
+    }
+
+    /**
+     * Test that a writer without coalescing coalesces writes only while
+     * write access is held through a tunnel, flushing when that access is
+     * released, and that writes made directly to the socket are otherwise
+     * sent immediately.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while writing.
+     */
+    @Test
+    public void testTunnelCoalescing() throws GuacamoleException {
+
+        FlushRecordingWriter output = new FlushRecordingWriter();
+        final WriterGuacamoleWriter writer = new WriterGuacamoleWriter(output);
+
+        GuacamoleTunnel tunnel = new SimpleGuacamoleTunnel(new GuacamoleSocket() {
+
+            @Override
+            public GuacamoleReader getReader() {
+                return null;
+            }
+
+            @Override
+            public GuacamoleWriter getWriter() {
+                return writer;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+        });
+
+        // Writes made directly are sent immediately
+        writer.writeInstruction(new GuacamoleInstruction("sync", "1"));
+        assertEquals("4.sync,1.1;", output.flushed);
+
+        // Writes made through the tunnel are sent upon release
+        tunnel.acquireWriter().writeInstruction(new GuacamoleInstruction("sync", "2"));
+        assertTrue(writer.isCoalescing());
+        assertEquals("4.sync,1.1;", output.flushed);
+
+        tunnel.releaseWriter();
+        assertEquals("4.sync,1.1;4.sync,1.2;", output.flushed);
+        assertFalse(writer.isCoalescing());
+
+        // Writes made directly after release are again sent immediately
+        writer.writeInstruction(new GuacamoleInstruction("sync", "3"));
+        assertEquals("4.sync,1.1;4.sync,1.2;4.sync,1.3;", output.flushed);
+
+    }
+
+}
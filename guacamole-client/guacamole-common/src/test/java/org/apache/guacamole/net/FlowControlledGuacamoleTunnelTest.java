@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.io.ReaderGuacamoleReader;
+import org.apache.guacamole.io.WriterGuacamoleWriter;
+import org.apache.guacamole.protocol.SyncFlowControl;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests FlowControlledGuacamoleTunnel, validating that reading pauses while
+ * the client has too many unacknowledged frames.
+ */
+public class FlowControlledGuacamoleTunnelTest {
+
+    /**
+     * Creates a tunnel whose socket reads the given instructions and writes
+     * to the given StringWriter.
+     *
+     * @param instructions
+     *     The instructions which should be read from the tunnel.
+     *
+     * @param output
+     *     The StringWriter receiving all data written to the tunnel.
+     *
+     * @return
+     *     A new tunnel reading and writing the given data.
+     */
+    private GuacamoleTunnel createTunnel(String instructions,
+            StringWriter output) {
+
+        final GuacamoleReader reader = new ReaderGuacamoleReader(new StringReader(instructions));
+        final GuacamoleWriter writer = new WriterGuacamoleWriter(output);
+
+        return new SimpleGuacamoleTunnel(new GuacamoleSocket() {
+
+            @Override
+            public GuacamoleReader getReader() {
+                return reader;
+            }
+
+            @Override
+            public GuacamoleWriter getWriter() {
+                return writer;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+        });
+
+    }
+
+    /**
+     * Test that reading pauses once the maximum number of frames are
+     * unacknowledged, resuming once the client acknowledges a frame.
+     *
+     * @throws Exception
+     *     If an unexpected error occurs.
+     */
+    @Test
+    public void testFrameLag() throws Exception {
+
+        StringWriter output = new StringWriter();
+        final FlowControlledGuacamoleTunnel tunnel = new FlowControlledGuacamoleTunnel(
+                createTunnel("4.sync,1.1;3.foo;4.sync,1.2;3.bar;", output), 2);
+        SyncFlowControl flowControl = tunnel.getFlowControl();
+
+        GuacamoleReader reader = tunnel.acquireReader();
+        assertEquals("4.sync,1.1;", new String(reader.read()));
+        assertEquals("3.foo;", new String(reader.read()));
+        assertEquals("4.sync,1.2;", new String(reader.read()));
+
+        // Two frames are now unacknowledged
+        assertEquals(2, flowControl.getFrameLag());
+        assertTrue(flowControl.isPaused());
+        assertFalse(reader.available());
+
+        // Acknowledge the first frame only after a delay
+        Thread client = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    GuacamoleWriter writer = tunnel.acquireWriter();
+                    writer.write("4.sync,1.1;".toCharArray());
+                    tunnel.releaseWriter();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (GuacamoleException e) {
+                    fail("Acknowledgement could not be written.");
+                }
+            }
+
+        };
+
+        // Reading must block until the acknowledgement arrives
+        long start = System.currentTimeMillis();
+        client.start();
+        assertEquals("3.bar;", new String(reader.read()));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        client.join();
+        tunnel.releaseReader();
+
+        // Acknowledgement must still reach guacd
+        assertEquals("4.sync,1.1;", output.toString());
+
+        assertEquals(1, flowControl.getFrameLag());
+        assertEquals(2, flowControl.getPeakFrameLag());
+        assertEquals(2, flowControl.getFrameCount());
+        assertEquals(1, flowControl.getPauseCount());
+        assertFalse(flowControl.isPaused());
+
+    }
+
+    /**
+     * Test that listeners are notified as reading pauses and resumes, and
+     * that acknowledgements cover all earlier frames.
+     */
+    @Test
+    public void testListener() {
+
+        SyncFlowControl flowControl = new SyncFlowControl(2);
+        final int[] events = new int[2];
+
+        flowControl.setListener(new SyncFlowControl.Listener() {
+
+            @Override
+            public void lagExceeded() {
+                events[0]++;
+            }
+
+            @Override
+            public void lagRecovered() {
+                events[1]++;
+            }
+
+        });
+
+        flowControl.frameSent(10);
+        flowControl.frameSent(20);
+        flowControl.frameSent(30);
+        assertEquals(1, events[0]);
+
+        // Acknowledging a later frame implies all earlier frames
+        flowControl.frameAcknowledged(20);
+        assertEquals(1, flowControl.getFrameLag());
+        assertEquals(1, events[1]);
+
+        // Frames are tracked without pausing if no maximum is set
+        SyncFlowControl unlimited = new SyncFlowControl(0);
+        unlimited.frameSent(10);
+        unlimited.frameSent(20);
+        assertFalse(unlimited.isPaused());
+        assertEquals(2, unlimited.getFrameLag());
+
+    }
+
+    /**
+     * Test that maximum frame lags which could never be reached, as they
+     * exceed the number of frames tracked, are rejected.
+     */
+    @Test
+    public void testMaxFrameLagLimit() {
+
+        SyncFlowControl limit = new SyncFlowControl(SyncFlowControl.MAX_TRACKED_FRAMES);
+        for (int i = 1; i <= SyncFlowControl.MAX_TRACKED_FRAMES; i++)
+            limit.frameSent(i);
+        assertTrue(limit.isPaused());
+
+        try {
+            new SyncFlowControl(SyncFlowControl.MAX_TRACKED_FRAMES + 1);
+            fail("Unreachable maximum frame lag was accepted.");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        try {
+            new SyncFlowControl(-1);
+            fail("Negative maximum frame lag was accepted.");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.net;
+
+import java.io.File;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests GuacdSSLContext, validating creation from trust material and the
+ * tracking of handshake statistics.
+ */
+public class GuacdSSLContextTest {
+
+    /**
+     * Test that a context trusting the default certificates of the JVM can
+     * be created.
+     *
+     * @throws GuacamoleException
+     *     If the context cannot be created.
+     */
+    @Test
+    public void testCreateDefault() throws GuacamoleException {
+        GuacdSSLContext context = GuacdSSLContext.create(null, null, null, 10, 60);
+        assertNotNull(context.getSocketFactory());
+        assertEquals(0, context.getHandshakeCount());
+    }
+
+    /**
+     * Test that a missing trust store is reported as an error.
+     *
+     * @throws GuacamoleException
+     *     If the context cannot be created, as expected.
+     */
+    @Test(expected = GuacamoleServerException.class)
+    public void testMissingTrustStore() throws GuacamoleException {
+        GuacdSSLContext.create(new File("/nonexistent/truststore.jks"),
+                "password", "JKS", 0, 0);
+    }
+
+    /**
+     * Test that handshake statistics are maintained.
+     *
+     * @throws GuacamoleException
+     *     If the context cannot be created.
+     */
+    @Test
+    public void testStatistics() throws GuacamoleException {
+
+        GuacdSSLContext context = GuacdSSLContext.create(null, null, null, 0, 0);
+        context.recordHandshake(3000000, false);
+        context.recordHandshake(1000000, true);
+
+        assertEquals(2, context.getHandshakeCount());
+        assertEquals(1, context.getResumedCount());
+        assertEquals(2000000, context.getAverageHandshakeTime());
+        assertEquals(3000000, context.getPeakHandshakeTime());
+
+    }
+
+}
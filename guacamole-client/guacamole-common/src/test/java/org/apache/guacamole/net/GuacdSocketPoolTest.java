@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.apache.guacamole.GuacamoleException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests GuacdSocketPool against a local server socket standing in for guacd,
+ * validating that connections are established ahead of time and that
+ * connections closed by guacd are not handed out.
+ */
+public class GuacdSocketPoolTest {
+
+    /**
+     * Server socket standing in for guacd.
+     */
+    private ServerSocket server;
+
+    /**
+     * The pool being tested.
+     */
+    private GuacdSocketPool pool;
+
+    /**
+     * Starts the stand-in guacd and creates a pool which connects to it.
+     *
+     * @throws IOException
+     *     If the server socket cannot be created.
+     */
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        pool = new GuacdSocketPool("127.0.0.1", server.getLocalPort(), false);
+    }
+
+    /**
+     * Shuts down the pool and the stand-in guacd.
+     *
+     * @throws IOException
+     *     If the server socket cannot be closed.
+     */
+    @After
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        server.close();
+    }
+
+    /**
+     * Test that a prefetched connection is handed out by acquire() and that
+     * it reports no time spent connecting.
+     *
+     * @throws Exception
+     *     If the test fails unexpectedly.
+     */
+    @Test
+    public void testPrefetch() throws Exception {
+
+        pool.prefetch();
+        Socket accepted = server.accept();
+
+        TimedGuacamoleSocket socket = pool.acquire();
+        assertTrue(socket.isOpen());
+        assertEquals(0, socket.getConnectTime());
+        assertEquals(0, socket.getResolutionTime());
+
+        socket.close();
+        accepted.close();
+
+    }
+
+    /**
+     * Test that idle connections are maintained, and that connections closed
+     * by guacd are discarded rather than handed out.
+     *
+     * @throws Exception
+     *     If the test fails unexpectedly.
+     */
+    @Test
+    public void testClosedByGuacd() throws Exception {
+
+        pool.setSize(1);
+        Socket accepted = server.accept();
+
+        // Wait for the connection to become idle
+        for (int i = 0; i < 100 && pool.getIdleCount() == 0; i++)
+            Thread.sleep(10);
+        assertEquals(1, pool.getIdleCount());
+
+        // Closure by guacd must be detected, with a replacement established
+        accepted.close();
+        pool.setSize(0);
+        Thread.sleep(100);
+
+        TimedGuacamoleSocket socket = pool.acquire();
+        Socket replacement = server.accept();
+        assertTrue(socket.isOpen());
+        assertTrue(socket.getConnectTime() > 0);
+
+        socket.close();
+        replacement.close();
+
+    }
+
+    /**
+     * Test that a pool has background threads only while it has a non-zero
+     * size or is holding or establishing connections, and never after it
+     * has been shut down.
+     *
+     * @throws Exception
+     *     If the test fails unexpectedly.
+     */
+    @Test
+    public void testBackgroundThreads() throws Exception {
+
+        // No threads are needed until a connection is requested
+        assertFalse(pool.isActive());
+
+        pool.prefetch();
+        assertTrue(pool.isActive());
+        Socket accepted = server.accept();
+
+        TimedGuacamoleSocket socket = pool.acquire();
+        socket.close();
+        accepted.close();
+
+        // Threads are released once nothing remains to be maintained
+        for (int i = 0; i < 300 && pool.isActive(); i++)
+            Thread.sleep(10);
+        assertFalse(pool.isActive());
+
+        // Shut down pools connect directly without background threads
+        pool.shutdown();
+        pool.prefetch();
+        assertFalse(pool.isActive());
+
+        socket = pool.acquire();
+        accepted = server.accept();
+        assertTrue(socket.getConnectTime() > 0);
+
+        socket.close();
+        accepted.close();
+
+    }
+
+    /**
+     * Test that acquire() fails if guacd is unreachable.
+     *
+     * @throws Exception
+     *     If acquire() fails as expected, or the test fails unexpectedly.
+     */
+    @Test(expected = GuacamoleException.class)
+    public void testUnreachable() throws Exception {
+        server.close();
+        pool.prefetch();
+        pool.acquire();
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests PriorityWriterLock and WriterPriority, validating that waiting
+ * threads are granted access in order of priority without starving threads
+ * of lower priority, and that Guacamole protocol data is classified by its
+ * opcodes.
+ */
+public class PriorityWriterLockTest {
+
+    /**
+     * Starts a thread which acquires the given lock at the given priority,
+     * records its name within the given list, and releases the lock,
+     * returning only once that thread is waiting for the lock.
+     *
+     * @param lock
+     *     The lock to acquire.
+     *
+     * @param priority
+     *     The priority at which the lock should be acquired.
+     *
+     * @param name
+     *     The name to record once the lock has been acquired.
+     *
+     * @param grants
+     *     The list in which the names of threads are recorded in the order
+     *     that the lock was granted.
+     *
+     * @return
+     *     The started thread.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted.
+     */
+    private Thread startWaiter(final PriorityWriterLock lock,
+            final WriterPriority priority, final String name,
+            final List<String> grants) throws InterruptedException {
+
+        int waiting = lock.getQueueLength(priority);
+
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                lock.lock(priority);
+                grants.add(name);
+                lock.unlock();
+            }
+
+        });
+
+        thread.start();
+
+        // Wait for thread to begin waiting
+        while (lock.getQueueLength(priority) == waiting)
+            Thread.sleep(1);
+
+        return thread;
+
+    }
+
+    /**
+     * Test that waiting threads are granted access in order of priority, and
+     * in the order they began waiting within the same priority.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted.
+     */
+    @Test
+    public void testPriorityOrder() throws InterruptedException {
+
+        PriorityWriterLock lock = new PriorityWriterLock();
+        List<String> grants = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        lock.lock(WriterPriority.CONTROL);
+        assertFalse(lock.hasQueuedThreads());
+
+        threads.add(startWaiter(lock, WriterPriority.BULK, "blob", grants));
+        threads.add(startWaiter(lock, WriterPriority.CONTROL, "ack", grants));
+        threads.add(startWaiter(lock, WriterPriority.INPUT, "mouse", grants));
+        threads.add(startWaiter(lock, WriterPriority.INPUT, "key", grants));
+        assertTrue(lock.hasQueuedThreads());
+
+        lock.unlock();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(Arrays.asList("mouse", "key", "ack", "blob"), grants);
+        assertFalse(lock.hasQueuedThreads());
+
+    }
+
+    /**
+     * Test that a thread of lower priority is granted access after being
+     * passed over MAX_BYPASS times.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted.
+     */
+    @Test
+    public void testNoStarvation() throws InterruptedException {
+
+        PriorityWriterLock lock = new PriorityWriterLock();
+        List<String> grants = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        lock.lock(WriterPriority.INPUT);
+
+        threads.add(startWaiter(lock, WriterPriority.BULK, "blob", grants));
+        for (int i = 0; i <= PriorityWriterLock.MAX_BYPASS; i++)
+            threads.add(startWaiter(lock, WriterPriority.INPUT, "key" + i, grants));
+
+        lock.unlock();
+        for (Thread thread : threads)
+            thread.join();
+
+        // Bulk data is sent once passed over the maximum number of times
+        assertEquals(PriorityWriterLock.MAX_BYPASS + 2, grants.size());
+        assertEquals("blob", grants.get(PriorityWriterLock.MAX_BYPASS));
+        assertEquals("key" + PriorityWriterLock.MAX_BYPASS,
+                grants.get(PriorityWriterLock.MAX_BYPASS + 1));
+
+    }
+
+    /**
+     * Test that the lock may be reacquired by the thread holding it, and is
+     * released only once released as many times as it was acquired.
+     */
+    @Test
+    public void testReentrant() {
+
+        PriorityWriterLock lock = new PriorityWriterLock();
+
+        lock.lock(WriterPriority.BULK);
+        lock.lock(WriterPriority.INPUT);
+        lock.unlock();
+        lock.unlock();
+
+        try {
+            lock.unlock();
+            fail("Lock was released more times than acquired.");
+        }
+        catch (IllegalMonitorStateException e) {
+            // Expected
+        }
+
+    }
+
+    /**
+     * Test that Guacamole protocol data is classified by the most urgent of
+     * the opcodes it contains.
+     */
+    @Test
+    public void testClassification() {
+
+        assertEquals(WriterPriority.INPUT, WriterPriority.forOpcode("mouse"));
+        assertEquals(WriterPriority.CONTROL, WriterPriority.forOpcode("ack"));
+        assertEquals(WriterPriority.BULK, WriterPriority.forOpcode("blob"));
+
+        assertEquals(WriterPriority.BULK,
+                WriterPriority.forMessage("4.blob,1.0,8.AAAAAAA=;".toCharArray()));
+        assertEquals(WriterPriority.CONTROL,
+                WriterPriority.forMessage("4.blob,1.0,4.AAA=;3.ack,1.0,2.OK,1.0;".toCharArray()));
+        assertEquals(WriterPriority.INPUT,
+                WriterPriority.forMessage("4.sync,4.1234;3.key,5.65307,1.1;".toCharArray()));
+
+        // Partial instructions are classified by their opcodes
+        assertEquals(WriterPriority.BULK,
+                WriterPriority.forMessage("4.blob,1.0,1000.AAAA".toCharArray()));
+
+        // Empty or malformed data is treated as control data
+        assertEquals(WriterPriority.CONTROL, WriterPriority.forMessage(new char[0]));
+        assertEquals(WriterPriority.CONTROL,
+                WriterPriority.forMessage("4.blob;x".toCharArray()));
+
+    }
+
+}
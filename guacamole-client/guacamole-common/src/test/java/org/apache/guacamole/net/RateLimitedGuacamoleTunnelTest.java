@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.io.ReaderGuacamoleReader;
+import org.apache.guacamole.io.WriterGuacamoleWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests RateLimitedGuacamoleTunnel and TokenBucket, validating that reading
+ * pauses, without dropping data, while data is read faster than allowed.
+ */
+public class RateLimitedGuacamoleTunnelTest {
+
+    /**
+     * An instruction 50 characters in length.
+     */
+    private static final String INSTRUCTION =
+            "4.blob,1.0,35.AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA;";
+
+    /**
+     * Creates a tunnel whose socket reads the given instructions.
+     *
+     * @param instructions
+     *     The instructions which should be read from the tunnel.
+     *
+     * @return
+     *     A new tunnel reading the given data.
+     */
+    private GuacamoleTunnel createTunnel(String instructions) {
+
+        final GuacamoleReader reader = new ReaderGuacamoleReader(new StringReader(instructions));
+        final GuacamoleWriter writer = new WriterGuacamoleWriter(new StringWriter());
+
+        return new SimpleGuacamoleTunnel(new GuacamoleSocket() {
+
+            @Override
+            public GuacamoleReader getReader() {
+                return reader;
+            }
+
+            @Override
+            public GuacamoleWriter getWriter() {
+                return writer;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+        });
+
+    }
+
+    /**
+     * Test that a bucket falls into debt once more than its burst size is
+     * consumed, and that the delay reflects the time needed to repay that
+     * debt.
+     */
+    @Test
+    public void testTokenBucket() {
+
+        TokenBucket bucket = new TokenBucket(1000, 100);
+        assertEquals(0, bucket.getDelay());
+
+        bucket.consume(100);
+        assertEquals(0, bucket.getDelay());
+
+        // 200 bytes of debt at 1000 bytes per second
+        bucket.consume(200);
+        long delay = bucket.getDelay();
+        assertTrue("Unexpected delay: " + delay, delay > 150 && delay <= 200);
+
+    }
+
+    /**
+     * Test that changing the rate of a bucket retains its debt, which is
+     * then repaid at the new rate.
+     */
+    @Test
+    public void testSetRate() {
+
+        TokenBucket bucket = new TokenBucket(1000, 100);
+
+        // 100 bytes of debt at 100 bytes per second
+        bucket.consume(200);
+        bucket.setRate(100);
+        assertEquals(100, bucket.getRate());
+        assertEquals(100, bucket.getBurst());
+
+        long delay = bucket.getDelay();
+        assertTrue("Unexpected delay: " + delay, delay > 900 && delay <= 1000);
+
+    }
+
+    /**
+     * Test that data read as characters is counted in bytes, as it would be
+     * sent as UTF-8, rather than in characters.
+     *
+     * @throws Exception
+     *     If an unexpected error occurs.
+     */
+    @Test
+    public void testMultibyteRead() throws Exception {
+
+        // 12 characters, 15 bytes as UTF-8
+        String instruction = "4.name,2.\u00e9\u20ac;";
+        assertEquals(12, instruction.length());
+
+        RateLimitedGuacamoleTunnel tunnel = new RateLimitedGuacamoleTunnel(
+                createTunnel(instruction + instruction),
+                new TokenBucket(1000000));
+
+        GuacamoleReader reader = tunnel.acquireReader();
+        assertEquals(instruction, new String(reader.read()));
+        assertEquals(instruction, reader.readInstruction().toString());
+        tunnel.releaseReader();
+
+        assertEquals(30, tunnel.getBytesRead());
+
+    }
+
+    /**
+     * Test that reads exceeding the rate limit wait until the limit allows,
+     * returning all data unaltered and recording the time spent paused.
+     *
+     * @throws Exception
+     *     If an unexpected error occurs.
+     */
+    @Test
+    public void testThrottle() throws Exception {
+
+        assertEquals(50, INSTRUCTION.length());
+
+        RateLimitedGuacamoleTunnel tunnel = new RateLimitedGuacamoleTunnel(
+                createTunnel(INSTRUCTION + INSTRUCTION),
+                new TokenBucket(1000, 10));
+
+        GuacamoleReader reader = tunnel.acquireReader();
+
+        // The first read is immediate, but leaves 40 bytes of debt
+        assertEquals(INSTRUCTION, new String(reader.read()));
+        assertFalse(reader.available());
+        assertEquals(0, tunnel.getThrottleCount());
+
+        // The second read must wait for that debt to be repaid
+        long start = System.currentTimeMillis();
+        assertEquals(INSTRUCTION, new String(reader.read()));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Read was not delayed: " + elapsed + "ms", elapsed >= 30);
+
+        tunnel.releaseReader();
+
+        assertEquals(100, tunnel.getBytesRead());
+        assertEquals(1, tunnel.getThrottleCount());
+        assertTrue(tunnel.getThrottledTime() >= 30);
+
+    }
+
+    /**
+     * Test that tunnels sharing a bucket are limited by their combined rate.
+     *
+     * @throws Exception
+     *     If an unexpected error occurs.
+     */
+    @Test
+    public void testSharedBucket() throws Exception {
+
+        TokenBucket shared = new TokenBucket(1000, 10);
+
+        RateLimitedGuacamoleTunnel first = new RateLimitedGuacamoleTunnel(
+                createTunnel(INSTRUCTION), new TokenBucket(1000000), shared);
+        RateLimitedGuacamoleTunnel second = new RateLimitedGuacamoleTunnel(
+                createTunnel(INSTRUCTION), new TokenBucket(1000000), shared);
+
+        GuacamoleReader firstReader = first.acquireReader();
+        GuacamoleReader secondReader = second.acquireReader();
+        assertTrue(secondReader.available());
+
+        // Reading from one tunnel pauses the other
+        assertEquals(INSTRUCTION, new String(firstReader.read()));
+        assertFalse(secondReader.available());
+
+        first.releaseReader();
+        second.releaseReader();
+
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests ReaderLock, validating that access is exclusive and reentrant, and
+ * that access may be released by a thread other than the thread which
+ * acquired it.
+ */
+public class ReaderLockTest {
+
+    /**
+     * Test that access acquired by one thread and released by another is
+     * handed to the next waiting thread.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted.
+     */
+    @Test
+    public void testHandoff() throws InterruptedException {
+
+        final ReaderLock lock = new ReaderLock();
+        final boolean[] acquired = new boolean[1];
+
+        // Reentrant acquisition requires a matching number of releases
+        lock.lock();
+        lock.lock();
+        lock.unlock();
+
+        Thread waiter = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                lock.lock();
+                synchronized (acquired) {
+                    acquired[0] = true;
+                }
+                lock.unlock();
+            }
+
+        });
+
+        waiter.start();
+
+        // Wait for thread to begin waiting
+        while (!lock.hasQueuedThreads())
+            Thread.sleep(1);
+
+        synchronized (acquired) {
+            assertFalse(acquired[0]);
+        }
+
+        // Release on behalf of this thread from another thread
+        Thread releaser = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                lock.unlock();
+            }
+
+        });
+
+        releaser.start();
+        releaser.join();
+        waiter.join();
+
+        synchronized (acquired) {
+            assertTrue(acquired[0]);
+        }
+
+        assertFalse(lock.hasQueuedThreads());
+
+    }
+
+    /**
+     * Test that releasing a lock which is not held fails.
+     */
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testUnlockNotHeld() {
+        new ReaderLock().unlock();
+    }
+
+}
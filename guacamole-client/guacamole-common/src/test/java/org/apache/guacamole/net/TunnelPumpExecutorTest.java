@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.net;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests TunnelPumpExecutor, validating that platform thread limits are
+ * enforced and that statistics are maintained.
+ */
+public class TunnelPumpExecutorTest {
+
+    /**
+     * Test that pumps beyond the platform thread limit are rejected.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted.
+     */
+    @Test
+    public void testPlatformLimit() throws InterruptedException {
+
+        TunnelPumpExecutor executor = new TunnelPumpExecutor("test-pump", false, 2);
+        assertFalse(executor.isVirtual());
+
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(2);
+
+        Runnable pump = new Runnable() {
+
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.countDown();
+            }
+
+        };
+
+        // Fill the pool
+        executor.execute(pump);
+        executor.execute(pump);
+        assertEquals(2, executor.getStartedCount());
+
+        // Further pumps must be rejected
+        try {
+            executor.execute(pump);
+            fail("Pump beyond limit was not rejected.");
+        }
+        catch (RejectedExecutionException e) {
+            // Expected
+        }
+
+        assertEquals(1, executor.getRejectedCount());
+
+        // Complete all pumps once both are running
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+
+        assertEquals(2, executor.getThreadCount());
+        assertEquals(2, executor.getPeakActiveCount());
+
+    }
+
+}
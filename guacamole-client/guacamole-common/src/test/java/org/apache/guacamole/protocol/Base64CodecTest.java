@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.ReaderGuacamoleReader;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests Base64Codec, validating against the test vectors of RFC 4648 and
+ * decoding directly from received instructions.
+ */
+public class Base64CodecTest {
+
+    /**
+     * The decoded test vectors of RFC 4648, section 10.
+     */
+    private static final String[] DECODED = {
+        "", "f", "fo", "foo", "foob", "fooba", "foobar"
+    };
+
+    /**
+     * The encoded test vectors of RFC 4648, section 10, in the same order as
+     * DECODED.
+     */
+    private static final String[] ENCODED = {
+        "", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy"
+    };
+
+    /**
+     * Test that the RFC 4648 test vectors encode and decode correctly.
+     */
+    @Test
+    public void testVectors() {
+
+        for (int i = 0; i < DECODED.length; i++) {
+
+            byte[] decoded = DECODED[i].getBytes();
+            char[] encoded = new char[Base64Codec.getEncodedLength(decoded.length)];
+            assertEquals(encoded.length, Base64Codec.encode(decoded, 0, decoded.length, encoded, 0));
+            assertEquals(ENCODED[i], new String(encoded));
+
+            byte[] buffer = new byte[Base64Codec.getMaxDecodedLength(encoded.length)];
+            int length = Base64Codec.decode(encoded, 0, encoded.length, buffer, 0);
+            assertEquals(DECODED[i], new String(buffer, 0, length));
+
+        }
+
+    }
+
+    /**
+     * Test that invalid base64 is rejected.
+     */
+    @Test
+    public void testInvalid() {
+
+        String[] invalid = { "Zg=", "Z===", "Zg=a", "Zg==Zm8=", "Zm9*", "Zm9\u00e9" };
+
+        for (String value : invalid) {
+            char[] encoded = value.toCharArray();
+            try {
+                Base64Codec.decode(encoded, 0, encoded.length, new byte[8], 0);
+                fail("Invalid base64 was accepted: " + value);
+            }
+            catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+
+    }
+
+    /**
+     * Test that random data survives a round trip through the streaming
+     * decoder when decoded in chunks smaller than the data.
+     *
+     * @throws IOException
+     *     If the data cannot be written.
+     */
+    @Test
+    public void testStreamingRoundTrip() throws IOException {
+
+        Random random = new Random(4648);
+        for (int length = 0; length < 100; length++) {
+
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            char[] encoded = new char[Base64Codec.getEncodedLength(length) + 2];
+            int encodedLength = Base64Codec.encode(data, 0, length, encoded, 2);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            assertEquals(length, Base64Codec.decode(encoded, 2, encodedLength, output, new byte[7]));
+            assertTrue(Arrays.equals(data, output.toByteArray()));
+
+        }
+
+    }
+
+    /**
+     * Test that blob arguments decode identically whether read from received
+     * data or from a constructed instruction.
+     *
+     * @throws GuacamoleException
+     *     If the instruction cannot be parsed.
+     *
+     * @throws IOException
+     *     If the data cannot be written.
+     */
+    @Test
+    public void testInstructionDecode() throws GuacamoleException, IOException {
+
+        ReaderGuacamoleReader reader = new ReaderGuacamoleReader(
+                new StringReader("4.blob,1.0,8.Zm9vYmFy;"));
+
+        GuacamoleInstruction received = reader.readInstruction();
+        GuacamoleInstruction constructed = new GuacamoleInstruction("blob", "0", "Zm9vYmFy");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Base64Codec.decode(received, 1, output, new byte[3]);
+        assertEquals("foobar", output.toString());
+
+        output.reset();
+        Base64Codec.decode(constructed, 1, output, new byte[3]);
+        assertEquals("foobar", output.toString());
+
+    }
+
+}
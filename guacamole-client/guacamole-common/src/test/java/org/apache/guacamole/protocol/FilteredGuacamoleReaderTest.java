@@ -19,8 +19,14 @@
 
 package org.apache.guacamole.protocol;
 
+import java.io.ByteArrayInputStream;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.ChannelGuacamoleReader;
+import org.apache.guacamole.io.GuacamoleByteReader;
 import org.apache.guacamole.io.GuacamoleReader;
 import org.apache.guacamole.io.ReaderGuacamoleReader;
 import static org.junit.Assert.*;
@@ -88,5 +94,75 @@ public class FilteredGuacamoleReaderTest {
         assertNull(instruction);
 
     }
-    
+
+    /**
+     * Filter which counts the instructions it receives, renaming "rename"
+     * instructions to "blob" and dropping "drop" instructions.
+     */
+    private static class CountingFilter implements GuacamoleFilter {
+
+        /**
+         * The number of instructions received by this filter.
+         */
+        private int count = 0;
+
+        @Override
+        public GuacamoleInstruction filter(GuacamoleInstruction instruction) throws GuacamoleException {
+
+            count++;
+
+            if (instruction.getOpcode().equals("rename"))
+                return new GuacamoleInstruction("blob", instruction.getArgs());
+
+            if (instruction.getOpcode().equals("drop"))
+                return null;
+
+            return instruction;
+
+        }
+
+    }
+
+    /**
+     * Test of GuacamoleFilterChain, verifying that each filter receives only
+     * the instructions having the opcodes it registered, and that raw bytes
+     * of all other instructions pass through untouched.
+     *
+     * @throws Exception
+     *     If an error occurs while reading or filtering.
+     */
+    @Test
+    public void testFilterChain() throws Exception {
+
+        // Test string
+        final String test = "4.sync,1.1;4.blob,1.0,1.A;6.rename,1.0,1.B;4.drop;3.img,1.0;";
+
+        CountingFilter blobFilter = new CountingFilter();
+        CountingFilter renameFilter = new CountingFilter();
+
+        GuacamoleFilterChain chain = new GuacamoleFilterChain();
+        chain.addFilter(renameFilter, "rename", "drop");
+        chain.addFilter(blobFilter, "blob");
+
+        assertTrue(chain.isFiltered("blob"));
+        assertFalse(chain.isFiltered("sync"));
+
+        GuacamoleByteReader reader = new FilteredGuacamoleReader(
+                new ChannelGuacamoleReader(Channels.newChannel(
+                        new ByteArrayInputStream(test.getBytes("UTF-8"))), 0),
+                chain);
+
+        StringBuilder received = new StringBuilder();
+        ByteBuffer instruction;
+        while ((instruction = reader.readBytes()) != null)
+            received.append(Charset.forName("UTF-8").decode(instruction));
+
+        // Renamed instructions must also pass through later filters
+        assertEquals("4.sync,1.1;4.blob,1.0,1.A;4.blob,1.0,1.B;3.img,1.0;",
+                received.toString());
+        assertEquals(2, blobFilter.count);
+        assertEquals(2, renameFilter.count);
+
+    }
+
 }
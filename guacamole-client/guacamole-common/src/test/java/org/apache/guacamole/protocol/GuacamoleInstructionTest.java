@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.protocol;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the serialization of GuacamoleInstruction into each supported form.
+ */
+public class GuacamoleInstructionTest {
+
+    /**
+     * Instruction containing characters which encode to UTF-8 sequences of
+     * every possible length.
+     */
+    private final GuacamoleInstruction instruction = new GuacamoleInstruction(
+            "test", "", "a\u00E9\u20AC", "\uD83D\uDE00", "0123456789");
+
+    /**
+     * The expected wire representation of the test instruction. Note that
+     * lengths are in Java characters, consistent with toString().
+     */
+    private static final String EXPECTED =
+            "4.test,0.,3.a\u00E9\u20AC,2.\uD83D\uDE00,10.0123456789;";
+
+    /**
+     * Test that all forms of serialization produce the same data.
+     *
+     * @throws IOException
+     *     If an error occurs while writing to the test Writer.
+     */
+    @Test
+    public void testSerialization() throws IOException {
+
+        assertEquals(EXPECTED, instruction.toString());
+        assertEquals(EXPECTED, new String(instruction.toCharArray()));
+        assertEquals(EXPECTED.length(), instruction.getLength());
+
+        StringWriter writer = new StringWriter();
+        instruction.writeTo(writer);
+        assertEquals(EXPECTED, writer.toString());
+
+        CharBuffer chars = CharBuffer.allocate(100);
+        instruction.writeTo(chars);
+        chars.flip();
+        assertEquals(EXPECTED, chars.toString());
+
+        ByteBuffer bytes = ByteBuffer.allocate(100);
+        instruction.writeTo(bytes);
+        bytes.flip();
+        assertEquals(EXPECTED, Charset.forName("UTF-8").decode(bytes).toString());
+
+    }
+
+    /**
+     * Test that serialization into a buffer which is too small fails
+     * without altering the buffer.
+     */
+    @Test
+    public void testOverflow() {
+
+        ByteBuffer bytes = ByteBuffer.allocate(EXPECTED.length());
+        bytes.put((byte) 'x');
+
+        try {
+            instruction.writeTo(bytes);
+            fail("Expected BufferOverflowException");
+        }
+        catch (BufferOverflowException e) {
+            assertEquals(1, bytes.position());
+        }
+
+    }
+
+    /**
+     * Test that parsed instructions reuse their original wire representation
+     * internally, while toCharArray() returns a copy which cannot alter the
+     * instruction.
+     */
+    @Test
+    public void testParsedInstruction() {
+
+        char[] buffer = "4.sync,3.123;".toCharArray();
+        GuacamoleInstruction parsed = new GuacamoleInstruction(buffer,
+                new int[] { 2, 9 }, new int[] { 4, 3 }, 2);
+
+        assertSame(buffer, parsed.getCharArray());
+
+        char[] copy = parsed.toCharArray();
+        assertNotSame(buffer, copy);
+        copy[2] = 'X';
+        assertEquals("4.sync,3.123;", parsed.toString());
+        assertEquals(13, parsed.getLength());
+
+    }
+
+    /**
+     * Test that instructions which are views over a region of a larger
+     * buffer serialize only that region.
+     *
+     * @throws IOException
+     *     If an error occurs while writing to the test Writer.
+     */
+    @Test
+    public void testBufferRegion() throws IOException {
+
+        char[] buffer = "3.foo;4.sync,3.\u20AC23;3.bar;".toCharArray();
+        GuacamoleInstruction parsed = new GuacamoleInstruction(buffer, 6, 13,
+                new int[] { 8, 15 }, new int[] { 4, 3 }, 2);
+
+        String expected = "4.sync,3.\u20AC23;";
+        assertEquals("sync", parsed.getOpcode());
+        assertEquals("\u20AC23", parsed.getArgs().get(0));
+        assertEquals(expected, parsed.toString());
+        assertEquals(expected, new String(parsed.toCharArray()));
+        assertEquals(13, parsed.getLength());
+
+        StringWriter writer = new StringWriter();
+        parsed.writeTo(writer);
+        assertEquals(expected, writer.toString());
+
+        CharBuffer chars = CharBuffer.allocate(100);
+        parsed.writeTo(chars);
+        chars.flip();
+        assertEquals(expected, chars.toString());
+
+        ByteBuffer bytes = ByteBuffer.allocate(100);
+        parsed.writeTo(bytes);
+        bytes.flip();
+        assertEquals(expected, Charset.forName("UTF-8").decode(bytes).toString());
+
+    }
+
+}
@@ -120,4 +120,71 @@ public class GuacamoleParserTest {
 
     }
 
+    /**
+     * Test of append method when data is provided in chunks which split
+     * elements, verifying that all provided data is consumed.
+     *
+     * @throws GuacamoleException If a parse error occurs while parsing the
+     *                            known-good test string.
+     */
+    @Test
+    public void testPartialElements() throws GuacamoleException {
+
+        // Test string
+        char buffer[] = "4.blob,1.0,12.ABCDEFGHIJKL;3.end,1.0;".toCharArray();
+
+        // Feed data three characters at a time
+        StringBuilder received = new StringBuilder();
+        for (int offset = 0; offset < buffer.length; offset += 3) {
+
+            int length = Math.min(3, buffer.length - offset);
+
+            // All data must be consumed unless an instruction is complete
+            int parsed = parser.append(buffer, offset, length);
+            if (parser.hasNext()) {
+                received.append(parser.next()).append('|');
+                parsed += parser.append(buffer, offset + parsed, length - parsed);
+            }
+
+            assertEquals(length, parsed);
+
+        }
+
+        assertEquals("4.blob,1.0,12.ABCDEFGHIJKL;|3.end,1.0;|", received.toString());
+
+    }
+
+    /**
+     * Test of a GuacamoleParser which reuses the same GuacamoleInstruction
+     * for each parsed instruction.
+     *
+     * @throws GuacamoleException If a parse error occurs while parsing the
+     *                            known-good test string.
+     */
+    @Test
+    public void testReuseInstruction() throws GuacamoleException {
+
+        GuacamoleParser reusingParser = new GuacamoleParser(true);
+
+        char first[] = "4.sync,3.123,1.X;".toCharArray();
+        assertEquals(first.length, reusingParser.append(first));
+        GuacamoleInstruction instruction = reusingParser.next();
+        assertEquals("sync", instruction.getOpcode());
+        assertEquals(2, instruction.getArgs().size());
+        assertEquals("123", instruction.getArgs().get(0));
+        String firstValue = instruction.getArgs().get(1);
+
+        char second[] = "4.sync,3.456;".toCharArray();
+        assertEquals(second.length, reusingParser.append(second));
+        assertSame(instruction, reusingParser.next());
+        assertEquals("sync", instruction.getOpcode());
+        assertEquals(1, instruction.getArgs().size());
+        assertEquals("456", instruction.getArgs().get(0));
+        assertEquals("4.sync,3.456;", instruction.toString());
+
+        // Previously-obtained values remain valid
+        assertEquals("X", firstValue);
+
+    }
+
 }
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests HTTPTunnelCodec, validating that UTF-8 data survives encoding and
+ * decoding, including characters split across reads.
+ */
+public class HTTPTunnelCodecTest {
+
+    /**
+     * Instructions containing multi-byte characters, including a character
+     * outside the Basic Multilingual Plane.
+     */
+    private static final String DATA =
+            "4.name,5.h\u00e9llo;4.text,3.\u65e5\u672c\u8a9e;3.emo,1.\ud83d\ude00;";
+
+    /**
+     * InputStream which returns at most one byte per read, such that every
+     * multi-byte character is split across reads.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+
+        /**
+         * Creates a new TrickleInputStream which reads the given bytes.
+         *
+         * @param data
+         *     The bytes to read.
+         */
+        public TrickleInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            return super.read(buffer, offset, Math.min(length, 1));
+        }
+
+    }
+
+    /**
+     * Decodes the entire contents of the given InputStream.
+     *
+     * @param codec
+     *     The codec to decode with.
+     *
+     * @param input
+     *     The InputStream to decode.
+     *
+     * @return
+     *     All decoded characters.
+     *
+     * @throws IOException
+     *     If the InputStream cannot be read.
+     */
+    private String decodeAll(HTTPTunnelCodec codec, InputStream input)
+            throws IOException {
+
+        StringBuilder decoded = new StringBuilder();
+        codec.resetDecoder();
+
+        int length;
+        while ((length = codec.decode(input)) != -1)
+            decoded.append(codec.getDecodedChars(), 0, length);
+
+        return decoded.toString();
+
+    }
+
+    /**
+     * Test that encoded data matches standard UTF-8 and decodes back to the
+     * original characters, reusing the same codec for each request.
+     *
+     * @throws IOException
+     *     If the data cannot be encoded or decoded.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+
+        HTTPTunnelCodec codec = new HTTPTunnelCodec();
+        byte[] expected = DATA.getBytes("UTF-8");
+
+        for (int i = 0; i < 2; i++) {
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            char[] chars = DATA.toCharArray();
+            codec.encode(chars, 0, chars.length, output);
+            assertArrayEquals(expected, output.toByteArray());
+
+            assertEquals(DATA, decodeAll(codec, new ByteArrayInputStream(expected)));
+            assertEquals(DATA, decodeAll(codec, new TrickleInputStream(expected)));
+
+        }
+
+    }
+
+}
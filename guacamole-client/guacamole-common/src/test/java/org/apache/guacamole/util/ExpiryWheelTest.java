@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests ExpiryWheel, validating that timeouts expire only once untouched for
+ * their full duration, and that cancelled or renewed timeouts behave
+ * accordingly.
+ */
+public class ExpiryWheelTest {
+
+    /**
+     * The wheel being tested.
+     */
+    private ExpiryWheel wheel;
+
+    /**
+     * Creates a wheel with a short tick duration for each test.
+     */
+    @Before
+    public void setUp() {
+        wheel = new ExpiryWheel("test-expiry", 10);
+    }
+
+    /**
+     * Shuts down the wheel created for each test.
+     */
+    @After
+    public void tearDown() {
+        wheel.shutdown();
+    }
+
+    /**
+     * Test that an untouched timeout expires, and that touching a timeout
+     * postpones its expiry.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted.
+     */
+    @Test
+    public void testTouch() throws InterruptedException {
+
+        final CountDownLatch expired = new CountDownLatch(1);
+        ExpiryWheel.Timeout timeout = wheel.schedule(500, new ExpiryWheel.Listener() {
+
+            @Override
+            public boolean expired() {
+                expired.countDown();
+                return true;
+            }
+
+        });
+
+        // Repeatedly touching must prevent expiry
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(50);
+            timeout.touch();
+        }
+
+        assertEquals(1, expired.getCount());
+
+        // Once no longer touched, the timeout must expire
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(0, wheel.getSize());
+        assertEquals(1, wheel.getExpiredCount());
+
+    }
+
+    /**
+     * Test that cancelled timeouts never expire.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted.
+     */
+    @Test
+    public void testCancel() throws InterruptedException {
+
+        final AtomicInteger expired = new AtomicInteger();
+        ExpiryWheel.Timeout timeout = wheel.schedule(50, new ExpiryWheel.Listener() {
+
+            @Override
+            public boolean expired() {
+                expired.incrementAndGet();
+                return true;
+            }
+
+        });
+
+        assertEquals(1, wheel.getSize());
+        timeout.cancel();
+        assertEquals(0, wheel.getSize());
+
+        Thread.sleep(200);
+        assertEquals(0, expired.get());
+
+    }
+
+    /**
+     * Test that a timeout whose listener declines expiry remains scheduled
+     * and expires again later.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted.
+     */
+    @Test
+    public void testRenew() throws InterruptedException {
+
+        final CountDownLatch expired = new CountDownLatch(3);
+        wheel.schedule(20, new ExpiryWheel.Listener() {
+
+            @Override
+            public boolean expired() {
+                expired.countDown();
+                return expired.getCount() == 0;
+            }
+
+        });
+
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(0, wheel.getSize());
+        assertEquals(2, wheel.getRenewedCount());
+        assertEquals(1, wheel.getExpiredCount());
+
+    }
+
+    /**
+     * Test that timeouts spanning multiple levels of the wheel expire in
+     * deadline order.
+     *
+     * @throws InterruptedException
+     *     If the test is interrupted.
+     */
+    @Test
+    public void testCascade() throws InterruptedException {
+
+        final AtomicInteger order = new AtomicInteger();
+        final CountDownLatch expired = new CountDownLatch(2);
+        final int[] positions = new int[2];
+
+        for (int i = 0; i < 2; i++) {
+            final int index = i;
+            wheel.schedule(i == 0 ? 300 : 900, new ExpiryWheel.Listener() {
+
+                @Override
+                public boolean expired() {
+                    positions[index] = order.getAndIncrement();
+                    expired.countDown();
+                    return true;
+                }
+
+            });
+        }
+
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertEquals(0, positions[0]);
+        assertEquals(1, positions[1]);
+        assertTrue(wheel.getPeakTickWork() > 0);
+
+    }
+
+}
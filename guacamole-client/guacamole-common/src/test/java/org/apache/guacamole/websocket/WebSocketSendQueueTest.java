@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.websocket;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedList;
+import java.util.Queue;
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import org.apache.guacamole.GuacamoleClientTimeoutException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.protocol.GuacamoleStatus;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests WebSocketSendQueue, validating that reading is paused and resumed at
+ * the configured watermarks, and that slow consumers are handled according
+ * to policy.
+ */
+public class WebSocketSendQueueTest {
+
+    /**
+     * Fake WebSocket session which records all messages sent, completing
+     * each send only when explicitly requested.
+     */
+    private static class FakeSession implements InvocationHandler {
+
+        /**
+         * Handlers of all sends not yet completed, in order.
+         */
+        private final Queue<SendHandler> pending = new LinkedList<SendHandler>();
+
+        /**
+         * The reason the session was closed, or null if still open.
+         */
+        private CloseReason closeReason;
+
+        /**
+         * Proxy implementing RemoteEndpoint.Async.
+         */
+        private final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { RemoteEndpoint.Async.class }, this);
+
+        /**
+         * Proxy implementing Session.
+         */
+        private final Session session = (Session) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { Session.class }, this);
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method,
+                Object[] args) {
+
+            String name = method.getName();
+
+            if (name.equals("getAsyncRemote"))
+                return remote;
+
+            if (name.equals("sendText") && args.length == 2)
+                pending.add((SendHandler) args[1]);
+
+            else if (name.equals("close") && args != null && args.length == 1)
+                closeReason = (CloseReason) args[0];
+
+            return null;
+
+        }
+
+        /**
+         * Completes the oldest pending send successfully.
+         */
+        public void complete() {
+
+            SendHandler handler;
+            synchronized (this) {
+                handler = pending.remove();
+            }
+
+            handler.onResult(new SendResult());
+
+        }
+
+        /**
+         * Returns the Guacamole status code sent when the session was
+         * closed.
+         *
+         * @return
+         *     The Guacamole status code sent, or -1 if the session is still
+         *     open.
+         */
+        public synchronized int getCloseStatus() {
+            if (closeReason == null)
+                return -1;
+            return Integer.parseInt(closeReason.getReasonPhrase());
+        }
+
+    }
+
+    /**
+     * WebSocketSendQueue which counts the number of times reading has been
+     * paused and resumed.
+     */
+    private static class CountingQueue extends WebSocketSendQueue {
+
+        /**
+         * The number of times pauseReading() has been invoked.
+         */
+        private int pauses = 0;
+
+        /**
+         * The number of times resumeReading() has been invoked.
+         */
+        private int resumes = 0;
+
+        /**
+         * Creates a new CountingQueue which sends to the given session.
+         *
+         * @param session
+         *     The session to send to.
+         *
+         * @param policy
+         *     The policy dictating the limits of the queue.
+         */
+        public CountingQueue(Session session, WebSocketSendPolicy policy) {
+            super(session, policy);
+        }
+
+        @Override
+        protected void pauseReading() {
+            pauses++;
+        }
+
+        @Override
+        protected void resumeReading() {
+            resumes++;
+        }
+
+    }
+
+    /**
+     * Test that reading is paused at the high watermark and resumed at the
+     * low watermark.
+     *
+     * @throws IOException
+     *     If a message cannot be queued.
+     */
+    @Test
+    public void testWatermarks() throws IOException {
+
+        FakeSession fake = new FakeSession();
+        WebSocketSendPolicy policy = new WebSocketSendPolicy(10, 20, 0,
+                WebSocketSendPolicy.SlowConsumerAction.DEGRADE);
+        CountingQueue queue = new CountingQueue(fake.session, policy);
+
+        // First message is sent immediately
+        queue.offer("0123456789ABCDE");
+        assertFalse(queue.isPaused());
+
+        // Exceeding the high watermark pauses reading
+        queue.offer("0123456789");
+        assertEquals(25, queue.getQueuedLength());
+        assertTrue(queue.isPaused());
+        assertEquals(1, queue.pauses);
+
+        // Draining to the low watermark resumes reading
+        fake.complete();
+        assertEquals(10, queue.getQueuedLength());
+        assertFalse(queue.isPaused());
+        assertEquals(1, queue.resumes);
+
+        fake.complete();
+        assertEquals(0, queue.getQueuedLength());
+
+        assertEquals(2, policy.getSentMessages());
+        assertEquals(25, policy.getSentCharacters());
+        assertEquals(25, policy.getPeakQueuedCharacters());
+        assertEquals(1, policy.getPauseCount());
+
+    }
+
+    /**
+     * Test that the connection is closed only once all queued messages have
+     * been sent.
+     *
+     * @throws IOException
+     *     If a message cannot be queued.
+     */
+    @Test
+    public void testCloseAfterSend() throws IOException {
+
+        FakeSession fake = new FakeSession();
+        WebSocketSendQueue queue = new WebSocketSendQueue(fake.session,
+                WebSocketSendPolicy.getDefault());
+
+        queue.offer("message");
+        queue.close(GuacamoleStatus.SUCCESS);
+        assertEquals(-1, fake.getCloseStatus());
+
+        // Further messages are rejected
+        try {
+            queue.offer("rejected");
+            fail("Message queued after close.");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+
+        fake.complete();
+        assertEquals(GuacamoleStatus.SUCCESS.getGuacamoleStatusCode(),
+                fake.getCloseStatus());
+
+    }
+
+    /**
+     * Test that a thread blocked sending to a slow consumer is released, and
+     * the consumer disconnected, if the policy requires.
+     *
+     * @throws Exception
+     *     If an unexpected error occurs.
+     */
+    @Test
+    public void testSlowConsumerDisconnect() throws Exception {
+
+        FakeSession fake = new FakeSession();
+        WebSocketSendPolicy policy = new WebSocketSendPolicy(0, 4, 100,
+                WebSocketSendPolicy.SlowConsumerAction.DISCONNECT);
+        WebSocketSendQueue queue = new WebSocketSendQueue(fake.session, policy);
+
+        // Sending beyond the high watermark blocks until disconnected
+        long start = System.currentTimeMillis();
+        try {
+            queue.send("message");
+            fail("Slow consumer was not disconnected.");
+        }
+        catch (GuacamoleClientTimeoutException e) {
+            // Expected
+        }
+
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(GuacamoleStatus.CLIENT_TIMEOUT.getGuacamoleStatusCode(),
+                fake.getCloseStatus());
+        assertEquals(1, policy.getSlowConsumerCount());
+        assertEquals(1, policy.getDisconnectCount());
+
+        // The late completion of the outstanding send is harmless
+        fake.complete();
+        assertEquals(0, queue.getQueuedLength());
+
+    }
+
+    /**
+     * Test that a slow consumer remains connected, with reading paused, if
+     * the policy requires degradation rather than disconnection.
+     *
+     * @throws Exception
+     *     If an unexpected error occurs.
+     */
+    @Test
+    public void testSlowConsumerDegrade() throws Exception {
+
+        final FakeSession fake = new FakeSession();
+        WebSocketSendPolicy policy = new WebSocketSendPolicy(0, 4, 50,
+                WebSocketSendPolicy.SlowConsumerAction.DEGRADE);
+        final WebSocketSendQueue queue = new WebSocketSendQueue(fake.session, policy);
+
+        // Allow the client to catch up only after being detected as slow
+        Thread client = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                fake.complete();
+            }
+
+        };
+
+        client.start();
+        queue.send("message");
+        client.join();
+
+        assertEquals(-1, fake.getCloseStatus());
+        assertEquals(1, policy.getSlowConsumerCount());
+        assertEquals(0, policy.getDisconnectCount());
+        assertFalse(queue.isPaused());
+
+    }
+
+}
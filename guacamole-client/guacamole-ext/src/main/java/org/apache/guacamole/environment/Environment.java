@@ -23,6 +23,7 @@ import java.io.File;
 import java.util.Map;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.properties.BooleanGuacamoleProperty;
+import org.apache.guacamole.properties.FileGuacamoleProperty;
 import org.apache.guacamole.properties.GuacamoleProperty;
 import org.apache.guacamole.properties.IntegerGuacamoleProperty;
 import org.apache.guacamole.properties.StringGuacamoleProperty;
@@ -67,6 +68,111 @@ public interface Environment {
 
     };
 
+    /**
+     * The trust store containing the certificates trusted when connecting to
+     * guacd via SSL/TLS, typically only the certificate of guacd itself. If
+     * omitted, the certificates trusted by the JVM by default are used.
+     */
+    public static final FileGuacamoleProperty GUACD_SSL_TRUSTSTORE = new FileGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-ssl-truststore"; }
+
+    };
+
+    /**
+     * The password of the trust store specified by guacd-ssl-truststore, if
+     * any.
+     */
+    public static final StringGuacamoleProperty GUACD_SSL_TRUSTSTORE_PASSWORD = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-ssl-truststore-password"; }
+
+    };
+
+    /**
+     * The type of the trust store specified by guacd-ssl-truststore, such as
+     * "JKS" or "PKCS12". By default, the default type of the JVM is used.
+     */
+    public static final StringGuacamoleProperty GUACD_SSL_TRUSTSTORE_TYPE = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-ssl-truststore-type"; }
+
+    };
+
+    /**
+     * The maximum number of SSL/TLS sessions with guacd to cache for
+     * resumption by later connections, or zero for no limit.
+     */
+    public static final IntegerGuacamoleProperty GUACD_SSL_SESSION_CACHE_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-ssl-session-cache-size"; }
+
+    };
+
+    /**
+     * The number of seconds that a cached SSL/TLS session with guacd may be
+     * resumed, or zero for no limit.
+     */
+    public static final IntegerGuacamoleProperty GUACD_SSL_SESSION_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-ssl-session-timeout"; }
+
+    };
+
+    /**
+     * The number of established connections to each guacd instance to keep
+     * ready for use by new tunnels. If zero, connections are established
+     * only as needed.
+     */
+    public static final IntegerGuacamoleProperty GUACD_POOL_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-pool-size"; }
+
+    };
+
+    /**
+     * Comma-separated list of all guacd instances which may be used, each
+     * given as "hostname:port" or "hostname:port/weight". If omitted, only
+     * the guacd at guacd-hostname and guacd-port is used.
+     */
+    public static final StringGuacamoleProperty GUACD_BACKENDS = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-backends"; }
+
+    };
+
+    /**
+     * The method used to select among the guacd instances listed within
+     * guacd-backends: "least-active" to use the instance with the fewest
+     * active tunnels, or "weighted" to balance active tunnels according to
+     * the weight of each instance. By default, "least-active" is used.
+     */
+    public static final StringGuacamoleProperty GUACD_BACKEND_SELECTION = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-backend-selection"; }
+
+    };
+
+    /**
+     * Comma-separated list of "protocol=hostname:port" pairs, each directing
+     * connections using the given protocol to the given guacd instance
+     * within guacd-backends while that instance is healthy.
+     */
+    public static final StringGuacamoleProperty GUACD_PROTOCOL_AFFINITY = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-protocol-affinity"; }
+
+    };
+
     /**
      * Returns the Guacamole home directory as determined when this Environment
      * object was created. The Guacamole home directory is found by checking, in
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net.guacd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.GuacdSocketPool;
+import org.apache.guacamole.net.TimedGuacamoleSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single guacd instance which may be selected by GuacdBackendRegistry,
+ * tracking the number of tunnels currently using that instance and whether
+ * the instance is healthy. A backend which fails MAX_FAILURES consecutive
+ * connection attempts is ejected for EJECTION_TIME milliseconds, after which
+ * a single further failure ejects it again.
+ */
+public class GuacdBackend {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacdBackend.class);
+
+    /**
+     * The number of consecutive failed connection attempts after which a
+     * backend is ejected.
+     */
+    private static final int MAX_FAILURES = 3;
+
+    /**
+     * The number of milliseconds that an ejected backend is not selected.
+     */
+    private static final long EJECTION_TIME = 30000;
+
+    /**
+     * The number of milliseconds to wait when probing whether a backend
+     * accepts connections.
+     */
+    private static final int PROBE_TIMEOUT = 2000;
+
+    /**
+     * The hostname of this guacd.
+     */
+    private final String hostname;
+
+    /**
+     * The port of this guacd.
+     */
+    private final int port;
+
+    /**
+     * The relative share of tunnels this guacd should receive when
+     * selecting backends by weight.
+     */
+    private final int weight;
+
+    /**
+     * The pool of established connections to this guacd.
+     */
+    private final GuacdSocketPool pool;
+
+    /**
+     * The number of tunnels currently using this guacd.
+     */
+    private final AtomicInteger activeTunnels = new AtomicInteger();
+
+    /**
+     * The number of consecutive failed connection attempts.
+     */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * The time until which this backend is ejected, in milliseconds, or zero
+     * if this backend is not ejected.
+     */
+    private volatile long ejectedUntil = 0;
+
+    /**
+     * Creates a new GuacdBackend representing the guacd instance at the
+     * given hostname and port.
+     *
+     * @param hostname
+     *     The hostname of the guacd instance.
+     *
+     * @param port
+     *     The port of the guacd instance.
+     *
+     * @param ssl
+     *     Whether the guacd instance requires SSL/TLS.
+     *
+     * @param weight
+     *     The relative share of tunnels this guacd should receive when
+     *     selecting backends by weight. Must be positive.
+     */
+    public GuacdBackend(String hostname, int port, boolean ssl, int weight) {
+        this.hostname = hostname;
+        this.port = port;
+        this.weight = weight;
+        this.pool = GuacdSocketPool.getInstance(hostname, port, ssl);
+    }
+
+    /**
+     * Returns the hostname of this guacd.
+     *
+     * @return
+     *     The hostname of this guacd.
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * Returns the port of this guacd.
+     *
+     * @return
+     *     The port of this guacd.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the relative share of tunnels this guacd should receive when
+     * selecting backends by weight.
+     *
+     * @return
+     *     The weight of this guacd.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns the pool of established connections to this guacd.
+     *
+     * @return
+     *     The pool of connections to this guacd.
+     */
+    public GuacdSocketPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the number of tunnels currently using this guacd.
+     *
+     * @return
+     *     The number of tunnels currently using this guacd.
+     */
+    public int getActiveTunnels() {
+        return activeTunnels.get();
+    }
+
+    /**
+     * Returns whether this backend may currently be selected, being not
+     * ejected due to failures.
+     *
+     * @return
+     *     true if this backend is not ejected, false otherwise.
+     */
+    public boolean isAvailable() {
+        return System.currentTimeMillis() >= ejectedUntil;
+    }
+
+    /**
+     * Records that a tunnel has begun using this guacd.
+     */
+    void tunnelOpened() {
+        activeTunnels.incrementAndGet();
+    }
+
+    /**
+     * Records that a tunnel using this guacd has closed.
+     */
+    void tunnelClosed() {
+        activeTunnels.decrementAndGet();
+    }
+
+    /**
+     * Records that a connection to this guacd has succeeded, readmitting
+     * this backend if ejected.
+     */
+    void recordSuccess() {
+
+        failures.set(0);
+
+        if (ejectedUntil != 0) {
+            ejectedUntil = 0;
+            logger.info("guacd at {} has recovered.", this);
+        }
+
+    }
+
+    /**
+     * Records that a connection to this guacd has failed, ejecting this
+     * backend if too many consecutive connections have failed.
+     */
+    void recordFailure() {
+        if (failures.incrementAndGet() >= MAX_FAILURES)
+            eject();
+    }
+
+    /**
+     * Ejects this backend, such that it will not be selected for
+     * EJECTION_TIME milliseconds unless it is found to have recovered.
+     */
+    void eject() {
+
+        if (isAvailable())
+            logger.warn("guacd at {} is failing and will not be used for "
+                    + "{} seconds.", this, EJECTION_TIME / 1000);
+
+        ejectedUntil = System.currentTimeMillis() + EJECTION_TIME;
+
+    }
+
+    /**
+     * Returns an established connection to this guacd, recording a failure
+     * if the connection cannot be established. As the connection is not
+     * usable until the Guacamole protocol handshake has also succeeded,
+     * success must be recorded by the caller once that handshake completes.
+     *
+     * @return
+     *     An established connection to this guacd.
+     *
+     * @throws GuacamoleException
+     *     If the connection cannot be established.
+     */
+    TimedGuacamoleSocket acquire() throws GuacamoleException {
+
+        try {
+            return pool.acquire();
+        }
+        catch (GuacamoleException e) {
+            recordFailure();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Checks whether this guacd currently accepts TCP connections. The
+     * probe connection is closed immediately.
+     *
+     * @return
+     *     true if this guacd accepted a connection, false otherwise.
+     */
+    boolean probe() {
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(hostname, port), PROBE_TIMEOUT);
+            return true;
+        }
+        catch (IOException e) {
+            logger.debug("Health check of guacd at {} failed.", this, e);
+            return false;
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                logger.debug("Unable to close health check connection.", e);
+            }
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return hostname + ":" + port;
+    }
+
+}
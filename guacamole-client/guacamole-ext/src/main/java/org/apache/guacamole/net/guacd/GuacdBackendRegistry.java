@@ -0,0 +1,730 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net.guacd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.net.GuacdSSLContext;
+import org.apache.guacamole.net.TimedGuacamoleSocket;
+import org.apache.guacamole.protocol.ConfiguredGuacamoleSocket;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of all guacd instances configured within guacamole.properties,
+ * selecting the instance used by each new connection. Connections are
+ * directed to the instance with the fewest active tunnels (optionally
+ * relative to the weight of each instance), unless the protocol or the
+ * "guacd-backend" parameter of the connection specifies a preferred
+ * instance. Users joining an existing connection are always directed to the
+ * instance hosting that connection.
+ *
+ * Failing instances are ejected both passively, as connection attempts or
+ * protocol handshakes fail, and actively, by periodically checking that each
+ * instance accepts connections. If connecting to the selected instance or
+ * the handshake fails, the next best instance is tried.
+ */
+public class GuacdBackendRegistry {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacdBackendRegistry.class);
+
+    /**
+     * The name of the connection parameter which, if present, specifies the
+     * "hostname:port" of the guacd instance preferred by that connection.
+     */
+    public static final String AFFINITY_PARAMETER = "guacd-backend";
+
+    /**
+     * The hostname to use when connecting to guacd if no hostname is provided
+     * within guacamole.properties.
+     */
+    private static final String DEFAULT_GUACD_HOSTNAME = "localhost";
+
+    /**
+     * The port to use when connecting to guacd if no port is provided within
+     * guacamole.properties.
+     */
+    private static final int DEFAULT_GUACD_PORT = 4822;
+
+    /**
+     * The maximum number of SSL/TLS sessions with guacd to cache if no limit
+     * is provided within guacamole.properties.
+     */
+    private static final int DEFAULT_SSL_SESSION_CACHE_SIZE = 100;
+
+    /**
+     * The number of seconds that a cached SSL/TLS session with guacd may be
+     * resumed if no timeout is provided within guacamole.properties.
+     */
+    private static final int DEFAULT_SSL_SESSION_TIMEOUT = 3600;
+
+    /**
+     * The number of milliseconds between active health checks of each
+     * backend.
+     */
+    private static final long HEALTH_CHECK_INTERVAL = 10000;
+
+    /**
+     * The method used to select among healthy backends.
+     */
+    public enum Selection {
+
+        /**
+         * Select the backend having the fewest active tunnels.
+         */
+        LEAST_ACTIVE,
+
+        /**
+         * Select the backend having the fewest active tunnels relative to
+         * its weight.
+         */
+        WEIGHTED
+
+    }
+
+    /**
+     * The registry shared by all callers of getInstance(), or null if not
+     * yet created.
+     */
+    private static GuacdBackendRegistry instance;
+
+    /**
+     * All backends, in the order configured.
+     */
+    private final List<GuacdBackend> backends;
+
+    /**
+     * All backends, indexed by "hostname:port".
+     */
+    private final Map<String, GuacdBackend> backendsByAddress =
+            new HashMap<String, GuacdBackend>();
+
+    /**
+     * The method used to select among healthy backends.
+     */
+    private final Selection selection;
+
+    /**
+     * The backend preferred by connections using each protocol, indexed by
+     * protocol name.
+     */
+    private final Map<String, GuacdBackend> protocolAffinity;
+
+    /**
+     * The backend hosting each active connection, indexed by connection ID.
+     */
+    private final ConcurrentMap<String, GuacdBackend> connections =
+            new ConcurrentHashMap<String, GuacdBackend>();
+
+    /**
+     * Counter rotating the backend considered first, such that backends
+     * with equal load receive connections in turn.
+     */
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /**
+     * Executor which runs the active health checks, or null if health
+     * checks are not needed as there is only one backend.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Task which checks whether each backend accepts connections, ejecting
+     * those that do not and readmitting those that have recovered.
+     */
+    private class HealthCheckTask implements Runnable {
+
+        @Override
+        public void run() {
+            for (GuacdBackend backend : backends) {
+                if (!backend.probe())
+                    backend.eject();
+                else if (!backend.isAvailable())
+                    backend.recordSuccess();
+            }
+        }
+
+    }
+
+    /**
+     * Creates a new GuacdBackendRegistry which selects among the given
+     * backends.
+     *
+     * @param backends
+     *     All backends which may be selected. At least one backend must be
+     *     given.
+     *
+     * @param selection
+     *     The method used to select among healthy backends.
+     *
+     * @param protocolAffinity
+     *     The backend preferred by connections using each protocol, indexed
+     *     by protocol name.
+     */
+    public GuacdBackendRegistry(List<GuacdBackend> backends,
+            Selection selection, Map<String, GuacdBackend> protocolAffinity) {
+
+        this.backends = Collections.unmodifiableList(new ArrayList<GuacdBackend>(backends));
+        this.selection = selection;
+        this.protocolAffinity = new HashMap<String, GuacdBackend>(protocolAffinity);
+
+        for (GuacdBackend backend : backends)
+            backendsByAddress.put(backend.toString(), backend);
+
+        // Health checks are only useful if there is an alternative
+        if (backends.size() > 1) {
+
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "guacd-health-check");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+
+            executor.scheduleWithFixedDelay(new HealthCheckTask(),
+                    HEALTH_CHECK_INTERVAL, HEALTH_CHECK_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+
+        }
+        else
+            executor = null;
+
+    }
+
+    /**
+     * Returns the registry shared by all callers, creating that registry
+     * from the guacd-related properties of the given environment if
+     * necessary. The properties are read only once.
+     *
+     * @param environment
+     *     The environment to read guacd-related properties from if the
+     *     registry has not yet been created.
+     *
+     * @return
+     *     The shared registry.
+     *
+     * @throws GuacamoleException
+     *     If the guacd-related properties cannot be read or are invalid.
+     */
+    public static synchronized GuacdBackendRegistry getInstance(Environment environment)
+            throws GuacamoleException {
+
+        if (instance == null)
+            instance = fromEnvironment(environment);
+
+        return instance;
+
+    }
+
+    /**
+     * Returns the registry shared by all callers, if it has already been
+     * created through getInstance(). Unlike getInstance(), this function
+     * never creates the registry, and thus never reads guacamole.properties
+     * or establishes connection pools.
+     *
+     * @return
+     *     The shared registry, or null if it has not yet been created.
+     */
+    public static synchronized GuacdBackendRegistry getExistingInstance() {
+        return instance;
+    }
+
+    /**
+     * Creates a new registry from the guacd-related properties of the given
+     * environment.
+     *
+     * @param environment
+     *     The environment to read guacd-related properties from.
+     *
+     * @return
+     *     A new registry configured by the given environment.
+     *
+     * @throws GuacamoleException
+     *     If the guacd-related properties cannot be read or are invalid.
+     */
+    private static GuacdBackendRegistry fromEnvironment(Environment environment)
+            throws GuacamoleException {
+
+        boolean ssl = environment.getProperty(Environment.GUACD_SSL, false);
+        int poolSize = environment.getProperty(Environment.GUACD_POOL_SIZE, 0);
+
+        // Share a single SSL context, such that sessions may be resumed
+        if (ssl)
+            GuacdSSLContext.setDefault(GuacdSSLContext.create(
+                environment.getProperty(Environment.GUACD_SSL_TRUSTSTORE),
+                environment.getProperty(Environment.GUACD_SSL_TRUSTSTORE_PASSWORD),
+                environment.getProperty(Environment.GUACD_SSL_TRUSTSTORE_TYPE),
+                environment.getProperty(Environment.GUACD_SSL_SESSION_CACHE_SIZE, DEFAULT_SSL_SESSION_CACHE_SIZE),
+                environment.getProperty(Environment.GUACD_SSL_SESSION_TIMEOUT, DEFAULT_SSL_SESSION_TIMEOUT)
+            ));
+
+        // Use the single guacd-hostname/guacd-port unless a list is given
+        List<GuacdBackend> backends = new ArrayList<GuacdBackend>();
+        String backendList = environment.getProperty(Environment.GUACD_BACKENDS);
+        if (backendList == null)
+            backends.add(new GuacdBackend(
+                environment.getProperty(Environment.GUACD_HOSTNAME, DEFAULT_GUACD_HOSTNAME),
+                environment.getProperty(Environment.GUACD_PORT,     DEFAULT_GUACD_PORT),
+                ssl, 1));
+
+        else {
+            for (String value : backendList.split(",")) {
+                if (!value.trim().isEmpty())
+                    backends.add(parseBackend(value.trim(), ssl));
+            }
+        }
+
+        if (backends.isEmpty())
+            throw new GuacamoleServerException("No guacd instances are "
+                    + "listed within \"" + Environment.GUACD_BACKENDS.getName() + "\".");
+
+        Map<String, GuacdBackend> byAddress = new HashMap<String, GuacdBackend>();
+        for (GuacdBackend backend : backends) {
+            backend.getPool().setSize(poolSize);
+            byAddress.put(backend.toString(), backend);
+        }
+
+        // Parse selection method
+        Selection selection = Selection.LEAST_ACTIVE;
+        String selectionName = environment.getProperty(Environment.GUACD_BACKEND_SELECTION);
+        if ("weighted".equals(selectionName))
+            selection = Selection.WEIGHTED;
+        else if (selectionName != null && !"least-active".equals(selectionName))
+            throw new GuacamoleServerException("Invalid guacd backend "
+                    + "selection method \"" + selectionName + "\".");
+
+        // Parse protocol affinity
+        Map<String, GuacdBackend> protocolAffinity = new HashMap<String, GuacdBackend>();
+        String affinityList = environment.getProperty(Environment.GUACD_PROTOCOL_AFFINITY);
+        if (affinityList != null) {
+            for (String value : affinityList.split(",")) {
+
+                if (value.trim().isEmpty())
+                    continue;
+
+                String[] pair = value.split("=", 2);
+                GuacdBackend backend = pair.length == 2 ? byAddress.get(pair[1].trim()) : null;
+                if (backend == null)
+                    throw new GuacamoleServerException("Invalid guacd protocol "
+                            + "affinity \"" + value.trim() + "\". Each protocol "
+                            + "must be paired with a guacd instance listed "
+                            + "within \"" + Environment.GUACD_BACKENDS.getName() + "\".");
+
+                protocolAffinity.put(pair[0].trim(), backend);
+
+            }
+        }
+
+        if (backends.size() > 1)
+            logger.info("Connections will be distributed among guacd at {}.", backends);
+
+        return new GuacdBackendRegistry(backends, selection, protocolAffinity);
+
+    }
+
+    /**
+     * Parses a single guacd instance given as "hostname:port" or
+     * "hostname:port/weight".
+     *
+     * @param value
+     *     The value to parse.
+     *
+     * @param ssl
+     *     Whether the guacd instance requires SSL/TLS.
+     *
+     * @return
+     *     The parsed backend.
+     *
+     * @throws GuacamoleException
+     *     If the given value is not a valid guacd instance.
+     */
+    private static GuacdBackend parseBackend(String value, boolean ssl)
+            throws GuacamoleException {
+
+        try {
+
+            // Parse weight, if any
+            String address = value;
+            int weight = 1;
+            int slash = address.indexOf('/');
+            if (slash != -1) {
+                weight = Integer.parseInt(address.substring(slash + 1).trim());
+                address = address.substring(0, slash).trim();
+            }
+
+            // Parse hostname and port, if any
+            String hostname = address;
+            int port = DEFAULT_GUACD_PORT;
+            int colon = address.lastIndexOf(':');
+            if (colon != -1) {
+                hostname = address.substring(0, colon);
+                port = Integer.parseInt(address.substring(colon + 1));
+            }
+
+            if (hostname.isEmpty() || weight <= 0)
+                throw new GuacamoleServerException("Invalid guacd instance \"" + value + "\".");
+
+            return new GuacdBackend(hostname, port, ssl, weight);
+
+        }
+        catch (NumberFormatException e) {
+            throw new GuacamoleServerException("Invalid guacd instance \"" + value + "\".", e);
+        }
+
+    }
+
+    /**
+     * Returns all backends, in the order configured.
+     *
+     * @return
+     *     An unmodifiable list of all backends.
+     */
+    public List<GuacdBackend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * Returns the backend preferred by the given configuration, if any, due
+     * to its "guacd-backend" parameter or its protocol.
+     *
+     * @param config
+     *     The configuration of the connection being established, or null if
+     *     not yet known.
+     *
+     * @return
+     *     The backend preferred by the given configuration, or null if no
+     *     backend is preferred.
+     */
+    private GuacdBackend getAffinity(GuacamoleConfiguration config) {
+
+        if (config == null)
+            return null;
+
+        // Prefer backend specified by the connection itself
+        String address = config.getParameter(AFFINITY_PARAMETER);
+        if (address != null) {
+
+            GuacdBackend backend = backendsByAddress.get(address);
+            if (backend != null)
+                return backend;
+
+            logger.warn("Ignoring unknown guacd instance \"{}\" requested "
+                    + "by connection.", address);
+
+        }
+
+        // Otherwise, prefer backend associated with protocol
+        String protocol = config.getProtocol();
+        if (protocol != null)
+            return protocolAffinity.get(protocol);
+
+        return null;
+
+    }
+
+    /**
+     * Compares the load of the given backends according to the configured
+     * selection method.
+     *
+     * @param a
+     *     The first backend to compare.
+     *
+     * @param b
+     *     The second backend to compare.
+     *
+     * @return
+     *     A negative value if the first backend is less loaded than the
+     *     second, a positive value if more loaded, or zero if equally loaded.
+     */
+    private int compareLoad(GuacdBackend a, GuacdBackend b) {
+
+        // Weighted selection compares (active + 1) / weight, such that
+        // heavier backends win among idle backends
+        if (selection == Selection.WEIGHTED) {
+            long loadA = (long) (a.getActiveTunnels() + 1) * b.getWeight();
+            long loadB = (long) (b.getActiveTunnels() + 1) * a.getWeight();
+            return loadA < loadB ? -1 : (loadA == loadB ? 0 : 1);
+        }
+
+        return a.getActiveTunnels() - b.getActiveTunnels();
+
+    }
+
+    /**
+     * Selects the backend which should host a new connection having the
+     * given configuration, excluding the given backends. Ejected backends are
+     * selected only if no other backend remains.
+     *
+     * @param config
+     *     The configuration of the connection being established, or null if
+     *     not yet known.
+     *
+     * @param excluded
+     *     The backends which must not be selected.
+     *
+     * @return
+     *     The selected backend, or null if all backends are excluded.
+     */
+    GuacdBackend select(GuacamoleConfiguration config, Set<GuacdBackend> excluded) {
+
+        // Use preferred backend while healthy
+        GuacdBackend preferred = getAffinity(config);
+        if (preferred != null && preferred.isAvailable() && !excluded.contains(preferred))
+            return preferred;
+
+        GuacdBackend best = null;
+        boolean bestAvailable = false;
+
+        // Find least loaded backend, starting at a rotating offset
+        int count = backends.size();
+        int start = (rotation.getAndIncrement() & Integer.MAX_VALUE) % count;
+        for (int i = 0; i < count; i++) {
+
+            GuacdBackend backend = backends.get((start + i) % count);
+            if (excluded.contains(backend))
+                continue;
+
+            boolean available = backend.isAvailable();
+            if (best == null || (available && !bestAvailable)
+                    || (available == bestAvailable && compareLoad(backend, best) < 0)) {
+                best = backend;
+                bestAvailable = available;
+            }
+
+        }
+
+        return best;
+
+    }
+
+    /**
+     * Selects the backend which should host a new connection having the
+     * given configuration.
+     *
+     * @param config
+     *     The configuration of the connection being established, or null if
+     *     not yet known.
+     *
+     * @return
+     *     The selected backend.
+     */
+    public GuacdBackend select(GuacamoleConfiguration config) {
+        return select(config, Collections.<GuacdBackend>emptySet());
+    }
+
+    /**
+     * Starts establishing a connection to the backend most likely to be
+     * selected next, allowing the caller to perform other work while the
+     * connection is established.
+     */
+    public void prefetch() {
+        select(null).getPool().prefetch();
+    }
+
+    /**
+     * Connects to the backend selected for the given configuration and
+     * performs the Guacamole protocol handshake. If either connecting to the
+     * selected backend or the handshake fails, each remaining backend is
+     * tried in turn.
+     *
+     * @param config
+     *     The configuration of the connection to establish.
+     *
+     * @param info
+     *     Information describing the Guacamole client connecting.
+     *
+     * @param socketClosedTask
+     *     The task to run when the returned socket is closed, or null if no
+     *     task should be run. This task will NOT be run if the connection
+     *     cannot be established.
+     *
+     * @return
+     *     A new socket, connected to guacd and configured.
+     *
+     * @throws GuacamoleException
+     *     If the connection cannot be established through any backend, or
+     *     if the handshake with the backend hosting the joined connection
+     *     fails.
+     */
+    public ConfiguredGuacamoleSocket connect(GuacamoleConfiguration config,
+            GuacamoleClientInformation info, Runnable socketClosedTask)
+            throws GuacamoleException {
+
+        // Joining users must reach the backend hosting the joined connection
+        String connectionID = config.getConnectionID();
+        if (connectionID != null) {
+            GuacdBackend backend = connections.get(connectionID);
+            if (backend != null)
+                return configure(backend, backend.acquire(), config, info,
+                        socketClosedTask);
+        }
+
+        Set<GuacdBackend> tried = new HashSet<GuacdBackend>();
+        GuacamoleException failure = null;
+
+        // Fail over to remaining backends until connected
+        GuacdBackend backend;
+        while ((backend = select(config, tried)) != null) {
+
+            tried.add(backend);
+
+            try {
+                return configure(backend, backend.acquire(), config, info,
+                        socketClosedTask);
+            }
+            catch (GuacamoleException e) {
+                logger.warn("Unable to connect to guacd at {}: {}", backend, e.getMessage());
+                logger.debug("Connection to guacd failed.", e);
+                failure = e;
+            }
+
+        }
+
+        throw failure;
+
+    }
+
+    /**
+     * Performs the Guacamole protocol handshake over the given established
+     * connection to the given backend, recording whether the backend
+     * succeeded. A failed handshake counts as a failure of the backend just
+     * as a failed connection attempt does.
+     *
+     * @param backend
+     *     The backend the given connection is connected to.
+     *
+     * @param socket
+     *     The established connection to the backend.
+     *
+     * @param config
+     *     The configuration of the connection to establish.
+     *
+     * @param info
+     *     Information describing the Guacamole client connecting.
+     *
+     * @param socketClosedTask
+     *     The task to run when the returned socket is closed, or null if no
+     *     task should be run.
+     *
+     * @return
+     *     A new socket, connected to guacd and configured.
+     *
+     * @throws GuacamoleException
+     *     If the handshake fails.
+     */
+    private ConfiguredGuacamoleSocket configure(GuacdBackend backend,
+            TimedGuacamoleSocket socket, GuacamoleConfiguration config,
+            GuacamoleClientInformation info, Runnable socketClosedTask)
+            throws GuacamoleException {
+
+        GuacdBackendSocket backendSocket = new GuacdBackendSocket(this,
+                backend, socket, socketClosedTask);
+
+        ConfiguredGuacamoleSocket configuredSocket;
+        try {
+            configuredSocket = new ConfiguredGuacamoleSocket(backendSocket, config, info);
+        }
+        catch (GuacamoleException e) {
+            backendSocket.abort();
+            backend.recordFailure();
+            throw e;
+        }
+
+        backend.recordSuccess();
+
+        // Direct users joining new connections to this backend
+        if (config.getConnectionID() == null) {
+            String id = configuredSocket.getConnectionID();
+            backendSocket.setConnectionID(id);
+            connections.put(id, backend);
+        }
+
+        return configuredSocket;
+
+    }
+
+    /**
+     * Removes the association between the given connection and backend,
+     * such that users joining that connection are no longer directed to that
+     * backend.
+     *
+     * @param connectionID
+     *     The ID of the connection which has closed.
+     *
+     * @param backend
+     *     The backend which hosted the connection.
+     */
+    void unbind(String connectionID, GuacdBackend backend) {
+        connections.remove(connectionID, backend);
+    }
+
+    /**
+     * Stops the active health checks of this registry and shuts down the
+     * connection pool of each backend, closing all idle connections.
+     */
+    public void shutdown() {
+
+        if (executor != null)
+            executor.shutdownNow();
+
+        for (GuacdBackend backend : backends)
+            backend.getPool().shutdown();
+
+    }
+
+    /**
+     * Shuts down the registry shared by all callers of getInstance(), if it
+     * has been created. A later call to getInstance() will create a new
+     * registry.
+     */
+    public static synchronized void shutdownInstance() {
+
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+
+    }
+
+}
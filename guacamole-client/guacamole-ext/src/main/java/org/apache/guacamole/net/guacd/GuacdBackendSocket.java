@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net.guacd;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.TimedGuacamoleSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Socket connected to a GuacdBackend, counting as an active tunnel of that
+ * backend until closed. If the socket is closed for any reason, a given task
+ * is run.
+ */
+class GuacdBackendSocket implements TimedGuacamoleSocket {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(GuacdBackendSocket.class);
+
+    /**
+     * The registry which selected the backend of this socket.
+     */
+    private final GuacdBackendRegistry registry;
+
+    /**
+     * The backend this socket is connected to.
+     */
+    private final GuacdBackend backend;
+
+    /**
+     * The established connection to the backend.
+     */
+    private final TimedGuacamoleSocket socket;
+
+    /**
+     * The task to run when the socket is closed, or null if no task should
+     * be run.
+     */
+    private final Runnable socketClosedTask;
+
+    /**
+     * The ID of the connection established through this socket, if this
+     * socket established a new connection rather than joining an existing
+     * connection.
+     */
+    private volatile String connectionID;
+
+    /**
+     * Whether this socket has been closed.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Creates a new socket which wraps the given established connection to
+     * the given backend, counting as an active tunnel of that backend until
+     * closed.
+     *
+     * @param registry
+     *     The registry which selected the backend.
+     *
+     * @param backend
+     *     The backend the given connection is connected to.
+     *
+     * @param socket
+     *     The established connection to the backend.
+     *
+     * @param socketClosedTask
+     *     The task to run when the socket is closed, or null if no task
+     *     should be run.
+     */
+    public GuacdBackendSocket(GuacdBackendRegistry registry,
+            GuacdBackend backend, TimedGuacamoleSocket socket,
+            Runnable socketClosedTask) {
+        this.registry = registry;
+        this.backend = backend;
+        this.socket = socket;
+        this.socketClosedTask = socketClosedTask;
+        backend.tunnelOpened();
+    }
+
+    /**
+     * Associates this socket with the ID of the new connection established
+     * through it, such that users joining that connection are directed to
+     * the same backend until this socket is closed.
+     *
+     * @param connectionID
+     *     The ID of the connection established through this socket.
+     */
+    public void setConnectionID(String connectionID) {
+        this.connectionID = connectionID;
+    }
+
+    /**
+     * Closes this socket after a failed handshake, without running the
+     * socket closed task. Errors while closing are ignored, as the original
+     * failure is what matters.
+     */
+    public void abort() {
+
+        if (!closed.compareAndSet(false, true))
+            return;
+
+        backend.tunnelClosed();
+
+        try {
+            socket.close();
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Unable to close connection to guacd after failed handshake.", e);
+        }
+
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return socket.getReader();
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return socket.getWriter();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+    @Override
+    public long getResolutionTime() {
+        return socket.getResolutionTime();
+    }
+
+    @Override
+    public long getConnectTime() {
+        return socket.getConnectTime();
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+
+        if (!closed.compareAndSet(false, true))
+            return;
+
+        try {
+            socket.close();
+        }
+        finally {
+
+            backend.tunnelClosed();
+
+            // Joining users need no longer reach this backend
+            if (connectionID != null)
+                registry.unbind(connectionID, backend);
+
+            if (socketClosedTask != null)
+                socketClosedTask.run();
+
+        }
+
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.net.guacd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.guacamole.protocol.ConfiguredGuacamoleSocket;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test which verifies the backend selection of GuacdBackendRegistry.
+ */
+public class GuacdBackendRegistryTest {
+
+    /**
+     * The first of two backends used by each test.
+     */
+    private final GuacdBackend first = new GuacdBackend("guacd-first", 4822, false, 1);
+
+    /**
+     * The second of two backends used by each test, having three times the
+     * weight of the first.
+     */
+    private final GuacdBackend second = new GuacdBackend("guacd-second", 4822, false, 3);
+
+    /**
+     * Creates a new registry which selects among the test backends using the
+     * given method and protocol affinity.
+     *
+     * @param selection
+     *     The method used to select among healthy backends.
+     *
+     * @param protocolAffinity
+     *     The backend preferred by connections using each protocol.
+     *
+     * @return
+     *     A new registry.
+     */
+    private GuacdBackendRegistry createRegistry(GuacdBackendRegistry.Selection selection,
+            Map<String, GuacdBackend> protocolAffinity) {
+        return new GuacdBackendRegistry(Arrays.asList(first, second),
+                selection, protocolAffinity);
+    }
+
+    /**
+     * Verifies that the backend with the fewest active tunnels is selected.
+     */
+    @Test
+    public void testLeastActive() {
+
+        GuacdBackendRegistry registry = createRegistry(
+                GuacdBackendRegistry.Selection.LEAST_ACTIVE,
+                Collections.<String, GuacdBackend>emptyMap());
+
+        first.tunnelOpened();
+        assertSame(second, registry.select(null));
+
+        second.tunnelOpened();
+        second.tunnelOpened();
+        assertSame(first, registry.select(null));
+
+        registry.shutdown();
+
+    }
+
+    /**
+     * Verifies that weighted selection balances active tunnels according to
+     * the weight of each backend.
+     */
+    @Test
+    public void testWeighted() {
+
+        GuacdBackendRegistry registry = createRegistry(
+                GuacdBackendRegistry.Selection.WEIGHTED,
+                Collections.<String, GuacdBackend>emptyMap());
+
+        // Second backend should receive three of every four tunnels
+        int selectedSecond = 0;
+        for (int i = 0; i < 8; i++) {
+            GuacdBackend backend = registry.select(null);
+            backend.tunnelOpened();
+            if (backend == second)
+                selectedSecond++;
+        }
+
+        assertEquals(6, selectedSecond);
+        registry.shutdown();
+
+    }
+
+    /**
+     * Verifies that protocol and per-connection affinity are honored only
+     * while the preferred backend is healthy.
+     */
+    @Test
+    public void testAffinity() {
+
+        Map<String, GuacdBackend> protocolAffinity = new HashMap<String, GuacdBackend>();
+        protocolAffinity.put("rdp", first);
+
+        GuacdBackendRegistry registry = createRegistry(
+                GuacdBackendRegistry.Selection.LEAST_ACTIVE, protocolAffinity);
+
+        first.tunnelOpened();
+
+        GuacamoleConfiguration config = new GuacamoleConfiguration();
+        config.setProtocol("rdp");
+        assertSame(first, registry.select(config));
+
+        // Connection parameter overrides protocol
+        config.setParameter(GuacdBackendRegistry.AFFINITY_PARAMETER, "guacd-second:4822");
+        assertSame(second, registry.select(config));
+
+        // Ejected backends are not preferred
+        config.unsetParameter(GuacdBackendRegistry.AFFINITY_PARAMETER);
+        first.eject();
+        assertSame(second, registry.select(config));
+
+        registry.shutdown();
+
+    }
+
+    /**
+     * Verifies that backends are ejected after repeated failures, and are
+     * still selected if no other backend remains.
+     */
+    @Test
+    public void testEjection() {
+
+        GuacdBackendRegistry registry = createRegistry(
+                GuacdBackendRegistry.Selection.LEAST_ACTIVE,
+                Collections.<String, GuacdBackend>emptyMap());
+
+        second.tunnelOpened();
+
+        // A single failure does not eject
+        first.recordFailure();
+        assertTrue(first.isAvailable());
+        assertSame(first, registry.select(null));
+
+        // Repeated failures do
+        first.recordFailure();
+        first.recordFailure();
+        assertFalse(first.isAvailable());
+        assertSame(second, registry.select(null));
+
+        // Ejected backends remain a last resort
+        assertSame(first, registry.select(null, Collections.singleton(second)));
+
+        // Success readmits
+        first.recordSuccess();
+        assertSame(first, registry.select(null));
+
+        registry.shutdown();
+
+    }
+
+    /**
+     * Starts a server on an arbitrary local port which accepts connections
+     * in the background. If the server is handshaking, each connection
+     * immediately receives the "args" and "ready" instructions of a
+     * successful Guacamole protocol handshake. Otherwise, each connection is
+     * closed immediately, such that the handshake fails.
+     *
+     * @param handshaking
+     *     Whether the server should complete the Guacamole protocol
+     *     handshake.
+     *
+     * @return
+     *     The listening server.
+     *
+     * @throws IOException
+     *     If the server cannot be started.
+     */
+    private ServerSocket startServer(final boolean handshaking) throws IOException {
+
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+
+                        Socket socket = server.accept();
+                        if (!handshaking) {
+                            socket.close();
+                            continue;
+                        }
+
+                        OutputStream output = socket.getOutputStream();
+                        output.write("4.args;5.ready,4.$abc;".getBytes("UTF-8"));
+                        output.flush();
+
+                        // Consume the handshake until the client closes
+                        InputStream input = socket.getInputStream();
+                        byte[] buffer = new byte[1024];
+                        while (input.read(buffer) != -1) {
+                            // Discard received data
+                        }
+                        socket.close();
+
+                    }
+                }
+                catch (IOException e) {
+                    // Server has been closed
+                }
+            }
+
+        };
+
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+
+    }
+
+    /**
+     * Verifies that a failed protocol handshake counts as a failure of the
+     * backend concerned, with the connection failing over to the next
+     * backend.
+     *
+     * @throws Exception
+     *     If either test server cannot be started, or if the connection
+     *     fails despite a healthy backend remaining.
+     */
+    @Test
+    public void testHandshakeFailover() throws Exception {
+
+        ServerSocket failing = startServer(false);
+        ServerSocket healthy = startServer(true);
+
+        GuacdBackend failingBackend = new GuacdBackend("127.0.0.1", failing.getLocalPort(), false, 1);
+        GuacdBackend healthyBackend = new GuacdBackend("127.0.0.1", healthy.getLocalPort(), false, 1);
+
+        Map<String, GuacdBackend> protocolAffinity = new HashMap<String, GuacdBackend>();
+        protocolAffinity.put("vnc", failingBackend);
+
+        GuacdBackendRegistry registry = new GuacdBackendRegistry(
+                Arrays.asList(failingBackend, healthyBackend),
+                GuacdBackendRegistry.Selection.LEAST_ACTIVE, protocolAffinity);
+
+        GuacamoleConfiguration config = new GuacamoleConfiguration();
+        config.setProtocol("vnc");
+
+        try {
+
+            // Each connection must fail over despite the preferred backend
+            // accepting TCP connections, until that backend is ejected
+            for (int i = 0; i < 3; i++) {
+                assertTrue(failingBackend.isAvailable());
+                ConfiguredGuacamoleSocket socket = registry.connect(config,
+                        new GuacamoleClientInformation(), null);
+                assertEquals("$abc", socket.getConnectionID());
+                socket.close();
+            }
+
+            assertFalse(failingBackend.isAvailable());
+            assertTrue(healthyBackend.isAvailable());
+
+        }
+        finally {
+            registry.shutdown();
+            failing.close();
+            healthy.close();
+        }
+
+    }
+
+}
@@ -32,6 +32,8 @@ import org.apache.guacamole.log.LogModule;
 import org.apache.guacamole.rest.RESTServiceModule;
 import org.apache.guacamole.rest.auth.HashTokenSessionMap;
 import org.apache.guacamole.rest.auth.TokenSessionMap;
+import org.apache.guacamole.tunnel.GuacdService;
+import org.apache.guacamole.tunnel.StreamSpoolService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +60,11 @@ public class GuacamoleServletContextListener extends GuiceServletContextListener
      */
     private TokenSessionMap sessionMap;
 
+    /**
+     * The injector created for this servlet context, if any.
+     */
+    private Injector injector;
+
     @Override
     public void contextInitialized(ServletContextEvent servletContextEvent) {
 
@@ -77,13 +84,14 @@ public class GuacamoleServletContextListener extends GuiceServletContextListener
 
     @Override
     protected Injector getInjector() {
-        return Guice.createInjector(Stage.PRODUCTION,
+        injector = Guice.createInjector(Stage.PRODUCTION,
             new EnvironmentModule(environment),
             new LogModule(environment),
             new ExtensionModule(environment),
             new RESTServiceModule(sessionMap),
             new TunnelModule()
         );
+        return injector;
     }
 
     @Override
@@ -95,6 +103,16 @@ public class GuacamoleServletContextListener extends GuiceServletContextListener
         if (sessionMap != null)
             sessionMap.shutdown();
 
+        if (injector != null) {
+
+            // Shutdown StreamSpoolService, removing any spooled streams
+            injector.getInstance(StreamSpoolService.class).shutdown();
+
+            // Shutdown guacd registry, stopping its health checks
+            injector.getInstance(GuacdService.class).shutdown();
+
+        }
+
     }
 
 }
@@ -65,7 +65,7 @@ public class GuacamoleSession {
     /**
      * The last time this session was accessed.
      */
-    private long lastAccessedTime;
+    private volatile long lastAccessedTime;
     
     /**
      * Creates a new Guacamole session associated with the given
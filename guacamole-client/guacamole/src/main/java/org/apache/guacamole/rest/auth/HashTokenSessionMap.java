@@ -19,17 +19,13 @@
 
 package org.apache.guacamole.rest.auth;
 
-import java.util.Iterator;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.environment.Environment;
 import org.apache.guacamole.GuacamoleSession;
 import org.apache.guacamole.properties.IntegerGuacamoleProperty;
+import org.apache.guacamole.util.ExpiryWheel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,16 +43,29 @@ public class HashTokenSessionMap implements TokenSessionMap {
     private static final Logger logger = LoggerFactory.getLogger(HashTokenSessionMap.class);
 
     /**
-     * Executor service which runs the period session eviction task.
+     * The timing wheel which evicts sessions that have not been accessed
+     * within the session timeout.
      */
-    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-    
+    private final ExpiryWheel wheel = ExpiryWheel.acquire();
+
     /**
      * Keeps track of the authToken to GuacamoleSession mapping.
      */
     private final ConcurrentMap<String, GuacamoleSession> sessionMap =
             new ConcurrentHashMap<String, GuacamoleSession>();
 
+    /**
+     * The eviction timeout of each session, indexed by authToken.
+     */
+    private final ConcurrentMap<String, ExpiryWheel.Timeout> timeoutMap =
+            new ConcurrentHashMap<String, ExpiryWheel.Timeout>();
+
+    /**
+     * The maximum amount of time to allow between accesses to any one
+     * session, in milliseconds.
+     */
+    private final long sessionTimeout;
+
     /**
      * The session timeout for the Guacamole REST API, in minutes.
      */
@@ -88,69 +97,59 @@ public class HashTokenSessionMap implements TokenSessionMap {
             sessionTimeoutValue = 60;
         }
         
-        // Check for expired sessions every minute
+        // Expire sessions once unused for the configured timeout
         logger.info("Sessions will expire after {} minutes of inactivity.", sessionTimeoutValue);
-        executor.scheduleAtFixedRate(new SessionEvictionTask(sessionTimeoutValue * 60000l), 1, 1, TimeUnit.MINUTES);
-        
+        sessionTimeout = sessionTimeoutValue * 60000l;
+
     }
 
     /**
-     * Task which iterates through all active sessions, evicting those sessions
-     * which are beyond the session timeout.
+     * Listener which evicts a single session once that session has not been
+     * accessed within the session timeout.
      */
-    private class SessionEvictionTask implements Runnable {
+    private class SessionEvictionListener implements ExpiryWheel.Listener {
 
         /**
-         * The maximum allowed age of any session, in milliseconds.
+         * The auth token of the session to evict.
          */
-        private final long sessionTimeout;
+        private final String authToken;
 
         /**
-         * Creates a new task which automatically evicts sessions which are
-         * older than the specified timeout.
-         * 
-         * @param sessionTimeout The maximum age of any session, in
-         *                       milliseconds.
+         * The session to evict.
          */
-        public SessionEvictionTask(long sessionTimeout) {
-            this.sessionTimeout = sessionTimeout;
-        }
-        
-        @Override
-        public void run() {
-
-            // Get start time of session check time
-            long sessionCheckStart = System.currentTimeMillis();
-
-            logger.debug("Checking for expired sessions...");
-
-            // For each session, remove sesions which have expired
-            Iterator<Map.Entry<String, GuacamoleSession>> entries = sessionMap.entrySet().iterator();
-            while (entries.hasNext()) {
-
-                Map.Entry<String, GuacamoleSession> entry = entries.next();
-                GuacamoleSession session = entry.getValue();
-
-                // Do not expire sessions which are active
-                if (session.hasTunnels())
-                    continue;
+        private final GuacamoleSession session;
 
-                // Get elapsed time since last access
-                long age = sessionCheckStart - session.getLastAccessedTime();
-
-                // If session is too old, evict it and check the next one
-                if (age >= sessionTimeout) {
-                    logger.debug("Session \"{}\" has timed out.", entry.getKey());
-                    entries.remove();
-                    session.invalidate();
-                }
+        /**
+         * Creates a new listener which evicts the given session upon expiry.
+         *
+         * @param authToken
+         *     The auth token of the session to evict.
+         *
+         * @param session
+         *     The session to evict.
+         */
+        public SessionEvictionListener(String authToken, GuacamoleSession session) {
+            this.authToken = authToken;
+            this.session = session;
+        }
 
+        @Override
+        public boolean expired() {
+
+            // Do not expire sessions which are active
+            if (session.hasTunnels())
+                return false;
+
+            // Evict session, unless already replaced or removed
+            if (sessionMap.remove(authToken, session)) {
+                timeoutMap.remove(authToken);
+                logger.debug("Session \"{}\" has timed out.", authToken);
+                logger.debug("Session expiry: {}", wheel);
+                session.invalidate();
             }
 
-            // Log completion and duration
-            logger.debug("Session check completed in {} ms.",
-                    System.currentTimeMillis() - sessionCheckStart);
-            
+            return true;
+
         }
 
     }
@@ -164,16 +163,32 @@ public class HashTokenSessionMap implements TokenSessionMap {
 
         // Update the last access time and return the GuacamoleSession
         GuacamoleSession session = sessionMap.get(authToken);
-        if (session != null)
+        if (session != null) {
+
             session.access();
 
+            // Postpone eviction
+            ExpiryWheel.Timeout timeout = timeoutMap.get(authToken);
+            if (timeout != null)
+                timeout.touch();
+
+        }
+
         return session;
 
     }
 
     @Override
     public void put(String authToken, GuacamoleSession session) {
+
         sessionMap.put(authToken, session);
+
+        // Schedule eviction, replacing any previous timeout
+        ExpiryWheel.Timeout timeout = timeoutMap.put(authToken,
+                wheel.schedule(sessionTimeout, new SessionEvictionListener(authToken, session)));
+        if (timeout != null)
+            timeout.cancel();
+
     }
 
     @Override
@@ -183,6 +198,11 @@ public class HashTokenSessionMap implements TokenSessionMap {
         if (authToken == null)
             return null;
 
+        // Session no longer needs to be evicted once removed
+        ExpiryWheel.Timeout timeout = timeoutMap.remove(authToken);
+        if (timeout != null)
+            timeout.cancel();
+
         // Attempt to retrieve only if non-null
         return sessionMap.remove(authToken);
 
@@ -190,7 +210,12 @@ public class HashTokenSessionMap implements TokenSessionMap {
 
     @Override
     public void shutdown() {
-        executor.shutdownNow();
+
+        for (ExpiryWheel.Timeout timeout : timeoutMap.values())
+            timeout.cancel();
+
+        ExpiryWheel.release(wheel);
+
     }
 
 }
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.rest.tunnel;
+
+import java.util.List;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.tunnel.UploadSpool;
+
+/**
+ * The progress of a chunked upload, as exposed through the REST endpoints.
+ */
+public class APIUploadProgress {
+
+    /**
+     * The total length of the upload, in bytes.
+     */
+    private final long length;
+
+    /**
+     * The number of bytes of the upload received thus far.
+     */
+    private final long received;
+
+    /**
+     * The disjoint ranges of the upload received thus far.
+     */
+    private final List<long[]> ranges;
+
+    /**
+     * The number of bytes of the upload sent along the Guacamole stream.
+     */
+    private final long sent;
+
+    /**
+     * Whether the Guacamole stream has ended.
+     */
+    private final boolean finished;
+
+    /**
+     * A human-readable description of the error which prevented the upload
+     * from completing successfully, if any.
+     */
+    private final String error;
+
+    /**
+     * Creates a new APIUploadProgress, copying the progress of the given
+     * upload.
+     *
+     * @param upload
+     *     The upload whose progress should be copied.
+     */
+    public APIUploadProgress(UploadSpool upload) {
+
+        this.length   = upload.getLength();
+        this.received = upload.getReceived();
+        this.ranges   = upload.getReceivedRanges();
+        this.sent     = upload.getSent();
+        this.finished = upload.isFinished();
+
+        GuacamoleException uploadError = upload.getError();
+        this.error = (uploadError != null) ? uploadError.getMessage() : null;
+
+    }
+
+    /**
+     * Returns the total length of the upload.
+     *
+     * @return
+     *     The total length of the upload, in bytes.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of bytes of the upload received thus far.
+     *
+     * @return
+     *     The number of bytes received.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Returns the disjoint ranges of the upload received thus far, in order.
+     * Chunks covering any gaps between these ranges must still be sent.
+     *
+     * @return
+     *     A list of two-element arrays, each containing the offset of the
+     *     first byte of a received range and the offset immediately following
+     *     its last byte.
+     */
+    public List<long[]> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * Returns the number of bytes of the upload sent along the Guacamole
+     * stream.
+     *
+     * @return
+     *     The number of bytes sent.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Returns whether the Guacamole stream has ended, either successfully or
+     * due to an error.
+     *
+     * @return
+     *     true if the upload has finished, false otherwise.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Returns a human-readable description of the error which prevented the
+     * upload from completing successfully, if any.
+     *
+     * @return
+     *     A description of the error which prevented the upload from
+     *     completing successfully, or null if no such error has occurred.
+     */
+    public String getError() {
+        return error;
+    }
+
+}
@@ -22,15 +22,25 @@ package org.apache.guacamole.rest.tunnel;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import org.apache.guacamole.GuacamoleClientException;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleResourceNotFoundException;
+import org.apache.guacamole.tunnel.SpooledStream;
 import org.apache.guacamole.tunnel.StreamInterceptingTunnel;
+import org.apache.guacamole.tunnel.StreamSpoolService;
+import org.apache.guacamole.tunnel.UploadSpool;
 
 /**
  * A REST resource providing access to a Guacamole protocol-level stream
@@ -42,6 +52,23 @@ import org.apache.guacamole.tunnel.StreamInterceptingTunnel;
 @Consumes(MediaType.APPLICATION_JSON)
 public class StreamResource {
 
+    /**
+     * The HTTP status code of a response containing part of the requested
+     * resource.
+     */
+    private static final int PARTIAL_CONTENT = 206;
+
+    /**
+     * The HTTP status code of a response to a range request which cannot be
+     * satisfied.
+     */
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * The prefix of the value of every "Range" header specifying byte ranges.
+     */
+    private static final String BYTE_RANGE_PREFIX = "bytes=";
+
     /**
      * The tunnel whose stream is exposed through this StreamResource.
      */
@@ -52,11 +79,80 @@ public class StreamResource {
      */
     private final int streamIndex;
 
+    /**
+     * The filename given by the client for the stream being exposed.
+     */
+    private final String filename;
+
     /**
      * The media type of the data within the stream being exposed.
      */
     private final String mediaType;
 
+    /**
+     * Service for spooling downloads to temporary files.
+     */
+    private final StreamSpoolService spoolService;
+
+    /**
+     * StreamingOutput which serves a range of a spooled download, waiting for
+     * data which has not yet been spooled.
+     */
+    private static class SpooledStreamingOutput implements StreamingOutput {
+
+        /**
+         * The spooled download being served.
+         */
+        private final SpooledStream spool;
+
+        /**
+         * The offset of the first byte to serve.
+         */
+        private final long start;
+
+        /**
+         * The offset immediately following the last byte to serve, or -1 to
+         * serve all data until the download ends.
+         */
+        private final long end;
+
+        /**
+         * Creates a new SpooledStreamingOutput which serves the given range
+         * of the given spooled download.
+         *
+         * @param spool
+         *     The spooled download to serve.
+         *
+         * @param start
+         *     The offset of the first byte to serve.
+         *
+         * @param end
+         *     The offset immediately following the last byte to serve, or -1
+         *     to serve all data until the download ends.
+         */
+        public SpooledStreamingOutput(SpooledStream spool, long start, long end) {
+            this.spool = spool;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+
+            if (!spool.acquire())
+                throw new IOException("Spooled download no longer exists.");
+
+            try {
+                spool.transferTo(start, end, Channels.newChannel(output));
+            }
+            finally {
+                spool.release();
+            }
+
+        }
+
+    }
+
     /**
      * Creates a new StreamResource which provides access to the given
      * stream.
@@ -67,26 +163,202 @@ public class StreamResource {
      * @param streamIndex
      *     The index of the stream to expose via this StreamResource.
      *
+     * @param filename
+     *     The filename given by the client for the stream, which
+     *     distinguishes spooled transfers of streams reusing the same index.
+     *
      * @param mediaType
      *     The media type of the data within the stream.
+     *
+     * @param spoolService
+     *     The service to use to spool downloads, if enabled.
      */
     public StreamResource(StreamInterceptingTunnel tunnel, int streamIndex,
-            String mediaType) {
+            String filename, String mediaType, StreamSpoolService spoolService) {
         this.tunnel = tunnel;
         this.streamIndex = streamIndex;
+        this.filename = filename;
         this.mediaType = mediaType;
+        this.spoolService = spoolService;
+    }
+
+    /**
+     * Parses the given value of a "Range" header, returning the single byte
+     * range it specifies. Only single ranges are supported; headers
+     * specifying multiple ranges are ignored.
+     *
+     * @param range
+     *     The value of the "Range" header.
+     *
+     * @param length
+     *     The total length of the resource, in bytes.
+     *
+     * @return
+     *     A two-element array containing the offset of the first byte of the
+     *     range and the offset immediately following its last byte, or null
+     *     if the header should be ignored. If the range cannot be satisfied,
+     *     the first offset will be no less than the given length.
+     */
+    private static long[] parseRange(String range, long length) {
+
+        if (!range.startsWith(BYTE_RANGE_PREFIX))
+            return null;
+
+        String spec = range.substring(BYTE_RANGE_PREFIX.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1 || spec.indexOf(',') != -1)
+            return null;
+
+        try {
+
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+
+            // Suffix ranges specify the number of trailing bytes
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix < 0)
+                    return null;
+                if (suffix == 0)
+                    return new long[] { length, length };
+                return new long[] { Math.max(0, length - suffix), length };
+            }
+
+            // Ignore ranges which are not valid
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+            if (start < 0 || end < start)
+                return null;
+
+            // Ranges starting beyond the resource cannot be satisfied
+            if (start >= length)
+                return new long[] { length, length };
+
+            return new long[] { start, Math.min(end + 1, length) };
+
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+
+    }
+
+    /**
+     * Serves the given spooled download, or the range of that download
+     * specified by the given "Range" header. Requests without a range are
+     * served while the download is spooled, whereas range requests are
+     * served once spooling completes and the total length is known. Every
+     * response carries the entity tag of the spooled download, which clients
+     * should send within "If-Range" when resuming.
+     *
+     * @param spool
+     *     The spooled download to serve.
+     *
+     * @param range
+     *     The value of the "Range" header of the request, or null if no range
+     *     was requested.
+     *
+     * @return
+     *     A response through which the requested data will be sent.
+     *
+     * @throws GuacamoleException
+     *     If a range was requested and the download fails while spooling.
+     */
+    private Response serveSpool(SpooledStream spool, String range)
+            throws GuacamoleException {
+
+        // Serve entire download as it is spooled
+        if (range == null)
+            return Response.ok(new SpooledStreamingOutput(spool, 0, -1), mediaType)
+                    .header("Accept-Ranges", "bytes")
+                    .header("ETag", spool.getEntityTag())
+                    .build();
+
+        // Serve entire download if range cannot be parsed
+        long length = spool.awaitCompletion();
+        long[] bounds = parseRange(range, length);
+        if (bounds == null)
+            return Response.ok(new SpooledStreamingOutput(spool, 0, length), mediaType)
+                    .header("Accept-Ranges", "bytes")
+                    .header("ETag", spool.getEntityTag())
+                    .header("Content-Length", length)
+                    .build();
+
+        // Reject ranges beyond the end of the download
+        if (bounds[0] >= length)
+            return Response.status(RANGE_NOT_SATISFIABLE)
+                    .header("ETag", spool.getEntityTag())
+                    .header("Content-Range", "bytes */" + length)
+                    .build();
+
+        // Serve requested range
+        return Response.status(PARTIAL_CONTENT)
+                .entity(new SpooledStreamingOutput(spool, bounds[0], bounds[1]))
+                .type(mediaType)
+                .header("Accept-Ranges", "bytes")
+                .header("ETag", spool.getEntityTag())
+                .header("Content-Range", "bytes " + bounds[0] + "-"
+                        + (bounds[1] - 1) + "/" + length)
+                .header("Content-Length", bounds[1] - bounds[0])
+                .build();
+
     }
 
     /**
      * Intercepts and returns the entire contents the stream represented by
-     * this StreamResource.
+     * this StreamResource. If download spooling is enabled, the stream is
+     * spooled to a temporary file as quickly as it is received, and the
+     * contents are served from that file, allowing the requested range of a
+     * previously-spooled download to be served again. If the request
+     * includes an "If-Range" header which does not match the entity tag of
+     * the previously-spooled download, the range is ignored and the entire
+     * contents of the stream are served anew.
+     *
+     * @param range
+     *     The value of the "Range" header of the request, or null if the
+     *     entire stream is requested.
+     *
+     * @param ifRange
+     *     The value of the "If-Range" header of the request, or null if the
+     *     range should be served from any previously-spooled download of
+     *     this stream.
      *
      * @return
      *     A response through which the entire contents of the intercepted
-     *     stream will be sent.
+     *     stream, or the requested range of those contents, will be sent.
+     *
+     * @throws GuacamoleException
+     *     If the stream cannot be spooled, or fails while spooling.
      */
     @GET
-    public Response getStreamContents() {
+    public Response getStreamContents(@HeaderParam("Range") String range,
+            @HeaderParam("If-Range") String ifRange)
+            throws GuacamoleException {
+
+        // Serve from spooled download if enabled, resuming previous
+        // downloads of the same stream where possible
+        if (spoolService.isEnabled()) {
+
+            SpooledStream spool = null;
+            if (range != null) {
+
+                spool = spoolService.getSpool(tunnel, streamIndex, filename);
+
+                // Serve in full unless resuming the very same download
+                if (ifRange != null && (spool == null
+                            || !ifRange.trim().equals(spool.getEntityTag()))) {
+                    spool = null;
+                    range = null;
+                }
+
+            }
+
+            if (spool == null)
+                spool = spoolService.spool(tunnel, streamIndex, filename);
+
+            return serveSpool(spool, range);
+
+        }
 
         // Intercept all output
         StreamingOutput stream = new StreamingOutput() {
@@ -128,4 +400,68 @@ public class StreamResource {
 
     }
 
+
+    /**
+     * Receives a single chunk of an upload to the stream represented by this
+     * StreamResource. Chunks are addressed by offset, may be sent in any
+     * order or in parallel, and may be resent if interrupted. Once every
+     * chunk has been received, the upload is sent over the intercepted
+     * stream.
+     *
+     * @param length
+     *     The total length of the upload, in bytes.
+     *
+     * @param offset
+     *     The offset within the upload of the first byte of the chunk.
+     *
+     * @param data
+     *     An InputStream containing the data of the chunk.
+     *
+     * @return
+     *     The progress of the upload after receiving the chunk.
+     *
+     * @throws GuacamoleException
+     *     If the total length of the upload is not specified, or if the chunk
+     *     is invalid or cannot be spooled.
+     */
+    @PUT
+    @Consumes(MediaType.WILDCARD)
+    public APIUploadProgress putStreamChunk(@QueryParam("length") Long length,
+            @QueryParam("offset") long offset, InputStream data)
+            throws GuacamoleException {
+
+        if (length == null)
+            throw new GuacamoleClientException("The total length of the upload must be specified.");
+
+        UploadSpool upload = spoolService.writeChunk(tunnel, streamIndex,
+                filename, length, offset, data);
+
+        return new APIUploadProgress(upload);
+
+    }
+
+    /**
+     * Returns the progress of the chunked upload to the stream represented
+     * by this StreamResource, including the ranges received thus far such
+     * that an interrupted upload may be resumed.
+     *
+     * @return
+     *     The progress of the chunked upload.
+     *
+     * @throws GuacamoleException
+     *     If no chunked upload to this stream is in progress.
+     */
+    @GET
+    @Path("progress")
+    @Produces(MediaType.APPLICATION_JSON)
+    public APIUploadProgress getUploadProgress() throws GuacamoleException {
+
+        UploadSpool upload = spoolService.getUpload(tunnel, streamIndex, filename);
+        if (upload == null)
+            throw new GuacamoleResourceNotFoundException("No upload to this stream is in progress.");
+
+        return new APIUploadProgress(upload);
+
+    }
+
 }
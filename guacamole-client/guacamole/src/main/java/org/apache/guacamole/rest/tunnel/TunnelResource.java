@@ -36,6 +36,7 @@ import org.apache.guacamole.net.auth.UserContext;
 import org.apache.guacamole.rest.activeconnection.APIActiveConnection;
 import org.apache.guacamole.rest.directory.DirectoryObjectResource;
 import org.apache.guacamole.rest.directory.DirectoryObjectResourceFactory;
+import org.apache.guacamole.tunnel.StreamSpoolService;
 import org.apache.guacamole.tunnel.UserTunnel;
 
 /**
@@ -67,6 +68,12 @@ public class TunnelResource {
     private DirectoryObjectResourceFactory<ActiveConnection, APIActiveConnection>
             activeConnectionResourceFactory;
 
+    /**
+     * Service for spooling downloads to temporary files.
+     */
+    @Inject
+    private StreamSpoolService spoolService;
+
     /**
      * Creates a new TunnelResource which exposes the operations and
      * subresources available for the given tunnel.
@@ -134,7 +141,8 @@ public class TunnelResource {
             @PathParam("filename") String filename)
             throws GuacamoleException {
 
-        return new StreamResource(tunnel, streamIndex, mediaType);
+        return new StreamResource(tunnel, streamIndex, filename, mediaType,
+                spoolService);
 
     }
 
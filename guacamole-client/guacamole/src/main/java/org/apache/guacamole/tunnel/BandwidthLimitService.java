@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.tunnel;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.RateLimitedGuacamoleTunnel;
+import org.apache.guacamole.net.TokenBucket;
+import org.apache.guacamole.net.auth.User;
+import org.apache.guacamole.properties.IntegerGuacamoleProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which limits the rate at which data is sent from guacd to each
+ * client. Each tunnel may be limited individually, by the "max-bandwidth"
+ * attribute of the connection or connection group used, or by the default
+ * limit within guacamole.properties if that attribute is not set. All tunnels
+ * of the same user may additionally be limited as a whole, by the
+ * "max-bandwidth" attribute of that user. Reading from guacd is paused, rather
+ * than data dropped, while a limit is exceeded.
+ */
+@Singleton
+public class BandwidthLimitService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(BandwidthLimitService.class);
+
+    /**
+     * The name of the attribute of connections, connection groups, and users
+     * which defines the maximum bandwidth, in kilobytes per second.
+     */
+    public static final String MAX_BANDWIDTH_ATTRIBUTE = "max-bandwidth";
+
+    /**
+     * The default maximum bandwidth of each tunnel, in kilobytes per second,
+     * for tunnels to connections or groups which do not define their own
+     * limit. If zero or unset, tunnels are not limited by default.
+     */
+    private static final IntegerGuacamoleProperty TUNNEL_MAX_BANDWIDTH =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-max-bandwidth"; }
+
+    };
+
+    /**
+     * The Guacamole server environment.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The bandwidth shared by all tunnels of a single user.
+     */
+    private static class UserBandwidth {
+
+        /**
+         * The bucket shared by all tunnels of the user.
+         */
+        private final TokenBucket bucket;
+
+        /**
+         * The number of open tunnels using the bucket.
+         */
+        private int tunnels = 0;
+
+        /**
+         * Creates a new UserBandwidth which limits the combined rate of all
+         * tunnels of a user to the given rate.
+         *
+         * @param rate
+         *     The maximum combined rate, in bytes per second.
+         */
+        public UserBandwidth(long rate) {
+            this.bucket = new TokenBucket(rate);
+        }
+
+    }
+
+    /**
+     * The bandwidth of every user having open, limited tunnels, by username.
+     */
+    private final Map<String, UserBandwidth> users =
+            new HashMap<String, UserBandwidth>();
+
+    /**
+     * Parses the maximum bandwidth within the given attributes.
+     *
+     * @param attributes
+     *     The attributes of the object defining the limit, which may be
+     *     null.
+     *
+     * @return
+     *     The maximum bandwidth in bytes per second, zero if no limit
+     *     applies, or null if the attributes do not define a limit.
+     */
+    private Long getMaxBandwidth(Map<String, String> attributes) {
+
+        if (attributes == null)
+            return null;
+
+        String value = attributes.get(MAX_BANDWIDTH_ATTRIBUTE);
+        if (value == null || value.isEmpty())
+            return null;
+
+        try {
+            return Math.max(0, Long.parseLong(value)) * 1024;
+        }
+        catch (NumberFormatException e) {
+            logger.warn("Ignoring invalid maximum bandwidth \"{}\".", value);
+            logger.debug("Unable to parse maximum bandwidth.", e);
+            return null;
+        }
+
+    }
+
+    /**
+     * Returns the bucket shared by all tunnels of the given user, creating
+     * that bucket if necessary, and counting the calling tunnel as a user of
+     * that bucket. If the limit of the user has changed, the rate of the
+     * existing bucket is updated, such that all tunnels of the user remain
+     * limited as a whole by the new limit.
+     *
+     * @param username
+     *     The username of the user.
+     *
+     * @param rate
+     *     The maximum combined rate of all tunnels of the user, in bytes per
+     *     second.
+     *
+     * @return
+     *     The bandwidth shared by all tunnels of the given user.
+     */
+    private synchronized UserBandwidth acquireUserBandwidth(String username,
+            long rate) {
+
+        UserBandwidth bandwidth = users.get(username);
+        if (bandwidth == null) {
+            bandwidth = new UserBandwidth(rate);
+            users.put(username, bandwidth);
+        }
+
+        // Apply any change in limit to all tunnels of the user
+        else if (bandwidth.bucket.getRate() != rate)
+            bandwidth.bucket.setRate(rate);
+
+        bandwidth.tunnels++;
+        return bandwidth;
+
+    }
+
+    /**
+     * Releases the given bandwidth on behalf of a closed tunnel of the given
+     * user, discarding that bandwidth once no tunnels use it.
+     *
+     * @param username
+     *     The username of the user.
+     *
+     * @param bandwidth
+     *     The bandwidth previously returned by acquireUserBandwidth().
+     */
+    private synchronized void releaseUserBandwidth(String username,
+            UserBandwidth bandwidth) {
+
+        if (--bandwidth.tunnels == 0 && users.get(username) == bandwidth)
+            users.remove(username);
+
+    }
+
+    /**
+     * Wraps the given tunnel such that reading from guacd is limited by the
+     * maximum bandwidth of the given connection or connection group, the
+     * default maximum bandwidth within guacamole.properties, and the maximum
+     * bandwidth of the given user, as applicable. The statistics of each
+     * limited tunnel are logged when that tunnel is closed.
+     *
+     * @param tunnel
+     *     The tunnel to wrap.
+     *
+     * @param user
+     *     The user for whom the tunnel was created.
+     *
+     * @param attributes
+     *     The attributes of the connection or connection group to which the
+     *     tunnel is connected, or null if there are no such attributes.
+     *
+     * @return
+     *     The rate limited tunnel, or the given tunnel if no limits apply.
+     *
+     * @throws GuacamoleException
+     *     If the default maximum bandwidth cannot be read from
+     *     guacamole.properties.
+     */
+    public GuacamoleTunnel createRateLimitedTunnel(GuacamoleTunnel tunnel,
+            User user, Map<String, String> attributes)
+            throws GuacamoleException {
+
+        // Use the limit of the connection or group, if any, falling back to
+        // the default limit
+        Long tunnelRate = getMaxBandwidth(attributes);
+        if (tunnelRate == null)
+            tunnelRate = Math.max(0, environment.getProperty(TUNNEL_MAX_BANDWIDTH, 0)) * 1024L;
+
+        Long userRate = getMaxBandwidth(user.getAttributes());
+        if (userRate == null)
+            userRate = 0L;
+
+        // Do not wrap tunnels which are not limited
+        if (tunnelRate == 0 && userRate == 0)
+            return tunnel;
+
+        final String username = user.getIdentifier();
+        final UserBandwidth userBandwidth;
+        TokenBucket[] buckets;
+
+        // Limit the tunnel individually and/or as part of all tunnels of
+        // the user
+        if (userRate == 0) {
+            userBandwidth = null;
+            buckets = new TokenBucket[] { new TokenBucket(tunnelRate) };
+        }
+        else {
+            userBandwidth = acquireUserBandwidth(username, userRate);
+            if (tunnelRate == 0)
+                buckets = new TokenBucket[] { userBandwidth.bucket };
+            else
+                buckets = new TokenBucket[] { new TokenBucket(tunnelRate), userBandwidth.bucket };
+        }
+
+        return new RateLimitedGuacamoleTunnel(tunnel, buckets) {
+
+            /**
+             * Whether this tunnel has already been closed.
+             */
+            private final AtomicBoolean closed = new AtomicBoolean(false);
+
+            @Override
+            public void close() throws GuacamoleException {
+                try {
+                    super.close();
+                }
+                finally {
+
+                    // Release the bandwidth of the user and log statistics
+                    // only once, even if closed multiple times
+                    if (closed.compareAndSet(false, true)) {
+
+                        if (userBandwidth != null)
+                            releaseUserBandwidth(username, userBandwidth);
+
+                        logger.debug("Bandwidth statistics of tunnel \"{}\": {}",
+                                getUUID(), this);
+
+                    }
+
+                }
+            }
+
+        };
+
+    }
+
+}
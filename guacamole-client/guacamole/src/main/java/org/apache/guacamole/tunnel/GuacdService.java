@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.tunnel;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.net.guacd.GuacdBackendRegistry;
+
+/**
+ * Service which provides access to the guacd instances configured within
+ * guacamole.properties. Authentication providers which connect through
+ * GuacdBackendRegistry share the same registry and connection pools.
+ */
+@Singleton
+public class GuacdService {
+
+    /**
+     * The Guacamole server environment.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * Returns the registry of all configured guacd instances, creating that
+     * registry if necessary. The guacd configuration is read only once.
+     *
+     * @return
+     *     The registry of all configured guacd instances.
+     *
+     * @throws GuacamoleException
+     *     If the guacd configuration cannot be read or is invalid.
+     */
+    public GuacdBackendRegistry getRegistry() throws GuacamoleException {
+        return GuacdBackendRegistry.getInstance(environment);
+    }
+
+    /**
+     * Starts establishing a connection to the guacd most likely to be
+     * selected for the next connection, such that the connection is likely
+     * ready by the time the authentication provider requests it. As only
+     * authentication providers which connect through GuacdBackendRegistry
+     * can use such a connection, nothing is prefetched unless the registry
+     * has already been created by such a provider.
+     */
+    public void prefetch() {
+
+        GuacdBackendRegistry registry = GuacdBackendRegistry.getExistingInstance();
+        if (registry != null)
+            registry.prefetch();
+
+    }
+
+    /**
+     * Shuts down the registry of all configured guacd instances, if it has
+     * been created, stopping its active health checks and shutting down its
+     * connection pools.
+     */
+    public void shutdown() {
+        GuacdBackendRegistry.shutdownInstance();
+    }
+
+}
@@ -21,11 +21,15 @@ package org.apache.guacamole.tunnel;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
-import javax.xml.bind.DatatypeConverter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.protocol.Base64Codec;
 import org.apache.guacamole.protocol.GuacamoleInstruction;
 import org.apache.guacamole.protocol.GuacamoleStatus;
 import org.slf4j.Logger;
@@ -36,6 +40,15 @@ import org.slf4j.LoggerFactory;
  * from or closing the stream given with interceptStream(). The required "blob"
  * and "end" instructions denoting the content and boundary of the stream are
  * sent automatically.
+ *
+ * Rather than waiting for each "blob" to be acknowledged before sending the
+ * next, a window of several blobs is kept in flight for each stream. The size
+ * of this window adapts to the measured latency of each "ack", growing while
+ * latency remains near its observed minimum and shrinking as latency rises,
+ * such that the data in flight approximates what the link can carry without
+ * queueing. Blobs sent in response to each "ack" are read from the
+ * InputStream by the shared executor of StreamInterceptingFilter, never by
+ * the thread filtering the "ack".
  */
 public class InputStreamInterceptingFilter
         extends StreamInterceptingFilter<InputStream> {
@@ -46,6 +59,187 @@ public class InputStreamInterceptingFilter
     private static final Logger logger =
             LoggerFactory.getLogger(InputStreamInterceptingFilter.class);
 
+    /**
+     * The maximum number of bytes sent within each "blob". Once encoded as
+     * base64, blobs of this size remain within the 8192-byte instruction
+     * length limit of guacd.
+     */
+    private static final int BLOB_SIZE = 6048;
+
+    /**
+     * The size of the buffer into which each "blob" instruction is
+     * serialized, in characters. This is the encoded length of a full blob,
+     * plus generous room for the opcode and stream index.
+     */
+    private static final int INSTRUCTION_SIZE =
+            Base64Codec.getEncodedLength(BLOB_SIZE) + 64;
+
+    /**
+     * The number of blobs initially allowed in flight for each stream.
+     */
+    private static final int INITIAL_WINDOW = 4;
+
+    /**
+     * The maximum number of blobs allowed in flight for each stream.
+     */
+    private static final int MAX_WINDOW = 64;
+
+    /**
+     * The factor by which "ack" latency may exceed the lowest latency
+     * observed before the window is considered to be queueing and is
+     * reduced.
+     */
+    private static final int LATENCY_TOLERANCE = 2;
+
+    /**
+     * The maximum number of unused read buffers retained for reuse.
+     */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    /**
+     * Read buffers of BLOB_SIZE bytes, shared by all filters, which are not
+     * currently in use by any stream.
+     */
+    private static final Queue<byte[]> bufferPool = new ConcurrentLinkedQueue<byte[]>();
+
+    /**
+     * Instruction buffers of INSTRUCTION_SIZE characters, shared by all
+     * filters, which are not currently in use by any stream.
+     */
+    private static final Queue<char[]> instructionPool = new ConcurrentLinkedQueue<char[]>();
+
+    /**
+     * The upload window of each intercepted stream, by stream index.
+     */
+    private final ConcurrentMap<String, UploadWindow> windows =
+            new ConcurrentHashMap<String, UploadWindow>();
+
+    /**
+     * The state of a single intercepted stream, tracking the blobs sent but
+     * not yet acknowledged. All access must be synchronized on the window.
+     */
+    private static class UploadWindow {
+
+        /**
+         * The stream whose blobs are tracked.
+         */
+        private final InterceptedStream<InputStream> stream;
+
+        /**
+         * The buffer into which each blob is read, or null if this window
+         * has been released.
+         */
+        private byte[] buffer;
+
+        /**
+         * The buffer into which each "blob" instruction is serialized, or
+         * null if this window has been released.
+         */
+        private char[] instruction;
+
+        /**
+         * The times at which each blob in flight was sent, in nanoseconds,
+         * oldest first.
+         */
+        private final Queue<Long> sendTimes = new LinkedList<Long>();
+
+        /**
+         * The number of blobs which may currently be in flight.
+         */
+        private int size = INITIAL_WINDOW;
+
+        /**
+         * The lowest "ack" latency observed, in nanoseconds, or zero if no
+         * "ack" has yet been received.
+         */
+        private long minLatency = 0;
+
+        /**
+         * Whether the end of the stream has been reached.
+         */
+        private boolean eof = false;
+
+        /**
+         * Creates a new UploadWindow for the given stream, borrowing read and
+         * instruction buffers from the shared pools.
+         *
+         * @param stream
+         *     The stream whose blobs should be tracked.
+         */
+        public UploadWindow(InterceptedStream<InputStream> stream) {
+            this.stream = stream;
+            byte[] pooled = bufferPool.poll();
+            this.buffer = (pooled != null) ? pooled : new byte[BLOB_SIZE];
+            char[] pooledInstruction = instructionPool.poll();
+            this.instruction = (pooledInstruction != null) ? pooledInstruction
+                    : new char[INSTRUCTION_SIZE];
+        }
+
+        /**
+         * Records that a blob has been acknowledged, adjusting the window
+         * size according to the latency of that acknowledgement.
+         */
+        public void acknowledged() {
+
+            Long sent = sendTimes.poll();
+            if (sent == null)
+                return;
+
+            long latency = System.nanoTime() - sent;
+            if (minLatency == 0 || latency < minLatency)
+                minLatency = latency;
+
+            // Grow while the link is not queueing, shrink once it is
+            if (latency <= minLatency * LATENCY_TOLERANCE)
+                size = Math.min(size + 1, MAX_WINDOW);
+            else
+                size = Math.max(size / 2, 1);
+
+        }
+
+        /**
+         * Returns whether another blob may be sent without exceeding the
+         * window.
+         *
+         * @return
+         *     true if another blob may be sent, false otherwise.
+         */
+        public boolean canSend() {
+            return buffer != null && !eof && sendTimes.size() < size;
+        }
+
+        /**
+         * Returns whether all blobs have been sent and acknowledged.
+         *
+         * @return
+         *     true if the stream has ended and no blobs remain in flight,
+         *     false otherwise.
+         */
+        public boolean isComplete() {
+            return eof && sendTimes.isEmpty();
+        }
+
+        /**
+         * Returns the read and instruction buffers of this window to the
+         * shared pools. The window may not be used to send further blobs.
+         */
+        public void release() {
+
+            if (buffer == null)
+                return;
+
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.offer(buffer);
+                instructionPool.offer(instruction);
+            }
+
+            buffer = null;
+            instruction = null;
+
+        }
+
+    }
+
     /**
      * Creates a new InputStreamInterceptingFilter which selectively intercepts
      * "ack" instructions. The required "blob" and "end" instructions will
@@ -60,22 +254,65 @@ public class InputStreamInterceptingFilter
         super(tunnel);
     }
 
+    /**
+     * Copies the given value into the given buffer, returning the offset
+     * immediately following the copied characters.
+     *
+     * @param buffer
+     *     The buffer to copy into.
+     *
+     * @param offset
+     *     The offset within the buffer at which to copy the value.
+     *
+     * @param value
+     *     The value to copy.
+     *
+     * @return
+     *     The offset immediately following the copied value.
+     */
+    private static int append(char[] buffer, int offset, String value) {
+        value.getChars(0, value.length(), buffer, offset);
+        return offset + value.length();
+    }
+
     /**
      * Injects a "blob" instruction into the outbound Guacamole protocol
      * stream, as if sent by the connected client. "blob" instructions are used
-     * to send chunks of data along a stream.
+     * to send chunks of data along a stream. The instruction is serialized
+     * into the given buffer, with its data base64-encoded in place.
      *
      * @param index
      *     The index of the stream that this "blob" instruction relates to.
      *
      * @param blob
-     *     The chunk of data to send within the "blob" instruction.
+     *     The buffer containing the chunk of data to send within the "blob"
+     *     instruction.
+     *
+     * @param length
+     *     The number of bytes of the given buffer to send.
+     *
+     * @param instruction
+     *     The buffer into which the "blob" instruction should be serialized.
      */
-    private void sendBlob(String index, byte[] blob) {
+    private void sendBlob(String index, byte[] blob, int length,
+            char[] instruction) {
+
+        // Serialize opcode and stream index
+        int offset = append(instruction, 0, "4.blob,");
+        offset = append(instruction, offset, Integer.toString(index.length()));
+        instruction[offset++] = '.';
+        offset = append(instruction, offset, index);
+        instruction[offset++] = ',';
+
+        // Encode data directly into the instruction
+        offset = append(instruction, offset,
+                Integer.toString(Base64Codec.getEncodedLength(length)));
+        instruction[offset++] = '.';
+        offset += Base64Codec.encode(blob, 0, length, instruction, offset);
+        instruction[offset++] = ';';
 
         // Send "blob" containing provided data
-        sendInstruction(new GuacamoleInstruction("blob", index,
-            DatatypeConverter.printBase64Binary(blob)));
+        sendInstruction(instruction, 0, offset);
 
     }
 
@@ -92,57 +329,173 @@ public class InputStreamInterceptingFilter
     }
 
     /**
-     * Reads the next chunk of data from the InputStream associated with an
-     * intercepted stream, sending that data as a "blob" instruction over the
-     * GuacamoleTunnel associated with this filter. If the end of the
-     * InputStream is reached, an "end" instruction will automatically be sent.
+     * Reads data from the given stream into the given buffer until the buffer
+     * is full or the end of the stream is reached.
      *
      * @param stream
-     *     The stream from which the next chunk of data should be read.
+     *     The stream to read from.
+     *
+     * @param buffer
+     *     The buffer to read into.
+     *
+     * @return
+     *     The number of bytes read, or -1 if the end of the stream was
+     *     reached before any data was read.
+     *
+     * @throws IOException
+     *     If an error occurs while reading from the stream.
      */
-    private void readNextBlob(InterceptedStream<InputStream> stream) {
+    private int readFully(InputStream stream, byte[] buffer)
+            throws IOException {
 
-        // Read blob from stream if it exists
-        try {
+        int length = 0;
+        while (length < buffer.length) {
 
-            // Read raw data from input stream
-            byte[] blob = new byte[6048];
-            int length = stream.getStream().read(blob);
+            int read = stream.read(buffer, length, buffer.length - length);
+            if (read == -1)
+                return (length == 0) ? -1 : length;
 
-            // End stream if no more data
-            if (length == -1) {
+            length += read;
 
-                // Close stream, send end if the stream is still valid
-                if (closeInterceptedStream(stream))
-                    sendEnd(stream.getIndex());
+        }
 
-                return;
+        return length;
+
+    }
+
+    /**
+     * Closes the stream of the given window and releases that window, sending
+     * an "end" instruction if the stream was still valid.
+     *
+     * @param window
+     *     The window of the stream to end.
+     */
+    private void endStream(UploadWindow window) {
+
+        InterceptedStream<InputStream> stream = window.stream;
+
+        windows.remove(stream.getIndex(), window);
+        window.release();
+
+        // Close stream, send end if the stream is still valid
+        if (closeInterceptedStream(stream))
+            sendEnd(stream.getIndex());
+
+    }
+
+    /**
+     * Reads further chunks of data from the InputStream associated with an
+     * intercepted stream, sending that data as "blob" instructions over the
+     * GuacamoleTunnel associated with this filter until the window of that
+     * stream is full. Once the end of the InputStream is reached and all
+     * blobs have been acknowledged, an "end" instruction will automatically
+     * be sent.
+     *
+     * @param window
+     *     The window of the stream from which data should be read.
+     */
+    private void fillWindow(UploadWindow window) {
+
+        InterceptedStream<InputStream> stream = window.stream;
+
+        synchronized (window) {
+
+            // Read blobs from stream while window allows
+            try {
+
+                while (window.canSend()) {
+
+                    // Read raw data from input stream
+                    byte[] blob = window.buffer;
+                    int length = readFully(stream.getStream(), blob);
+
+                    // Note end of stream, sending end once all blobs are acked
+                    if (length == -1) {
+                        window.eof = true;
+                        break;
+                    }
+
+                    // Inject corresponding "blob" instruction
+                    window.sendTimes.add(System.nanoTime());
+                    sendBlob(stream.getIndex(), blob, length, window.instruction);
+
+                }
+
+                if (window.isComplete())
+                    endStream(window);
 
             }
 
-            // Inject corresponding "blob" instruction
-            sendBlob(stream.getIndex(), Arrays.copyOf(blob, length));
+            // Terminate stream if it cannot be read
+            catch (IOException e) {
+                logger.debug("Unable to read data of intercepted input stream.", e);
+                endStream(window);
+            }
 
         }
 
-        // Terminate stream if it cannot be read
-        catch (IOException e) {
+    }
+
+    /**
+     * Handles the status of a single "ack" instruction, sending yet more blobs
+     * or closing the stream depending on whether the "ack" indicates success
+     * or failure. As sending further blobs requires reading from the
+     * InputStream, this function may block.
+     *
+     * @param window
+     *     The window of the stream that the "ack" instruction relates to.
+     *
+     * @param status
+     *     The status code within the "ack" instruction.
+     *
+     * @param message
+     *     The human-readable message within the "ack" instruction.
+     */
+    private void handleAck(UploadWindow window, String status, String message) {
+
+        InterceptedStream<InputStream> stream = window.stream;
+
+        // Terminate stream if an error is encountered
+        if (!status.equals("0")) {
+
+            // Parse status code as integer
+            int code;
+            try {
+                code = Integer.parseInt(status);
+            }
+
+            // Assume internal error if parsing fails
+            catch (NumberFormatException e) {
+                logger.debug("Translating invalid status code \"{}\" to SERVER_ERROR.", status);
+                code = GuacamoleStatus.SERVER_ERROR.getGuacamoleStatusCode();
+            }
 
-            logger.debug("Unable to read data of intercepted input stream.", e);
+            // Flag error and close stream
+            stream.setStreamError(code, message);
+            synchronized (window) {
+                windows.remove(stream.getIndex(), window);
+                window.release();
+                closeInterceptedStream(stream);
+            }
+            return;
 
-            // Close stream, send end if the stream is still valid
-            if (closeInterceptedStream(stream))
-                sendEnd(stream.getIndex());
+        }
 
+        // Send next blobs
+        synchronized (window) {
+            window.acknowledged();
         }
 
+        fillWindow(window);
+
     }
 
     /**
      * Handles a single "ack" instruction, sending yet more blobs or closing the
      * stream depending on whether the "ack" indicates success or failure. If no
      * InputStream is associated with the stream index within the "ack"
-     * instruction, the instruction is ignored.
+     * instruction, the instruction is ignored. The "ack" is handled
+     * asynchronously, as reading further blobs from the InputStream may block.
      *
      * @param instruction
      *     The "ack" instruction being handled.
@@ -160,33 +513,22 @@ public class InputStreamInterceptingFilter
         if (stream == null)
             return;
 
-        // Pull status code
-        String status = args.get(2);
-
-        // Terminate stream if an error is encountered
-        if (!status.equals("0")) {
+        // Pull corresponding window, ignoring any replaced stream
+        final UploadWindow window = windows.get(index);
+        if (window == null || window.stream != stream)
+            return;
 
-            // Parse status code as integer
-            int code;
-            try {
-                code = Integer.parseInt(status);
-            }
+        // Handle status outside the filtering thread
+        final String message = args.get(1);
+        final String status = args.get(2);
+        execute(new Runnable() {
 
-            // Assume internal error if parsing fails
-            catch (NumberFormatException e) {
-                logger.debug("Translating invalid status code \"{}\" to SERVER_ERROR.", status);
-                code = GuacamoleStatus.SERVER_ERROR.getGuacamoleStatusCode();
+            @Override
+            public void run() {
+                handleAck(window, status, message);
             }
 
-            // Flag error and close stream
-            stream.setStreamError(code, args.get(1));
-            closeInterceptedStream(stream);
-            return;
-
-        }
-
-        // Send next blob
-        readNextBlob(stream);
+        });
 
     }
 
@@ -206,9 +548,34 @@ public class InputStreamInterceptingFilter
     @Override
     protected void handleInterceptedStream(InterceptedStream<InputStream> stream) {
 
-        // Read the first blob. Note that future blobs will be read in response
-        // to received "ack" instructions.
-        readNextBlob(stream);
+        // Replace the window of any previous stream having the same index
+        UploadWindow window = new UploadWindow(stream);
+        UploadWindow previous = windows.put(stream.getIndex(), window);
+        if (previous != null) {
+            synchronized (previous) {
+                previous.release();
+            }
+        }
+
+        // Send the first blobs. Note that future blobs will be sent in
+        // response to received "ack" instructions.
+        fillWindow(window);
+
+    }
+
+    @Override
+    public void closeAllInterceptedStreams() {
+
+        super.closeAllInterceptedStreams();
+
+        // Release all windows of now-closed streams
+        for (UploadWindow window : windows.values()) {
+            synchronized (window) {
+                window.release();
+            }
+        }
+
+        windows.clear();
 
     }
 
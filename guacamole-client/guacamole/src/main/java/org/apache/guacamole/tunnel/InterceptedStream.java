@@ -20,13 +20,20 @@
 package org.apache.guacamole.tunnel;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.protocol.GuacamoleStatus;
 
 /**
  * A simple pairing of the index of an intercepted Guacamole stream with the
  * stream-type object which will produce or consume the data sent over the
- * intercepted Guacamole stream.
+ * intercepted Guacamole stream. Each InterceptedStream also acts as the
+ * future of its own completion: threads may wait for the stream to end via
+ * await(), or may instead register a Listener which is invoked once the
+ * stream has ended.
  *
  * @author Michael Jumper
  * @param <T>
@@ -52,7 +59,39 @@ public class InterceptedStream<T extends Closeable> {
      * if any. If the stream completed successfully, or has not encountered any
      * exception yet, this will be null.
      */
-    private GuacamoleException streamError = null;
+    private volatile GuacamoleException streamError = null;
+
+    /**
+     * Latch which is released once this stream has ended.
+     */
+    private final CountDownLatch completion = new CountDownLatch(1);
+
+    /**
+     * The listeners to invoke once this stream has ended, or null if the
+     * stream has already ended and all listeners have been invoked.
+     */
+    private List<Listener<T>> listeners = new ArrayList<Listener<T>>();
+
+    /**
+     * Listener which is notified when an intercepted stream ends.
+     *
+     * @param <T>
+     *     The type of object which produced or consumed the data sent over
+     *     the intercepted Guacamole stream.
+     */
+    public interface Listener<T extends Closeable> {
+
+        /**
+         * Invoked once the given stream has ended, whether successfully or
+         * due to an error. Implementations should not block, as this function
+         * may be invoked by the thread handling the tunnel.
+         *
+         * @param stream
+         *     The stream which has ended.
+         */
+        void streamEnded(InterceptedStream<T> stream);
+
+    }
 
     /**
      * Creates a new InterceptedStream which associated the given Guacamole
@@ -158,4 +197,89 @@ public class InterceptedStream<T extends Closeable> {
         return streamError;
     }
 
+
+    /**
+     * Marks this stream as ended, releasing all threads blocked within
+     * await() and invoking all registered listeners. Subsequent calls have
+     * no effect.
+     */
+    public void complete() {
+
+        List<Listener<T>> ended;
+        synchronized (this) {
+
+            // Only the first call has any effect
+            if (listeners == null)
+                return;
+
+            ended = listeners;
+            listeners = null;
+            completion.countDown();
+
+        }
+
+        // Notify listeners outside lock
+        for (Listener<T> listener : ended)
+            listener.streamEnded(this);
+
+    }
+
+    /**
+     * Returns whether this stream has ended.
+     *
+     * @return
+     *     true if this stream has ended, false otherwise.
+     */
+    public boolean isComplete() {
+        return completion.getCount() == 0;
+    }
+
+    /**
+     * Registers a listener to be invoked once this stream has ended. If the
+     * stream has already ended, the listener is invoked immediately within
+     * the current thread.
+     *
+     * @param listener
+     *     The listener to invoke once this stream has ended.
+     */
+    public void addListener(Listener<T> listener) {
+
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+
+        // Stream has already ended
+        listener.streamEnded(this);
+
+    }
+
+    /**
+     * Blocks until this stream has ended.
+     *
+     * @throws InterruptedException
+     *     If the current thread is interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+        completion.await();
+    }
+
+    /**
+     * Blocks until this stream has ended or the given timeout elapses.
+     *
+     * @param timeout
+     *     The maximum number of milliseconds to wait.
+     *
+     * @return
+     *     true if this stream has ended, false if the timeout elapsed first.
+     *
+     * @throws InterruptedException
+     *     If the current thread is interrupted while waiting.
+     */
+    public boolean await(long timeout) throws InterruptedException {
+        return completion.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
 }
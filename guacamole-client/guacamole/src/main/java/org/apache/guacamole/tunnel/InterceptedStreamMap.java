@@ -42,12 +42,6 @@ public class InterceptedStreamMap<T extends Closeable> {
      */
     private static final Logger logger = LoggerFactory.getLogger(InterceptedStreamMap.class);
 
-    /**
-     * The maximum number of milliseconds to wait for notification that a
-     * stream has closed before explicitly checking for closure ourselves.
-     */
-    private static final long STREAM_WAIT_TIMEOUT = 1000;
-
     /**
      * Mapping of the indexes of all streams whose associated "blob" and "end"
      * instructions should be intercepted.
@@ -57,36 +51,34 @@ public class InterceptedStreamMap<T extends Closeable> {
 
     /**
      * Closes the given stream, logging any errors that occur during closure.
-     * The monitor of the stream is notified via a single call to notify() once
-     * the attempt to close has been made.
+     * The stream is marked as ended once the attempt to close has been made,
+     * releasing any threads waiting for the stream and invoking its
+     * listeners.
      *
      * @param stream
-     *     The stream to close and notify.
+     *     The stream to close and complete.
      */
-    private void close(T stream) {
+    private void closeStream(InterceptedStream<T> stream) {
 
         // Attempt to close stream
         try {
-            stream.close();
+            stream.getStream().close();
         }
         catch (IOException e) {
             logger.warn("Unable to close intercepted stream: {}", e.getMessage());
             logger.debug("I/O error prevented closure of intercepted stream.", e);
         }
 
-        // Notify waiting threads that the stream has ended
-        synchronized (stream) {
-            stream.notify();
-        }
+        // Signal that the stream has ended
+        stream.complete();
 
     }
 
     /**
      * Closes the stream object associated with the stream having the given
      * index, if any, removing it from the map, logging any errors that occur
-     * during closure, and unblocking any in-progress calls to waitFor() for
-     * that stream. If no such stream exists within this map, then this
-     * function has no effect.
+     * during closure, and marking that stream as ended. If no such stream
+     * exists within this map, then this function has no effect.
      *
      * @param index
      *     The index of the stream whose associated stream object should be
@@ -104,15 +96,15 @@ public class InterceptedStreamMap<T extends Closeable> {
             return null;
 
         // Close stream if it exists
-        close(stream.getStream());
+        closeStream(stream);
         return stream;
 
     }
 
     /**
      * Closes the given stream, logging any errors that occur during closure,
-     * and unblocking any in-progress calls to waitFor() for the given stream.
-     * If the given stream is stored within this map, it will also be removed.
+     * and marking the given stream as ended. If the given stream is stored
+     * within this map, it will also be removed.
      *
      * @param stream
      *     The stream to close.
@@ -127,7 +119,7 @@ public class InterceptedStreamMap<T extends Closeable> {
         boolean wasRemoved = streams.remove(stream.getIndex(), stream);
 
         // Close provided stream
-        close(stream.getStream());
+        closeStream(stream);
 
         return wasRemoved;
 
@@ -135,45 +127,19 @@ public class InterceptedStreamMap<T extends Closeable> {
 
     /**
      * Removes and closes all streams stored within this map, logging any errors
-     * that occur during closure, and unblocking any in-progress calls to
-     * waitFor().
+     * that occur during closure, and marking each stream as ended.
      */
     public void closeAll() {
 
         // Close any active streams
         for (InterceptedStream<T> stream : streams.values())
-            close(stream.getStream());
+            closeStream(stream);
 
         // Remove now-useless references
         streams.clear();
 
     }
 
-    /**
-     * Blocks until the given stream is closed, or until another stream with
-     * the same index replaces it.
-     *
-     * @param stream
-     *     The stream to wait for.
-     */
-    public void waitFor(InterceptedStream<T> stream) {
-
-        T underlyingStream = stream.getStream();
-
-        // Wait for stream to close
-        synchronized (underlyingStream) {
-            while (streams.get(stream.getIndex()) == stream) {
-                try {
-                    underlyingStream.wait(STREAM_WAIT_TIMEOUT);
-                }
-                catch (InterruptedException e) {
-                    // Ignore
-                }
-            }
-        }
-
-    }
-
     /**
      * Returns the stream stored in this map under the given index.
      *
@@ -204,7 +170,7 @@ public class InterceptedStreamMap<T extends Closeable> {
 
         // If a previous stream DID exist, close it
         if (oldStream != null)
-            close(oldStream.getStream());
+            closeStream(oldStream);
 
     }
 
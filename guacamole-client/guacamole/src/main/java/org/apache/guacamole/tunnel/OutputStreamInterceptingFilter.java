@@ -19,12 +19,13 @@
 
 package org.apache.guacamole.tunnel;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
-import javax.xml.bind.DatatypeConverter;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.protocol.Base64Codec;
 import org.apache.guacamole.protocol.GuacamoleInstruction;
 import org.apache.guacamole.protocol.GuacamoleStatus;
 import org.slf4j.Logger;
@@ -34,7 +35,9 @@ import org.slf4j.LoggerFactory;
  * Filter which selectively intercepts "blob" and "end" instructions,
  * automatically writing to or closing the stream given with
  * interceptStream(). The required "ack" responses to received blobs are
- * sent automatically.
+ * sent automatically. Each blob is decoded while filtering, but is written
+ * to its stream, and then acknowledged, only by the shared executor of
+ * StreamInterceptingFilter.
  *
  * @author Michael Jumper
  */
@@ -47,6 +50,21 @@ public class OutputStreamInterceptingFilter
     private static final Logger logger =
             LoggerFactory.getLogger(OutputStreamInterceptingFilter.class);
 
+    /**
+     * The size of the buffer used to decode received blobs, in bytes. Blobs
+     * are limited by the maximum instruction length accepted by guacd, thus
+     * this buffer is large enough to decode any blob in a single pass, such
+     * that invalid blobs are never partially written.
+     */
+    private static final int DECODE_BUFFER_SIZE = 8192;
+
+    /**
+     * Buffer into which received blobs are decoded before being copied for
+     * writing to their associated OutputStream. Instructions are filtered by
+     * a single reading thread, thus this buffer is reused for every blob.
+     */
+    private final byte[] decodeBuffer = new byte[DECODE_BUFFER_SIZE];
+
     /**
      * Creates a new OutputStreamInterceptingFilter which selectively intercepts
      * "blob" and "end" instructions. The required "ack" responses will
@@ -95,6 +113,9 @@ public class OutputStreamInterceptingFilter
      * dropping the "blob" instruction such that the client never receives
      * it. If no OutputStream is associated with the stream index within
      * the "blob" instruction, the instruction is passed through untouched.
+     * The data is decoded immediately, as the instruction is valid only
+     * while being filtered, but is written to the OutputStream and
+     * acknowledged asynchronously.
      *
      * @param instruction
      *     The "blob" instruction being handled.
@@ -112,42 +133,53 @@ public class OutputStreamInterceptingFilter
             return instruction;
 
         // Pull associated stream
-        String index = args.get(0);
-        InterceptedStream<OutputStream> stream = getInterceptedStream(index);
+        final String index = args.get(0);
+        final InterceptedStream<OutputStream> stream = getInterceptedStream(index);
         if (stream == null)
             return instruction;
 
-        // Decode blob
-        byte[] blob;
+        // Decode blob from received data before that data is reused
+        final ByteArrayOutputStream blob = new ByteArrayOutputStream(
+                Base64Codec.getMaxDecodedLength(args.get(1).length()));
         try {
-            String data = args.get(1);
-            blob = DatatypeConverter.parseBase64Binary(data);
+            Base64Codec.decode(instruction, 1, blob, decodeBuffer);
         }
         catch (IllegalArgumentException e) {
             logger.warn("Received base64 data for intercepted stream was invalid.");
             logger.debug("Decoding base64 data for intercepted stream failed.", e);
             return null;
         }
-
-        // Attempt to write data to stream
-        try {
-            stream.getStream().write(blob);
-            sendAck(index, "OK", GuacamoleStatus.SUCCESS);
-        }
         catch (IOException e) {
-            sendAck(index, "FAIL", GuacamoleStatus.SERVER_ERROR);
-            logger.debug("Write failed for intercepted stream.", e);
+            throw new IllegalStateException("Decoding to memory cannot fail.", e);
         }
 
+        // Write decoded data, which may block, outside the filtering thread
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    blob.writeTo(stream.getStream());
+                    sendAck(index, "OK", GuacamoleStatus.SUCCESS);
+                }
+                catch (IOException e) {
+                    sendAck(index, "FAIL", GuacamoleStatus.SERVER_ERROR);
+                    logger.debug("Write failed for intercepted stream.", e);
+                }
+            }
+
+        });
+
         // Instruction was handled purely internally
         return null;
 
     }
 
     /**
-     * Handles a single "end" instruction, closing the associated
-     * OutputStream. If no OutputStream is associated with the stream index
-     * within the "end" instruction, this function has no effect.
+     * Handles a single "end" instruction, asynchronously closing the
+     * associated OutputStream once all previously-received blobs have been
+     * written. If no OutputStream is associated with the stream index within
+     * the "end" instruction, this function has no effect.
      *
      * @param instruction
      *     The "end" instruction being handled.
@@ -159,8 +191,16 @@ public class OutputStreamInterceptingFilter
         if (args.size() < 1)
             return;
 
-        // Terminate stream
-        closeInterceptedStream(args.get(0));
+        // Terminate stream only after all data received has been written
+        final String index = args.get(0);
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                closeInterceptedStream(index);
+            }
+
+        });
 
     }
 
@@ -0,0 +1,444 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.tunnel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The contents of an intercepted download, spooled to a temporary file as
+ * quickly as guacd sends it. Clients are served from the file, following the
+ * spooled data while the download is still in progress, such that a slow
+ * client never holds the underlying Guacamole stream open. Spooled files are
+ * retained after the download completes, allowing interrupted downloads to
+ * be resumed with range requests, until deleted by StreamSpoolService.
+ */
+public class SpooledStream {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(SpooledStream.class);
+
+    /**
+     * The temporary file receiving the spooled data.
+     */
+    private final File file;
+
+    /**
+     * The HTTP entity tag uniquely identifying this spooled download, such
+     * that a range request for a different download having the same stream
+     * index can be detected.
+     */
+    private final String entityTag = "\"" + UUID.randomUUID().toString() + "\"";
+
+    /**
+     * The total number of bytes currently spooled across all spooled
+     * streams, shared with all other streams using the same quota.
+     */
+    private final AtomicLong spooledBytes;
+
+    /**
+     * The maximum number of bytes which may be spooled across all spooled
+     * streams sharing spooledBytes.
+     */
+    private final long quota;
+
+    /**
+     * The OutputStream which writes to the spooled file.
+     */
+    private final OutputStream output;
+
+    /**
+     * The number of bytes spooled thus far.
+     */
+    private long length = 0;
+
+    /**
+     * Whether the intercepted stream has ended.
+     */
+    private boolean complete = false;
+
+    /**
+     * The error which prevented the intercepted stream from completing
+     * successfully, if any.
+     */
+    private GuacamoleException error = null;
+
+    /**
+     * The time at which the intercepted stream ended or this stream was last
+     * served, whichever is later, in milliseconds.
+     */
+    private long lastAccessedTime = System.currentTimeMillis();
+
+    /**
+     * The number of clients currently being served from the spooled file.
+     */
+    private int readers = 0;
+
+    /**
+     * Whether the spooled file should be deleted once all clients have been
+     * served.
+     */
+    private boolean deleted = false;
+
+    /**
+     * OutputStream which writes to the spooled file, reserving space within
+     * the shared quota before each write and waking clients waiting for
+     * further data after each write.
+     */
+    private class SpoolOutputStream extends OutputStream {
+
+        /**
+         * The stream writing to the spooled file.
+         */
+        private final FileOutputStream file;
+
+        /**
+         * Creates a new SpoolOutputStream which writes to the given file.
+         *
+         * @param file
+         *     The stream writing to the spooled file.
+         */
+        public SpoolOutputStream(FileOutputStream file) {
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count)
+                throws IOException {
+
+            // Reserve space within quota, refusing data beyond the quota
+            if (spooledBytes.addAndGet(count) > quota) {
+                spooledBytes.addAndGet(-count);
+                throw new IOException("Download spool quota exceeded.");
+            }
+
+            try {
+                file.write(buffer, offset, count);
+            }
+            catch (IOException e) {
+                spooledBytes.addAndGet(-count);
+                throw e;
+            }
+
+            // Wake any clients waiting for this data, returning the reserved
+            // space if the file was deleted while writing
+            synchronized (SpooledStream.this) {
+                if (deleted)
+                    spooledBytes.addAndGet(-count);
+                else
+                    length += count;
+                SpooledStream.this.notifyAll();
+            }
+
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+    }
+
+    /**
+     * Creates a new SpooledStream which spools data into the given file,
+     * counting all spooled data against the given quota.
+     *
+     * @param file
+     *     The temporary file which should receive the spooled data.
+     *
+     * @param spooledBytes
+     *     The total number of bytes currently spooled across all streams
+     *     sharing the given quota.
+     *
+     * @param quota
+     *     The maximum number of bytes which may be spooled across all
+     *     streams sharing spooledBytes.
+     *
+     * @throws IOException
+     *     If the given file cannot be opened for writing.
+     */
+    public SpooledStream(File file, AtomicLong spooledBytes, long quota)
+            throws IOException {
+        this.file = file;
+        this.spooledBytes = spooledBytes;
+        this.quota = quota;
+        this.output = new SpoolOutputStream(new FileOutputStream(file));
+    }
+
+    /**
+     * Returns the HTTP entity tag uniquely identifying this spooled download,
+     * including its surrounding quotes.
+     *
+     * @return
+     *     The entity tag of this spooled download.
+     */
+    public String getEntityTag() {
+        return entityTag;
+    }
+
+    /**
+     * Returns the OutputStream which writes to the spooled file. This stream
+     * should receive the data of the intercepted download.
+     *
+     * @return
+     *     The OutputStream which writes to the spooled file.
+     */
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Marks the intercepted download as ended, waking all clients waiting
+     * for further data.
+     *
+     * @param error
+     *     The error which prevented the download from completing
+     *     successfully, or null if the download completed successfully.
+     */
+    public synchronized void complete(GuacamoleException error) {
+        this.error = error;
+        this.complete = true;
+        this.lastAccessedTime = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Blocks until the intercepted download has ended, returning the total
+     * number of bytes spooled.
+     *
+     * @return
+     *     The total length of the download, in bytes.
+     *
+     * @throws GuacamoleException
+     *     If the download did not complete successfully, or the current
+     *     thread is interrupted while waiting.
+     */
+    public synchronized long awaitCompletion() throws GuacamoleException {
+
+        try {
+            while (!complete)
+                wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GuacamoleServerException("Interrupted while spooling download.", e);
+        }
+
+        if (error != null)
+            throw error;
+
+        return length;
+
+    }
+
+    /**
+     * Blocks until more than the given number of bytes have been spooled or
+     * the download has ended, returning the number of bytes spooled.
+     *
+     * @param position
+     *     The number of bytes already served.
+     *
+     * @return
+     *     The number of bytes spooled, which will be greater than the given
+     *     position unless the download has ended.
+     *
+     * @throws IOException
+     *     If the download ended with an error before the given position was
+     *     exceeded, or the current thread is interrupted while waiting.
+     */
+    private synchronized long awaitData(long position) throws IOException {
+
+        try {
+            while (length <= position && !complete)
+                wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for spooled data.", e);
+        }
+
+        if (length <= position && error != null)
+            throw new IOException("Download failed.", error);
+
+        return length;
+
+    }
+
+    /**
+     * Transfers the spooled data within the given range to the given channel,
+     * waiting for data which has not yet been spooled. If the end of the
+     * range is unspecified, data is transferred until the download ends.
+     *
+     * @param position
+     *     The offset of the first byte to transfer.
+     *
+     * @param end
+     *     The offset immediately following the last byte to transfer, or -1
+     *     to transfer all data until the download ends.
+     *
+     * @param target
+     *     The channel to transfer data to.
+     *
+     * @throws IOException
+     *     If the spooled file cannot be read, the channel cannot be written,
+     *     or the download fails before the requested data is spooled.
+     */
+    public void transferTo(long position, long end, WritableByteChannel target)
+            throws IOException {
+
+        RandomAccessFile spool = new RandomAccessFile(file, "r");
+        try {
+
+            FileChannel channel = spool.getChannel();
+            while (end == -1 || position < end) {
+
+                // Wait for further data, stopping once the download has ended
+                long available = awaitData(position);
+                if (available <= position)
+                    break;
+
+                if (end != -1)
+                    available = Math.min(available, end);
+
+                position += channel.transferTo(position, available - position, target);
+
+            }
+
+        }
+        finally {
+            spool.close();
+        }
+
+    }
+
+    /**
+     * Registers a client as being served from the spooled file, preventing
+     * deletion of that file until release() is invoked.
+     *
+     * @return
+     *     true if the client may be served from the spooled file, false if
+     *     the file has already been deleted.
+     */
+    public synchronized boolean acquire() {
+
+        if (deleted)
+            return false;
+
+        readers++;
+        lastAccessedTime = System.currentTimeMillis();
+        return true;
+
+    }
+
+    /**
+     * Unregisters a client previously registered with acquire(), deleting the
+     * spooled file if deletion was requested while that client was served.
+     */
+    public void release() {
+
+        synchronized (this) {
+            readers--;
+            lastAccessedTime = System.currentTimeMillis();
+            if (!deleted || readers > 0)
+                return;
+        }
+
+        deleteFile();
+
+    }
+
+    /**
+     * Returns whether the download has ended and no client has been served
+     * from the spooled file for at least the given amount of time.
+     *
+     * @param retention
+     *     The number of milliseconds that spooled files should be retained
+     *     after last being accessed.
+     *
+     * @return
+     *     true if this stream has expired, false otherwise.
+     */
+    public synchronized boolean isExpired(long retention) {
+        return complete && readers == 0
+                && System.currentTimeMillis() - lastAccessedTime >= retention;
+    }
+
+    /**
+     * Deletes the spooled file, returning its space to the shared quota. If
+     * clients are currently being served from the file, deletion is deferred
+     * until those clients have been served. The intercepted download, if
+     * still in progress, will fail once it attempts to write further data.
+     */
+    public void delete() {
+
+        synchronized (this) {
+            if (deleted)
+                return;
+            deleted = true;
+            if (readers > 0)
+                return;
+        }
+
+        deleteFile();
+
+    }
+
+    /**
+     * Closes and deletes the spooled file, returning its space to the shared
+     * quota.
+     */
+    private void deleteFile() {
+
+        try {
+            output.close();
+        }
+        catch (IOException e) {
+            logger.debug("Unable to close spooled download.", e);
+        }
+
+        if (!file.delete() && file.exists())
+            logger.warn("Unable to delete spooled download \"{}\".", file);
+
+        synchronized (this) {
+            spooledBytes.addAndGet(-length);
+            length = 0;
+        }
+
+    }
+
+}
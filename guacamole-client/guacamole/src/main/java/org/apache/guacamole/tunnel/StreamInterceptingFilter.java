@@ -20,9 +20,17 @@
 package org.apache.guacamole.tunnel;
 
 import java.io.Closeable;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
 import org.apache.guacamole.io.GuacamoleWriter;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.WriterPriority;
 import org.apache.guacamole.protocol.GuacamoleFilter;
 import org.apache.guacamole.protocol.GuacamoleInstruction;
 import org.slf4j.Logger;
@@ -34,6 +42,12 @@ import org.slf4j.LoggerFactory;
  * interceptStream(). Any instructions required by the Guacamole protocol to be
  * sent in response to intercepted instructions will be sent automatically.
  *
+ * Instructions may be filtered by a thread shared by many tunnels, such as
+ * that of a GuacamoleReaderEventLoop, thus reading or writing the intercepted
+ * streams, which may block indefinitely, is never done while filtering.
+ * Such work is instead handed to a shared pool of threads via execute(),
+ * running in order for each filter.
+ *
  * @param <T>
  *     The type of object which will produce or consume the data sent over the
  *     intercepted Guacamole stream. Usually, this will be either InputStream
@@ -48,6 +62,64 @@ public abstract class StreamInterceptingFilter<T extends Closeable>
     private static final Logger logger =
             LoggerFactory.getLogger(StreamInterceptingFilter.class);
 
+    /**
+     * Executor shared by all filters for reading from and writing to
+     * intercepted streams.
+     */
+    private static final ExecutorService streamExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "guacamole-intercepted-stream");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    /**
+     * Tasks passed to execute() which have not yet run, in the order they
+     * must run. All access must be synchronized on this queue.
+     */
+    private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+    /**
+     * Whether a thread of the shared executor is currently running the tasks
+     * of this filter. All access must be synchronized on the task queue.
+     */
+    private boolean running = false;
+
+    /**
+     * Runs all queued tasks of this filter in order until none remain.
+     */
+    private final Runnable taskRunner = new Runnable() {
+
+        @Override
+        public void run() {
+            for (;;) {
+
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    logger.error("Intercepted stream task failed unexpectedly.", e);
+                }
+
+            }
+        }
+
+    };
+
     /**
      * Mapping of the all streams whose related instructions should be
      * intercepted.
@@ -84,8 +156,10 @@ public abstract class StreamInterceptingFilter<T extends Closeable>
      */
     protected void sendInstruction(GuacamoleInstruction instruction) {
 
-        // Temporarily acquire writer to send "ack" instruction
-        GuacamoleWriter writer = tunnel.acquireWriter();
+        // Temporarily acquire writer to send "ack" instruction, yielding to
+        // any more urgent data, such as user input
+        GuacamoleWriter writer = WriterPriority.acquireWriter(tunnel,
+                WriterPriority.forOpcode(instruction.getOpcode()));
 
         // Send successful "ack"
         try {
@@ -101,6 +175,72 @@ public abstract class StreamInterceptingFilter<T extends Closeable>
 
     }
 
+    /**
+     * Injects an already-serialized Guacamole instruction into the outbound
+     * Guacamole protocol stream (GuacamoleWriter) of the tunnel associated
+     * with this StreamInterceptingFilter, as if the instruction was sent by
+     * the connected client. The given characters are written as-is, allowing
+     * large instructions to be serialized into reusable buffers.
+     *
+     * @param instruction
+     *     The buffer containing the complete, serialized instruction.
+     *
+     * @param offset
+     *     The offset of the first character of the instruction.
+     *
+     * @param length
+     *     The number of characters in the instruction.
+     */
+    protected void sendInstruction(char[] instruction, int offset, int length) {
+
+        // Temporarily acquire writer to send instruction, yielding to any
+        // more urgent data, such as user input
+        GuacamoleWriter writer = WriterPriority.acquireWriter(tunnel,
+                WriterPriority.forMessage(instruction, offset, length));
+
+        try {
+            writer.write(instruction, offset, length);
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Unable to send serialized instruction for intercepted stream.", e);
+        }
+
+        // Done writing
+        tunnel.releaseWriter();
+
+    }
+
+    /**
+     * Runs the given task using a thread of the shared executor, after all
+     * tasks previously passed to this function for this filter have run.
+     * Any work which may block, such as reading from or writing to an
+     * intercepted stream, must be done through this function rather than
+     * within filter().
+     *
+     * @param task
+     *     The task to run.
+     */
+    protected void execute(Runnable task) {
+
+        synchronized (tasks) {
+            tasks.add(task);
+            if (running)
+                return;
+            running = true;
+        }
+
+        try {
+            streamExecutor.execute(taskRunner);
+        }
+
+        // Run tasks on the current thread rather than losing stream data
+        catch (RejectedExecutionException e) {
+            logger.debug("Running intercepted stream tasks on filtering thread.", e);
+            taskRunner.run();
+        }
+
+    }
+
     /**
      * Returns the stream having the given index and currently being intercepted
      * by this filter.
@@ -155,9 +295,9 @@ public abstract class StreamInterceptingFilter<T extends Closeable>
     /**
      * Begins handling the data of the given intercepted stream. This function
      * will automatically be invoked by interceptStream() for any valid stream.
-     * It is not required that this function block until all data is handled;
-     * interceptStream() will do this automatically. Implementations are free
-     * to use asynchronous approaches to data handling.
+     * This function should not block until all data is handled; the end of
+     * the stream is signalled when the stream is closed, and implementations
+     * should handle data asynchronously as stream instructions are received.
      *
      * @param stream
      *     The stream being intercepted.
@@ -165,11 +305,12 @@ public abstract class StreamInterceptingFilter<T extends Closeable>
     protected abstract void handleInterceptedStream(InterceptedStream<T> stream);
 
     /**
-     * Intercept the stream having the given index, producing or consuming its
-     * data as appropriate. The given stream object will automatically be closed
-     * when the stream ends. If there is no stream having the given index, then
-     * the stream object will be closed immediately. This function will block
-     * until all data has been handled and the stream is ended.
+     * Begins intercepting the stream having the given index, producing or
+     * consuming its data as appropriate, without waiting for the stream to
+     * end. The transfer is driven entirely by the "blob", "ack", and "end"
+     * instructions of the stream as they pass through this filter. The given
+     * stream object will automatically be closed when the stream ends. If the
+     * tunnel is not open, the returned stream will already have ended.
      *
      * @param index
      *     The index of the stream to intercept.
@@ -178,11 +319,12 @@ public abstract class StreamInterceptingFilter<T extends Closeable>
      *     The stream object which will produce or consume all data for the
      *     stream having the given index.
      *
-     * @throws GuacamoleException
-     *     If an error occurs while intercepting the stream, or if the stream
-     *     itself reports an error.
+     * @return
+     *     The intercepted stream, which may be used to wait for or be notified
+     *     of the end of the stream, and to retrieve any error which prevented
+     *     the stream from completing successfully.
      */
-    public void interceptStream(int index, T stream) throws GuacamoleException {
+    public InterceptedStream<T> interceptStreamAsync(int index, T stream) {
 
         InterceptedStream<T> interceptedStream;
         String indexString = Integer.toString(index);
@@ -190,23 +332,58 @@ public abstract class StreamInterceptingFilter<T extends Closeable>
         // Atomically verify tunnel is open and add the given stream
         synchronized (tunnel) {
 
-            // Do nothing if tunnel is not open
-            if (!tunnel.isOpen())
-                return;
-
             // Wrap stream
             interceptedStream = new InterceptedStream<T>(indexString, stream);
 
+            // Do nothing if tunnel is not open
+            if (!tunnel.isOpen()) {
+                interceptedStream.complete();
+                return interceptedStream;
+            }
+
             // Replace any existing stream
             streams.put(interceptedStream);
 
         }
 
-        // Produce/consume all stream data
+        // Begin producing/consuming stream data
         handleInterceptedStream(interceptedStream);
+        return interceptedStream;
 
-        // Wait for stream to close
-        streams.waitFor(interceptedStream);
+    }
+
+    /**
+     * Intercept the stream having the given index, producing or consuming its
+     * data as appropriate. The given stream object will automatically be closed
+     * when the stream ends. If there is no stream having the given index, then
+     * the stream object will be closed immediately. This function will block
+     * until all data has been handled and the stream is ended.
+     *
+     * @param index
+     *     The index of the stream to intercept.
+     *
+     * @param stream
+     *     The stream object which will produce or consume all data for the
+     *     stream having the given index.
+     *
+     * @throws GuacamoleException
+     *     If an error occurs while intercepting the stream, or if the stream
+     *     itself reports an error.
+     */
+    public void interceptStream(int index, T stream) throws GuacamoleException {
+
+        InterceptedStream<T> interceptedStream = interceptStreamAsync(index, stream);
+
+        // Wait for stream to end
+        try {
+            interceptedStream.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeInterceptedStream(interceptedStream);
+            throw new GuacamoleServerException("Interrupted while waiting "
+                    + "for intercepted stream to end.", e);
+        }
 
         // Throw any asynchronously-provided exception
         if (interceptedStream.hasStreamError())
@@ -21,6 +21,7 @@ package org.apache.guacamole.tunnel;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.InputStream;
 import java.io.OutputStream;
 import org.apache.guacamole.GuacamoleException;
@@ -28,6 +29,7 @@ import org.apache.guacamole.io.GuacamoleReader;
 import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
 import org.apache.guacamole.net.GuacamoleTunnel;
 import org.apache.guacamole.protocol.FilteredGuacamoleReader;
+import org.apache.guacamole.protocol.GuacamoleFilterChain;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +60,8 @@ public class StreamInterceptingTunnel extends DelegatingGuacamoleTunnel {
      */
     public StreamInterceptingTunnel(GuacamoleTunnel tunnel) {
         super(tunnel);
+        filterChain.addFilter(inputStreamFilter, "ack");
+        filterChain.addFilter(outputStreamFilter, "blob", "end");
     }
 
     /**
@@ -72,6 +76,12 @@ public class StreamInterceptingTunnel extends DelegatingGuacamoleTunnel {
     private final OutputStreamInterceptingFilter outputStreamFilter =
             new OutputStreamInterceptingFilter(this);
 
+    /**
+     * The chain of all filters applied to instructions read from this
+     * tunnel, each invoked only for the opcodes it handles.
+     */
+    private final GuacamoleFilterChain filterChain = new GuacamoleFilterChain();
+
     /**
      * Intercept all data received along the stream having the given index,
      * writing that data to the given OutputStream. The OutputStream will
@@ -146,16 +156,106 @@ public class StreamInterceptingTunnel extends DelegatingGuacamoleTunnel {
 
     }
 
-    @Override
-    public GuacamoleReader acquireReader() {
+    /**
+     * Returns a listener which logs the end of the given intercepted stream
+     * of this tunnel.
+     *
+     * @param <T>
+     *     The type of object producing or consuming the stream data.
+     *
+     * @param direction
+     *     A human-readable description of the direction of the stream,
+     *     either "input" or "output".
+     *
+     * @return
+     *     A listener which logs the end of an intercepted stream.
+     */
+    private <T extends Closeable> InterceptedStream.Listener<T> getEndLogger(
+            final String direction) {
+
+        return new InterceptedStream.Listener<T>() {
+
+            @Override
+            public void streamEnded(InterceptedStream<T> stream) {
+                logger.debug("Intercepted {} stream #{} of tunnel \"{}\" ended.",
+                        direction, stream.getIndex(), getUUID());
+            }
+
+        };
+
+    }
+
+    /**
+     * Begins intercepting all data received along the stream having the given
+     * index, writing that data to the given OutputStream as it is received.
+     * Unlike interceptStream(), this function does not wait for the stream
+     * to end. The OutputStream will automatically be closed when the stream
+     * ends, at which point the returned stream is marked as ended.
+     *
+     * @param index
+     *     The index of the stream to intercept.
+     *
+     * @param stream
+     *     The OutputStream to write all intercepted data to.
+     *
+     * @return
+     *     The intercepted stream, which may be used to wait for or be notified
+     *     of the end of the stream.
+     */
+    public InterceptedStream<OutputStream> interceptStreamAsync(int index,
+            OutputStream stream) {
+
+        // Log beginning of intercepted stream
+        logger.debug("Intercepting output stream #{} of tunnel \"{}\".",
+                index, getUUID());
 
-        GuacamoleReader reader = super.acquireReader();
+        InterceptedStream<OutputStream> interceptedStream =
+                outputStreamFilter.interceptStreamAsync(index, new BufferedOutputStream(stream));
+
+        // Log end of intercepted stream
+        interceptedStream.addListener(this.<OutputStream>getEndLogger("output"));
+        return interceptedStream;
 
-        // Filter both input and output streams
-        reader = new FilteredGuacamoleReader(reader, inputStreamFilter);
-        reader = new FilteredGuacamoleReader(reader, outputStreamFilter);
+    }
+
+    /**
+     * Begins intercepting the given stream, writing the contents of the given
+     * InputStream as blobs as each previous blob is acknowledged. Unlike
+     * interceptStream(), this function does not wait for the stream to end.
+     * The stream will automatically end when the end of the InputStream is
+     * reached, at which point the returned stream is marked as ended.
+     *
+     * @param index
+     *     The index of the stream to intercept.
+     *
+     * @param stream
+     *     The InputStream to read all blobs data from.
+     *
+     * @return
+     *     The intercepted stream, which may be used to wait for or be notified
+     *     of the end of the stream.
+     */
+    public InterceptedStream<InputStream> interceptStreamAsync(int index,
+            InputStream stream) {
+
+        // Log beginning of intercepted stream
+        logger.debug("Intercepting input stream #{} of tunnel \"{}\".",
+                index, getUUID());
+
+        InterceptedStream<InputStream> interceptedStream =
+                inputStreamFilter.interceptStreamAsync(index, new BufferedInputStream(stream));
+
+        // Log end of intercepted stream
+        interceptedStream.addListener(this.<InputStream>getEndLogger("input"));
+        return interceptedStream;
+
+    }
+
+    @Override
+    public GuacamoleReader acquireReader() {
 
-        return reader;
+        // Filter both input and output streams in a single pass
+        return new FilteredGuacamoleReader(super.acquireReader(), filterChain);
 
     }
 
@@ -0,0 +1,565 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.tunnel;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.guacamole.GuacamoleClientException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerBusyException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.properties.BooleanGuacamoleProperty;
+import org.apache.guacamole.properties.FileGuacamoleProperty;
+import org.apache.guacamole.properties.IntegerGuacamoleProperty;
+import org.apache.guacamole.properties.LongGuacamoleProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which spools intercepted downloads and chunked uploads to temporary
+ * files, as configured within guacamole.properties. Spooled streams are
+ * retained for a configurable period after last being accessed, such that
+ * interrupted transfers may be resumed, and the total size of all spooled
+ * streams is limited by a configurable quota.
+ */
+@Singleton
+public class StreamSpoolService {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(StreamSpoolService.class);
+
+    /**
+     * The default maximum number of bytes which may be spooled across all
+     * streams.
+     */
+    private static final long DEFAULT_QUOTA = 1073741824;
+
+    /**
+     * The default number of seconds that spooled streams are retained after
+     * last being accessed.
+     */
+    private static final int DEFAULT_RETENTION = 600;
+
+    /**
+     * Whether downloads should be spooled to temporary files.
+     */
+    private static final BooleanGuacamoleProperty DOWNLOAD_SPOOL_ENABLED =
+            new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "download-spool-enabled"; }
+
+    };
+
+    /**
+     * The directory in which spooled streams should be stored.
+     */
+    private static final FileGuacamoleProperty STREAM_SPOOL_DIRECTORY =
+            new FileGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "stream-spool-directory"; }
+
+    };
+
+    /**
+     * The maximum number of bytes which may be spooled across all streams.
+     */
+    private static final LongGuacamoleProperty STREAM_SPOOL_QUOTA =
+            new LongGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "stream-spool-quota"; }
+
+    };
+
+    /**
+     * The number of seconds that spooled streams are retained after last
+     * being accessed.
+     */
+    private static final IntegerGuacamoleProperty STREAM_SPOOL_RETENTION =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "stream-spool-retention"; }
+
+    };
+
+    /**
+     * Executor service which runs the periodic cleanup task. The thread of
+     * this executor does not prevent the JVM from exiting, and is stopped by
+     * shutdown().
+     */
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "guacamole-stream-spool-cleanup");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    /**
+     * All retained spooled downloads, keyed by tunnel UUID, stream index and
+     * filename.
+     */
+    private final ConcurrentMap<String, SpooledStream> spools =
+            new ConcurrentHashMap<String, SpooledStream>();
+
+    /**
+     * All retained chunked uploads, keyed by tunnel UUID, stream index and
+     * filename.
+     */
+    private final ConcurrentMap<String, UploadSpool> uploads =
+            new ConcurrentHashMap<String, UploadSpool>();
+
+    /**
+     * The total number of bytes currently spooled or reserved across all
+     * downloads and uploads.
+     */
+    private final AtomicLong spooledBytes = new AtomicLong();
+
+    /**
+     * Whether downloads should be spooled to temporary files.
+     */
+    private final boolean enabled;
+
+    /**
+     * The directory in which spooled streams are stored.
+     */
+    private final File directory;
+
+    /**
+     * The maximum number of bytes which may be spooled across all streams.
+     */
+    private final long quota;
+
+    /**
+     * Creates a new StreamSpoolService configured using the given
+     * environment. Spooled streams will be checked for expiry every minute.
+     *
+     * @param environment
+     *     The environment to use when configuring stream spooling.
+     */
+    @Inject
+    public StreamSpoolService(Environment environment) {
+
+        boolean enabledValue;
+        File directoryValue;
+        long quotaValue;
+        int retentionValue;
+
+        // Read spool configuration from guacamole.properties
+        try {
+            enabledValue = environment.getProperty(DOWNLOAD_SPOOL_ENABLED, false);
+            directoryValue = environment.getProperty(STREAM_SPOOL_DIRECTORY,
+                    new File(System.getProperty("java.io.tmpdir")));
+            quotaValue = environment.getProperty(STREAM_SPOOL_QUOTA, DEFAULT_QUOTA);
+            retentionValue = environment.getProperty(STREAM_SPOOL_RETENTION, DEFAULT_RETENTION);
+        }
+        catch (GuacamoleException e) {
+            logger.error("Unable to read guacamole.properties: {}", e.getMessage());
+            logger.debug("Error while reading stream spool configuration.", e);
+            enabledValue = false;
+            directoryValue = new File(System.getProperty("java.io.tmpdir"));
+            quotaValue = DEFAULT_QUOTA;
+            retentionValue = DEFAULT_RETENTION;
+        }
+
+        this.enabled = enabledValue;
+        this.directory = directoryValue;
+        this.quota = quotaValue;
+
+        if (enabled)
+            logger.info("Downloads will be spooled to \"{}\".", directory);
+
+        // Check for expired spooled streams every minute
+        logger.debug("Spooled streams are limited to {} bytes and retained "
+                + "for {} seconds.", quota, retentionValue);
+        executor.scheduleAtFixedRate(new SpoolCleanupTask(retentionValue * 1000L),
+                1, 1, TimeUnit.MINUTES);
+
+    }
+
+    /**
+     * Task which deletes all spooled downloads and uploads which have
+     * expired.
+     */
+    private class SpoolCleanupTask implements Runnable {
+
+        /**
+         * The number of milliseconds that spooled streams are retained
+         * after last being accessed.
+         */
+        private final long retention;
+
+        /**
+         * Creates a new task which deletes spooled streams which have not
+         * been accessed within the given amount of time.
+         *
+         * @param retention
+         *     The number of milliseconds that spooled streams are retained
+         *     after last being accessed.
+         */
+        public SpoolCleanupTask(long retention) {
+            this.retention = retention;
+        }
+
+        @Override
+        public void run() {
+
+            Iterator<Map.Entry<String, SpooledStream>> entries = spools.entrySet().iterator();
+            while (entries.hasNext()) {
+
+                SpooledStream spool = entries.next().getValue();
+                if (spool.isExpired(retention)) {
+                    entries.remove();
+                    spool.delete();
+                }
+
+            }
+
+            Iterator<Map.Entry<String, UploadSpool>> uploadEntries = uploads.entrySet().iterator();
+            while (uploadEntries.hasNext()) {
+
+                UploadSpool upload = uploadEntries.next().getValue();
+                if (upload.isExpired(retention)) {
+                    uploadEntries.remove();
+                    upload.delete();
+                }
+
+            }
+
+            logger.debug("{} spooled downloads and {} spooled uploads "
+                    + "retained, totalling {} bytes.", spools.size(),
+                    uploads.size(), spooledBytes.get());
+
+        }
+
+    }
+
+    /**
+     * Returns the key under which the spooled download or upload of the given
+     * stream is stored. As stream indices are reused within a tunnel, the
+     * filename of the stream is included, though a later stream may still
+     * reuse both index and filename.
+     *
+     * @param tunnel
+     *     The tunnel containing the stream.
+     *
+     * @param index
+     *     The index of the stream.
+     *
+     * @param filename
+     *     The filename of the stream, as given by the client.
+     *
+     * @return
+     *     The key of the spooled download or upload of the given stream.
+     */
+    private String getKey(StreamInterceptingTunnel tunnel, int index,
+            String filename) {
+        return tunnel.getUUID() + "/" + index + "/" + filename;
+    }
+
+    /**
+     * Returns whether downloads should be spooled to temporary files.
+     *
+     * @return
+     *     true if downloads should be spooled, false otherwise.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the retained spooled download of the given stream, if any.
+     *
+     * @param tunnel
+     *     The tunnel containing the stream.
+     *
+     * @param index
+     *     The index of the stream.
+     *
+     * @param filename
+     *     The filename of the stream, as given by the client.
+     *
+     * @return
+     *     The spooled download of the given stream, or null if the stream
+     *     has not been spooled or its spooled download has expired.
+     */
+    public SpooledStream getSpool(StreamInterceptingTunnel tunnel, int index,
+            String filename) {
+        return spools.get(getKey(tunnel, index, filename));
+    }
+
+    /**
+     * Begins spooling the given stream to a new temporary file, replacing any
+     * previously-spooled download of a stream having the same index and
+     * filename. This function returns immediately; the stream is spooled as
+     * quickly as its data is received.
+     *
+     * @param tunnel
+     *     The tunnel containing the stream.
+     *
+     * @param index
+     *     The index of the stream to spool.
+     *
+     * @param filename
+     *     The filename of the stream, as given by the client.
+     *
+     * @return
+     *     The new spooled download of the given stream.
+     *
+     * @throws GuacamoleException
+     *     If the temporary file cannot be created, or if the spool quota has
+     *     already been reached.
+     */
+    public SpooledStream spool(StreamInterceptingTunnel tunnel, int index,
+            String filename) throws GuacamoleException {
+
+        if (spooledBytes.get() >= quota)
+            throw new GuacamoleServerException("Download spool quota exceeded.");
+
+        // Create temporary file to receive download
+        final SpooledStream spool;
+        try {
+            File file = File.createTempFile("guacamole-download-", ".spool", directory);
+            spool = new SpooledStream(file, spooledBytes, quota);
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Unable to create temporary file for download.", e);
+        }
+
+        // Replace any previous download of the same stream
+        SpooledStream previous = spools.put(getKey(tunnel, index, filename), spool);
+        if (previous != null)
+            previous.delete();
+
+        // Mark spool complete once the intercepted stream ends
+        tunnel.interceptStreamAsync(index, spool.getOutputStream()).addListener(
+                new InterceptedStream.Listener<OutputStream>() {
+
+            @Override
+            public void streamEnded(InterceptedStream<OutputStream> stream) {
+                spool.complete(stream.getStreamError());
+            }
+
+        });
+
+        return spool;
+
+    }
+
+
+    /**
+     * Returns the chunked upload in progress for the given stream, if any.
+     *
+     * @param tunnel
+     *     The tunnel containing the stream.
+     *
+     * @param index
+     *     The index of the stream.
+     *
+     * @param filename
+     *     The filename of the stream, as given by the client.
+     *
+     * @return
+     *     The chunked upload of the given stream, or null if no chunks have
+     *     been received for that stream or its upload has expired.
+     */
+    public UploadSpool getUpload(StreamInterceptingTunnel tunnel, int index,
+            String filename) {
+        return uploads.get(getKey(tunnel, index, filename));
+    }
+
+    /**
+     * Returns the chunked upload of the given length for the given stream,
+     * creating a new upload and reserving space for its entire length if
+     * necessary. An existing upload is resumed only if it has the same
+     * length and is still receiving chunks; otherwise, it is replaced.
+     *
+     * @param tunnel
+     *     The tunnel containing the stream.
+     *
+     * @param index
+     *     The index of the stream.
+     *
+     * @param filename
+     *     The filename of the stream, as given by the client.
+     *
+     * @param length
+     *     The total length of the upload, in bytes.
+     *
+     * @return
+     *     The chunked upload of the given stream.
+     *
+     * @throws GuacamoleException
+     *     If a new upload is required but cannot be created, including if
+     *     insufficient space remains within the spool quota.
+     */
+    private UploadSpool getUpload(StreamInterceptingTunnel tunnel, int index,
+            String filename, long length) throws GuacamoleException {
+
+        if (length < 0)
+            throw new GuacamoleClientException("Upload length must not be negative.");
+
+        String key = getKey(tunnel, index, filename);
+
+        // Resume only the same upload, and only while it is still receiving
+        // chunks, replacing any other upload of the same stream
+        UploadSpool upload = uploads.get(key);
+        if (upload != null && upload.getLength() == length
+                && upload.isResumable())
+            return upload;
+
+        // Reserve space for entire upload
+        if (spooledBytes.addAndGet(length) > quota) {
+            spooledBytes.addAndGet(-length);
+            throw new GuacamoleServerBusyException("Upload spool quota exceeded.");
+        }
+
+        // Create temporary file to receive upload
+        UploadSpool created;
+        try {
+            File file = File.createTempFile("guacamole-upload-", ".spool", directory);
+            created = new UploadSpool(file, length, spooledBytes);
+        }
+        catch (IOException e) {
+            spooledBytes.addAndGet(-length);
+            throw new GuacamoleServerException("Unable to create temporary file for upload.", e);
+        }
+
+        // Use any upload created concurrently by another chunk
+        boolean stored = (upload == null) ? uploads.putIfAbsent(key, created) == null
+                : uploads.replace(key, upload, created);
+
+        if (!stored) {
+            created.delete();
+            return getUpload(tunnel, index, filename, length);
+        }
+
+        // Any replaced upload still being sent is deleted once sent
+        if (upload != null)
+            upload.discard();
+
+        return created;
+
+    }
+
+    /**
+     * Receives a chunk of an upload to the given stream, spooling that chunk
+     * at the given offset. Once every chunk of the upload has been received,
+     * the spooled upload is sent along the stream.
+     *
+     * @param tunnel
+     *     The tunnel containing the stream.
+     *
+     * @param index
+     *     The index of the stream.
+     *
+     * @param filename
+     *     The filename of the stream, as given by the client.
+     *
+     * @param length
+     *     The total length of the upload, in bytes.
+     *
+     * @param offset
+     *     The offset within the upload of the first byte of the chunk.
+     *
+     * @param data
+     *     The InputStream providing the data of the chunk.
+     *
+     * @return
+     *     The chunked upload of the given stream.
+     *
+     * @throws GuacamoleException
+     *     If the chunk is invalid or cannot be spooled, or if the upload
+     *     cannot be created.
+     */
+    public UploadSpool writeChunk(StreamInterceptingTunnel tunnel, int index,
+            String filename, long length, long offset, InputStream data)
+            throws GuacamoleException {
+
+        final String key = getKey(tunnel, index, filename);
+        final UploadSpool upload = getUpload(tunnel, index, filename, length);
+
+        // Send upload once all chunks are received
+        if (upload.write(offset, data)) {
+            tunnel.interceptStreamAsync(index, upload.getInputStream()).addListener(
+                    new InterceptedStream.Listener<InputStream>() {
+
+                @Override
+                public void streamEnded(InterceptedStream<InputStream> stream) {
+
+                    upload.finish(stream.getStreamError());
+
+                    // Delete upload if replaced while being sent
+                    if (uploads.get(key) != upload)
+                        upload.delete();
+
+                }
+
+            });
+        }
+
+        return upload;
+
+    }
+
+    /**
+     * Stops the periodic cleanup task and deletes all spooled downloads and
+     * uploads. This function should be invoked when the web application is
+     * shutting down.
+     */
+    public void shutdown() {
+
+        executor.shutdownNow();
+
+        for (SpooledStream spool : spools.values())
+            spool.delete();
+
+        for (UploadSpool upload : uploads.values())
+            upload.delete();
+
+        spools.clear();
+        uploads.clear();
+
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.tunnel;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.net.TunnelPumpExecutor;
+import org.apache.guacamole.properties.BooleanGuacamoleProperty;
+import org.apache.guacamole.properties.IntegerGuacamoleProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which provides the executor running the read pump of every
+ * WebSocket tunnel, configured within guacamole.properties.
+ */
+@Singleton
+public class TunnelPumpService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(TunnelPumpService.class);
+
+    /**
+     * Whether read pumps should run on virtual threads, if supported by the
+     * JVM. By default, virtual threads are used if supported.
+     */
+    private static final BooleanGuacamoleProperty TUNNEL_PUMP_VIRTUAL_THREADS =
+            new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-pump-virtual-threads"; }
+
+    };
+
+    /**
+     * The maximum number of platform threads which may run read pumps, and
+     * thus the maximum number of simultaneous WebSocket tunnels if virtual
+     * threads are not used. By default, there is no limit.
+     */
+    private static final IntegerGuacamoleProperty TUNNEL_PUMP_MAX_THREADS =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-pump-max-threads"; }
+
+    };
+
+    /**
+     * The Guacamole server environment.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The executor running all read pumps, or null if not yet created.
+     */
+    private TunnelPumpExecutor executor;
+
+    /**
+     * Returns the executor which should run the read pump of every tunnel,
+     * creating that executor if necessary.
+     *
+     * @return
+     *     The executor which should run all read pumps.
+     */
+    public synchronized TunnelPumpExecutor getExecutor() {
+
+        if (executor != null)
+            return executor;
+
+        boolean useVirtualThreads = true;
+        int maxThreads = 0;
+
+        try {
+            useVirtualThreads = environment.getProperty(TUNNEL_PUMP_VIRTUAL_THREADS, true);
+            maxThreads = environment.getProperty(TUNNEL_PUMP_MAX_THREADS, 0);
+        }
+        catch (GuacamoleException e) {
+            logger.error("Unable to read guacamole.properties: {}", e.getMessage());
+            logger.debug("Error reading tunnel pump configuration.", e);
+        }
+
+        executor = new TunnelPumpExecutor("guacamole-tunnel-pump",
+                useVirtualThreads, maxThreads);
+
+        if (executor.isVirtual())
+            logger.info("Tunnel read pumps will run on virtual threads.");
+        else if (maxThreads > 0)
+            logger.info("Tunnel read pumps will run on at most {} platform threads.", maxThreads);
+        else
+            logger.info("Tunnel read pumps will run on platform threads.");
+
+        return executor;
+
+    }
+
+}
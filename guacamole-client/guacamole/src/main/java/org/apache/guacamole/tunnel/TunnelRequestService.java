@@ -22,17 +22,23 @@ package org.apache.guacamole.tunnel;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.util.List;
+import java.util.Map;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleSecurityException;
+import org.apache.guacamole.GuacamoleServerException;
 import org.apache.guacamole.GuacamoleSession;
 import org.apache.guacamole.GuacamoleUnauthorizedException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.net.FlowControlledGuacamoleTunnel;
 import org.apache.guacamole.net.GuacamoleTunnel;
 import org.apache.guacamole.net.auth.Connection;
 import org.apache.guacamole.net.auth.ConnectionGroup;
 import org.apache.guacamole.net.auth.Directory;
 import org.apache.guacamole.net.auth.UserContext;
 import org.apache.guacamole.rest.auth.AuthenticationService;
+import org.apache.guacamole.properties.IntegerGuacamoleProperty;
 import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.apache.guacamole.protocol.SyncFlowControl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,6 +66,39 @@ public class TunnelRequestService {
     @Inject
     private AuthenticationService authenticationService;
 
+    /**
+     * The Guacamole server environment.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * Service providing access to the configured guacd instances.
+     */
+    @Inject
+    private GuacdService guacdService;
+
+    /**
+     * Service limiting the rate at which data is sent to each client.
+     */
+    @Inject
+    private BandwidthLimitService bandwidthLimitService;
+
+    /**
+     * The maximum number of frames a client may leave unacknowledged before
+     * reading from guacd is paused. If zero, frames are tracked without
+     * pausing. If unset, frames are not tracked at all. Values beyond
+     * SyncFlowControl.MAX_TRACKED_FRAMES could never be reached and are
+     * rejected.
+     */
+    private static final IntegerGuacamoleProperty TUNNEL_MAX_FRAME_LAG =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-max-frame-lag"; }
+
+    };
+
     /**
      * Reads and returns the client information provided within the given
      * request.
@@ -116,7 +155,9 @@ public class TunnelRequestService {
     /**
      * Creates a new tunnel using which is connected to the connection or
      * connection group identifier by the given ID. Client information
-     * is specified in the {@code info} parameter.
+     * is specified in the {@code info} parameter. Reading from the tunnel is
+     * limited by the maximum bandwidth of the connection or group and of the
+     * user, if any.
      *
      * @param context
      *     The UserContext associated with the user for whom the tunnel is
@@ -144,6 +185,7 @@ public class TunnelRequestService {
 
         // Create connected tunnel from identifier
         GuacamoleTunnel tunnel = null;
+        Map<String, String> attributes = null;
         switch (type) {
 
             // Connection identifiers
@@ -159,8 +201,12 @@ public class TunnelRequestService {
                     throw new GuacamoleSecurityException("Requested connection is not authorized.");
                 }
 
+                // Connect to guacd while the connection prepares to connect
+                guacdService.prefetch();
+
                 // Connect tunnel
                 tunnel = connection.connect(info);
+                attributes = connection.getAttributes();
                 logger.info("User \"{}\" connected to connection \"{}\".", context.self().getIdentifier(), id);
                 break;
             }
@@ -178,8 +224,12 @@ public class TunnelRequestService {
                     throw new GuacamoleSecurityException("Requested connection group is not authorized.");
                 }
 
+                // Connect to guacd while the group prepares to connect
+                guacdService.prefetch();
+
                 // Connect tunnel
                 tunnel = group.connect(info);
+                attributes = group.getAttributes();
                 logger.info("User \"{}\" connected to group \"{}\".", context.self().getIdentifier(), id);
                 break;
             }
@@ -190,7 +240,16 @@ public class TunnelRequestService {
 
         }
 
-        return tunnel;
+        // Limit bandwidth, if required, closing the tunnel if the limits
+        // cannot be determined
+        try {
+            return bandwidthLimitService.createRateLimitedTunnel(tunnel,
+                    context.self(), attributes);
+        }
+        catch (GuacamoleException e) {
+            tunnel.close();
+            throw e;
+        }
 
     }
 
@@ -300,6 +359,61 @@ public class TunnelRequestService {
         
     }
 
+    /**
+     * Wraps the given tunnel such that reading from guacd pauses while the
+     * client has too many unacknowledged frames, if enabled within
+     * guacamole.properties. If the given tunnel is a UserTunnel, the frame
+     * statistics of the wrapped tunnel are made available through its
+     * getFlowControl() function, and are logged when the tunnel is closed.
+     *
+     * @param tunnel
+     *     The tunnel to wrap.
+     *
+     * @return
+     *     The flow controlled tunnel, or the given tunnel if flow control is
+     *     not enabled.
+     *
+     * @throws GuacamoleException
+     *     If the maximum frame lag cannot be read from guacamole.properties,
+     *     or is outside the range of frame lags which can be enforced.
+     */
+    protected GuacamoleTunnel createFlowControlledTunnel(GuacamoleTunnel tunnel)
+            throws GuacamoleException {
+
+        Integer maxFrameLag = environment.getProperty(TUNNEL_MAX_FRAME_LAG);
+        if (maxFrameLag == null)
+            return tunnel;
+
+        // Reject frame lags which could never be reached
+        if (maxFrameLag < 0 || maxFrameLag > SyncFlowControl.MAX_TRACKED_FRAMES)
+            throw new GuacamoleServerException("Property \""
+                    + TUNNEL_MAX_FRAME_LAG.getName() + "\" must be between 0 "
+                    + "and " + SyncFlowControl.MAX_TRACKED_FRAMES + ".");
+
+        FlowControlledGuacamoleTunnel flowControlledTunnel =
+                new FlowControlledGuacamoleTunnel(tunnel, maxFrameLag) {
+
+            @Override
+            public void close() throws GuacamoleException {
+                try {
+                    super.close();
+                }
+                finally {
+                    logger.debug("Frame statistics of tunnel \"{}\": {}",
+                            getUUID(), getFlowControl());
+                }
+            }
+
+        };
+
+        // Expose frame statistics to those holding the associated tunnel
+        if (tunnel instanceof UserTunnel)
+            ((UserTunnel) tunnel).setFlowControl(flowControlledTunnel.getFlowControl());
+
+        return flowControlledTunnel;
+
+    }
+
     /**
      * Creates a new tunnel using the parameters and credentials present in
      * the given request.
@@ -332,7 +446,17 @@ public class TunnelRequestService {
             GuacamoleTunnel tunnel = createConnectedTunnel(userContext, type, id, info);
 
             // Associate tunnel with session
-            return createAssociatedTunnel(tunnel, authToken, session, userContext, type, id);
+            tunnel = createAssociatedTunnel(tunnel, authToken, session, userContext, type, id);
+
+            // Pause reading while the client lags behind, if enabled,
+            // closing the already-connected tunnel if this fails
+            try {
+                return createFlowControlledTunnel(tunnel);
+            }
+            catch (GuacamoleException e) {
+                tunnel.close();
+                throw e;
+            }
 
         }
 
@@ -0,0 +1,495 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.tunnel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.guacamole.GuacamoleClientException;
+import org.apache.guacamole.GuacamoleClientOverrunException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The contents of an upload received in chunks, spooled to a temporary file
+ * until every chunk has arrived. Chunks are addressed by offset, may arrive
+ * in any order or in parallel, and may be resent if a previous attempt was
+ * interrupted. Once the entire upload has been received, the spooled file is
+ * sent along the intercepted Guacamole stream.
+ */
+public class UploadSpool {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(UploadSpool.class);
+
+    /**
+     * The size of the buffer used to copy each chunk into the spooled file,
+     * in bytes.
+     */
+    private static final int CHUNK_BUFFER_SIZE = 65536;
+
+    /**
+     * The temporary file receiving the spooled data.
+     */
+    private final File file;
+
+    /**
+     * The open spooled file.
+     */
+    private final RandomAccessFile spool;
+
+    /**
+     * The channel of the open spooled file, used for positional writes which
+     * may safely occur in parallel.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The total length of the upload, in bytes.
+     */
+    private final long length;
+
+    /**
+     * The total number of bytes reserved across all spooled streams, from
+     * which the length of this upload is released once deleted.
+     */
+    private final AtomicLong spooledBytes;
+
+    /**
+     * The disjoint ranges of the upload received thus far, as a mapping of
+     * the offset of the first byte of each range to the offset immediately
+     * following its last byte.
+     */
+    private final TreeMap<Long, Long> received = new TreeMap<Long, Long>();
+
+    /**
+     * The number of bytes sent along the intercepted Guacamole stream.
+     */
+    private final AtomicLong sent = new AtomicLong();
+
+    /**
+     * Whether the entire upload has been received and sending has begun.
+     */
+    private boolean sending = false;
+
+    /**
+     * Whether the intercepted Guacamole stream has ended.
+     */
+    private boolean finished = false;
+
+    /**
+     * The error which prevented the intercepted stream from completing
+     * successfully, if any.
+     */
+    private GuacamoleException error = null;
+
+    /**
+     * The time that a chunk was last received or the intercepted stream
+     * ended, whichever is later, in milliseconds.
+     */
+    private long lastAccessedTime = System.currentTimeMillis();
+
+    /**
+     * Whether the spooled file has been deleted.
+     */
+    private boolean deleted = false;
+
+    /**
+     * InputStream which reads the spooled file, counting the bytes sent.
+     */
+    private class SpoolInputStream extends FilterInputStream {
+
+        /**
+         * Creates a new SpoolInputStream which reads the spooled file.
+         *
+         * @throws IOException
+         *     If the spooled file cannot be opened.
+         */
+        public SpoolInputStream() throws IOException {
+            super(new FileInputStream(file));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1)
+                sent.incrementAndGet();
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0)
+                sent.addAndGet(read);
+            return read;
+        }
+
+    }
+
+    /**
+     * Creates a new UploadSpool which spools an upload of the given length
+     * into the given file. Space for the entire upload must already have
+     * been reserved within the given count of spooled bytes.
+     *
+     * @param file
+     *     The temporary file which should receive the spooled data.
+     *
+     * @param length
+     *     The total length of the upload, in bytes.
+     *
+     * @param spooledBytes
+     *     The total number of bytes reserved across all spooled streams,
+     *     including the length of this upload.
+     *
+     * @throws IOException
+     *     If the given file cannot be opened for writing.
+     */
+    public UploadSpool(File file, long length, AtomicLong spooledBytes)
+            throws IOException {
+        this.file = file;
+        this.length = length;
+        this.spooledBytes = spooledBytes;
+        this.spool = new RandomAccessFile(file, "rw");
+        this.channel = spool.getChannel();
+    }
+
+    /**
+     * Returns the total length of the upload.
+     *
+     * @return
+     *     The total length of the upload, in bytes.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Writes the chunk of the upload read from the given InputStream at the
+     * given offset. If the chunk is interrupted, the portion received before
+     * the interruption is retained.
+     *
+     * @param offset
+     *     The offset within the upload of the first byte of the chunk.
+     *
+     * @param data
+     *     The InputStream providing the data of the chunk.
+     *
+     * @return
+     *     true if this chunk completed the upload, in which case the caller
+     *     must begin sending the upload, false otherwise.
+     *
+     * @throws GuacamoleException
+     *     If the chunk lies outside the upload, or cannot be written.
+     */
+    public boolean write(long offset, InputStream data)
+            throws GuacamoleException {
+
+        if (offset < 0 || offset > length)
+            throw new GuacamoleClientException("Chunk offset lies outside upload.");
+
+        byte[] buffer = new byte[CHUNK_BUFFER_SIZE];
+        long position = offset;
+
+        try {
+
+            int read;
+            while ((read = data.read(buffer)) != -1) {
+
+                if (position + read > length)
+                    throw new GuacamoleClientOverrunException("Chunk extends beyond end of upload.");
+
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining())
+                    position += channel.write(chunk, position);
+
+            }
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Chunk could not be spooled.", e);
+        }
+
+        // Record whatever portion of the chunk was written
+        finally {
+            synchronized (this) {
+                lastAccessedTime = System.currentTimeMillis();
+                markReceived(offset, position);
+            }
+        }
+
+        return startSending();
+
+    }
+
+    /**
+     * Records that the given range of the upload has been received, merging
+     * that range with any overlapping or adjacent ranges.
+     *
+     * @param start
+     *     The offset of the first byte received.
+     *
+     * @param end
+     *     The offset immediately following the last byte received.
+     */
+    private synchronized void markReceived(long start, long end) {
+
+        if (start >= end)
+            return;
+
+        // Merge with preceding range, if overlapping
+        Map.Entry<Long, Long> previous = received.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+            received.remove(previous.getKey());
+        }
+
+        // Merge with all following ranges which overlap
+        Map.Entry<Long, Long> next;
+        while ((next = received.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            received.remove(next.getKey());
+        }
+
+        received.put(start, end);
+
+    }
+
+    /**
+     * Returns the total number of bytes of the upload received thus far.
+     *
+     * @return
+     *     The number of bytes received.
+     */
+    public synchronized long getReceived() {
+
+        long total = 0;
+        for (Map.Entry<Long, Long> range : received.entrySet())
+            total += range.getValue() - range.getKey();
+
+        return total;
+
+    }
+
+    /**
+     * Returns the disjoint ranges of the upload received thus far, in order.
+     *
+     * @return
+     *     A list of two-element arrays, each containing the offset of the
+     *     first byte of a received range and the offset immediately following
+     *     its last byte.
+     */
+    public synchronized List<long[]> getReceivedRanges() {
+
+        List<long[]> ranges = new ArrayList<long[]>(received.size());
+        for (Map.Entry<Long, Long> range : received.entrySet())
+            ranges.add(new long[] { range.getKey(), range.getValue() });
+
+        return ranges;
+
+    }
+
+    /**
+     * Marks the upload as being sent if it has been received entirely and is
+     * not yet being sent.
+     *
+     * @return
+     *     true if the upload has been received entirely and should now be
+     *     sent, false if the upload is incomplete or already being sent.
+     */
+    private synchronized boolean startSending() {
+
+        if (sending || deleted || getReceived() < length)
+            return false;
+
+        sending = true;
+        return true;
+
+    }
+
+    /**
+     * Returns a new InputStream which reads the entire spooled upload,
+     * counting the bytes read as sent.
+     *
+     * @return
+     *     A new InputStream which reads the spooled upload.
+     *
+     * @throws GuacamoleException
+     *     If the spooled file cannot be opened.
+     */
+    public InputStream getInputStream() throws GuacamoleException {
+        try {
+            return new SpoolInputStream();
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Spooled upload cannot be read.", e);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the upload sent along the intercepted
+     * Guacamole stream.
+     *
+     * @return
+     *     The number of bytes sent.
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Marks the intercepted Guacamole stream as ended.
+     *
+     * @param error
+     *     The error which prevented the stream from completing successfully,
+     *     or null if the upload completed successfully.
+     */
+    public synchronized void finish(GuacamoleException error) {
+        this.error = error;
+        this.finished = true;
+        this.lastAccessedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns whether the intercepted Guacamole stream has ended.
+     *
+     * @return
+     *     true if the upload has been sent or has failed, false otherwise.
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Returns whether further chunks of this upload may still be received.
+     * Once an upload has been received entirely and is being sent, or has
+     * been deleted, any further chunks must belong to a different upload.
+     *
+     * @return
+     *     true if this upload is still receiving chunks, false otherwise.
+     */
+    public synchronized boolean isResumable() {
+        return !sending && !finished && !deleted;
+    }
+
+    /**
+     * Returns the error which prevented the upload from completing
+     * successfully, if any.
+     *
+     * @return
+     *     The error which prevented the upload from completing successfully,
+     *     or null if no such error has occurred.
+     */
+    public synchronized GuacamoleException getError() {
+        return error;
+    }
+
+    /**
+     * Returns whether this upload has expired: either the upload has been
+     * sent, or no chunk has been received within the given amount of time,
+     * and the upload is not currently being sent.
+     *
+     * @param retention
+     *     The number of milliseconds that uploads are retained after last
+     *     being accessed.
+     *
+     * @return
+     *     true if this upload has expired, false otherwise.
+     */
+    public synchronized boolean isExpired(long retention) {
+        return (finished || !sending)
+                && System.currentTimeMillis() - lastAccessedTime >= retention;
+    }
+
+    /**
+     * Deletes this upload unless it is currently being sent, in which case
+     * the upload is left intact so that sending may complete.
+     *
+     * @return
+     *     true if this upload has been deleted, false if it is being sent.
+     */
+    public boolean discard() {
+
+        synchronized (this) {
+            if (deleted)
+                return true;
+            if (sending && !finished)
+                return false;
+            deleted = true;
+        }
+
+        release();
+        return true;
+
+    }
+
+    /**
+     * Closes and deletes the spooled file, releasing the space reserved for
+     * the upload. Subsequent calls have no effect.
+     */
+    public void delete() {
+
+        synchronized (this) {
+            if (deleted)
+                return;
+            deleted = true;
+        }
+
+        release();
+
+    }
+
+    /**
+     * Closes and deletes the spooled file, releasing the space reserved for
+     * the upload. This function must be invoked only once, after the upload
+     * has been marked as deleted.
+     */
+    private void release() {
+
+        try {
+            spool.close();
+        }
+        catch (IOException e) {
+            logger.debug("Unable to close spooled upload.", e);
+        }
+
+        if (!file.delete() && file.exists())
+            logger.warn("Unable to delete spooled upload \"{}\".", file);
+
+        spooledBytes.addAndGet(-length);
+
+    }
+
+}
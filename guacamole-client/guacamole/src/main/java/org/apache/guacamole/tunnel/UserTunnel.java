@@ -26,6 +26,7 @@ import org.apache.guacamole.net.GuacamoleTunnel;
 import org.apache.guacamole.net.auth.ActiveConnection;
 import org.apache.guacamole.net.auth.Directory;
 import org.apache.guacamole.net.auth.UserContext;
+import org.apache.guacamole.protocol.SyncFlowControl;
 
 /**
  * Tunnel implementation which associates a given tunnel with the UserContext of
@@ -42,6 +43,12 @@ public class UserTunnel extends StreamInterceptingTunnel {
      */
     private final UserContext userContext;
 
+    /**
+     * The frames sent to, and acknowledged by, the client of this tunnel, or
+     * null if the frames of this tunnel are not tracked.
+     */
+    private volatile SyncFlowControl flowControl;
+
     /**
      * Creates a new UserTunnel which wraps the given tunnel, associating it
      * with the given UserContext. The UserContext MUST be from the
@@ -117,4 +124,30 @@ public class UserTunnel extends StreamInterceptingTunnel {
 
     }
 
+    /**
+     * Returns the SyncFlowControl tracking the frames sent to, and
+     * acknowledged by, the client of this tunnel. Its frame lag, peak frame
+     * lag, pause count, and related statistics may be read at any time while
+     * the tunnel is in use. If the frames of this tunnel are not tracked,
+     * as "tunnel-max-frame-lag" is not set, this will be null.
+     *
+     * @return
+     *     The SyncFlowControl tracking the frames of this tunnel, or null if
+     *     the frames of this tunnel are not tracked.
+     */
+    public SyncFlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * Sets the SyncFlowControl tracking the frames sent to, and acknowledged
+     * by, the client of this tunnel.
+     *
+     * @param flowControl
+     *     The SyncFlowControl tracking the frames of this tunnel.
+     */
+    void setFlowControl(SyncFlowControl flowControl) {
+        this.flowControl = flowControl;
+    }
+
 }
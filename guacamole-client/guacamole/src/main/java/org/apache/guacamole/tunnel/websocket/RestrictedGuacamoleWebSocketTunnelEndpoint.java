@@ -21,16 +21,20 @@ package org.apache.guacamole.tunnel.websocket;
 
 import com.google.inject.Provider;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import javax.websocket.EndpointConfig;
 import javax.websocket.HandshakeResponse;
 import javax.websocket.Session;
 import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerEndpointConfig;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReaderEventLoop;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.tunnel.TunnelPumpService;
 import org.apache.guacamole.tunnel.TunnelRequest;
 import org.apache.guacamole.tunnel.TunnelRequestService;
 import org.apache.guacamole.websocket.GuacamoleWebSocketTunnelEndpoint;
+import org.apache.guacamole.websocket.WebSocketSendPolicy;
 
 /**
  * Tunnel implementation which uses WebSocket as a tunnel backend, rather than
@@ -50,6 +54,24 @@ public class RestrictedGuacamoleWebSocketTunnelEndpoint extends GuacamoleWebSock
      */
     private static final String TUNNEL_REQUEST_SERVICE_PROPERTY = "WS_GUAC_TUNNEL_REQUEST_SERVICE";
 
+    /**
+     * Unique string which shall be used to store the event loop which should
+     * read the tunnel, if any.
+     */
+    private static final String EVENT_LOOP_PROPERTY = "WS_GUAC_EVENT_LOOP";
+
+    /**
+     * Unique string which shall be used to store the Executor which should
+     * run the read pump of the tunnel.
+     */
+    private static final String READ_PUMP_EXECUTOR_PROPERTY = "WS_GUAC_READ_PUMP_EXECUTOR";
+
+    /**
+     * Unique string which shall be used to store the policy applied to data
+     * sent to the client.
+     */
+    private static final String SEND_POLICY_PROPERTY = "WS_GUAC_SEND_POLICY";
+
     /**
      * Configurator implementation which stores the requested GuacamoleTunnel
      * within the user properties. The GuacamoleTunnel will be later retrieved
@@ -62,6 +84,24 @@ public class RestrictedGuacamoleWebSocketTunnelEndpoint extends GuacamoleWebSock
          * tunnel requests.
          */
         private final Provider<TunnelRequestService> tunnelRequestServiceProvider;
+
+        /**
+         * Provider which provides instances of the service providing the
+         * event loop shared by all WebSocket tunnels.
+         */
+        private final Provider<WebSocketEventLoopService> eventLoopServiceProvider;
+
+        /**
+         * Provider which provides instances of the service providing the
+         * executor which runs all read pumps.
+         */
+        private final Provider<TunnelPumpService> tunnelPumpServiceProvider;
+
+        /**
+         * Provider which provides instances of the service providing the
+         * policy applied to data sent to all WebSocket clients.
+         */
+        private final Provider<WebSocketSendPolicyService> sendPolicyServiceProvider;
          
         /**
          * Creates a new Configurator which uses the given tunnel request
@@ -71,9 +111,27 @@ public class RestrictedGuacamoleWebSocketTunnelEndpoint extends GuacamoleWebSock
          * @param tunnelRequestServiceProvider
          *     The tunnel request service provider to use for all new
          *     connections.
+         *
+         * @param eventLoopServiceProvider
+         *     The provider of the service which provides the event loop to
+         *     use to read all new connections, if any.
+         *
+         * @param tunnelPumpServiceProvider
+         *     The provider of the service which provides the executor to use
+         *     to run the read pumps of all new connections.
+         *
+         * @param sendPolicyServiceProvider
+         *     The provider of the service which provides the policy to apply
+         *     to data sent over all new connections.
          */
-        public Configurator(Provider<TunnelRequestService> tunnelRequestServiceProvider) {
+        public Configurator(Provider<TunnelRequestService> tunnelRequestServiceProvider,
+                Provider<WebSocketEventLoopService> eventLoopServiceProvider,
+                Provider<TunnelPumpService> tunnelPumpServiceProvider,
+                Provider<WebSocketSendPolicyService> sendPolicyServiceProvider) {
             this.tunnelRequestServiceProvider = tunnelRequestServiceProvider;
+            this.eventLoopServiceProvider = eventLoopServiceProvider;
+            this.tunnelPumpServiceProvider = tunnelPumpServiceProvider;
+            this.sendPolicyServiceProvider = sendPolicyServiceProvider;
         }
         
         @Override
@@ -88,6 +146,13 @@ public class RestrictedGuacamoleWebSocketTunnelEndpoint extends GuacamoleWebSock
             userProperties.clear();
             userProperties.put(TUNNEL_REQUEST_PROPERTY, new WebSocketTunnelRequest(request));
             userProperties.put(TUNNEL_REQUEST_SERVICE_PROPERTY, tunnelRequestServiceProvider.get());
+            userProperties.put(READ_PUMP_EXECUTOR_PROPERTY, tunnelPumpServiceProvider.get().getExecutor());
+            userProperties.put(SEND_POLICY_PROPERTY, sendPolicyServiceProvider.get().getSendPolicy());
+
+            // Store event loop only if enabled
+            GuacamoleReaderEventLoop eventLoop = eventLoopServiceProvider.get().getEventLoop();
+            if (eventLoop != null)
+                userProperties.put(EVENT_LOOP_PROPERTY, eventLoop);
 
         }
         
@@ -114,4 +179,36 @@ public class RestrictedGuacamoleWebSocketTunnelEndpoint extends GuacamoleWebSock
 
     }
 
+    @Override
+    protected GuacamoleReaderEventLoop getEventLoop(Session session,
+            EndpointConfig config) {
+        return (GuacamoleReaderEventLoop) config.getUserProperties().get(EVENT_LOOP_PROPERTY);
+    }
+
+    @Override
+    protected Executor getReadPumpExecutor(Session session,
+            EndpointConfig config) {
+
+        // Use configured executor, if available
+        Executor executor = (Executor) config.getUserProperties().get(READ_PUMP_EXECUTOR_PROPERTY);
+        if (executor != null)
+            return executor;
+
+        return super.getReadPumpExecutor(session, config);
+
+    }
+
+    @Override
+    protected WebSocketSendPolicy getSendPolicy(Session session,
+            EndpointConfig config) {
+
+        // Use configured policy, if available
+        WebSocketSendPolicy policy = (WebSocketSendPolicy) config.getUserProperties().get(SEND_POLICY_PROPERTY);
+        if (policy != null)
+            return policy;
+
+        return super.getSendPolicy(session, config);
+
+    }
+
 }
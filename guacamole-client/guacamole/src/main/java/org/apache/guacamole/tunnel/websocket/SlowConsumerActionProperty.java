@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.tunnel.websocket;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.properties.GuacamoleProperty;
+import org.apache.guacamole.websocket.WebSocketSendPolicy.SlowConsumerAction;
+
+/**
+ * A GuacamoleProperty whose value is a SlowConsumerAction. The string values
+ * "disconnect" and "degrade" are each parsed to their corresponding values
+ * within the SlowConsumerAction enum. All other string values result in
+ * parse errors.
+ */
+public abstract class SlowConsumerActionProperty implements GuacamoleProperty<SlowConsumerAction> {
+
+    @Override
+    public SlowConsumerAction parseValue(String value) throws GuacamoleException {
+
+        // If no value provided, return null.
+        if (value == null)
+            return null;
+
+        // Close the connection
+        if (value.equals("disconnect"))
+            return SlowConsumerAction.DISCONNECT;
+
+        // Leave the connection open, with reading paused
+        if (value.equals("degrade"))
+            return SlowConsumerAction.DEGRADE;
+
+        // The provided value is not legal
+        throw new GuacamoleServerException("Slow consumer action must be either \"disconnect\" or \"degrade\".");
+
+    }
+
+}
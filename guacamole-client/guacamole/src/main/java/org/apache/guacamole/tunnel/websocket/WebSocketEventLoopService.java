@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.guacamole.tunnel.websocket;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.io.GuacamoleReaderEventLoop;
+import org.apache.guacamole.properties.BooleanGuacamoleProperty;
+import org.apache.guacamole.properties.IntegerGuacamoleProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which provides the event loop shared by all WebSocket tunnels, if
+ * enabled within guacamole.properties. When enabled, WebSocket tunnels are
+ * read by a small, fixed number of threads rather than a thread per tunnel.
+ */
+@Singleton
+public class WebSocketEventLoopService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(WebSocketEventLoopService.class);
+
+    /**
+     * The number of milliseconds that a tunnel may go without receiving data
+     * from guacd before it is considered timed out. This matches the read
+     * timeout of InetGuacamoleSocket.
+     */
+    private static final int TIMEOUT = 15000;
+
+    /**
+     * Whether WebSocket tunnels should be read using a shared event loop.
+     */
+    private static final BooleanGuacamoleProperty WEBSOCKET_EVENT_LOOP =
+            new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "websocket-event-loop"; }
+
+    };
+
+    /**
+     * The number of threads within the shared event loop. By default, one
+     * thread is used per available processor.
+     */
+    private static final IntegerGuacamoleProperty WEBSOCKET_EVENT_LOOP_THREADS =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "websocket-event-loop-threads"; }
+
+    };
+
+    /**
+     * The Guacamole server environment.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The shared event loop, or null if not yet created.
+     */
+    private GuacamoleReaderEventLoop eventLoop;
+
+    /**
+     * Whether an attempt to create the shared event loop has been made.
+     */
+    private boolean initialized = false;
+
+    /**
+     * Returns the event loop which should be used to read all WebSocket
+     * tunnels, creating that event loop if necessary.
+     *
+     * @return
+     *     The shared event loop, or null if WebSocket tunnels should each be
+     *     read by a dedicated thread.
+     */
+    public synchronized GuacamoleReaderEventLoop getEventLoop() {
+
+        if (initialized)
+            return eventLoop;
+
+        initialized = true;
+
+        try {
+
+            // Use dedicated threads unless explicitly enabled
+            if (!environment.getProperty(WEBSOCKET_EVENT_LOOP, false))
+                return null;
+
+            int threads = environment.getProperty(WEBSOCKET_EVENT_LOOP_THREADS,
+                    Runtime.getRuntime().availableProcessors());
+
+            eventLoop = new GuacamoleReaderEventLoop(threads, TIMEOUT);
+            logger.info("WebSocket tunnels will be read using an event loop of {} threads.", threads);
+
+        }
+        catch (GuacamoleException e) {
+            logger.error("Unable to create event loop for WebSocket tunnels: {}", e.getMessage());
+            logger.debug("Error creating WebSocket event loop.", e);
+        }
+
+        return eventLoop;
+
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.tunnel.websocket;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.properties.IntegerGuacamoleProperty;
+import org.apache.guacamole.websocket.WebSocketSendPolicy;
+import org.apache.guacamole.websocket.WebSocketSendPolicy.SlowConsumerAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service which provides the policy applied to data sent to all WebSocket
+ * clients, as configured within guacamole.properties. The policy limits the
+ * amount of data queued for each client, pausing reads from guacd while a
+ * client falls behind, and dictates how clients which remain behind are
+ * handled.
+ */
+@Singleton
+public class WebSocketSendPolicyService {
+
+    /**
+     * Logger for this class.
+     */
+    private final Logger logger = LoggerFactory.getLogger(WebSocketSendPolicyService.class);
+
+    /**
+     * The number of characters which may be queued for a WebSocket client
+     * before reading from guacd is paused.
+     */
+    private static final IntegerGuacamoleProperty WEBSOCKET_SEND_HIGH_WATERMARK =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "websocket-send-high-watermark"; }
+
+    };
+
+    /**
+     * The number of characters to which the queue of a WebSocket client must
+     * drain before paused reading from guacd is resumed.
+     */
+    private static final IntegerGuacamoleProperty WEBSOCKET_SEND_LOW_WATERMARK =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "websocket-send-low-watermark"; }
+
+    };
+
+    /**
+     * The number of milliseconds that reading may remain paused before a
+     * WebSocket client is considered a slow consumer, or zero to never
+     * consider clients slow consumers.
+     */
+    private static final IntegerGuacamoleProperty WEBSOCKET_SLOW_CONSUMER_TIMEOUT =
+            new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "websocket-slow-consumer-timeout"; }
+
+    };
+
+    /**
+     * The action to take when a slow consumer is detected: either
+     * "disconnect" or "degrade".
+     */
+    private static final SlowConsumerActionProperty WEBSOCKET_SLOW_CONSUMER_ACTION =
+            new SlowConsumerActionProperty() {
+
+        @Override
+        public String getName() { return "websocket-slow-consumer-action"; }
+
+    };
+
+    /**
+     * The Guacamole server environment.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * The shared policy, or null if not yet created.
+     */
+    private WebSocketSendPolicy policy;
+
+    /**
+     * Returns the policy which should be applied to data sent to all
+     * WebSocket clients, creating that policy if necessary. If the configured
+     * policy is invalid, the default policy is used.
+     *
+     * @return
+     *     The shared policy.
+     */
+    public synchronized WebSocketSendPolicy getSendPolicy() {
+
+        if (policy != null)
+            return policy;
+
+        try {
+
+            policy = new WebSocketSendPolicy(
+                environment.getProperty(WEBSOCKET_SEND_LOW_WATERMARK,
+                        WebSocketSendPolicy.DEFAULT_LOW_WATERMARK),
+                environment.getProperty(WEBSOCKET_SEND_HIGH_WATERMARK,
+                        WebSocketSendPolicy.DEFAULT_HIGH_WATERMARK),
+                environment.getProperty(WEBSOCKET_SLOW_CONSUMER_TIMEOUT,
+                        WebSocketSendPolicy.DEFAULT_SLOW_CONSUMER_TIMEOUT),
+                environment.getProperty(WEBSOCKET_SLOW_CONSUMER_ACTION,
+                        SlowConsumerAction.DEGRADE)
+            );
+
+            logger.debug("Using WebSocket send policy: {}", policy);
+
+        }
+        catch (GuacamoleException e) {
+            logger.error("Unable to read WebSocket send policy: {}", e.getMessage());
+            logger.debug("Error reading WebSocket send policy.", e);
+            policy = WebSocketSendPolicy.getDefault();
+        }
+        catch (IllegalArgumentException e) {
+            logger.error("Invalid WebSocket send policy: {}", e.getMessage());
+            logger.debug("Error creating WebSocket send policy.", e);
+            policy = WebSocketSendPolicy.getDefault();
+        }
+
+        return policy;
+
+    }
+
+}
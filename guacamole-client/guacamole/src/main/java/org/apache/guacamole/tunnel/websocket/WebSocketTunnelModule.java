@@ -26,6 +26,7 @@ import javax.websocket.DeploymentException;
 import javax.websocket.server.ServerContainer;
 import javax.websocket.server.ServerEndpointConfig;
 import org.apache.guacamole.tunnel.TunnelLoader;
+import org.apache.guacamole.tunnel.TunnelPumpService;
 import org.apache.guacamole.tunnel.TunnelRequestService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,11 +79,14 @@ public class WebSocketTunnelModule extends ServletModule implements TunnelLoader
         }
 
         Provider<TunnelRequestService> tunnelRequestServiceProvider = getProvider(TunnelRequestService.class);
+        Provider<WebSocketEventLoopService> eventLoopServiceProvider = getProvider(WebSocketEventLoopService.class);
+        Provider<TunnelPumpService> tunnelPumpServiceProvider = getProvider(TunnelPumpService.class);
+        Provider<WebSocketSendPolicyService> sendPolicyServiceProvider = getProvider(WebSocketSendPolicyService.class);
 
         // Build configuration for WebSocket tunnel
         ServerEndpointConfig config =
                 ServerEndpointConfig.Builder.create(RestrictedGuacamoleWebSocketTunnelEndpoint.class, "/websocket-tunnel")
-                                            .configurator(new RestrictedGuacamoleWebSocketTunnelEndpoint.Configurator(tunnelRequestServiceProvider))
+                                            .configurator(new RestrictedGuacamoleWebSocketTunnelEndpoint.Configurator(tunnelRequestServiceProvider, eventLoopServiceProvider, tunnelPumpServiceProvider, sendPolicyServiceProvider))
                                             .subprotocols(Arrays.asList(new String[]{"guacamole"}))
                                             .build();
 
@@ -20,11 +20,15 @@
 package org.apache.guacamole.tunnel.websocket.jetty8;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import javax.servlet.http.HttpServletRequest;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.io.GuacamoleReader;
 import org.apache.guacamole.io.GuacamoleWriter;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.TunnelPumpExecutor;
+import org.apache.guacamole.net.WriterPriority;
 import org.eclipse.jetty.websocket.WebSocket;
 import org.eclipse.jetty.websocket.WebSocket.Connection;
 import org.eclipse.jetty.websocket.WebSocketServlet;
@@ -69,6 +73,19 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
 
     }
 
+    /**
+     * Returns the Executor which should run the read pump of each tunnel.
+     * Each read pump blocks for the lifetime of its tunnel. By default, the
+     * shared TunnelPumpExecutor is used, which runs pumps on virtual threads
+     * where supported.
+     *
+     * @return
+     *     The Executor which should run the read pump of each tunnel.
+     */
+    protected Executor getReadPumpExecutor() {
+        return TunnelPumpExecutor.getDefault();
+    }
+
     @Override
     public WebSocket doWebSocketConnect(HttpServletRequest request, String protocol) {
 
@@ -90,11 +107,14 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
                 if (tunnel == null)
                     return;
 
-                GuacamoleWriter writer = tunnel.acquireWriter();
+                // Write ahead of any less urgent data waiting to be sent
+                char[] chars = string.toCharArray();
+                GuacamoleWriter writer = WriterPriority.acquireWriter(tunnel,
+                        WriterPriority.forMessage(chars));
 
                 // Write message received
                 try {
-                    writer.write(string.toCharArray());
+                    writer.write(chars);
                 }
                 catch (GuacamoleConnectionClosedException e) {
                     logger.debug("Connection to guacd closed.", e);
@@ -126,7 +146,7 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
                     return;
                 }
 
-                Thread readThread = new Thread() {
+                Runnable readPump = new Runnable() {
 
                     @Override
                     public void run() {
@@ -192,7 +212,25 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
 
                 };
 
-                readThread.start();
+                // Start pump, refusing the connection if no thread is available
+                try {
+                    getReadPumpExecutor().execute(readPump);
+                }
+                catch (RejectedExecutionException e) {
+
+                    logger.warn("WebSocket tunnel refused: too many active tunnels.");
+                    logger.debug("Unable to start read pump.", e);
+
+                    try {
+                        tunnel.close();
+                    }
+                    catch (GuacamoleException closeError) {
+                        logger.debug("Unable to close connection to guacd.", closeError);
+                    }
+
+                    closeConnection(connection, GuacamoleStatus.SERVER_BUSY);
+
+                }
 
             }
 
@@ -20,6 +20,8 @@
 package org.apache.guacamole.tunnel.websocket.jetty9;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import org.eclipse.jetty.websocket.api.CloseStatus;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
@@ -30,6 +32,8 @@ import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.io.GuacamoleReader;
 import org.apache.guacamole.io.GuacamoleWriter;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.TunnelPumpExecutor;
+import org.apache.guacamole.net.WriterPriority;
 import org.apache.guacamole.protocol.GuacamoleInstruction;
 import org.apache.guacamole.protocol.GuacamoleStatus;
 import org.slf4j.Logger;
@@ -91,6 +95,19 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
     protected abstract GuacamoleTunnel createTunnel(Session session)
             throws GuacamoleException;
 
+    /**
+     * Returns the Executor which should run the read pump of each tunnel.
+     * Each read pump blocks for the lifetime of its tunnel. By default, the
+     * shared TunnelPumpExecutor is used, which runs pumps on virtual threads
+     * where supported.
+     *
+     * @return
+     *     The Executor which should run the read pump of each tunnel.
+     */
+    protected Executor getReadPumpExecutor() {
+        return TunnelPumpExecutor.getDefault();
+    }
+
     @Override
     public void onWebSocketConnect(final Session session) {
 
@@ -111,8 +128,8 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
             return;
         }
 
-        // Prepare read transfer thread
-        Thread readThread = new Thread() {
+        // Prepare read pump
+        Runnable readPump = new Runnable() {
 
             /**
              * Remote (client) side of this connection
@@ -183,7 +200,25 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
 
         };
 
-        readThread.start();
+        // Start pump, refusing the connection if no thread is available
+        try {
+            getReadPumpExecutor().execute(readPump);
+        }
+        catch (RejectedExecutionException e) {
+
+            logger.warn("WebSocket tunnel refused: too many active tunnels.");
+            logger.debug("Unable to start read pump.", e);
+
+            try {
+                tunnel.close();
+            }
+            catch (GuacamoleException closeError) {
+                logger.debug("Unable to close connection to guacd.", closeError);
+            }
+
+            closeConnection(session, GuacamoleStatus.SERVER_BUSY);
+
+        }
 
     }
 
@@ -194,11 +229,14 @@ public abstract class GuacamoleWebSocketTunnelListener implements WebSocketListe
         if (tunnel == null)
             return;
 
-        GuacamoleWriter writer = tunnel.acquireWriter();
+        // Write ahead of any less urgent data waiting to be sent
+        char[] chars = message.toCharArray();
+        GuacamoleWriter writer = WriterPriority.acquireWriter(tunnel,
+                WriterPriority.forMessage(chars));
 
         try {
             // Write received message
-            writer.write(message.toCharArray());
+            writer.write(chars);
         }
         catch (GuacamoleConnectionClosedException e) {
             logger.debug("Connection to guacd closed.", e);
@@ -19,6 +19,7 @@
 
 package org.apache.guacamole.tunnel.websocket.jetty9;
 
+import java.util.concurrent.Executor;
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
 import org.eclipse.jetty.websocket.api.UpgradeResponse;
 import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
@@ -37,15 +38,24 @@ public class RestrictedGuacamoleWebSocketCreator implements WebSocketCreator {
      */
     private final TunnelRequestService tunnelRequestService;
 
+    /**
+     * The executor which should run the read pump of each tunnel.
+     */
+    private final Executor readPumpExecutor;
+
     /**
      * Creates a new WebSocketCreator which uses the given TunnelRequestService
      * to create new GuacamoleTunnels for inbound requests.
      *
      * @param tunnelRequestService The service to use for inbound tunnel
      *                             requests.
+     * @param readPumpExecutor The executor which should run the read pump of
+     *                         each tunnel.
      */
-    public RestrictedGuacamoleWebSocketCreator(TunnelRequestService tunnelRequestService) {
+    public RestrictedGuacamoleWebSocketCreator(TunnelRequestService tunnelRequestService,
+            Executor readPumpExecutor) {
         this.tunnelRequestService = tunnelRequestService;
+        this.readPumpExecutor = readPumpExecutor;
     }
 
     @Override
@@ -56,7 +66,8 @@ public class RestrictedGuacamoleWebSocketCreator implements WebSocketCreator {
 
             if ("guacamole".equals(subprotocol)) {
                 response.setAcceptedSubProtocol(subprotocol);
-                return new RestrictedGuacamoleWebSocketTunnelListener(tunnelRequestService);
+                return new RestrictedGuacamoleWebSocketTunnelListener(tunnelRequestService,
+                        readPumpExecutor);
             }
 
         }
@@ -19,6 +19,7 @@
 
 package org.apache.guacamole.tunnel.websocket.jetty9;
 
+import java.util.concurrent.Executor;
 import org.eclipse.jetty.websocket.api.Session;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.net.GuacamoleTunnel;
@@ -37,15 +38,24 @@ public class RestrictedGuacamoleWebSocketTunnelListener extends GuacamoleWebSock
      */
     private final TunnelRequestService tunnelRequestService;
 
+    /**
+     * The executor which should run the read pump of each tunnel.
+     */
+    private final Executor readPumpExecutor;
+
     /**
      * Creates a new WebSocketListener which uses the given TunnelRequestService
      * to create new GuacamoleTunnels for inbound requests.
      *
      * @param tunnelRequestService The service to use for inbound tunnel
      *                             requests.
+     * @param readPumpExecutor The executor which should run the read pump of
+     *                         each tunnel.
      */
-    public RestrictedGuacamoleWebSocketTunnelListener(TunnelRequestService tunnelRequestService) {
+    public RestrictedGuacamoleWebSocketTunnelListener(TunnelRequestService tunnelRequestService,
+            Executor readPumpExecutor) {
         this.tunnelRequestService = tunnelRequestService;
+        this.readPumpExecutor = readPumpExecutor;
     }
 
     @Override
@@ -53,4 +63,9 @@ public class RestrictedGuacamoleWebSocketTunnelListener extends GuacamoleWebSock
         return tunnelRequestService.createTunnel(new WebSocketTunnelRequest(session.getUpgradeRequest()));
     }
 
+    @Override
+    protected Executor getReadPumpExecutor() {
+        return readPumpExecutor;
+    }
+
 }
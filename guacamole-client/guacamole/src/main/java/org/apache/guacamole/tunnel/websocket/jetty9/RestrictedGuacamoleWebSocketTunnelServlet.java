@@ -23,6 +23,7 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.apache.guacamole.tunnel.TunnelPumpService;
 import org.apache.guacamole.tunnel.TunnelRequestService;
 
 /**
@@ -38,12 +39,19 @@ public class RestrictedGuacamoleWebSocketTunnelServlet extends WebSocketServlet
      */
     @Inject
     private TunnelRequestService tunnelRequestService;
+
+    /**
+     * Service providing the executor which runs all read pumps.
+     */
+    @Inject
+    private TunnelPumpService tunnelPumpService;
  
     @Override
     public void configure(WebSocketServletFactory factory) {
 
         // Register WebSocket implementation
-        factory.setCreator(new RestrictedGuacamoleWebSocketCreator(tunnelRequestService));
+        factory.setCreator(new RestrictedGuacamoleWebSocketCreator(tunnelRequestService,
+                tunnelPumpService.getExecutor()));
         
     }
     
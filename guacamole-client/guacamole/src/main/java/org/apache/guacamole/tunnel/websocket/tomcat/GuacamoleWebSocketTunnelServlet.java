@@ -25,11 +25,15 @@ import java.io.Reader;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import javax.servlet.http.HttpServletRequest;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.io.GuacamoleReader;
 import org.apache.guacamole.io.GuacamoleWriter;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.TunnelPumpExecutor;
+import org.apache.guacamole.net.WriterPriority;
 import org.apache.catalina.websocket.StreamInbound;
 import org.apache.catalina.websocket.WebSocketServlet;
 import org.apache.catalina.websocket.WsOutbound;
@@ -78,6 +82,19 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
 
     }
 
+    /**
+     * Returns the Executor which should run the read pump of each tunnel.
+     * Each read pump blocks for the lifetime of its tunnel. By default, the
+     * shared TunnelPumpExecutor is used, which runs pumps on virtual threads
+     * where supported.
+     *
+     * @return
+     *     The Executor which should run the read pump of each tunnel.
+     */
+    protected Executor getReadPumpExecutor() {
+        return TunnelPumpExecutor.getDefault();
+    }
+
     @Override
     protected String selectSubProtocol(List<String> subProtocols) {
 
@@ -113,16 +130,22 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
                 if (tunnel == null)
                     return;
 
-                GuacamoleWriter writer = tunnel.acquireWriter();
+                // Classify message by its first chunk, such that it is
+                // written ahead of any less urgent data waiting to be sent
+                char[] buffer = new char[BUFFER_SIZE];
+                int num_read = reader.read(buffer);
+                if (num_read <= 0)
+                    return;
+
+                GuacamoleWriter writer = WriterPriority.acquireWriter(tunnel,
+                        WriterPriority.forMessage(buffer, 0, num_read));
 
                 // Write all available data
                 try {
 
-                    char[] buffer = new char[BUFFER_SIZE];
-
-                    int num_read;
-                    while ((num_read = reader.read(buffer)) > 0)
+                    do {
                         writer.write(buffer, 0, num_read);
+                    } while ((num_read = reader.read(buffer)) > 0);
 
                 }
                 catch (GuacamoleConnectionClosedException e) {
@@ -154,7 +177,7 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
                     return;
                 }
 
-                Thread readThread = new Thread() {
+                Runnable readPump = new Runnable() {
 
                     @Override
                     public void run() {
@@ -220,7 +243,25 @@ public abstract class GuacamoleWebSocketTunnelServlet extends WebSocketServlet {
 
                 };
 
-                readThread.start();
+                // Start pump, refusing the connection if no thread is available
+                try {
+                    getReadPumpExecutor().execute(readPump);
+                }
+                catch (RejectedExecutionException e) {
+
+                    logger.warn("WebSocket tunnel refused: too many active tunnels.");
+                    logger.debug("Unable to start read pump.", e);
+
+                    try {
+                        tunnel.close();
+                    }
+                    catch (GuacamoleException closeError) {
+                        logger.debug("Unable to close connection to guacd.", closeError);
+                    }
+
+                    closeConnection(outbound, GuacamoleStatus.SERVER_BUSY);
+
+                }
 
             }
 
@@ -21,8 +21,10 @@ package org.apache.guacamole.tunnel.websocket.tomcat;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.util.concurrent.Executor;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.tunnel.TunnelPumpService;
 import org.apache.guacamole.tunnel.TunnelRequestService;
 import org.apache.guacamole.tunnel.TunnelRequest;
 
@@ -39,6 +41,12 @@ public class RestrictedGuacamoleWebSocketTunnelServlet extends GuacamoleWebSocke
      */
     @Inject
     private TunnelRequestService tunnelRequestService;
+
+    /**
+     * Service providing the executor which runs all read pumps.
+     */
+    @Inject
+    private TunnelPumpService tunnelPumpService;
  
     @Override
     protected GuacamoleTunnel doConnect(TunnelRequest request)
@@ -46,4 +54,9 @@ public class RestrictedGuacamoleWebSocketTunnelServlet extends GuacamoleWebSocke
         return tunnelRequestService.createTunnel(request);
     };
 
+    @Override
+    protected Executor getReadPumpExecutor() {
+        return tunnelPumpService.getExecutor();
+    }
+
 }
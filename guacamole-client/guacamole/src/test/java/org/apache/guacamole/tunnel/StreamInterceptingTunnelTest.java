@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.guacamole.tunnel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.ChannelGuacamoleReader;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleReaderEventLoop;
+import org.apache.guacamole.io.GuacamoleReaderListener;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.io.SelectableGuacamoleReader;
+import org.apache.guacamole.io.WriterGuacamoleWriter;
+import org.apache.guacamole.net.GuacamoleSocket;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests StreamInterceptingTunnel, validating that intercepted streams which
+ * block do not block the thread reading the tunnel.
+ */
+public class StreamInterceptingTunnelTest {
+
+    /**
+     * The charset of the Guacamole protocol.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The number of seconds to wait for any expected event.
+     */
+    private static final long WAIT = 5;
+
+    /**
+     * GuacamoleSocket which reads from the source of a pipe without blocking,
+     * discarding all data written.
+     */
+    private static class PipeGuacamoleSocket implements GuacamoleSocket {
+
+        /**
+         * The pipe whose source is read.
+         */
+        private final Pipe pipe;
+
+        /**
+         * Reader of the source of the pipe.
+         */
+        private final ChannelGuacamoleReader reader;
+
+        /**
+         * Writer receiving all data written, which is discarded.
+         */
+        private final GuacamoleWriter writer = new WriterGuacamoleWriter(new StringWriter());
+
+        /**
+         * Creates a new PipeGuacamoleSocket which reads from a new pipe.
+         *
+         * @throws IOException
+         *     If the pipe cannot be created.
+         */
+        public PipeGuacamoleSocket() throws IOException {
+            pipe = Pipe.open();
+            pipe.source().configureBlocking(false);
+            reader = new ChannelGuacamoleReader(pipe.source(), 0);
+        }
+
+        /**
+         * Writes the given instruction data to the sink of the pipe, such
+         * that it will be read by this socket.
+         *
+         * @param data
+         *     The instruction data to write.
+         *
+         * @throws IOException
+         *     If the data cannot be written.
+         */
+        public void receive(String data) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(UTF8));
+            while (buffer.hasRemaining())
+                pipe.sink().write(buffer);
+        }
+
+        @Override
+        public GuacamoleReader getReader() {
+            return reader;
+        }
+
+        @Override
+        public GuacamoleWriter getWriter() {
+            return writer;
+        }
+
+        @Override
+        public void close() throws GuacamoleException {
+            try {
+                pipe.sink().close();
+                pipe.source().close();
+            }
+            catch (IOException e) {
+                throw new GuacamoleException(e);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return pipe.source().isOpen();
+        }
+
+    }
+
+    /**
+     * OutputStream whose writes block until released.
+     */
+    private static class BlockingOutputStream extends OutputStream {
+
+        /**
+         * Latch which is released once writes may proceed.
+         */
+        public final CountDownLatch released = new CountDownLatch(1);
+
+        /**
+         * Latch which is released once a write has begun blocking.
+         */
+        public final CountDownLatch blocked = new CountDownLatch(1);
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            blocked.countDown();
+            try {
+                released.await();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+    }
+
+    /**
+     * GuacamoleReaderListener which records all instructions received.
+     */
+    private static class RecordingListener implements GuacamoleReaderListener {
+
+        /**
+         * All instructions received, in order.
+         */
+        public final BlockingQueue<String> instructions = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void instructionReceived(ByteBuffer instruction) {
+            instructions.add(UTF8.decode(instruction).toString());
+        }
+
+        @Override
+        public void instructionsDrained() {
+        }
+
+        @Override
+        public void readFailed(GuacamoleException e) {
+        }
+
+    }
+
+    /**
+     * Test that an intercepted stream which blocks while being written does
+     * not prevent another tunnel read by the same event loop thread from
+     * receiving instructions.
+     *
+     * @throws Exception
+     *     If an error occurs while reading or writing, or if the test is
+     *     interrupted.
+     */
+    @Test
+    public void testBlockingStreamDoesNotBlockEventLoop() throws Exception {
+
+        GuacamoleReaderEventLoop eventLoop = new GuacamoleReaderEventLoop(1, 0);
+
+        PipeGuacamoleSocket downloadSocket = new PipeGuacamoleSocket();
+        StreamInterceptingTunnel downloadTunnel = new StreamInterceptingTunnel(
+                new SimpleGuacamoleTunnel(downloadSocket));
+
+        PipeGuacamoleSocket otherSocket = new PipeGuacamoleSocket();
+        SimpleGuacamoleTunnel otherTunnel = new SimpleGuacamoleTunnel(otherSocket);
+
+        // Intercept a stream whose writes block until released
+        BlockingOutputStream download = new BlockingOutputStream();
+        downloadTunnel.interceptStreamAsync(1, download);
+
+        try {
+
+            // Read both tunnels using the single thread of the same loop
+            RecordingListener downloadListener = new RecordingListener();
+            RecordingListener otherListener = new RecordingListener();
+            eventLoop.register((SelectableGuacamoleReader) downloadTunnel.acquireReader(), downloadListener);
+            eventLoop.register((SelectableGuacamoleReader) otherTunnel.acquireReader(), otherListener);
+
+            // Receive a blob larger than the stream's buffer, forcing a write
+            char[] data = new char[21848];
+            Arrays.fill(data, 'A');
+            downloadSocket.receive("4.blob,1.1," + data.length + "." + new String(data) + ";");
+            assertTrue(download.blocked.await(WAIT, TimeUnit.SECONDS));
+
+            // The other tunnel must still be read while the write is blocked
+            otherSocket.receive("4.sync,1.1;");
+            assertEquals("4.sync,1.1;", otherListener.instructions.poll(WAIT, TimeUnit.SECONDS));
+
+            // The intercepted blob itself is never passed through
+            assertNull(downloadListener.instructions.poll());
+
+        }
+        finally {
+            download.released.countDown();
+            eventLoop.shutdown();
+            downloadTunnel.close();
+            otherTunnel.close();
+        }
+
+    }
+
+}